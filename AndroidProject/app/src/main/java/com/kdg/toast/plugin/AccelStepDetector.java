@@ -0,0 +1,194 @@
+package com.kdg.toast.plugin;
+
+/**
+ * Software step counter over raw TYPE_ACCELEROMETER samples, for devices without a hardware
+ * step counter.
+ * <p>
+ * Per sample: the magnitude of the acceleration loses its slowly moving gravity component
+ * through an exponential average, is smoothed by a short moving average, then peaks and
+ * valleys are picked with a hysteresis so sensor noise on a slope is not taken for one. A
+ * peak is a step candidate when its swing above the preceding valley beats an adaptive
+ * threshold, a fraction of the last swings, and it comes at least
+ * {@link #MIN_STEP_INTERVAL_NANOS} after the previous one. Candidates are only credited once
+ * {@link #CONFIRM_STEPS} of them came in a walking rhythm, so bumping or shaking the phone
+ * does not count; a pause longer than {@link #MAX_STEP_INTERVAL_NANOS} drops the unconfirmed.
+ * <p>
+ * All state is primitives and two fixed rings, {@link #onSample(long, float, float, float)}
+ * does not allocate. Times are sensor timestamps, so batched delivery does not matter.
+ * One thread only.
+ */
+final class AccelStepDetector {
+    /** 50 Hz, plenty for steps at up to 4 Hz. */
+    static final int SAMPLING_PERIOD_US = 20_000;
+    static final long MIN_STEP_INTERVAL_NANOS = 250_000_000L;
+    static final long MAX_STEP_INTERVAL_NANOS = 2_000_000_000L;
+    static final int CONFIRM_STEPS = 4;
+    /** Smallest peak-to-valley swing in m/s^2 that can be a step. */
+    static final float MIN_SWING = 1.0f;
+    /** A step must swing at least this share of the recent average swing. */
+    static final float SWING_RATIO = 0.45f;
+    /** An extreme counts once the signal came back by this share of the threshold. */
+    static final float HYSTERESIS_RATIO = 0.3f;
+    static final int SMOOTHING_SAMPLES = 4;
+    static final int SWING_HISTORY = 8;
+    /** Gravity tracking time constant. */
+    static final long GRAVITY_TAU_NANOS = 1_000_000_000L;
+
+    private final float[] window = new float[SMOOTHING_SAMPLES];
+    private final float[] swings = new float[SWING_HISTORY];
+
+    private boolean started;
+    private long lastNanos;
+    private float gravity;
+    private int windowIndex;
+    private int windowCount;
+    private float windowSum;
+    private boolean lookingForPeak;
+    private float extreme;
+    private long extremeNanos;
+    private float valley;
+    private int swingIndex;
+    private int swingCount;
+    private float swingSum;
+    private long lastCandidateNanos = Long.MIN_VALUE;
+    private int streak;
+    private long steps;
+    private long candidates;
+
+    /**
+     * @return steps credited by this sample, {@link #CONFIRM_STEPS} when a streak gets
+     * confirmed, usually 0 or 1
+     */
+    int onSample(long timestampNanos, float x, float y, float z) {
+        float magnitude = (float) Math.sqrt(x * x + y * y + z * z);
+        if (!started) {
+            started = true;
+            lastNanos = timestampNanos;
+            gravity = magnitude;
+            lookingForPeak = false;
+            extreme = 0f;
+            valley = 0f;
+            return 0;
+        }
+        long dt = timestampNanos - lastNanos;
+        if (dt <= 0) {
+            return 0;
+        }
+        lastNanos = timestampNanos;
+        float alpha = dt >= GRAVITY_TAU_NANOS ? 1f : (float) dt / GRAVITY_TAU_NANOS;
+        gravity += (magnitude - gravity) * alpha;
+
+        float value = smooth(magnitude - gravity);
+        float hysteresis = HYSTERESIS_RATIO * threshold();
+        int credited = 0;
+        if (lookingForPeak) {
+            if (value > extreme) {
+                extreme = value;
+                extremeNanos = timestampNanos;
+            } else if (value < extreme - hysteresis) {
+                credited = onPeak(extreme - valley, extremeNanos);
+                lookingForPeak = false;
+                extreme = value;
+            }
+        } else if (value < extreme) {
+            extreme = value;
+        } else if (value > extreme + hysteresis) {
+            valley = extreme;
+            lookingForPeak = true;
+            extreme = value;
+            extremeNanos = timestampNanos;
+        }
+        return credited;
+    }
+
+    /**
+     * Steps credited so far.
+     */
+    long steps() {
+        return steps;
+    }
+
+    /**
+     * Peaks that passed the threshold, credited or not.
+     */
+    long candidates() {
+        return candidates;
+    }
+
+    /**
+     * Current minimum swing for a step.
+     */
+    float threshold() {
+        if (swingCount == 0) {
+            return MIN_SWING;
+        }
+        return Math.max(MIN_SWING, SWING_RATIO * swingSum / swingCount);
+    }
+
+    /**
+     * Forgets the signal but keeps the step total, e.g. when the sensor is re-registered.
+     */
+    void restart() {
+        started = false;
+        windowIndex = 0;
+        windowCount = 0;
+        windowSum = 0f;
+        lookingForPeak = false;
+        swingIndex = 0;
+        swingCount = 0;
+        swingSum = 0f;
+        lastCandidateNanos = Long.MIN_VALUE;
+        streak = 0;
+    }
+
+    private float smooth(float value) {
+        if (windowCount == SMOOTHING_SAMPLES) {
+            windowSum -= window[windowIndex];
+        } else {
+            windowCount++;
+        }
+        window[windowIndex] = value;
+        windowSum += value;
+        windowIndex = (windowIndex + 1) % SMOOTHING_SAMPLES;
+        return windowSum / windowCount;
+    }
+
+    private int onPeak(float swing, long peakNanos) {
+        long sinceLast = lastCandidateNanos == Long.MIN_VALUE ? Long.MAX_VALUE : peakNanos - lastCandidateNanos;
+        if (sinceLast > MAX_STEP_INTERVAL_NANOS && streak > 0) {
+            // rhythm lost: drop the unconfirmed steps and the swings of the last walk
+            swingCount = 0;
+            swingSum = 0f;
+            swingIndex = 0;
+            streak = 0;
+        }
+        if (swing < threshold()) {
+            return 0;
+        }
+        if (sinceLast < MIN_STEP_INTERVAL_NANOS) {
+            // a second bump within the same step
+            return 0;
+        }
+        candidates++;
+        lastCandidateNanos = peakNanos;
+        recordSwing(swing);
+        streak++;
+        if (streak < CONFIRM_STEPS) {
+            return 0;
+        }
+        int credited = streak == CONFIRM_STEPS ? CONFIRM_STEPS : 1;
+        steps += credited;
+        return credited;
+    }
+
+    private void recordSwing(float swing) {
+        if (swingCount == SWING_HISTORY) {
+            swingSum -= swings[swingIndex];
+        } else {
+            swingCount++;
+        }
+        swings[swingIndex] = swing;
+        swingSum += swing;
+        swingIndex = (swingIndex + 1) % SWING_HISTORY;
+    }
+}
@@ -0,0 +1,145 @@
+package com.kdg.toast.plugin;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link SensorSource} over SensorManager, delivering every event on the collector host's
+ * Handler. One listener object is created per registration, none per event.
+ */
+final class AndroidSensorSource implements SensorSource {
+    private final SensorManager sensorManager;
+    private final Handler handler;
+    private final Map<Sink, SensorEventListener> listeners = new HashMap<>();
+    private final Map<Sink, TriggerEventListener> triggers = new HashMap<>();
+
+    AndroidSensorSource(SensorManager sensorManager, Handler handler) {
+        this.sensorManager = sensorManager;
+        this.handler = handler;
+    }
+
+    @Override
+    public boolean hasSensor(int type) {
+        return sensorManager.getDefaultSensor(type) != null;
+    }
+
+    @Override
+    public int fifoReservedEventCount(int type) {
+        Sensor sensor = sensorManager.getDefaultSensor(type);
+        return sensor == null ? 0 : sensor.getFifoReservedEventCount();
+    }
+
+    @Override
+    public synchronized boolean register(int type, int samplingPeriodUs, int maxReportLatencyUs, Sink sink) {
+        Sensor sensor = sensorManager.getDefaultSensor(type);
+        if (sensor == null) {
+            return false;
+        }
+        SensorEventListener listener = new SinkListener(sink);
+        if (maxReportLatencyUs > 0) {
+            Log.i(PluginLog.TAG, "register: "+sensor.getName()+" batching with max report latency "+maxReportLatencyUs
+                    +"us, fifo "+sensor.getFifoMaxEventCount());
+        }
+        if (!sensorManager.registerListener(listener, sensor, samplingPeriodUs, maxReportLatencyUs, handler)) {
+            return false;
+        }
+        listeners.put(sink, listener);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestTrigger(int type, Sink sink) {
+        Sensor sensor = sensorManager.getDefaultSensor(type);
+        if (sensor == null) {
+            return false;
+        }
+        TriggerEventListener listener = triggers.get(sink);
+        if (listener == null) {
+            listener = new SinkTrigger(sink);
+            triggers.put(sink, listener);
+        }
+        return sensorManager.requestTriggerSensor(listener, sensor);
+    }
+
+    @Override
+    public synchronized void unregister(Sink sink) {
+        SensorEventListener listener = listeners.remove(sink);
+        if (listener != null) {
+            sensorManager.unregisterListener(listener);
+        }
+        TriggerEventListener trigger = triggers.remove(sink);
+        if (trigger != null) {
+            Sensor sensor = sensorManager.getDefaultSensor(TYPE_SIGNIFICANT_MOTION);
+            if (sensor != null) {
+                sensorManager.cancelTriggerSensor(trigger, sensor);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean flush(Sink sink) {
+        SensorEventListener listener = listeners.get(sink);
+        return listener != null && sensorManager.flush(listener);
+    }
+
+    @Override
+    public long elapsedRealtimeNanos() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    private static final class SinkListener implements SensorEventListener {
+        private final Sink sink;
+
+        SinkListener(Sink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void onSensorChanged(SensorEvent sensorEvent) {
+            // hot path: no allocation unless verbose logging is switched on
+            boolean traced = PluginTrace.begin(PluginTrace.SENSOR_EVENT);
+            sink.onSensorEvent(sensorEvent.timestamp, sensorEvent.values);
+            PluginTrace.end(traced);
+            if (PluginLog.verbose()) {
+                Log.i(PluginLog.TAG, "onSensorChanged: "+sensorEvent.sensor.getName()+" "+sensorEvent.values[0]);
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        }
+    }
+
+    /**
+     * Trigger events arrive on the main thread, they are handed over to the host thread.
+     */
+    private final class SinkTrigger extends TriggerEventListener {
+        private final Sink sink;
+
+        SinkTrigger(Sink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void onTrigger(TriggerEvent event) {
+            final long timestamp = event.timestamp;
+            final float[] values = event.values.clone();
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    sink.onSensorEvent(timestamp, values);
+                }
+            });
+        }
+    }
+}
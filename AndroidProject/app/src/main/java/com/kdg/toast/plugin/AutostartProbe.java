@@ -0,0 +1,96 @@
+package com.kdg.toast.plugin;
+
+/**
+ * Finds the first of the OEM autostart settings screens in {@link Bridge#POWERMANAGER_INTENTS}
+ * that exists on this device.
+ * <p>
+ * Every candidate costs a PackageManager binder call, too much to repeat on each StartService.
+ * The answer only changes with a system update or a new candidate list, so it is saved under
+ * a version key made of both and later processes read it back instead of probing. The probe
+ * itself runs on whichever thread first asks for {@link #result()}, which {@link Bridge} keeps
+ * off the Unity thread.
+ */
+final class AutostartProbe {
+    /** No autostart screen on this device. */
+    static final int NONE = -1;
+    private static final int UNKNOWN = -2;
+
+    interface Resolver {
+        /**
+         * Whether candidate {@code index} resolves to an activity.
+         */
+        boolean resolves(int index);
+    }
+
+    /**
+     * Where the result survives the process, a SharedPreferences string on Android.
+     */
+    interface Store {
+        /**
+         * The value last saved, or null.
+         */
+        String load();
+
+        void save(String value);
+    }
+
+    private final int candidates;
+    private final String versionKey;
+    private final Resolver resolver;
+    private final Store store;
+    private int result = UNKNOWN;
+    private int lookups;
+
+    AutostartProbe(int candidates, String versionKey, Resolver resolver, Store store) {
+        this.candidates = candidates;
+        this.versionKey = versionKey;
+        this.resolver = resolver;
+        this.store = store;
+    }
+
+    /**
+     * Index of the first candidate that resolves, or {@link #NONE}. Resolves the candidates on
+     * the calling thread when neither this process nor the store knows the answer for the
+     * current version key.
+     */
+    synchronized int result() {
+        if (result == UNKNOWN) {
+            result = cached();
+        }
+        if (result == UNKNOWN) {
+            result = lookup();
+            store.save(versionKey + '=' + result);
+        }
+        return result;
+    }
+
+    /**
+     * Times the candidates were resolved by this instance.
+     */
+    synchronized int lookups() {
+        return lookups;
+    }
+
+    private int cached() {
+        String value = store.load();
+        if (value == null || !value.startsWith(versionKey + '=')) {
+            return UNKNOWN;
+        }
+        try {
+            int index = Integer.parseInt(value.substring(versionKey.length() + 1));
+            return index >= NONE && index < candidates ? index : UNKNOWN;
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
+        }
+    }
+
+    private int lookup() {
+        lookups++;
+        for (int i = 0; i < candidates; i++) {
+            if (resolver.resolves(i)) {
+                return i;
+            }
+        }
+        return NONE;
+    }
+}
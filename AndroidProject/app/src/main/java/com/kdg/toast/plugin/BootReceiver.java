@@ -0,0 +1,47 @@
+package com.kdg.toast.plugin;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import java.time.DateTimeException;
+import java.time.ZoneId;
+
+import androidx.core.content.ContextCompat;
+
+/**
+ * Restarts the service after a reboot if it was running, so the steps walked between boot and the next app launch are counted. {@link StepAccountant} sees the new boot count and
+ * credits everything the counter gathered since boot. A time zone change moves the local
+ * midnight {@link DailyAggregates} rolls over at.
+ */
+public class BootReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (Intent.ACTION_TIMEZONE_CHANGED.equals(intent.getAction())) {
+            Bridge.onTimeZoneChanged(zone(intent.getStringExtra(Intent.EXTRA_TIMEZONE)));
+            return;
+        }
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+            return;
+        }
+        if (!context.getSharedPreferences(Bridge.SERVICE_SETTINGS, Context.MODE_PRIVATE)
+                .getBoolean(Bridge.SERVICE_ENABLED, false)) {
+            return;
+        }
+        Log.i(PluginLog.TAG, "onReceive: restarting service after boot");
+        Bridge.metrics.bootRestarts.incrementAndGet();
+        ContextCompat.startForegroundService(context, Bridge.serviceIntent(context));
+    }
+
+    private static ZoneId zone(String id) {
+        if (id != null) {
+            try {
+                return ZoneId.of(id);
+            } catch (DateTimeException e) {
+                Log.w(PluginLog.TAG, "zone: unknown time zone " + id);
+            }
+        }
+        return ZoneId.systemDefault();
+    }
+}
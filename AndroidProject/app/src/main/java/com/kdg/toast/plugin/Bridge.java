@@ -12,14 +12,30 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.Process;
 import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.util.Log;
 
-import java.util.Calendar;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.Date;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
@@ -28,9 +44,23 @@ import static android.Manifest.permission.ACTIVITY_RECOGNITION;
 import static androidx.core.app.ActivityCompat.requestPermissions;
 
 public final class Bridge extends Application {
-    static int summarySteps;
-    static int steps;
-    static int initialSteps;
+    static final StepState stepState = new StepState();
+    /**
+     * Steps counted but not synced, read from {@link SharedStepCounter} so every process sees
+     * the same value; 0 while it is not open.
+     */
+    static final StepCount unsyncedSteps = new StepCount() {
+        @Override
+        public int steps() {
+            SharedStepCounter counter = sharedSteps;
+            return counter == null ? 0 : counter.steps();
+        }
+    };
+    static final StepPublisher stepPublisher =
+            new StepPublisher(unsyncedSteps, TimeSource.SYSTEM, new HandlerScheduler(Looper.getMainLooper()));
+    static final PluginMetrics metrics = new PluginMetrics();
+    private static volatile boolean stepStateLoaded;
+    private static final AtomicBoolean stepStateWarming = new AtomicBoolean();
     static Activity myActivity;
     static Context appContext;
     Date currentDate;
@@ -38,6 +68,41 @@ public final class Bridge extends Application {
     static final String SUMMARY_STEPS="summarySteps";
     static final String DATE="currentDate";
     static final String INIT_DATE="initialDate";
+    static final String INIT_DATE_MILLIS="initialDateMillis";
+    static final String COUNTER_BASELINE="counterBaseline";
+    static final String SERVICE_SETTINGS="service_settings";
+    static final String SERVICE_ENABLED="service_enabled";
+    static final String COLLECTORS="collectors";
+    static int maxUnsavedSteps = CoalescingStepWriter.DEFAULT_MAX_UNSAVED_STEPS;
+    static long flushIntervalMillis = CoalescingStepWriter.DEFAULT_FLUSH_INTERVAL_MILLIS;
+    static int maxReportLatencyMillis;
+    static int batchSize;
+    static boolean adaptivePower = true;
+    static final String SHARED_STEPS_FILE="shared_steps.bin";
+    private static volatile SharedStepCounter sharedSteps;
+    private static volatile long loggedFailedReads;
+    private static final Object syncLock = new Object();
+    static final String JOURNAL_DIR="step_journal";
+    private static StepJournal stepJournal;
+    static final int MAX_HISTORY_EXPORTS = 4;
+    private static final HistoryExports historyExports = new HistoryExports(MAX_HISTORY_EXPORTS);
+    static final String AGGREGATES_FILE="daily_steps.agg";
+    private static DailyAggregates dailyAggregates;
+    private static CoalescingStepWriter stepWriter;
+    static final String AUTO_START="auto_start";
+    static final String AUTOSTART_PROBE="autostart_probe";
+    private static AutostartProbe autostartProbe;
+    static final String UPLOAD_DIR="upload_queue";
+    static final String UPLOAD_ENDPOINT="upload_endpoint";
+    private static UploadQueue uploadQueue;
+    private static Uploader uploader;
+    private static String uploaderEndpoint;
+    private static HandlerThread uploadThread;
+    /**
+     * One short-lived thread for start-up work that must not hold up the Unity thread.
+     */
+    private static final Executor BACKGROUND =
+            new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
     public static final Intent[] POWERMANAGER_INTENTS = new Intent[]{
             new Intent().setComponent(new ComponentName("com.miui.securitycenter", "com.miui.permcenter.autostart.AutoStartManagementActivity")),
             new Intent().setComponent(new ComponentName("com.letv.android.letvsafe", "com.letv.android.letvsafe.AutobootManageActivity")),
@@ -68,79 +133,746 @@ public final class Bridge extends Application {
         }
     }
 
+    /**
+     * Starts the service with sensor batching: step events wait in the hardware FIFO for up to
+     * maxReportLatencyMillis, or until about batchSize steps were taken (0 for no limit).
+     */
+    public static void StartService(int maxReportLatencyMillis, int batchSize) {
+        Bridge.maxReportLatencyMillis = Math.max(0, maxReportLatencyMillis);
+        Bridge.batchSize = Math.max(0, batchSize);
+        startService();
+    }
+
     public static void StartService() {
+        maxReportLatencyMillis = 0;
+        batchSize = 0;
+        startService();
+    }
+
+    private static void startService() {
         if (myActivity != null) {
-            final SharedPreferences sharedPreferences = myActivity.getSharedPreferences("service_settings", MODE_PRIVATE);
-            if (!sharedPreferences.getBoolean("auto_start", false)) {
-                for (final Intent intent : POWERMANAGER_INTENTS) {
-                    if (myActivity.getPackageManager().resolveActivity(intent, PackageManager.MATCH_DEFAULT_ONLY) != null) {
-                        AlertDialog alertDialog = new AlertDialog.Builder(myActivity).create();
-                        alertDialog.setTitle("Auto start is required");
-                        alertDialog.setMessage("Please enable auto start to provide correct work");
-                        alertDialog.setButton(AlertDialog.BUTTON_NEUTRAL, "OK",
-                                new DialogInterface.OnClickListener() {
-                                    public void onClick(DialogInterface dialog, int which) {
-                                        sharedPreferences.edit().putBoolean("auto_start", true).apply();
-                                        myActivity.startActivity(intent);
-                                    }
-                                });
-                        alertDialog.show();
-                        break;
-                    }
+            final Activity activity = myActivity;
+            // resolving the OEM screens and reading the settings costs binder calls and disk
+            BACKGROUND.execute(new Runnable() {
+                @Override
+                public void run() {
+                    offerAutostartSettings(activity);
                 }
-            }
-            start();
+            });
         }
-        else{
-            start();
+        warmStepState(appContext);
+        enableCollector(StepCounterCollector.ID, true);
+        start();
+    }
+
+    /**
+     * Asks once to allow autostart when the device has an OEM screen for it. Runs on
+     * {@link #BACKGROUND}, the dialog on the activity's thread.
+     */
+    private static void offerAutostartSettings(final Activity activity) {
+        final SharedPreferences sharedPreferences = activity.getSharedPreferences(SERVICE_SETTINGS, MODE_PRIVATE);
+        if (sharedPreferences.getBoolean(AUTO_START, false)) {
+            return;
+        }
+        int index = getAutostartProbe(activity).result();
+        if (index == AutostartProbe.NONE) {
+            return;
         }
+        final Intent intent = POWERMANAGER_INTENTS[index];
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (activity.isFinishing()) {
+                    return;
+                }
+                AlertDialog alertDialog = new AlertDialog.Builder(activity).create();
+                alertDialog.setTitle("Auto start is required");
+                alertDialog.setMessage("Please enable auto start to provide correct work");
+                alertDialog.setButton(AlertDialog.BUTTON_NEUTRAL, "OK",
+                        new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                sharedPreferences.edit().putBoolean(AUTO_START, true).apply();
+                                activity.startActivity(intent);
+                            }
+                        });
+                alertDialog.show();
+            }
+        });
+    }
+
+    /**
+     * Sets how lazily the service forces steps to disk. Takes effect on the next StartService
+     * call. A crashing process loses none, every step is in the shared step file's mapping
+     * right away; a crash of the phone loses at most maxUnsavedSteps steps, 0 forces each one.
+     */
+    public static void SetPersistencePolicy(int maxUnsavedSteps, int flushIntervalSeconds) {
+        Bridge.maxUnsavedSteps = Math.max(0, maxUnsavedSteps);
+        Bridge.flushIntervalMillis = Math.max(0, flushIntervalSeconds) * 1000L;
+    }
+
+    /**
+     * Turns the power governor on or off (on by default): two minutes after the user stopped
+     * walking the step counter is batched for minutes; without a step counter, the accelerometer
+     * is turned off after ten still minutes until significant motion. Takes effect on the next
+     * StartService call.
+     */
+    public static void SetAdaptivePower(boolean enabled) {
+        Bridge.adaptivePower = enabled;
     }
 
     private static void start(){
-        myActivity.startForegroundService(new Intent(myActivity, PedometerService.class));
+        Context context = myActivity != null ? myActivity : appContext;
+        // kept so BootReceiver can restart the service with the same options
+        context.getSharedPreferences(SERVICE_SETTINGS, MODE_PRIVATE).edit()
+                .putBoolean(SERVICE_ENABLED, true)
+                .putInt(PedometerService.EXTRA_MAX_UNSAVED_STEPS, maxUnsavedSteps)
+                .putLong(PedometerService.EXTRA_FLUSH_INTERVAL_MILLIS, flushIntervalMillis)
+                .putInt(PedometerService.EXTRA_MAX_REPORT_LATENCY_US, (int) Math.min(Integer.MAX_VALUE, maxReportLatencyMillis * 1000L))
+                .putInt(PedometerService.EXTRA_BATCH_SIZE, batchSize)
+                .putBoolean(PedometerService.EXTRA_ADAPTIVE_POWER, adaptivePower)
+                .apply();
+        context.startForegroundService(serviceIntent(context));
+
+    }
 
+    /**
+     * Service start intent carrying the options of the last StartService call.
+     */
+    static Intent serviceIntent(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(SERVICE_SETTINGS, MODE_PRIVATE);
+        Intent serviceIntent = new Intent(context, PedometerService.class);
+        serviceIntent.putExtra(PedometerService.EXTRA_MAX_UNSAVED_STEPS,
+                settings.getInt(PedometerService.EXTRA_MAX_UNSAVED_STEPS, CoalescingStepWriter.DEFAULT_MAX_UNSAVED_STEPS));
+        serviceIntent.putExtra(PedometerService.EXTRA_FLUSH_INTERVAL_MILLIS,
+                settings.getLong(PedometerService.EXTRA_FLUSH_INTERVAL_MILLIS, CoalescingStepWriter.DEFAULT_FLUSH_INTERVAL_MILLIS));
+        serviceIntent.putExtra(PedometerService.EXTRA_MAX_REPORT_LATENCY_US,
+                settings.getInt(PedometerService.EXTRA_MAX_REPORT_LATENCY_US, 0));
+        serviceIntent.putExtra(PedometerService.EXTRA_BATCH_SIZE,
+                settings.getInt(PedometerService.EXTRA_BATCH_SIZE, 0));
+        serviceIntent.putExtra(PedometerService.EXTRA_ADAPTIVE_POWER,
+                settings.getBoolean(PedometerService.EXTRA_ADAPTIVE_POWER, true));
+        return serviceIntent;
     }
+
     public static void StopService(){
-        Intent serviceIntent = new Intent(myActivity, PedometerService.class);
-        myActivity.stopService(serviceIntent);
+        Context context = myActivity != null ? myActivity : appContext;
+        context.getSharedPreferences(SERVICE_SETTINGS, MODE_PRIVATE).edit()
+                .putBoolean(SERVICE_ENABLED, false)
+                .putStringSet(COLLECTORS, new HashSet<String>())
+                .apply();
+        Intent serviceIntent = new Intent(context, PedometerService.class);
+        context.stopService(serviceIntent);
 
     }
+    /**
+     * Turns on a collector in the background service, starting the service if needed. Ids are
+     * step_counter, step_detector, accelerometer and significant_motion.
+     *
+     * @return false for an unknown id
+     */
+    public static boolean StartCollector(String id){
+        if (!PedometerService.isCollector(id)) {
+            return false;
+        }
+        enableCollector(id, true);
+        start();
+        return true;
+    }
+
+    /**
+     * Turns off a collector; the service stops with the last one.
+     */
+    public static void StopCollector(String id){
+        if (enableCollector(id, false).isEmpty()) {
+            StopService();
+        }
+        else if (PedometerService.activeService != null) {
+            start();
+        }
+    }
+
+    public static boolean IsCollectorRunning(String id){
+        PedometerService service = PedometerService.activeService;
+        return service != null && service.core.collectorHost().isRunning(id);
+    }
+
+    public static String[] GetRunningCollectors(){
+        PedometerService service = PedometerService.activeService;
+        return service == null ? new String[0] : service.core.collectorHost().runningIds();
+    }
+
+    /**
+     * Sensor events the collector received since the service started, 0 when not running.
+     */
+    public static long GetCollectorEventCount(String id){
+        PedometerService service = PedometerService.activeService;
+        Collector collector = service == null ? null : service.core.collectorHost().collector(id);
+        return collector == null ? 0 : collector.eventCount();
+    }
+
+    private static Set<String> enableCollector(String id, boolean enabled){
+        Context context = myActivity != null ? myActivity : appContext;
+        Set<String> ids = PedometerService.enabledCollectors(context);
+        if (enabled) {
+            ids.add(id);
+        }
+        else {
+            ids.remove(id);
+        }
+        context.getSharedPreferences(SERVICE_SETTINGS, MODE_PRIVATE).edit()
+                .putStringSet(COLLECTORS, ids)
+                .apply();
+        return ids;
+    }
+
+    /**
+     * Steps walked since the last sync. Reads the shared step file's mapping without locking,
+     * cheap enough to call every frame. 0 until the step file is open, which the first call
+     * starts in the background if StartService did not; subscribers get the value once it is.
+     */
     public static int GetCurrentSteps(){
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(appContext);
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        Date currentDate = Calendar.getInstance().getTime();
-        editor.putString(DATE, currentDate.toString());
-        int walkedSteps = sharedPreferences.getInt(STEPS, 0);
-        int allSteps = sharedPreferences.getInt(SUMMARY_STEPS,0);
-        summarySteps=walkedSteps+allSteps;
-        Log.i("PEDOMETER", "FROM BRIDGE CLASS - GetCurrentSteps:"+summarySteps);
-        return summarySteps;
+        PedometerService.requestSensorFlush();
+        if (!stepStateLoaded) {
+            warmStepState(appContext);
+        }
+        int currentSteps = unsyncedSteps.steps();
+        SharedStepCounter counter = sharedSteps;
+        if (counter != null && counter.failedReads() != loggedFailedReads) {
+            loggedFailedReads = counter.failedReads();
+            Log.w("PEDOMETER", "GetCurrentSteps: step file damaged, "+loggedFailedReads+" reads used the last good values");
+        }
+        if (PluginLog.verbose()) {
+            Log.i("PEDOMETER", "FROM BRIDGE CLASS - GetCurrentSteps:"+currentSteps);
+        }
+        return currentSteps;
     }
+    /**
+     * Kept for existing callers, prefer SyncDataBinary: the dates here are
+     * locale dependent Date.toString() values.
+     */
     public static String SyncData(){
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(appContext);
-        int stepsToSend=GetCurrentSteps();
-        String firstDate = sharedPreferences.getString(INIT_DATE,"");
-        String lastDate = sharedPreferences.getString(DATE,"");
-        String data = firstDate+'#'+lastDate+'#'+stepsToSend;
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        editor.putInt(STEPS,0);
-        editor.putInt(SUMMARY_STEPS,0);
-        steps=0;
-        summarySteps=0;
-        initialSteps=0;
-        Date currentDate = Calendar.getInstance().getTime();
-        editor.putString(INIT_DATE,currentDate.toString());
-        editor.putString(DATE,currentDate.toString());
-        editor.apply();
-        Log.i("PEDOMETER", "SyncData: "+steps+' '+summarySteps+data);
+        if (!stepStateLoaded) {
+            loadStepState(appContext);
+        }
+        SharedStepCounter counter = sharedSteps;
+        String firstDate = counter == null ? "" : dateString(counter.intervalStartMillis());
+        String lastDate = counter == null ? "" : dateString(Math.max(counter.counter().countedMillis, counter.syncMillis()));
+        SyncPayload payload = syncAndReset(0);
+        String data = firstDate+'#'+lastDate+'#'+payload.steps;
+        Log.i("PEDOMETER", "SyncData: "+data);
         return data;
     }
 
+    /**
+     * Same reset point as SyncData, returned as a {@link SyncPayload} encoded byte array.
+     * With bucketMinutes > 0 the per-bucket history of the synced interval is included.
+     */
+    public static byte[] SyncDataBinary(int bucketMinutes){
+        return syncAndReset(bucketMinutes).encode();
+    }
+
+    /**
+     * Same reset point as SyncData, but the synced interval goes to a durable upload queue
+     * instead of being returned, so it survives the app being killed before it reached the
+     * backend. With an endpoint set the plugin uploads it; otherwise read the queue with
+     * PeekUploadFrame and confirm with AcknowledgeUpload.
+     *
+     * @return the interval's sequence number, -1 without resetting anything if the queue
+     * cannot be written
+     */
+    public static long QueueSync(int bucketMinutes){
+        UploadQueue queue = getUploadQueue(appContext);
+        if (queue == null) {
+            return -1;
+        }
+        long started = System.nanoTime();
+        boolean traced = PluginTrace.begin(PluginTrace.SYNC);
+        PedometerService.requestSensorFlush();
+        loadStepState(appContext);
+        long sequence;
+        // held across taking and appending, so intervals are queued in the order they were taken
+        synchronized (syncLock) {
+            try {
+                sequence = PedometerCore.queueSync(sharedSteps, getStepJournal(appContext), queue,
+                        System.currentTimeMillis(), bucketMinutes);
+            } catch (IOException e) {
+                Log.e("PEDOMETER", "QueueSync: cannot queue the unsynced steps, keeping them unsynced", e);
+                sequence = -1;
+            }
+        }
+        stepPublisher.onStepsChanged();
+        PluginTrace.end(traced);
+        metrics.onSync(System.nanoTime() - started);
+        if (sequence < 0) {
+            return -1;
+        }
+        Uploader uploader = getUploader(appContext);
+        if (uploader != null) {
+            uploader.kick();
+        }
+        return sequence;
+    }
+
+    /**
+     * Uploads queued syncs to url by the plugin itself, retrying with backoff until the
+     * backend confirms; see {@link HttpUploadTransport} for what the endpoint answers. null or
+     * empty stops uploading and leaves the queue to PeekUploadFrame and AcknowledgeUpload.
+     */
+    public static void SetUploadEndpoint(String url){
+        Context context = myActivity != null ? myActivity : appContext;
+        context.getSharedPreferences(SERVICE_SETTINGS, MODE_PRIVATE).edit()
+                .putString(UPLOAD_ENDPOINT, url == null || url.isEmpty() ? null : url)
+                .apply();
+        resumeUploads(context);
+    }
+
+    /**
+     * The oldest queued syncs, at most maxRecords, as an {@link UploadFrame}; an empty array
+     * when nothing is pending. The same records come back until they are acknowledged.
+     */
+    public static byte[] PeekUploadFrame(int maxRecords){
+        UploadQueue queue = getUploadQueue(appContext);
+        UploadFrame frame = queue == null ? null : queue.nextFrame(maxRecords);
+        return frame == null ? new byte[0] : frame.encode();
+    }
+
+    /**
+     * Deletes the queued syncs up to and including sequence, once the backend stored them.
+     *
+     * @return records deleted
+     */
+    public static int AcknowledgeUpload(long sequence){
+        UploadQueue queue = getUploadQueue(appContext);
+        if (queue == null) {
+            return 0;
+        }
+        try {
+            return queue.ack(sequence);
+        } catch (IOException e) {
+            Log.e("PEDOMETER", "AcknowledgeUpload: cannot acknowledge "+sequence, e);
+            return 0;
+        }
+    }
+
+    public static int GetPendingUploadCount(){
+        UploadQueue queue = getUploadQueue(appContext);
+        return queue == null ? 0 : queue.pendingCount();
+    }
+
+    /**
+     * Takes the unsynced steps from {@link SharedStepCounter}. Only the sync slot is written,
+     * so steps the service counts meanwhile, in this process or its own, go to the next sync.
+     */
+    private static SyncPayload syncAndReset(int bucketMinutes){
+        long started = System.nanoTime();
+        boolean traced = PluginTrace.begin(PluginTrace.SYNC);
+        PedometerService.requestSensorFlush();
+        loadStepState(appContext);
+        SyncPayload payload;
+        synchronized (syncLock) {
+            payload = PedometerCore.takeSync(sharedSteps, getStepJournal(appContext), System.currentTimeMillis(), bucketMinutes);
+        }
+        stepPublisher.onStepsChanged();
+        PluginTrace.end(traced);
+        metrics.onSync(System.nanoTime() - started);
+        return payload;
+    }
+
+    /**
+     * Pushes the GetCurrentSteps value to listener whenever it changes, at most once every
+     * minIntervalMillis, instead of Unity polling each frame. Updates arrive on background
+     * threads and the Android main looper, see StepUpdateListener. The first value is 0 when
+     * the step file is still being opened, the real one follows as soon as it is.
+     */
+    public static void Subscribe(StepUpdateListener listener, int minIntervalMillis){
+        if (!stepStateLoaded) {
+            warmStepState(appContext);
+        }
+        stepPublisher.subscribe(listener, minIntervalMillis);
+    }
+
+    public static void Unsubscribe(StepUpdateListener listener){
+        stepPublisher.unsubscribe(listener);
+    }
+
+    public static void SetVerboseLogging(boolean verbose){
+        PluginLog.setVerbose(verbose);
+    }
+
+    /**
+     * Wraps sensor handling, flushes and syncs in android.os.Trace sections.
+     */
+    public static void SetTracing(boolean enabled){
+        PluginTrace.setEnabled(enabled);
+    }
+
+    /**
+     * Milliseconds from the service being created to its first step counter event, the delay
+     * before steps start to count after StartService. -1 until that event arrived.
+     */
+    public static long GetTimeToFirstSensorEventMillis(){
+        return metrics.timeToFirstEventMillis();
+    }
+
+    /**
+     * Counters and latency histograms of this process, one metric per line, for attaching to
+     * battery or missing step reports. See {@link PluginMetrics#snapshot()} for the format.
+     */
+    public static String GetMetrics(){
+        return metrics.snapshot();
+    }
+
+    public static void ResetMetrics(){
+        metrics.reset();
+    }
+
+    /**
+     * Steps per bucket of bucketMinutes between two epoch millis timestamps, oldest first.
+     * Returns an empty array when there is no history or the range needs more buckets than the
+     * minutes the journal keeps (about a million).
+     */
+    public static int[] GetStepHistory(long fromMillis, long toMillis, int bucketMinutes){
+        StepJournal journal = getStepJournal(appContext);
+        if (journal == null || bucketMinutes <= 0) {
+            return new int[0];
+        }
+        try {
+            return journal.buckets(fromMillis, toMillis, bucketMinutes);
+        } catch (IllegalArgumentException e) {
+            Log.w("PEDOMETER", "GetStepHistory: " + e.getMessage());
+            return new int[0];
+        }
+    }
+
+    /**
+     * Opens a streaming export of the per-minute step history between two epoch millis
+     * timestamps, read with ReadHistoryExport in chunks of up to chunkRecords records (0 for
+     * the default) and released with CloseHistoryExport. Memory use stays at one chunk on
+     * each side however long the history is.
+     *
+     * @return the export id, -1 if there is no history or too many exports are open
+     */
+    public static long OpenHistoryExport(long fromMillis, long toMillis, int chunkRecords){
+        StepJournal journal = getStepJournal(appContext);
+        if (journal == null) {
+            return -1;
+        }
+        try {
+            return historyExports.open(journal, fromMillis, toMillis, chunkRecords);
+        } catch (IOException e) {
+            Log.e("PEDOMETER", "OpenHistoryExport: cannot read journal", e);
+            return -1;
+        }
+    }
+
+    /**
+     * The next chunk of an export, see {@link HistoryExport} for the layout. The chunk has
+     * the same size every call and is the caller's own copy; the one with FLAG_LAST set ends
+     * the export and closes it. Returns an empty array for an unknown or closed id.
+     */
+    public static byte[] ReadHistoryExport(long exportId){
+        return historyExports.read(exportId);
+    }
+
+    /**
+     * Releases an export before its last chunk was read. Closing a finished or unknown id does
+     * nothing.
+     */
+    public static void CloseHistoryExport(long exportId){
+        historyExports.close(exportId);
+    }
+
+    /**
+     * Steps walked on a local calendar day given as yyyy-MM-dd, -1 if the date does not parse.
+     */
+    public static int GetStepsForDay(String isoDate){
+        long day = epochDay(isoDate);
+        if (day == Long.MIN_VALUE) {
+            return -1;
+        }
+        DailyAggregates aggregates = getDailyAggregates(appContext);
+        return aggregates == null ? 0 : aggregates.day(day);
+    }
+
+    /**
+     * Steps walked from one yyyy-MM-dd day to another, both included, -1 if a date does not parse.
+     */
+    public static long GetStepsForRange(String fromIsoDate, String toIsoDate){
+        long from = epochDay(fromIsoDate);
+        long to = epochDay(toIsoDate);
+        if (from == Long.MIN_VALUE || to == Long.MIN_VALUE) {
+            return -1;
+        }
+        DailyAggregates aggregates = getDailyAggregates(appContext);
+        return aggregates == null ? 0 : aggregates.range(from, to);
+    }
+
+    /**
+     * Steps walked in the Monday-to-Sunday week holding a yyyy-MM-dd day, -1 if the date does not parse.
+     */
+    public static int GetStepsForWeek(String isoDate){
+        long day = epochDay(isoDate);
+        if (day == Long.MIN_VALUE) {
+            return -1;
+        }
+        DailyAggregates aggregates = getDailyAggregates(appContext);
+        return aggregates == null ? 0 : aggregates.week(day);
+    }
+
+    private static long epochDay(String isoDate) {
+        try {
+            return LocalDate.parse(isoDate).toEpochDay();
+        } catch (DateTimeParseException | NullPointerException e) {
+            Log.w("PEDOMETER", "epochDay: not a yyyy-MM-dd date: " + isoDate);
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Steps from now on count towards days local to the new zone; days already counted stay.
+     */
+    static void onTimeZoneChanged(ZoneId zone) {
+        DailyAggregates aggregates = getDailyAggregates(appContext);
+        if (aggregates != null) {
+            aggregates.setZone(zone);
+        }
+    }
+
+    private static String dateString(long millis) {
+        return millis == 0 ? "" : new Date(millis).toString();
+    }
+
+    /**
+     * Loads the steps counted so far and their counter baseline into {@link #stepState} and
+     * the step writer, once per process.
+     */
+    /**
+     * Runs {@link #loadStepState} on {@link #BACKGROUND}, once, so opening and migrating the
+     * step file and settling an interrupted sync stay off the Unity thread. Publishes the
+     * loaded count to subscribers.
+     */
+    static void warmStepState(final Context context) {
+        if (stepStateLoaded || context == null || !stepStateWarming.compareAndSet(false, true)) {
+            return;
+        }
+        BACKGROUND.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadStepState(context);
+                stepPublisher.onStepsChanged();
+            }
+        });
+    }
+
+    static synchronized void loadStepState(Context context) {
+        if (stepStateLoaded || context == null) {
+            return;
+        }
+        SharedStepCounter counter = getSharedSteps(context);
+        if (counter != null) {
+            PedometerCore.restore(counter, stepState, getStepWriter(context));
+            // runs ahead of any sync, they all load the state first
+            UploadQueue queue = counter.preparedSync() == 0 ? null : getUploadQueue(context);
+            if (queue != null) {
+                PedometerCore.recoverQueuedSync(counter, queue, System.currentTimeMillis());
+            }
+        }
+        stepStateLoaded = true;
+    }
+
+    /**
+     * Opens the shared step file, the first time taking over the steps older versions kept in
+     * the default SharedPreferences. A file that cannot be read is moved aside and started
+     * over; null only if no file can be opened at all.
+     */
+    static synchronized SharedStepCounter getSharedSteps(Context context) {
+        if (sharedSteps == null && context != null) {
+            File file = new File(context.getFilesDir(), SHARED_STEPS_FILE);
+            try {
+                sharedSteps = openSharedSteps(context, file);
+            } catch (IOException e) {
+                Log.e("PEDOMETER", "getSharedSteps: cannot open "+file+", starting over", e);
+                try {
+                    if (!file.renameTo(new File(file.getPath() + ".bad"))) {
+                        throw new IOException("Cannot move "+file+" aside");
+                    }
+                    sharedSteps = new SharedStepCounter(file);
+                } catch (IOException again) {
+                    Log.e("PEDOMETER", "getSharedSteps: cannot create "+file, again);
+                }
+            }
+        }
+        return sharedSteps;
+    }
+
+    private static SharedStepCounter openSharedSteps(Context context, File file) throws IOException {
+        if (file.length() >= SharedStepCounter.FILE_SIZE) {
+            return new SharedStepCounter(file);
+        }
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        // older versions kept earlier service sessions in a separate counter
+        int steps = sharedPreferences.getInt(STEPS, 0) + sharedPreferences.getInt(SUMMARY_STEPS, 0);
+        SharedStepCounter counter = new SharedStepCounter(file, steps,
+                sharedPreferences.getLong(COUNTER_BASELINE, StepAccountant.NO_BASELINE),
+                sharedPreferences.getLong(INIT_DATE_MILLIS, 0L));
+        if (counter.created()) {
+            sharedPreferences.edit()
+                    .remove(STEPS).remove(SUMMARY_STEPS).remove(COUNTER_BASELINE)
+                    .remove(DATE).remove(INIT_DATE).remove(INIT_DATE_MILLIS)
+                    .apply();
+        }
+        return counter;
+    }
+
+    /**
+     * The step writer, saving to {@link SharedStepCounter}. Without a shared step file steps
+     * are still counted, but only in memory.
+     */
+    static synchronized CoalescingStepWriter getStepWriter(Context context) {
+        if (stepWriter == null) {
+            final SharedStepCounter counter = getSharedSteps(context);
+            StepStore store = new StepStore() {
+                @Override
+                public void saveSteps(int steps, long baseline, long timeMillis) {
+                    boolean traced = PluginTrace.begin(PluginTrace.FLUSH);
+                    if (counter != null) {
+                        counter.saveSteps(steps, baseline, timeMillis);
+                    }
+                    PluginTrace.end(traced);
+                }
+
+                @Override
+                public void publishSteps(int steps, long baseline, long timeMillis) {
+                    if (counter != null) {
+                        counter.publishSteps(steps, baseline, timeMillis);
+                    }
+                }
+            };
+            stepWriter = new CoalescingStepWriter(new MeteredStepStore(store, metrics), TimeSource.SYSTEM);
+        }
+        return stepWriter;
+    }
+
+    static synchronized StepJournal getStepJournal(Context context) {
+        if (stepJournal == null && context != null) {
+            try {
+                stepJournal = new StepJournal(new File(context.getFilesDir(), JOURNAL_DIR));
+                if (stepJournal.ignoredFiles() > 0) {
+                    Log.w("PEDOMETER", "getStepJournal: ignored "+stepJournal.ignoredFiles()+" files that are not segments");
+                }
+            } catch (IOException e) {
+                Log.e("PEDOMETER", "getStepJournal: cannot open journal", e);
+            }
+        }
+        return stepJournal;
+    }
+
+    static synchronized DailyAggregates getDailyAggregates(Context context) {
+        if (dailyAggregates == null && context != null) {
+            try {
+                dailyAggregates = new DailyAggregates(new File(context.getFilesDir(), AGGREGATES_FILE), ZoneId.systemDefault());
+            } catch (IOException e) {
+                Log.e("PEDOMETER", "getDailyAggregates: cannot open daily aggregates", e);
+            }
+        }
+        return dailyAggregates;
+    }
+
+    static synchronized UploadQueue getUploadQueue(Context context) {
+        if (uploadQueue == null && context != null) {
+            try {
+                uploadQueue = new UploadQueue(new File(context.getFilesDir(), UPLOAD_DIR));
+            } catch (IOException e) {
+                Log.e("PEDOMETER", "getUploadQueue: cannot open upload queue", e);
+            }
+        }
+        return uploadQueue;
+    }
+
+    /**
+     * The uploader for the saved endpoint, null when none is set. Uploads run on their own
+     * background thread.
+     */
+    static synchronized Uploader getUploader(Context context) {
+        String endpoint = context == null ? null
+                : context.getSharedPreferences(SERVICE_SETTINGS, MODE_PRIVATE).getString(UPLOAD_ENDPOINT, null);
+        if (endpoint == null) {
+            uploader = null;
+            uploaderEndpoint = null;
+            return null;
+        }
+        if (uploader == null || !endpoint.equals(uploaderEndpoint)) {
+            UploadQueue queue = getUploadQueue(context);
+            if (queue == null) {
+                return null;
+            }
+            URL url;
+            try {
+                url = new URL(endpoint);
+            } catch (MalformedURLException e) {
+                Log.e("PEDOMETER", "getUploader: bad upload endpoint "+endpoint, e);
+                return null;
+            }
+            if (uploadThread == null) {
+                uploadThread = new HandlerThread("PedometerUpload", Process.THREAD_PRIORITY_BACKGROUND);
+                uploadThread.start();
+            }
+            uploader = new Uploader(queue, new HttpUploadTransport(url), new HandlerScheduler(uploadThread.getLooper()), metrics);
+            uploaderEndpoint = endpoint;
+        }
+        return uploader;
+    }
+
+    /**
+     * Sends what the queue still holds, e.g. after the process was killed mid-upload.
+     */
+    static void resumeUploads(Context context) {
+        Uploader uploader = getUploader(context);
+        if (uploader != null) {
+            uploader.kick();
+        }
+    }
+
+    /**
+     * The probe result is cached per build fingerprint and candidate list, see {@link AutostartProbe}.
+     */
+    static synchronized AutostartProbe getAutostartProbe(Context context) {
+        if (autostartProbe == null) {
+            final PackageManager packageManager = context.getPackageManager();
+            final SharedPreferences settings = context.getSharedPreferences(SERVICE_SETTINGS, MODE_PRIVATE);
+            String[] components = new String[POWERMANAGER_INTENTS.length];
+            for (int i = 0; i < components.length; i++) {
+                components[i] = POWERMANAGER_INTENTS[i].getComponent().flattenToString();
+            }
+            String versionKey = Build.FINGERPRINT + '/' + Integer.toHexString(Arrays.hashCode(components));
+            autostartProbe = new AutostartProbe(POWERMANAGER_INTENTS.length, versionKey,
+                    new AutostartProbe.Resolver() {
+                        @Override
+                        public boolean resolves(int index) {
+                            return packageManager.resolveActivity(POWERMANAGER_INTENTS[index], PackageManager.MATCH_DEFAULT_ONLY) != null;
+                        }
+                    },
+                    new AutostartProbe.Store() {
+                        @Override
+                        public String load() {
+                            return settings.getString(AUTOSTART_PROBE, null);
+                        }
+
+                        @Override
+                        public void save(String value) {
+                            settings.edit().putString(AUTOSTART_PROBE, value).apply();
+                        }
+                    });
+        }
+        return autostartProbe;
+    }
 
     @Override
     public void onCreate() {
         super.onCreate();
         Bridge.appContext=getApplicationContext();
-
+        // starts loading the settings on their own thread; the step file is opened on first
+        // use instead of here, ahead of Unity's first frame
+        appContext.getSharedPreferences(SERVICE_SETTINGS, MODE_PRIVATE);
     }
 }
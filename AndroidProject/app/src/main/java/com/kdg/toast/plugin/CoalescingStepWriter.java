@@ -0,0 +1,183 @@
+package com.kdg.toast.plugin;
+
+/**
+ * Keeps the latest step count in memory and only hands it to the {@link StepStore} when
+ * enough steps or enough time have piled up since the last write.
+ * <p>
+ * Every save is a disk write, a whole prefs file when this was SharedPreferences, so writing
+ * on each sensor event was the main I/O cost of the service. With this writer a crash loses at
+ * most {@code maxUnsavedSteps} steps; {@link #flush()} must be called when the service goes
+ * away to lose none. Changes in between still reach {@link StepStore#publishSteps}, which
+ * for {@link SharedStepCounter} is a store to memory that survives the process.
+ * <p>
+ * The count is always written together with the {@link StepAccountant} counter baseline it
+ * corresponds to. After a crash the next counter reading is compared against that baseline,
+ * so within the same boot the unsaved steps are recovered rather than lost.
+ * <p>
+ * The sensor thread and the pipeline stages add and persist steps while the service
+ * lifecycle flushes them, so the methods are synchronized; the lock is uncontended in
+ * practice.
+ */
+final class CoalescingStepWriter {
+    static final int DEFAULT_MAX_UNSAVED_STEPS = 50;
+    static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 60_000L;
+
+    private final StepStore store;
+    private final TimeSource timeSource;
+    private int maxUnsavedSteps;
+    private long flushIntervalMillis;
+
+    private int latestSteps;
+    private int savedSteps;
+    private long latestBaseline = StepAccountant.NO_BASELINE;
+    private long lastFlushMillis;
+    private boolean dirty;
+    private boolean writeNow;
+    private long flushCount;
+
+    CoalescingStepWriter(StepStore store, TimeSource timeSource) {
+        this(store, timeSource, DEFAULT_MAX_UNSAVED_STEPS, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    CoalescingStepWriter(StepStore store, TimeSource timeSource, int maxUnsavedSteps, long flushIntervalMillis) {
+        this.store = store;
+        this.timeSource = timeSource;
+        this.lastFlushMillis = timeSource.currentTimeMillis();
+        setPolicy(maxUnsavedSteps, flushIntervalMillis);
+    }
+
+    /**
+     * @param maxUnsavedSteps     most steps allowed to live only in memory, 0 writes every change
+     * @param flushIntervalMillis write pending steps once this much time passed since the last write
+     */
+    synchronized void setPolicy(int maxUnsavedSteps, long flushIntervalMillis) {
+        if (maxUnsavedSteps < 0) {
+            throw new IllegalArgumentException("maxUnsavedSteps < 0: " + maxUnsavedSteps);
+        }
+        if (flushIntervalMillis < 0) {
+            throw new IllegalArgumentException("flushIntervalMillis < 0: " + flushIntervalMillis);
+        }
+        this.maxUnsavedSteps = maxUnsavedSteps;
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    /**
+     * Adds {@code delta} to {@code state} and records the counter baseline reached, as one
+     * step under the writer lock so a concurrent sync always sees a matching pair.
+     *
+     * @return true if the value was written to the store
+     */
+    synchronized boolean add(StepState state, int delta, long baseline) {
+        accumulate(state, delta, baseline);
+        return persist();
+    }
+
+    /**
+     * The in-memory half of {@link #add(StepState, int, long)}: counts the steps and takes the
+     * baseline, only publishing them to the store, so a pipeline can leave the write to
+     * {@link #persist()} on another thread.
+     */
+    synchronized void accumulate(StepState state, int delta, long baseline) {
+        if (delta != 0) {
+            state.add(delta);
+        }
+        int steps = state.steps();
+        boolean changed = steps != latestSteps || baseline != latestBaseline;
+        latestSteps = steps;
+        if (baseline != latestBaseline) {
+            boolean continues = StepAccountant.continues(latestBaseline, baseline);
+            latestBaseline = baseline;
+            dirty = true;
+            if (!continues) {
+                // a new, rebooted or reset counter: a crash before the next write would pair
+                // the old baseline with the new counter and lose the steps in between
+                writeNow = true;
+            }
+        }
+        if (changed) {
+            store.publishSteps(latestSteps, latestBaseline, timeSource.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Writes the accumulated pair if the baseline jumped or the policy says so.
+     *
+     * @return true if the value was written to the store
+     */
+    synchronized boolean persist() {
+        if (writeNow) {
+            write(timeSource.currentTimeMillis());
+            return true;
+        }
+        return update(latestSteps);
+    }
+
+    /**
+     * Records the current step count, writing it through when the policy says so.
+     *
+     * @return true if the value was written to the store
+     */
+    synchronized boolean update(int steps) {
+        latestSteps = steps;
+        if (steps == savedSteps && !dirty) {
+            return false;
+        }
+        dirty = true;
+        long now = timeSource.currentTimeMillis();
+        if (Math.abs(steps - savedSteps) > maxUnsavedSteps || now - lastFlushMillis >= flushIntervalMillis) {
+            write(now);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the counter baseline and writes it right away, e.g. when tracking stops.
+     */
+    synchronized void commitBaseline(long baseline) {
+        latestBaseline = baseline;
+        write(timeSource.currentTimeMillis());
+    }
+
+    /**
+     * Writes the pending value, if any. Called from onDestroy/onTaskRemoved.
+     */
+    synchronized void flush() {
+        if (dirty) {
+            write(timeSource.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Takes values that are already in the store, e.g. after loading them at process start.
+     */
+    synchronized void reset(int steps, long baseline) {
+        latestSteps = steps;
+        savedSteps = steps;
+        latestBaseline = baseline;
+        dirty = false;
+        writeNow = false;
+        lastFlushMillis = timeSource.currentTimeMillis();
+    }
+
+    synchronized long latestBaseline() {
+        return latestBaseline;
+    }
+
+    synchronized int unsavedSteps() {
+        return dirty ? Math.abs(latestSteps - savedSteps) : 0;
+    }
+
+    synchronized long flushCount() {
+        return flushCount;
+    }
+
+    private void write(long now) {
+        store.saveSteps(latestSteps, latestBaseline, now);
+        savedSteps = latestSteps;
+        lastFlushMillis = now;
+        dirty = false;
+        writeNow = false;
+        flushCount++;
+    }
+}
@@ -0,0 +1,43 @@
+package com.kdg.toast.plugin;
+
+/**
+ * One data source run by the service, e.g. the step counter. Collectors are registered with
+ * a {@link CollectorHost} under a unique id that Unity uses to start and stop them.
+ * <p>
+ * {@link #start(int)} and {@link #stop()} are called on the host thread, where the
+ * collector's sensor events arrive too. {@link #flush()} may be called from any thread.
+ */
+interface Collector {
+    String id();
+
+    /**
+     * Shown in the service notification while the collector runs.
+     */
+    String label();
+
+    /**
+     * Longest delay the collector accepts between a sensor event and its delivery, or 0 when
+     * it needs every event as it happens.
+     */
+    int requestedReportLatencyUs();
+
+    /**
+     * Registers the collector's sensors with the host's shared report latency. Called again
+     * while running when that latency changes.
+     *
+     * @return false if the sensor is not available
+     */
+    boolean start(int reportLatencyUs);
+
+    /**
+     * Unregisters, the user turned the collector off.
+     */
+    void stop();
+
+    /**
+     * Persists pending data, e.g. when the task is removed or the device shuts down.
+     */
+    void flush();
+
+    long eventCount();
+}
@@ -0,0 +1,223 @@
+package com.kdg.toast.plugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs registered {@link Collector}s on one shared thread, the scheduling core of the
+ * foreground service.
+ * <p>
+ * Start and stop requests may come from any thread and are posted to the host thread through
+ * the {@link Scheduler}, so collectors only ever see one thread. The host also keeps a single
+ * wake budget: every running collector that accepts batching is registered with the same
+ * report latency, the shortest any of them asked for, so one wake-up of the application
+ * processor drains all sensor FIFOs instead of each sensor waking it on its own schedule.
+ */
+final class CollectorHost {
+    private static final String[] NONE = new String[0];
+
+    interface Listener {
+        /**
+         * Called on the host thread after the set of running collectors changed.
+         */
+        void onCollectorsChanged(String[] runningIds);
+
+        /**
+         * Called on the host thread when a collector could not start, e.g. a missing sensor.
+         */
+        void onCollectorUnavailable(String id);
+    }
+
+    private final Scheduler scheduler;
+    private final Listener listener;
+    private final Map<String, Collector> collectors = new LinkedHashMap<>();
+    // host thread only
+    private final List<Collector> running = new ArrayList<>();
+    private volatile int wakeLatencyUs;
+    private volatile String[] runningIds = NONE;
+
+    CollectorHost(Scheduler scheduler, Listener listener) {
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a collector. Called while setting up, before any start request.
+     */
+    synchronized void register(Collector collector) {
+        if (collectors.containsKey(collector.id())) {
+            throw new IllegalArgumentException("Duplicate collector id " + collector.id());
+        }
+        collectors.put(collector.id(), collector);
+    }
+
+    synchronized Collector collector(String id) {
+        return collectors.get(id);
+    }
+
+    /**
+     * @return false if no collector is registered under {@code id}
+     */
+    boolean start(final String id) {
+        final Collector collector = collector(id);
+        if (collector == null) {
+            return false;
+        }
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                startNow(collector);
+                publishRunning();
+            }
+        }, 0);
+        return true;
+    }
+
+    void stop(final String id) {
+        final Collector collector = collector(id);
+        if (collector == null) {
+            return;
+        }
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (stopNow(collector)) {
+                    publishRunning();
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * Runs exactly the collectors in {@code ids}, ignoring unknown ones. The listener hears
+     * back even if nothing changed, so an empty result always reaches it.
+     */
+    void retain(Collection<String> ids) {
+        final List<String> wanted = new ArrayList<>(ids);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                for (Collector collector : new ArrayList<>(running)) {
+                    if (!wanted.contains(collector.id())) {
+                        stopNow(collector);
+                    }
+                }
+                for (String id : wanted) {
+                    Collector collector = collector(id);
+                    if (collector != null) {
+                        startNow(collector);
+                    }
+                }
+                publishRunning();
+            }
+        }, 0);
+    }
+
+    /**
+     * Re-registers the running batched collectors, for when a requested latency changed.
+     */
+    void reconfigure() {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                wakeLatencyUs = -1;
+                rebalance(null);
+            }
+        }, 0);
+    }
+
+    void stopAll() {
+        retain(new ArrayList<String>());
+    }
+
+    /**
+     * Flushes every running collector on the calling thread.
+     */
+    void flushAll() {
+        for (String id : runningIds) {
+            collector(id).flush();
+        }
+    }
+
+    boolean isRunning(String id) {
+        for (String running : runningIds) {
+            if (running.equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    String[] runningIds() {
+        return runningIds.clone();
+    }
+
+    /**
+     * Report latency shared by the running batched collectors, 0 if none batches.
+     */
+    int wakeLatencyUs() {
+        return wakeLatencyUs;
+    }
+
+    private boolean startNow(Collector collector) {
+        if (running.contains(collector)) {
+            return false;
+        }
+        int latencyUs = sharedLatencyUs(collector);
+        if (!collector.start(collector.requestedReportLatencyUs() == 0 ? 0 : latencyUs)) {
+            listener.onCollectorUnavailable(collector.id());
+            return false;
+        }
+        running.add(collector);
+        rebalance(collector);
+        return true;
+    }
+
+    private boolean stopNow(Collector collector) {
+        if (!running.remove(collector)) {
+            return false;
+        }
+        collector.stop();
+        rebalance(null);
+        return true;
+    }
+
+    /**
+     * Re-registers the batched collectors when the shared latency changed.
+     */
+    private void rebalance(Collector registered) {
+        int latencyUs = sharedLatencyUs(null);
+        if (latencyUs == wakeLatencyUs) {
+            return;
+        }
+        wakeLatencyUs = latencyUs;
+        for (Collector collector : running) {
+            if (collector != registered && collector.requestedReportLatencyUs() > 0) {
+                collector.start(latencyUs);
+            }
+        }
+    }
+
+    private int sharedLatencyUs(Collector joining) {
+        int latencyUs = joining == null ? 0 : joining.requestedReportLatencyUs();
+        for (Collector collector : running) {
+            int requested = collector.requestedReportLatencyUs();
+            if (requested > 0 && (latencyUs == 0 || requested < latencyUs)) {
+                latencyUs = requested;
+            }
+        }
+        return latencyUs;
+    }
+
+    private void publishRunning() {
+        String[] ids = new String[running.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = running.get(i).id();
+        }
+        runningIds = ids;
+        listener.onCollectorsChanged(ids.clone());
+    }
+}
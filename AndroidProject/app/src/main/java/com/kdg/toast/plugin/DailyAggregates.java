@@ -0,0 +1,257 @@
+package com.kdg.toast.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+/**
+ * Step totals per local calendar day and per week, kept up to date with every step delta.
+ * <p>
+ * Days are keyed by their epoch day ({@link LocalDate#toEpochDay()}) and live in a ring of
+ * {@code capacity} slots, slot {@code day mod capacity}, so adding is O(1) and the oldest day
+ * makes room for a new one. Weeks start on Monday and are summed alongside in a smaller ring.
+ * <p>
+ * Which day a time belongs to is decided by the time zone in effect when the steps are
+ * added; steps already counted stay on their day when the zone changes. The current local
+ * day's bounds are cached, so only crossing midnight, in either direction, looks the zone
+ * up again. Days shortened or stretched by a DST change, or starting at 01:00 because the
+ * change happens at midnight, end where the zone rules say.
+ * <p>
+ * Day slots are mirrored into a memory-mapped file as {@code (epochDay, steps, check)}
+ * records; like in {@link StepJournal} the check word is written last and a torn slot is
+ * read back as empty. Methods are synchronized: the persistence thread adds while
+ * {@link Bridge} queries.
+ */
+final class DailyAggregates {
+    static final int DEFAULT_CAPACITY_DAYS = 1024;
+    static final int RECORD_SIZE = 12;
+    static final int HEADER_SIZE = 16;
+    private static final int MAGIC = 0x53544431; // "STD1"
+    private static final int VERSION = 1;
+    private static final int CHECK_SALT = 0x2c1b3c6d;
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private final int capacity;
+    private final MappedByteBuffer buffer;
+    private final int[] days;
+    private final int[] daySteps;
+    private final int[] weeks;
+    private final int[] weekSteps;
+
+    private ZoneId zone;
+    private int currentDay = EMPTY;
+    private long dayStartMillis;
+    private long dayEndMillis;
+    private long rollovers;
+
+    DailyAggregates(File file, ZoneId zone) throws IOException {
+        this(file, DEFAULT_CAPACITY_DAYS, zone);
+    }
+
+    /**
+     * @param capacity days kept for a new file; an existing file keeps its own
+     */
+    DailyAggregates(File file, int capacity, ZoneId zone) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.zone = zone;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            boolean fresh = raf.length() < HEADER_SIZE || raf.readInt() == 0;
+            if (fresh) {
+                raf.setLength(HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            }
+            else {
+                raf.seek(0);
+                if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                    throw new IOException("Not a daily aggregates file: " + file);
+                }
+                capacity = raf.readInt();
+                if (capacity <= 0 || raf.length() < HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+                    throw new IOException("Truncated daily aggregates file: " + file);
+                }
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (fresh) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, capacity);
+            }
+        }
+        this.capacity = capacity;
+        days = new int[capacity];
+        daySteps = new int[capacity];
+        weeks = new int[capacity / 7 + 2];
+        weekSteps = new int[weeks.length];
+        load();
+    }
+
+    /**
+     * Adds {@code delta} steps walked at {@code timeMillis}. Steps older than the days kept
+     * are dropped.
+     */
+    synchronized void add(long timeMillis, int delta) {
+        if (delta == 0) {
+            return;
+        }
+        int day = dayOf(timeMillis);
+        int slot = Math.floorMod(day, capacity);
+        if (days[slot] != day) {
+            if (days[slot] != EMPTY && days[slot] > day) {
+                return;
+            }
+            evict(slot);
+            days[slot] = day;
+            daySteps[slot] = 0;
+        }
+        daySteps[slot] += delta;
+        write(slot);
+        addToWeek(weekOf(day), delta);
+    }
+
+    /**
+     * Steps on the local day {@code epochDay}, 0 if none or no longer kept.
+     */
+    synchronized int day(long epochDay) {
+        int slot = (int) Math.floorMod(epochDay, (long) capacity);
+        return days[slot] == epochDay ? daySteps[slot] : 0;
+    }
+
+    /**
+     * Steps from {@code fromEpochDay} to {@code toEpochDay}, both included.
+     */
+    synchronized long range(long fromEpochDay, long toEpochDay) {
+        long total = 0;
+        for (long day = Math.max(fromEpochDay, toEpochDay - capacity + 1); day <= toEpochDay; day++) {
+            int slot = (int) Math.floorMod(day, (long) capacity);
+            if (days[slot] == day) {
+                total += daySteps[slot];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Steps in the Monday-to-Sunday week holding {@code epochDay}.
+     */
+    synchronized int week(long epochDay) {
+        int week = weekOf(epochDay);
+        int slot = Math.floorMod(week, weeks.length);
+        return weeks[slot] == week ? weekSteps[slot] : 0;
+    }
+
+    /**
+     * Days added from now on are local to {@code zone}.
+     */
+    synchronized void setZone(ZoneId zone) {
+        if (!zone.equals(this.zone)) {
+            this.zone = zone;
+            currentDay = EMPTY;
+        }
+    }
+
+    synchronized ZoneId zone() {
+        return zone;
+    }
+
+    /**
+     * Times a step landed outside the cached day, at most about one per day walked.
+     */
+    synchronized long rollovers() {
+        return rollovers;
+    }
+
+    synchronized int capacity() {
+        return capacity;
+    }
+
+    synchronized void close() {
+        buffer.force();
+    }
+
+    static int weekOf(long epochDay) {
+        // epoch day 0 is a Thursday, day -3 the Monday starting week 0
+        return (int) Math.floorDiv(epochDay + 3, 7L);
+    }
+
+    static int check(int day, int steps) {
+        return (day * 0x9e3779b1) ^ (steps * 0x85ebca6b) ^ CHECK_SALT;
+    }
+
+    private int dayOf(long timeMillis) {
+        if (currentDay != EMPTY && timeMillis >= dayStartMillis && timeMillis < dayEndMillis) {
+            return currentDay;
+        }
+        LocalDate date = Instant.ofEpochMilli(timeMillis).atZone(zone).toLocalDate();
+        currentDay = (int) date.toEpochDay();
+        dayStartMillis = date.atStartOfDay(zone).toInstant().toEpochMilli();
+        dayEndMillis = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        rollovers++;
+        return currentDay;
+    }
+
+    private void evict(int slot) {
+        if (days[slot] == EMPTY) {
+            return;
+        }
+        int week = weekOf(days[slot]);
+        int weekSlot = Math.floorMod(week, weeks.length);
+        if (weeks[weekSlot] == week) {
+            weekSteps[weekSlot] -= daySteps[slot];
+        }
+    }
+
+    private void addToWeek(int week, int delta) {
+        int slot = Math.floorMod(week, weeks.length);
+        if (weeks[slot] != week) {
+            if (weeks[slot] != EMPTY && weeks[slot] > week) {
+                return;
+            }
+            weeks[slot] = week;
+            weekSteps[slot] = 0;
+        }
+        weekSteps[slot] += delta;
+    }
+
+    private void write(int slot) {
+        int offset = HEADER_SIZE + slot * RECORD_SIZE;
+        buffer.putInt(offset, days[slot]);
+        buffer.putInt(offset + 4, daySteps[slot]);
+        buffer.putInt(offset + 8, check(days[slot], daySteps[slot]));
+    }
+
+    private void load() {
+        for (int i = 0; i < weeks.length; i++) {
+            weeks[i] = EMPTY;
+        }
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = HEADER_SIZE + slot * RECORD_SIZE;
+            int day = buffer.getInt(offset);
+            int steps = buffer.getInt(offset + 4);
+            boolean valid = buffer.getInt(offset + 8) == check(day, steps) && Math.floorMod(day, capacity) == slot;
+            days[slot] = valid ? day : EMPTY;
+            daySteps[slot] = valid ? steps : 0;
+        }
+        // weeks are derived, oldest days first so a week slot ends up with the newest week
+        int newest = EMPTY;
+        for (int day : days) {
+            newest = Math.max(newest, day);
+        }
+        if (newest == EMPTY) {
+            return;
+        }
+        for (long day = (long) newest - capacity + 1; day <= newest; day++) {
+            int slot = (int) Math.floorMod(day, (long) capacity);
+            if (days[slot] == day) {
+                addToWeek(weekOf(day), daySteps[slot]);
+            }
+        }
+    }
+}
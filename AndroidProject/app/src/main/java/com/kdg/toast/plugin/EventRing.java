@@ -0,0 +1,107 @@
+package com.kdg.toast.plugin;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer single-consumer queue of fixed-width {@code long} records, the
+ * queue between two {@link Pipeline} stages.
+ * <p>
+ * Records are copied in and out of one preallocated array, so neither side allocates. The
+ * producer publishes a record by advancing {@code tail} after writing it and the consumer
+ * frees a slot by advancing {@code head} after reading it. Both are volatile stores rather
+ * than lazy ones, so they also order against the parked flags {@link Pipeline} checks right
+ * after and a wake-up cannot be lost.
+ * <p>
+ * Not final so tests can interpose on a stage's polls.
+ */
+class EventRing {
+    private final long[] slots;
+    private final int width;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    // producer only
+    private int highWater;
+
+    /**
+     * @param capacity records the ring holds, rounded up to a power of two
+     * @param width    longs per record
+     */
+    EventRing(int capacity, int width) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity < 1: " + capacity);
+        }
+        if (width < 1) {
+            throw new IllegalArgumentException("width < 1: " + width);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new long[size * width];
+        this.width = width;
+        this.mask = size - 1;
+    }
+
+    /**
+     * Copies {@code record} in. Producer thread only.
+     *
+     * @return false if the ring is full
+     */
+    boolean offer(long[] record) {
+        long t = tail.get();
+        long h = head.get();
+        if (t - h > mask) {
+            return false;
+        }
+        System.arraycopy(record, 0, slots, (int) (t & mask) * width, width);
+        tail.set(t + 1);
+        int depth = (int) (t + 1 - h);
+        if (depth > highWater) {
+            highWater = depth;
+        }
+        return true;
+    }
+
+    /**
+     * Copies the oldest record into {@code record}. Consumer thread only.
+     *
+     * @return false if the ring is empty
+     */
+    boolean poll(long[] record) {
+        long h = head.get();
+        if (h == tail.get()) {
+            return false;
+        }
+        System.arraycopy(slots, (int) (h & mask) * width, record, 0, width);
+        head.set(h + 1);
+        return true;
+    }
+
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    boolean isFull() {
+        return tail.get() - head.get() > mask;
+    }
+
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    int width() {
+        return width;
+    }
+
+    /**
+     * Deepest the ring got, as seen by the producer; an estimate from other threads.
+     */
+    int highWater() {
+        return highWater;
+    }
+}
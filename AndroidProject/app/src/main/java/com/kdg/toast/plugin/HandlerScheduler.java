@@ -0,0 +1,20 @@
+package com.kdg.toast.plugin;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * {@link Scheduler} posting to a {@link Looper}.
+ */
+final class HandlerScheduler implements Scheduler {
+    private final Handler handler;
+
+    HandlerScheduler(Looper looper) {
+        this.handler = new Handler(looper);
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        handler.postDelayed(task, delayMillis);
+    }
+}
@@ -0,0 +1,90 @@
+package com.kdg.toast.plugin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streams the step history out of a {@link StepJournal} in fixed-size chunks, so Unity can
+ * pull weeks of per-minute records after an update without either heap ever holding all of
+ * them. Every {@link #next()} refills the same array.
+ * <p>
+ * A chunk is little endian, version 1:
+ * <pre>
+ * byte  version
+ * byte  flags              FLAG_LAST on the last chunk, FLAG_SKIPPED when records were
+ *                          deleted by rotation before they could be read
+ * short reserved
+ * int   recordCount
+ * [recordCount x (int epochMinute, int steps)]
+ * </pre>
+ * Bytes after the last record are left over from earlier chunks. Records come oldest first,
+ * one per minute with steps; a minute can show up twice when it was flushed half way.
+ */
+final class HistoryExport {
+    static final byte VERSION = 1;
+    static final byte FLAG_LAST = 1;
+    static final byte FLAG_SKIPPED = 2;
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_SIZE = 8;
+    static final int DEFAULT_CHUNK_RECORDS = 4096;
+    static final int MAX_CHUNK_RECORDS = 1 << 16;
+
+    private final StepJournal journal;
+    private final StepJournal.Cursor cursor;
+    private final byte[] chunk;
+    private final ByteBuffer buffer;
+    private long records;
+    private boolean finished;
+
+    /**
+     * Opens an export of the records from {@code fromMillis} to {@code toMillis}, in chunks
+     * of at most {@code chunkRecords} records.
+     */
+    HistoryExport(StepJournal journal, long fromMillis, long toMillis, int chunkRecords) throws IOException {
+        if (chunkRecords <= 0 || chunkRecords > MAX_CHUNK_RECORDS) {
+            throw new IllegalArgumentException("chunkRecords out of range: " + chunkRecords);
+        }
+        this.journal = journal;
+        this.cursor = journal.cursor(fromMillis, toMillis);
+        this.chunk = new byte[HEADER_SIZE + chunkRecords * RECORD_SIZE];
+        this.buffer = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Fills the chunk with the next records. Returns the same array every time, valid until
+     * the next call; once the export is finished it holds no records and FLAG_LAST.
+     */
+    byte[] next() {
+        buffer.clear();
+        buffer.position(HEADER_SIZE);
+        int copied = finished ? 0 : journal.read(cursor, buffer);
+        // nothing copied before the end means the journal was closed underneath us
+        finished = finished || copied == 0 || cursor.done();
+        byte flags = 0;
+        if (finished) {
+            flags |= FLAG_LAST;
+        }
+        if (cursor.skipped) {
+            flags |= FLAG_SKIPPED;
+            cursor.skipped = false;
+        }
+        buffer.put(0, VERSION);
+        buffer.put(1, flags);
+        buffer.putShort(2, (short) 0);
+        buffer.putInt(4, copied);
+        records += copied;
+        return chunk;
+    }
+
+    boolean finished() {
+        return finished;
+    }
+
+    /**
+     * Records handed out so far.
+     */
+    long records() {
+        return records;
+    }
+}
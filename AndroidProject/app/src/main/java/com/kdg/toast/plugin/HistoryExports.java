@@ -0,0 +1,72 @@
+package com.kdg.toast.plugin;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@link HistoryExport}s {@link Bridge} has open, by id, at most {@code maxOpen} at once.
+ * <p>
+ * {@link #read} returns a copy of the export's chunk, taken under the export's lock: the
+ * export refills one array, and the array returned to Unity is copied into a managed one by
+ * JNI anyway, so a copy per chunk is what a reader that may race another one costs. Reading
+ * the journal into the export's array stays allocation free. An export closes itself once
+ * its last chunk was read.
+ */
+final class HistoryExports {
+    private static final byte[] NO_CHUNK = new byte[0];
+
+    private final int maxOpen;
+    private final Map<Long, HistoryExport> exports = new HashMap<>();
+    private long lastId;
+
+    HistoryExports(int maxOpen) {
+        this.maxOpen = maxOpen;
+    }
+
+    /**
+     * @param chunkRecords records per chunk, 0 or less for the default, capped at
+     *                     {@link HistoryExport#MAX_CHUNK_RECORDS}
+     * @return the export id, -1 if {@code maxOpen} exports are open
+     */
+    synchronized long open(StepJournal journal, long fromMillis, long toMillis, int chunkRecords) throws IOException {
+        if (exports.size() >= maxOpen) {
+            return -1;
+        }
+        HistoryExport export = new HistoryExport(journal, fromMillis, toMillis,
+                chunkRecords > 0 ? Math.min(chunkRecords, HistoryExport.MAX_CHUNK_RECORDS) : HistoryExport.DEFAULT_CHUNK_RECORDS);
+        exports.put(++lastId, export);
+        return lastId;
+    }
+
+    /**
+     * A copy of the export's next chunk; an empty array for an unknown or closed id.
+     */
+    byte[] read(long id) {
+        HistoryExport export;
+        synchronized (this) {
+            export = exports.get(id);
+        }
+        if (export == null) {
+            return NO_CHUNK;
+        }
+        byte[] chunk;
+        boolean finished;
+        synchronized (export) {
+            chunk = export.next().clone();
+            finished = export.finished();
+        }
+        if (finished) {
+            close(id);
+        }
+        return chunk;
+    }
+
+    synchronized void close(long id) {
+        exports.remove(id);
+    }
+
+    synchronized int openCount() {
+        return exports.size();
+    }
+}
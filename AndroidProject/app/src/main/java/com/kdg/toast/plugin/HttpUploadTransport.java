@@ -0,0 +1,66 @@
+package com.kdg.toast.plugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Posts frames to an HTTP endpoint as {@code application/octet-stream}. The endpoint answers
+ * 2xx with the highest stored sequence as decimal text; anything else is retried.
+ */
+final class HttpUploadTransport implements UploadTransport {
+    static final int TIMEOUT_MILLIS = 15_000;
+    private static final int MAX_RESPONSE_BYTES = 64;
+
+    private final URL url;
+
+    HttpUploadTransport(URL url) {
+        this.url = url;
+    }
+
+    @Override
+    public long send(byte[] frame) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(frame.length);
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(frame);
+            }
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IOException("Upload answered HTTP " + status);
+            }
+            String body = read(connection.getInputStream()).trim();
+            try {
+                return Long.parseLong(body);
+            } catch (NumberFormatException e) {
+                throw new IOException("Upload answer is not a sequence: " + body);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(MAX_RESPONSE_BYTES);
+            byte[] chunk = new byte[MAX_RESPONSE_BYTES];
+            int read;
+            while ((read = in.read(chunk)) > 0 && body.size() <= MAX_RESPONSE_BYTES) {
+                body.write(chunk, 0, read);
+            }
+            return new String(body.toByteArray(), StandardCharsets.US_ASCII);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.kdg.toast.plugin;
+
+/**
+ * {@link StepStore} decorator that times every save into {@link PluginMetrics}.
+ */
+final class MeteredStepStore implements StepStore {
+    private final StepStore store;
+    private final PluginMetrics metrics;
+
+    MeteredStepStore(StepStore store, PluginMetrics metrics) {
+        this.store = store;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void saveSteps(int steps, long baseline, long timeMillis) {
+        long start = System.nanoTime();
+        store.saveSteps(steps, baseline, timeMillis);
+        metrics.onFlush(System.nanoTime() - start);
+    }
+
+    @Override
+    public void publishSteps(int steps, long baseline, long timeMillis) {
+        store.publishSteps(steps, baseline, timeMillis);
+    }
+}
@@ -0,0 +1,278 @@
+package com.kdg.toast.plugin;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * What {@link PedometerService} does, without the Android framework, so a JVM replay can
+ * drive it through restarts, task removals, reboots and syncs on virtual time.
+ * <p>
+ * One instance is one service lifetime. The service creates it in onCreate with the sensor
+ * thread's {@link Scheduler} and hands it the stores in {@link #initialize}, on that thread;
+ * the stores and the step state outlive it, {@link Bridge} opens them once per process.
+ * {@link #start} runs on the sensor thread, the other callbacks may come from any thread and
+ * only post there, the way the service needs them to before its thread quits.
+ * <p>
+ * The parts of a sync that do not touch Android, {@link #takeSync} and {@link #queueSync},
+ * and restoring the step state at process start, {@link #restore}, are here too, so the
+ * replay runs the same code as Unity's calls.
+ */
+final class PedometerCore {
+    private final Scheduler scheduler;
+    private final TimeSource timeSource;
+    private final PluginMetrics metrics;
+    private final CollectorHost collectorHost;
+    private final Runnable flushAll = new Runnable() {
+        @Override
+        public void run() {
+            collectorHost.flushAll();
+        }
+    };
+    private final Runnable stopPipeline = new Runnable() {
+        @Override
+        public void run() {
+            StepPipeline pipeline = stepPipeline;
+            if (pipeline != null) {
+                pipeline.stop();
+            }
+        }
+    };
+    // set by initialize() on the sensor thread, ahead of any other posted work
+    private CoalescingStepWriter stepWriter;
+    private SharedStepCounter sharedSteps;
+    private StepPipeline stepPipeline;
+    private volatile StepCounterCollector stepCounter;
+
+    PedometerCore(Scheduler scheduler, TimeSource timeSource, PluginMetrics metrics, CollectorHost.Listener listener) {
+        this.scheduler = scheduler;
+        this.timeSource = timeSource;
+        this.metrics = metrics;
+        this.collectorHost = new CollectorHost(scheduler, listener);
+    }
+
+    /**
+     * Wires the step counter to the stores and registers the collectors.
+     *
+     * @param sharedSteps     the shared step file, or null to count in memory only
+     * @param journal         minute history, or null
+     * @param aggregates      per-day totals, or null
+     * @param bootCount       Settings.Global.BOOT_COUNT, or {@link StepAccountant#UNKNOWN_BOOT}
+     * @param pipelineThreads threads for the {@link StepPipeline} stages, or null to process
+     *                        readings on the sensor thread
+     */
+    void initialize(SensorSource sensors, StepState state, CoalescingStepWriter writer, SharedStepCounter sharedSteps,
+                    StepJournal journal, DailyAggregates aggregates, StepPublisher publisher, int bootCount,
+                    ThreadFactory pipelineThreads) {
+        this.stepWriter = writer;
+        this.sharedSteps = sharedSteps;
+        StepAccountant accountant = new StepAccountant(bootCount, writer.latestBaseline());
+        StepCounterProcessor processor =
+                new StepCounterProcessor(state, writer, accountant, journal, aggregates, timeSource);
+        if (pipelineThreads != null) {
+            stepPipeline = new StepPipeline(processor, publisher, metrics);
+            stepPipeline.start(pipelineThreads);
+        }
+        StepCounterCollector stepCounter = new StepCounterCollector(
+                sensors, processor, journal, publisher, metrics, timeSource, stepPipeline);
+        collectorHost.register(stepCounter);
+        collectorHost.register(SensorEventCollector.stepDetector(sensors));
+        collectorHost.register(SensorEventCollector.accelerometer(sensors));
+        collectorHost.register(new SignificantMotionCollector(sensors));
+        this.stepCounter = stepCounter;
+    }
+
+    /**
+     * Applies a start request on the sensor thread: its options, then exactly the collectors
+     * in {@code collectorIds}.
+     *
+     * @param request the request's options, null when restarted without them
+     */
+    void start(StartRequest request, Set<String> collectorIds) {
+        boolean counting = collectorHost.isRunning(StepCounterCollector.ID);
+        if (request != null) {
+            stepWriter.setPolicy(request.maxUnsavedSteps, request.flushIntervalMillis);
+            stepCounter.setBatching(request.batching);
+        }
+        if (!counting) {
+            // a running governor keeps its clock, a new one only comes with a fresh start
+            boolean adaptive = request == null || request.adaptivePower;
+            stepCounter.setGovernor(adaptive ? new PowerGovernor() : null, scheduler);
+        }
+        collectorHost.retain(collectorIds);
+        if (counting && request != null) {
+            // batching options may have changed
+            collectorHost.reconfigure();
+        }
+        if (!counting && collectorIds.contains(StepCounterCollector.ID) && sharedSteps != null) {
+            sharedSteps.markStarted(timeSource.currentTimeMillis());
+        }
+    }
+
+    /**
+     * The app's task was swiped away; the process may be killed any moment now. The flush is
+     * posted: it drains the pipeline, which the main thread must not wait on.
+     */
+    void onTaskRemoved() {
+        metrics.taskRemovals.incrementAndGet();
+        scheduler.schedule(flushAll, 0);
+    }
+
+    /**
+     * Writes pending data before the device powers off; the step counter restarts after boot
+     * and steps held only in memory could not be recovered from it. Posted like
+     * {@link #onTaskRemoved}, {@code done} runs on the sensor thread once the data is written.
+     *
+     * @param done called after the flush, or null
+     */
+    void onShutdown(final Runnable done) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    collectorHost.flushAll();
+                } finally {
+                    if (done != null) {
+                        done.run();
+                    }
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * Stops the collectors and then the pipeline they drain into. Only posts, so it can be
+     * called right before the sensor thread is told to quit.
+     */
+    void destroy() {
+        collectorHost.stopAll();
+        scheduler.schedule(stopPipeline, 0);
+    }
+
+    /**
+     * See {@link StepCounterCollector#requestFlush()}.
+     */
+    void requestFlush() {
+        StepCounterCollector stepCounter = this.stepCounter;
+        if (stepCounter != null) {
+            stepCounter.requestFlush();
+        }
+    }
+
+    CollectorHost collectorHost() {
+        return collectorHost;
+    }
+
+    /**
+     * Null until {@link #initialize} ran.
+     */
+    StepCounterCollector stepCounter() {
+        return stepCounter;
+    }
+
+    /**
+     * Null without pipeline threads or until {@link #initialize} ran.
+     */
+    StepPipeline stepPipeline() {
+        return stepPipeline;
+    }
+
+    /**
+     * Loads the steps counted so far and their counter baseline from the shared step file into
+     * {@code state} and {@code writer}, once per process before anything counts.
+     */
+    static void restore(SharedStepCounter counter, StepState state, CoalescingStepWriter writer) {
+        SharedStepCounter.Counter saved = counter.counter();
+        state.restore(saved.steps);
+        writer.reset(state.steps(), saved.baseline);
+    }
+
+    /**
+     * Takes the unsynced steps for a sync at {@code nowMillis}. Only the sync slot is written,
+     * so steps counted meanwhile, in this process or another, go to the next sync. Callers in
+     * one process serialize their syncs.
+     *
+     * @param journal       history for the buckets, or null
+     * @param bucketMinutes with a journal and > 0, the history of the synced interval is
+     *                      included in buckets of this many minutes
+     */
+    static SyncPayload takeSync(SharedStepCounter counter, StepJournal journal, long nowMillis, int bucketMinutes) {
+        long startMillis = nowMillis;
+        int steps = 0;
+        if (counter != null) {
+            long intervalStart = counter.intervalStartMillis();
+            startMillis = intervalStart == 0 ? nowMillis : intervalStart;
+            steps = counter.takeForSync(nowMillis);
+        }
+        int[] buckets = journal != null && bucketMinutes > 0
+                ? journal.buckets(startMillis, nowMillis, bucketMinutes) : new int[0];
+        return new SyncPayload(startMillis, nowMillis, steps, bucketMinutes, buckets);
+    }
+
+    /**
+     * Takes the unsynced steps into {@code queue}. The queue record is written before the
+     * steps are marked synced, with its sequence noted in the sync slot, so a process killed
+     * between the two leaves something {@link #recoverQueuedSync} can settle: the steps end up
+     * either queued or unsynced, never lost and never both. Callers serialize their syncs and
+     * are the queue's only appender, so the sequence noted is the one the record gets.
+     *
+     * @return the record's sequence
+     * @throws IOException if the queue cannot be written; the steps stay unsynced
+     */
+    static long queueSync(SharedStepCounter counter, StepJournal journal, UploadQueue queue, long nowMillis,
+                          int bucketMinutes) throws IOException {
+        if (counter == null) {
+            return queue.append(takeSync(null, journal, nowMillis, bucketMinutes));
+        }
+        recoverQueuedSync(counter, queue, nowMillis);
+        long sequence = queue.lastSequence() + 1;
+        long intervalStart = counter.intervalStartMillis();
+        long startMillis = intervalStart == 0 ? nowMillis : intervalStart;
+        int steps = counter.prepareSync(sequence);
+        int[] buckets = journal != null && bucketMinutes > 0
+                ? journal.buckets(startMillis, nowMillis, bucketMinutes) : new int[0];
+        try {
+            queue.append(new SyncPayload(startMillis, nowMillis, steps, bucketMinutes, buckets));
+        } catch (IOException | RuntimeException e) {
+            counter.abortSync();
+            throw e;
+        }
+        counter.commitSync(nowMillis);
+        return sequence;
+    }
+
+    /**
+     * Settles a {@link #queueSync} a process died in the middle of: if the queue got the
+     * record, its steps are marked synced, else they stay unsynced.
+     */
+    static void recoverQueuedSync(SharedStepCounter counter, UploadQueue queue, long nowMillis) {
+        long key = counter.preparedSync();
+        if (key == 0) {
+            return;
+        }
+        if (queue.lastSequence() >= key) {
+            SyncPayload queued = queue.pending(key);
+            // uploaded and acknowledged already, its end time is gone with it
+            counter.commitSync(queued == null ? nowMillis : queued.endMillis);
+        } else {
+            counter.abortSync();
+        }
+    }
+
+    /**
+     * Options of a StartService call.
+     */
+    static final class StartRequest {
+        final int maxUnsavedSteps;
+        final long flushIntervalMillis;
+        final SensorBatching batching;
+        final boolean adaptivePower;
+
+        StartRequest(int maxUnsavedSteps, long flushIntervalMillis, SensorBatching batching, boolean adaptivePower) {
+            this.maxUnsavedSteps = maxUnsavedSteps;
+            this.flushIntervalMillis = flushIntervalMillis;
+            this.batching = batching;
+            this.adaptivePower = adaptivePower;
+        }
+    }
+}
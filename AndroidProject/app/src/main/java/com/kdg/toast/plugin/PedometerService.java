@@ -1,46 +1,89 @@
 package com.kdg.toast.plugin;
 
-import android.Manifest;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.content.pm.PackageManager;
-import android.content.res.Configuration;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.content.IntentFilter;
 import android.hardware.SensorManager;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.preference.PreferenceManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.text.TextUtils;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.util.Calendar;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
 
-import androidx.annotation.LongDef;
 import androidx.annotation.Nullable;
-import androidx.core.app.ActivityCompat;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
-import androidx.core.content.ContextCompat;
 
-public class PedometerService extends Service implements SensorEventListener {
+/**
+ * Foreground service hosting the collectors Unity turned on, the step counter by default.
+ * <p>
+ * All collectors run on one background HandlerThread, share one notification and one sensor
+ * wake budget (see {@link CollectorHost}). The service stops itself when no collector is left.
+ * Step counter readings leave that thread right away through a {@link StepPipeline}, whose
+ * stages run on background threads of their own. The logic lives in {@link PedometerCore},
+ * which the JVM replay drives without Android; this class adapts the lifecycle to it.
+ * <p>
+ * The main thread only creates that thread and calls startForeground, within the few seconds
+ * Android allows. Opening the stores, reading the preferences and registering the sensors
+ * are posted to the sensor thread, in order, so a start never waits on disk or binder calls.
+ */
+public class PedometerService extends Service implements CollectorHost.Listener {
+    static final String EXTRA_MAX_UNSAVED_STEPS = "maxUnsavedSteps";
+    static final String EXTRA_FLUSH_INTERVAL_MILLIS = "flushIntervalMillis";
+    static final String EXTRA_MAX_REPORT_LATENCY_US = "maxReportLatencyUs";
+    static final String EXTRA_BATCH_SIZE = "batchSize";
+    static final String EXTRA_ADAPTIVE_POWER = "adaptivePower";
+    static final String[] COLLECTOR_IDS = {
+            StepCounterCollector.ID,
+            SensorEventCollector.STEP_DETECTOR,
+            SensorEventCollector.ACCELEROMETER,
+            SignificantMotionCollector.ID,
+    };
+    private static final int NOTIFICATION_ID = 112;
+    static volatile PedometerService activeService;
 
-    public SharedPreferences sharedPreferences;
-    String TAG = "PEDOMETER";
-    SensorManager sensorManager;
-    boolean running;
-    Date currentDate;
-    Date initialDate;
+    String TAG = PluginLog.TAG;
+    HandlerThread sensorThread;
+    Handler sensorHandler;
+    Handler mainHandler;
+    PedometerCore core;
+    private PendingIntent contentIntent;
+    /**
+     * Writes pending data before the device powers off; the step counter restarts after boot
+     * and steps held only in memory could not be recovered from it. Registered at runtime:
+     * since API 28 ACTION_SHUTDOWN no longer reaches receivers declared in the manifest. The
+     * broadcast is held open until the sensor thread wrote the data, so power-off waits for it
+     * without blocking the main thread.
+     */
+    private final BroadcastReceiver shutdownReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final PendingResult result = goAsync();
+            core.onShutdown(new Runnable() {
+                @Override
+                public void run() {
+                    result.finish();
+                }
+            });
+        }
+    };
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
@@ -59,115 +102,205 @@ public class PedometerService extends Service implements SensorEventListener {
         }
     }
 
-    private void startNotification(){
-        String input = "Counting your steps...";
-        Intent notificationIntent = new Intent(this, Bridge.myActivity.getClass());
-        PendingIntent pendingIntent = PendingIntent.getActivity(this,
-                0, notificationIntent, 0);
-        Notification notification = new NotificationCompat.Builder(this, "PedometerLib")
+    /**
+     * @param collectorIds running collectors, null while the service is still starting them
+     */
+    private Notification buildNotification(Set<String> collectorIds){
+        String input;
+        if (collectorIds == null) {
+            input = "Starting...";
+        }
+        else {
+            String[] labels = new String[collectorIds.size()];
+            int i = 0;
+            for (String id : COLLECTOR_IDS) {
+                if (collectorIds.contains(id)) {
+                    labels[i++] = core.collectorHost().collector(id).label();
+                }
+            }
+            input = i == 0 ? "Stopping..." : TextUtils.join(" ", Arrays.copyOf(labels, i));
+        }
+        return new NotificationCompat.Builder(this, "PedometerLib")
                 .setContentTitle("Background Walking Service")
                 .setContentText(input)
                 .setSmallIcon(R.mipmap.ic_launcher)
-                .setContentIntent(pendingIntent)
+                .setContentIntent(contentIntent())
+                .setOnlyAlertOnce(true)
                 .build();
-        startForeground(112, notification);
     }
 
 
+    private synchronized PendingIntent contentIntent() {
+        if (contentIntent == null) {
+            // no activity when started at boot, open the app's launcher activity instead
+            Intent notificationIntent = getPackageManager().getLaunchIntentForPackage(getPackageName());
+            contentIntent = PendingIntent.getActivity(this, 0, notificationIntent, 0);
+        }
+        return contentIntent;
+    }
+
     @Override
     public void onCreate() {
-        Log.i(TAG, "onCreate: CREATED"+Bridge.steps);
-        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
-        loadData();
-        saveSummarySteps(Bridge.summarySteps+Bridge.steps);
+        Bridge.metrics.onServiceCreated(SystemClock.elapsedRealtimeNanos());
+        Log.i(TAG, "onCreate: CREATED");
+        mainHandler = new Handler(getMainLooper());
+        // sensor callbacks and their persistence stay off the main looper Unity renders on
+        sensorThread = new HandlerThread("PedometerSensors", Process.THREAD_PRIORITY_BACKGROUND);
+        sensorThread.start();
+        sensorHandler = new Handler(sensorThread.getLooper());
+        core = new PedometerCore(new HandlerScheduler(sensorThread.getLooper()), TimeSource.SYSTEM, Bridge.metrics, this);
+        activeService = this;
+        registerReceiver(shutdownReceiver, new IntentFilter(Intent.ACTION_SHUTDOWN));
+        sensorHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                initialize();
+            }
+        });
+    }
+
+    /**
+     * The part of creating the service that touches disk, preferences and sensors. Runs on
+     * the sensor thread ahead of the collector starts it posts to.
+     */
+    private void initialize() {
+        Bridge.loadStepState(this);
+        SensorSource sensors = new AndroidSensorSource((SensorManager) getSystemService(Context.SENSOR_SERVICE), sensorHandler);
+        core.initialize(sensors, Bridge.stepState, Bridge.getStepWriter(this), Bridge.getSharedSteps(this),
+                Bridge.getStepJournal(this), Bridge.getDailyAggregates(this), Bridge.stepPublisher, bootCount(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable stage) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                stage.run();
+                            }
+                        });
+                    }
+                });
+        Log.i(TAG, "initialize: steps "+Bridge.stepState.steps());
+        // syncs queued before the process died go out once the service is back
+        Bridge.resumeUploads(this);
     }
 
     @Override
     public void onTaskRemoved(Intent rootIntent) {
         super.onTaskRemoved(rootIntent);
-        Log.i(TAG, "onTaskRemoved: REMOVED"+Bridge.steps);
-        initSensorManager();
+        Log.i(TAG, "onTaskRemoved: REMOVED"+Bridge.stepState.steps());
+        core.onTaskRemoved();
 
     }
 
     @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
+    public int onStartCommand(final Intent intent, int flags, int startId) {
         Log.i(TAG, "onStartCommand: STARTED");
+        Bridge.metrics.serviceStarts.incrementAndGet();
         createNotificationChannel();
-        startNotification();
-        super.onCreate();
-        Bridge.initialSteps=0;
-        initSensorManager();
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        initialDate = Calendar.getInstance().getTime();
-        editor.putString(Bridge.INIT_DATE, currentDate.toString());
-        editor.apply();
+        // the notification names the collectors once they run, see onCollectorsChanged
+        startForeground(NOTIFICATION_ID, buildNotification(null));
+        Bridge.metrics.onForeground(SystemClock.elapsedRealtimeNanos());
+        sensorHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                applyStart(intent);
+            }
+        });
         return START_NOT_STICKY;
     }
 
+    /**
+     * Applies a start request's options and collectors on the sensor thread.
+     */
+    private void applyStart(Intent intent) {
+        PedometerCore.StartRequest request = intent == null ? null : new PedometerCore.StartRequest(
+                intent.getIntExtra(EXTRA_MAX_UNSAVED_STEPS, CoalescingStepWriter.DEFAULT_MAX_UNSAVED_STEPS),
+                intent.getLongExtra(EXTRA_FLUSH_INTERVAL_MILLIS, CoalescingStepWriter.DEFAULT_FLUSH_INTERVAL_MILLIS),
+                new SensorBatching(intent.getIntExtra(EXTRA_MAX_REPORT_LATENCY_US, 0), intent.getIntExtra(EXTRA_BATCH_SIZE, 0)),
+                intent.getBooleanExtra(EXTRA_ADAPTIVE_POWER, true));
+        core.start(request, enabledCollectors(this));
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
         Log.i(TAG, "onDestroy: DESTROYED");
-        disposeSensorManager();
-        loadData();
-        saveSummarySteps(Bridge.summarySteps+Bridge.steps);
+        if (activeService == this) {
+            activeService = null;
+        }
+        unregisterReceiver(shutdownReceiver);
+        core.destroy();
+        // after the stops, which drain the pipeline through the collectors
+        sensorHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, "onDestroy: pipeline\n"+core.stepPipeline().pipeline().describe());
+                StepCounterCollector stepCounter = core.stepCounter();
+                StepCounterProcessor stepProcessor = stepCounter.processor();
+                Log.i(TAG, "onDestroy: reboots "+stepProcessor.accountant().reboots()+", counter resets "+stepProcessor.accountant().regressions());
+                if (stepCounter.journalFailures() > 0) {
+                    Log.w(TAG, "onDestroy: journal writes failed: "+stepCounter.journalFailures());
+                }
+            }
+        });
+        // runs initialize() if still pending and the stops, then ends the thread
+        sensorThread.quitSafely();
     }
 
     @Override
-    public void onSensorChanged(SensorEvent sensorEvent) {
-        Log.i(TAG, "onSensorChanged!!!!!!: "+sensorEvent.values[0]);
-        if (Bridge.initialSteps==0){
-            Log.i(TAG, "onSensorChanged: AWAKE");
-            Bridge.initialSteps=(int) sensorEvent.values[0];
-        }
-        if (running){
-            Bridge.steps=(int)sensorEvent.values[0]-Bridge.initialSteps;
-            Log.i(TAG, "onSensorChanged: current steps: "+Bridge.steps);
-            saveData(Bridge.steps);
+    public void onCollectorsChanged(String[] runningIds) {
+        Log.i(TAG, "onCollectorsChanged: running "+TextUtils.join(",", runningIds));
+        if (runningIds.length == 0) {
+            stopSelf();
+            return;
         }
+        Set<String> ids = new HashSet<>();
+        Collections.addAll(ids, runningIds);
+        NotificationManagerCompat.from(this).notify(NOTIFICATION_ID, buildNotification(ids));
     }
 
     @Override
-    public void onAccuracyChanged(Sensor sensor, int i) {    }
-
-    public void initSensorManager(){
-        sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
-        running = true;
-        Sensor countSensor = sensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER);
-        if (countSensor!=null){
-            sensorManager.registerListener(this,countSensor,SensorManager.SENSOR_DELAY_UI);
-        }
-        else {
-            Toast.makeText(Bridge.myActivity,"Sensor Not Found (", Toast.LENGTH_LONG).show();
-        }
-    }
-    public void disposeSensorManager(){
-        running=false;
-        sensorManager.unregisterListener(this);
+    public void onCollectorUnavailable(final String id) {
+        Log.w(TAG, "onCollectorUnavailable: "+id);
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(PedometerService.this,"Sensor Not Found (", Toast.LENGTH_LONG).show();
+            }
+        });
     }
 
-    public void saveData(int currentSteps) {
+    /**
+     * Collectors Unity turned on, the step counter for installs that predate collectors.
+     */
+    static Set<String> enabledCollectors(Context context) {
+        Set<String> ids = context.getSharedPreferences(Bridge.SERVICE_SETTINGS, MODE_PRIVATE)
+                .getStringSet(Bridge.COLLECTORS, null);
+        return ids == null ? Collections.singleton(StepCounterCollector.ID) : new HashSet<>(ids);
+    }
 
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        currentDate = Calendar.getInstance().getTime();
-        editor.putString(Bridge.DATE, currentDate.toString());
-        Log.i(TAG, "saveData: saved! "+currentSteps);
-        editor.putInt(Bridge.STEPS, currentSteps);
-        editor.apply();
+    static boolean isCollector(String id) {
+        for (String known : COLLECTOR_IDS) {
+            if (known.equals(id)) {
+                return true;
+            }
+        }
+        return false;
     }
-    public void saveSummarySteps(int stepsToSave) {
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        currentDate = Calendar.getInstance().getTime();
-        editor.putString(Bridge.DATE, currentDate.toString());
-        Log.i(TAG, "saveSummarySteps: saved! "+stepsToSave);
-        editor.putInt("summarySteps", stepsToSave);
-        editor.apply();
+
+    /**
+     * Asks the sensor hub to deliver the steps waiting in its FIFO, so a batching service
+     * still gives fresh numbers to a polling caller. Throttled, safe to call every frame.
+     */
+    static void requestSensorFlush() {
+        PedometerService service = activeService;
+        if (service != null) {
+            service.core.requestFlush();
+        }
     }
-    public void loadData() {
-        Bridge.steps = sharedPreferences.getInt(Bridge.STEPS, 0);
-        Bridge.summarySteps = sharedPreferences.getInt("summarySteps",0);
-        Log.i(TAG, "loadData: steps"+Bridge.steps);
-        Log.i(TAG, "loadData: summarySteps "+Bridge.summarySteps);
+
+    private int bootCount() {
+        return Settings.Global.getInt(getContentResolver(), Settings.Global.BOOT_COUNT, StepAccountant.UNKNOWN_BOOT);
     }
-}
\ No newline at end of file
+}
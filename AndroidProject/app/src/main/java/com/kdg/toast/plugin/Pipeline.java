@@ -0,0 +1,356 @@
+package com.kdg.toast.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Chain of {@link PipelineStage}s, each on its own thread behind a bounded {@link EventRing}.
+ * <p>
+ * Records are fixed-width {@code long[]}s copied from ring to ring, so once started the
+ * pipeline does not allocate. One thread submits; every stage consumes its ring and feeds the
+ * next. An idle stage parks its thread and costs nothing until the next record arrives.
+ * <p>
+ * A full ring pushes back on whoever feeds it, as chosen per stage:
+ * <ul>
+ * <li>{@link Backpressure#BLOCK} parks the feeding thread until the stage frees a slot, so
+ * every record is processed and a slow stage slows the whole chain down to its pace.</li>
+ * <li>{@link Backpressure#CONFLATE} does not wait: records that do not fit are folded into one
+ * pending record through {@link PipelineStage#merge(long[], long[])}, handed to the stage
+ * once it drained its ring. For cumulative data like step counter readings nothing is lost.
+ * Only when the stage refuses a merge does the feeding thread wait, until the pending record
+ * was taken.</li>
+ * </ul>
+ * Stages are added before {@link #start(ThreadFactory)}; adding one is all it takes to extend
+ * the chain.
+ */
+final class Pipeline {
+    enum Backpressure {
+        BLOCK,
+        CONFLATE,
+    }
+
+    private final String name;
+    private final int width;
+    private final List<Node> nodes = new ArrayList<>();
+    private Node first;
+    private volatile boolean started;
+    private volatile boolean stopping;
+
+    /**
+     * @param width longs per record
+     */
+    Pipeline(String name, int width) {
+        this.name = name;
+        this.width = width;
+    }
+
+    Pipeline addStage(String stageName, PipelineStage stage, int capacity, Backpressure backpressure) {
+        return addStage(stageName, stage, new EventRing(capacity, width), backpressure);
+    }
+
+    /**
+     * Adds a stage behind the given, empty ring.
+     */
+    Pipeline addStage(String stageName, PipelineStage stage, EventRing ring, Backpressure backpressure) {
+        if (started) {
+            throw new IllegalStateException("Pipeline " + name + " already started");
+        }
+        if (ring.width() != width) {
+            throw new IllegalArgumentException("ring width " + ring.width() + " != " + width);
+        }
+        Node node = new Node(stageName, stage, ring, backpressure);
+        if (!nodes.isEmpty()) {
+            nodes.get(nodes.size() - 1).next = node;
+        }
+        nodes.add(node);
+        return this;
+    }
+
+    void start(ThreadFactory threads) {
+        if (nodes.isEmpty()) {
+            throw new IllegalStateException("Pipeline " + name + " has no stages");
+        }
+        if (started) {
+            return;
+        }
+        for (Node node : nodes) {
+            node.thread = threads.newThread(node);
+            node.thread.setName(name + "-" + node.name);
+        }
+        first = nodes.get(0);
+        started = true;
+        for (Node node : nodes) {
+            node.thread.start();
+        }
+    }
+
+    /**
+     * Hands a copy of {@code record} to the first stage. One producer thread only; may park it
+     * if the first stage blocks.
+     *
+     * @return false if the pipeline is not running
+     */
+    boolean submit(long[] record) {
+        if (!started || stopping) {
+            return false;
+        }
+        first.enqueue(record);
+        return true;
+    }
+
+    /**
+     * Waits until every record submitted so far went through all stages. Callable from any
+     * thread; with the producer still submitting it may wait for newer records too.
+     *
+     * @return false on timeout
+     */
+    boolean awaitIdle(long timeoutMillis) {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        while (!isIdle()) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(100_000L);
+        }
+        return true;
+    }
+
+    /**
+     * Drains the stages for at most {@code timeoutMillis}, then ends their threads.
+     * Records submitted afterwards are refused.
+     *
+     * @return false if the stages did not drain in time
+     */
+    boolean stop(long timeoutMillis) {
+        if (!started || stopping) {
+            return true;
+        }
+        boolean drained = awaitIdle(timeoutMillis);
+        stopping = true;
+        for (Node node : nodes) {
+            LockSupport.unpark(node.thread);
+        }
+        for (Node node : nodes) {
+            try {
+                node.thread.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Checked in chain order: a record can only move forward, so once a stage was seen empty
+     * nothing can reach the stages after it without a new submit.
+     */
+    boolean isIdle() {
+        for (Node node : nodes) {
+            if (node.busy || node.overflowPending || !node.ring.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int stageCount() {
+        return nodes.size();
+    }
+
+    String stageName(int stage) {
+        return nodes.get(stage).name;
+    }
+
+    /** Records the stage finished. */
+    long processed(int stage) {
+        return nodes.get(stage).processed;
+    }
+
+    /** Records folded into a pending one because the stage's ring was full. */
+    long conflated(int stage) {
+        return nodes.get(stage).conflated;
+    }
+
+    /** Times the feeding thread parked on the stage's full ring. */
+    long blocked(int stage) {
+        return nodes.get(stage).blocked;
+    }
+
+    long blockedNanos(int stage) {
+        return nodes.get(stage).blockedNanos;
+    }
+
+    int highWater(int stage) {
+        return nodes.get(stage).ring.highWater();
+    }
+
+    /**
+     * One line per stage: {@code name processed=.. conflated=.. blocked=.. blocked_us=.. high_water=..}.
+     */
+    String describe() {
+        StringBuilder out = new StringBuilder(64 * nodes.size());
+        for (Node node : nodes) {
+            out.append(name).append('.').append(node.name)
+                    .append(" processed=").append(node.processed)
+                    .append(" conflated=").append(node.conflated)
+                    .append(" blocked=").append(node.blocked)
+                    .append(" blocked_us=").append(node.blockedNanos / 1_000L)
+                    .append(" high_water=").append(node.ring.highWater())
+                    .append('\n');
+        }
+        return out.toString();
+    }
+
+    private final class Node implements Runnable {
+        final String name;
+        final PipelineStage stage;
+        final EventRing ring;
+        final Backpressure backpressure;
+        final long[] overflow;
+        final long[] record;
+        Node next;
+        Thread thread;
+        volatile boolean overflowPending;
+        volatile boolean busy;
+        volatile boolean parked;
+        volatile Thread blockedProducer;
+        // written by the stage thread
+        volatile long processed;
+        // written by the feeding thread
+        volatile long conflated;
+        volatile long blocked;
+        volatile long blockedNanos;
+
+        Node(String name, PipelineStage stage, EventRing ring, Backpressure backpressure) {
+            this.name = name;
+            this.stage = stage;
+            this.ring = ring;
+            this.backpressure = backpressure;
+            this.overflow = new long[ring.width()];
+            this.record = new long[ring.width()];
+        }
+
+        /**
+         * Feeding thread only.
+         */
+        void enqueue(long[] in) {
+            if (backpressure == Backpressure.CONFLATE) {
+                conflate(in);
+            } else {
+                block(in);
+            }
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private void conflate(long[] in) {
+            // while a record is pending the ring is left alone, it is older than anything new
+            if (overflowPending) {
+                synchronized (overflow) {
+                    if (overflowPending && stage.merge(overflow, in)) {
+                        conflated++;
+                        return;
+                    }
+                }
+                awaitOverflowTaken();
+            }
+            if (ring.offer(in)) {
+                return;
+            }
+            synchronized (overflow) {
+                System.arraycopy(in, 0, overflow, 0, overflow.length);
+                overflowPending = true;
+            }
+        }
+
+        /**
+         * Parks the feeding thread until the stage took the pending record, which it only
+         * does with an empty ring, so the next offer fits.
+         */
+        private void awaitOverflowTaken() {
+            if (!overflowPending) {
+                return;
+            }
+            long start = System.nanoTime();
+            blockedProducer = Thread.currentThread();
+            while (overflowPending) {
+                if (parked) {
+                    LockSupport.unpark(thread);
+                }
+                LockSupport.park(this);
+            }
+            blockedProducer = null;
+            blocked++;
+            blockedNanos += System.nanoTime() - start;
+        }
+
+        private void block(long[] in) {
+            if (ring.offer(in)) {
+                return;
+            }
+            long start = System.nanoTime();
+            blockedProducer = Thread.currentThread();
+            while (!ring.offer(in)) {
+                if (parked) {
+                    LockSupport.unpark(thread);
+                }
+                LockSupport.park(this);
+            }
+            blockedProducer = null;
+            blocked++;
+            blockedNanos += System.nanoTime() - start;
+        }
+
+        /**
+         * Takes the pending record once the ring is empty. The ring is checked again under the
+         * lock: between a failed poll and here the feeding thread may have refilled it and
+         * parked a newer record, which must wait for the ones ahead of it. While a record is
+         * pending the feeding thread does not offer to the ring, so the check holds.
+         */
+        private boolean takeOverflow() {
+            if (!overflowPending) {
+                return false;
+            }
+            synchronized (overflow) {
+                if (!overflowPending || !ring.isEmpty()) {
+                    return false;
+                }
+                System.arraycopy(overflow, 0, record, 0, record.length);
+                overflowPending = false;
+                return true;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                busy = true;
+                // the overflow is only taken once the ring is empty, keeping records in order
+                if (ring.poll(record) || takeOverflow()) {
+                    Thread producer = blockedProducer;
+                    if (producer != null) {
+                        LockSupport.unpark(producer);
+                    }
+                    if (stage.process(record) && next != null) {
+                        next.enqueue(record);
+                    }
+                    processed++;
+                    continue;
+                }
+                busy = false;
+                if (stopping) {
+                    return;
+                }
+                parked = true;
+                if (ring.isEmpty() && !overflowPending && !stopping) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.kdg.toast.plugin;
+
+/**
+ * One step of a {@link Pipeline}. Each stage runs on its own thread and sees records in the
+ * order they were submitted.
+ */
+interface PipelineStage {
+    /**
+     * Handles one record, may rewrite it in place for the next stage. Must not keep the array.
+     *
+     * @return true to pass the record on to the next stage
+     */
+    boolean process(long[] record);
+
+    /**
+     * Folds {@code newer} into {@code pending}, a record still waiting for this stage, when
+     * the stage's queue is full. Only called for {@link Pipeline.Backpressure#CONFLATE}.
+     *
+     * @return false to leave {@code pending} alone; the feeding thread then waits until the
+     * stage took it, as with {@link Pipeline.Backpressure#BLOCK}
+     */
+    boolean merge(long[] pending, long[] newer);
+}
@@ -0,0 +1,25 @@
+package com.kdg.toast.plugin;
+
+/**
+ * Logging gate for the plugin. Hot paths check {@link #verbose()} before building a message,
+ * so nothing is concatenated or allocated when verbose logging is off.
+ */
+final class PluginLog {
+    static final String TAG = "PEDOMETER";
+    /**
+     * Compile-time switch, release builds drop the guarded calls altogether.
+     */
+    static final boolean ENABLED = BuildConfig.DEBUG;
+    private static volatile boolean verbose = ENABLED;
+
+    private PluginLog() {
+    }
+
+    static boolean verbose() {
+        return ENABLED && verbose;
+    }
+
+    static void setVerbose(boolean verbose) {
+        PluginLog.verbose = verbose;
+    }
+}
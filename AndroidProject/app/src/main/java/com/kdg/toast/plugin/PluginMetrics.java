@@ -0,0 +1,248 @@
+package com.kdg.toast.plugin;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and histograms describing what the service did, for battery and missing step
+ * reports. Unity reads them through {@link Bridge#GetMetrics()}.
+ * <p>
+ * Recording never allocates and never blocks: counters are atomics and histograms are
+ * {@link Histogram}s. Only {@link #snapshot()} allocates, on the caller's thread.
+ */
+final class PluginMetrics {
+    /**
+     * Sensor events delivered closer together than this belong to the same batch.
+     */
+    static final long BATCH_GAP_NANOS = 5_000_000L;
+    /** Latest power mode changes kept for the timeline. */
+    static final int POWER_TIMELINE_SIZE = 32;
+
+    final AtomicLong sensorEvents = new AtomicLong();
+    final AtomicLong serviceStarts = new AtomicLong();
+    final AtomicLong taskRemovals = new AtomicLong();
+    final AtomicLong bootRestarts = new AtomicLong();
+    final AtomicLong flushes = new AtomicLong();
+    final AtomicLong syncs = new AtomicLong();
+    /** Upload frames the backend acknowledged. */
+    final AtomicLong uploads = new AtomicLong();
+    final AtomicLong uploadFailures = new AtomicLong();
+    /** Events per delivery burst, 1 without batching. */
+    final Histogram batchSize = new Histogram();
+    /** Sensor time between two consecutive step counter events. */
+    final Histogram eventIntervalMillis = new Histogram();
+    /** Time from the sensor timestamp to delivery, the latency batching adds. */
+    final Histogram deliveryDelayMillis = new Histogram();
+    final Histogram flushMicros = new Histogram();
+    final Histogram syncMicros = new Histogram();
+    /** Time from ingest to publish through the {@link StepPipeline}. */
+    final Histogram pipelineLatencyMicros = new Histogram();
+    /** Service creation to startForeground returning, once per service instance. */
+    final Histogram foregroundMillis = new Histogram();
+    /** Service creation to its first step counter event, once per service instance. */
+    final Histogram firstEventMillis = new Histogram();
+    /** Step counter power mode changes, see {@link PowerGovernor}. */
+    final AtomicLong powerTransitions = new AtomicLong();
+
+    // power mode changes are rare, a lock keeps the timeline consistent for snapshot()
+    private final Object powerLock = new Object();
+    private final long[] powerModeMillis = new long[PowerGovernor.Mode.values().length];
+    private final long[] timelineMillis = new long[POWER_TIMELINE_SIZE];
+    private final PowerGovernor.Mode[] timelineModes = new PowerGovernor.Mode[POWER_TIMELINE_SIZE];
+    private int timelineCount;
+
+    private volatile long createdNanos;
+    private volatile boolean foregroundPending;
+    private volatile boolean firstEventPending;
+    private volatile long timeToFirstEventMillis = -1;
+
+    // sensor thread only
+    private long lastEventNanos = Long.MIN_VALUE;
+    private long lastDeliveryNanos = Long.MIN_VALUE;
+    private int currentBatch;
+
+    /**
+     * Records one step counter event. Called on the sensor thread.
+     *
+     * @param eventNanos    SensorEvent.timestamp
+     * @param deliveryNanos SystemClock.elapsedRealtimeNanos() at delivery, same clock
+     */
+    void onSensorEvent(long eventNanos, long deliveryNanos) {
+        sensorEvents.incrementAndGet();
+        if (firstEventPending) {
+            firstEventPending = false;
+            timeToFirstEventMillis = (deliveryNanos - createdNanos) / 1_000_000L;
+            firstEventMillis.record(timeToFirstEventMillis);
+        }
+        if (lastEventNanos != Long.MIN_VALUE) {
+            eventIntervalMillis.record((eventNanos - lastEventNanos) / 1_000_000L);
+        }
+        lastEventNanos = eventNanos;
+        deliveryDelayMillis.record((deliveryNanos - eventNanos) / 1_000_000L);
+        if (lastDeliveryNanos != Long.MIN_VALUE && deliveryNanos - lastDeliveryNanos > BATCH_GAP_NANOS) {
+            batchSize.record(currentBatch);
+            currentBatch = 0;
+        }
+        lastDeliveryNanos = deliveryNanos;
+        currentBatch++;
+    }
+
+    /**
+     * Starts the cold start clocks, called first thing in the service's onCreate.
+     *
+     * @param nanos SystemClock.elapsedRealtimeNanos(), the clock sensor events are delivered on
+     */
+    void onServiceCreated(long nanos) {
+        createdNanos = nanos;
+        foregroundPending = true;
+        firstEventPending = true;
+    }
+
+    /**
+     * Called after startForeground; only the first call per service instance counts.
+     */
+    void onForeground(long nanos) {
+        if (foregroundPending) {
+            foregroundPending = false;
+            foregroundMillis.record((nanos - createdNanos) / 1_000_000L);
+        }
+    }
+
+    /**
+     * Creation to first step counter event of the latest service instance, -1 while pending.
+     */
+    long timeToFirstEventMillis() {
+        return firstEventPending ? -1 : timeToFirstEventMillis;
+    }
+
+    /**
+     * Records that the step counter entered {@code mode}; the time spent in the previous mode
+     * is added to its total. Called on the sensor thread.
+     *
+     * @param elapsedMillis SystemClock.elapsedRealtime()
+     */
+    void onPowerMode(long elapsedMillis, PowerGovernor.Mode mode) {
+        powerTransitions.incrementAndGet();
+        synchronized (powerLock) {
+            if (timelineCount > 0) {
+                int previous = (timelineCount - 1) % POWER_TIMELINE_SIZE;
+                powerModeMillis[timelineModes[previous].ordinal()] += Math.max(0, elapsedMillis - timelineMillis[previous]);
+            }
+            int slot = timelineCount % POWER_TIMELINE_SIZE;
+            timelineMillis[slot] = elapsedMillis;
+            timelineModes[slot] = mode;
+            timelineCount++;
+        }
+    }
+
+    /**
+     * Time spent in {@code mode} up to the latest change, the current stretch not included.
+     */
+    long powerModeMillis(PowerGovernor.Mode mode) {
+        synchronized (powerLock) {
+            return powerModeMillis[mode.ordinal()];
+        }
+    }
+
+    /**
+     * The latest power mode changes, oldest first, as {@code elapsedMillis:MODE} separated by
+     * spaces.
+     */
+    String powerTimeline() {
+        StringBuilder out = new StringBuilder(POWER_TIMELINE_SIZE * 20);
+        synchronized (powerLock) {
+            for (int i = Math.max(0, timelineCount - POWER_TIMELINE_SIZE); i < timelineCount; i++) {
+                int slot = i % POWER_TIMELINE_SIZE;
+                if (out.length() > 0) {
+                    out.append(' ');
+                }
+                out.append(timelineMillis[slot]).append(':').append(timelineModes[slot]);
+            }
+        }
+        return out.toString();
+    }
+
+    void onFlush(long durationNanos) {
+        flushes.incrementAndGet();
+        flushMicros.record(durationNanos / 1_000L);
+    }
+
+    void onSync(long durationNanos) {
+        syncs.incrementAndGet();
+        syncMicros.record(durationNanos / 1_000L);
+    }
+
+    void reset() {
+        sensorEvents.set(0);
+        serviceStarts.set(0);
+        taskRemovals.set(0);
+        bootRestarts.set(0);
+        flushes.set(0);
+        syncs.set(0);
+        uploads.set(0);
+        uploadFailures.set(0);
+        batchSize.reset();
+        eventIntervalMillis.reset();
+        deliveryDelayMillis.reset();
+        flushMicros.reset();
+        syncMicros.reset();
+        pipelineLatencyMicros.reset();
+        foregroundMillis.reset();
+        firstEventMillis.reset();
+        powerTransitions.set(0);
+        synchronized (powerLock) {
+            Arrays.fill(powerModeMillis, 0);
+            timelineCount = 0;
+        }
+    }
+
+    /**
+     * One metric per line: {@code name value} for counters and
+     * {@code name count=.. mean=.. p50=.. p90=.. p99=.. max=..} for histograms, then the
+     * time per power mode and the {@link #powerTimeline()}.
+     */
+    String snapshot() {
+        StringBuilder out = new StringBuilder(512);
+        counter(out, "sensor_events", sensorEvents);
+        counter(out, "service_starts", serviceStarts);
+        counter(out, "task_removals", taskRemovals);
+        counter(out, "boot_restarts", bootRestarts);
+        counter(out, "flushes", flushes);
+        counter(out, "syncs", syncs);
+        counter(out, "uploads", uploads);
+        counter(out, "upload_failures", uploadFailures);
+        histogram(out, "batch_size", batchSize);
+        histogram(out, "event_interval_ms", eventIntervalMillis);
+        histogram(out, "delivery_delay_ms", deliveryDelayMillis);
+        histogram(out, "flush_us", flushMicros);
+        histogram(out, "sync_us", syncMicros);
+        histogram(out, "pipeline_latency_us", pipelineLatencyMicros);
+        histogram(out, "foreground_ms", foregroundMillis);
+        histogram(out, "first_event_ms", firstEventMillis);
+        counter(out, "power_transitions", powerTransitions);
+        out.append("power_ms");
+        for (PowerGovernor.Mode mode : PowerGovernor.Mode.values()) {
+            out.append(' ').append(mode.name().toLowerCase(Locale.ROOT)).append('=').append(powerModeMillis(mode));
+        }
+        out.append('\n');
+        out.append("power_timeline ").append(powerTimeline()).append('\n');
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, AtomicLong counter) {
+        out.append(name).append(' ').append(counter.get()).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, Histogram histogram) {
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        out.append(name)
+                .append(" count=").append(snapshot.count)
+                .append(" mean=").append(snapshot.mean())
+                .append(" p50=").append(snapshot.percentile(50))
+                .append(" p90=").append(snapshot.percentile(90))
+                .append(" p99=").append(snapshot.percentile(99))
+                .append(" max=").append(snapshot.max)
+                .append('\n');
+    }
+}
@@ -0,0 +1,39 @@
+package com.kdg.toast.plugin;
+
+import android.os.Trace;
+
+/**
+ * Optional android.os.Trace sections around the service's work, visible in Perfetto and
+ * systrace captures of the app. Off by default.
+ * <p>
+ * {@link #begin(String)} reports whether it opened a section and {@link #end(boolean)} takes
+ * that back, so switching tracing while a section is open never unbalances the stack.
+ */
+final class PluginTrace {
+    static final String SENSOR_EVENT = "PEDOMETER:onSensorChanged";
+    static final String FLUSH = "PEDOMETER:flush";
+    static final String SYNC = "PEDOMETER:sync";
+
+    private static volatile boolean enabled;
+
+    private PluginTrace() {
+    }
+
+    static void setEnabled(boolean enabled) {
+        PluginTrace.enabled = enabled;
+    }
+
+    static boolean begin(String section) {
+        if (!enabled) {
+            return false;
+        }
+        Trace.beginSection(section);
+        return true;
+    }
+
+    static void end(boolean begun) {
+        if (begun) {
+            Trace.endSection();
+        }
+    }
+}
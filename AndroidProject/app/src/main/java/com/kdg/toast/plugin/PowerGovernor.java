@@ -0,0 +1,196 @@
+package com.kdg.toast.plugin;
+
+/**
+ * Decides how eagerly the step counter is listened to from how recently steps were walked.
+ * Pure state machine on the elapsedRealtime clock in milliseconds, driven by
+ * {@link StepCounterCollector} and by the replay in the tests.
+ * <ul>
+ * <li>{@link Mode#ACTIVE}: walking, the sensor is registered with the configured batching.</li>
+ * <li>{@link Mode#QUIET}: no steps for {@code quietAfterMillis}, the sensor stays registered
+ * but the hardware counter is batched for {@link #QUIET_REPORT_LATENCY_US}. It is
+ * cumulative, so a FIFO that overflows meanwhile loses events but no steps.</li>
+ * <li>{@link Mode#IDLE}: no steps for {@code idleAfterMillis}, the sensor is unregistered and
+ * only a significant motion trigger is armed.</li>
+ * </ul>
+ * Idling is for the accelerometer fallback, which samples all the time. The hardware counter
+ * only reports steps and, batched, already lets the device sleep through a still hour;
+ * unregistering it would only add the trigger's wake-ups (see PowerReplayTest), so it stops
+ * at QUIET, see {@link #reset(long, boolean)}.
+ * <p>
+ * In QUIET, {@link #RAMP_UP_STEPS} steps walked within {@link #RAMP_UP_WINDOW_MILLIS} ramp
+ * back up to ACTIVE, judged by the event times when the batch comes in; fewer keep it QUIET
+ * but still count as activity, so shuffling around the desk does not put it to sleep. A
+ * significant motion wakes an IDLE governor to ACTIVE. When that motion brings no steps within
+ * {@code motionGraceMillis}, a bus or car ride rather than a walk, it falls back to where the
+ * timeouts put it.
+ * <p>
+ * Not thread safe, it lives on the sensor thread.
+ */
+final class PowerGovernor {
+    enum Mode { ACTIVE, QUIET, IDLE }
+
+    static final long DEFAULT_QUIET_AFTER_MILLIS = 2 * 60_000L;
+    static final long DEFAULT_IDLE_AFTER_MILLIS = 10 * 60_000L;
+    static final long DEFAULT_MOTION_GRACE_MILLIS = 60_000L;
+    static final int RAMP_UP_STEPS = 10;
+    static final long RAMP_UP_WINDOW_MILLIS = 30_000L;
+    /** Report latency while QUIET, five minutes. */
+    static final int QUIET_REPORT_LATENCY_US = 300_000_000;
+    /** {@link #deadlineMillis()} when only an event can change the mode. */
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final long quietAfterMillis;
+    private final long idleAfterMillis;
+    private final long motionGraceMillis;
+
+    private boolean canIdle;
+    private Mode mode = Mode.ACTIVE;
+    private long lastStepMillis;
+    private long motionMillis;
+    private boolean awaitingSteps;
+    private long burstStartMillis;
+    private int burstSteps;
+    private long transitions;
+
+    PowerGovernor() {
+        this(DEFAULT_QUIET_AFTER_MILLIS, DEFAULT_IDLE_AFTER_MILLIS, DEFAULT_MOTION_GRACE_MILLIS);
+    }
+
+    PowerGovernor(long quietAfterMillis, long idleAfterMillis, long motionGraceMillis) {
+        if (quietAfterMillis <= 0 || idleAfterMillis < quietAfterMillis || motionGraceMillis <= 0) {
+            throw new IllegalArgumentException("Bad governor thresholds: quiet after " + quietAfterMillis
+                    + " ms, idle after " + idleAfterMillis + " ms, motion grace " + motionGraceMillis + " ms");
+        }
+        this.quietAfterMillis = quietAfterMillis;
+        this.idleAfterMillis = idleAfterMillis;
+        this.motionGraceMillis = motionGraceMillis;
+    }
+
+    Mode mode() {
+        return mode;
+    }
+
+    /**
+     * Mode changes since construction, resets included.
+     */
+    long transitions() {
+        return transitions;
+    }
+
+    /**
+     * Starts over in ACTIVE, as if steps were walked at {@code nowMillis}.
+     *
+     * @param canIdle whether to go IDLE: the sensor samples all the time and a significant
+     *                motion sensor exists to wake up from it
+     * @return whether the mode changed
+     */
+    boolean reset(long nowMillis, boolean canIdle) {
+        this.canIdle = canIdle;
+        lastStepMillis = nowMillis;
+        awaitingSteps = false;
+        burstSteps = 0;
+        return enter(Mode.ACTIVE);
+    }
+
+    /**
+     * Steps reported by the sensor.
+     *
+     * @param eventMillis when they were walked; batched events arrive late
+     * @return whether the mode changed
+     */
+    boolean onSteps(long eventMillis, int steps) {
+        if (steps <= 0) {
+            return false;
+        }
+        lastStepMillis = Math.max(lastStepMillis, eventMillis);
+        awaitingSteps = false;
+        switch (mode) {
+            case ACTIVE:
+                return false;
+            case QUIET:
+                if (burstSteps == 0 || eventMillis - burstStartMillis > RAMP_UP_WINDOW_MILLIS) {
+                    burstStartMillis = eventMillis;
+                    burstSteps = 0;
+                }
+                burstSteps += steps;
+                return burstSteps >= RAMP_UP_STEPS && enter(Mode.ACTIVE);
+            default:
+                // readings still queued when the sensor went away
+                return enter(Mode.ACTIVE);
+        }
+    }
+
+    /**
+     * The significant motion trigger fired.
+     *
+     * @return whether the mode changed
+     */
+    boolean onMotion(long nowMillis) {
+        if (mode != Mode.IDLE) {
+            return false;
+        }
+        motionMillis = nowMillis;
+        awaitingSteps = true;
+        return enter(Mode.ACTIVE);
+    }
+
+    /**
+     * Applies the timeouts due at {@code nowMillis}.
+     *
+     * @return whether the mode changed
+     */
+    boolean onTick(long nowMillis) {
+        long still = nowMillis - lastStepMillis;
+        if (awaitingSteps) {
+            // the motion gets its grace whatever the step timeouts say
+            if (nowMillis - motionMillis < motionGraceMillis) {
+                return false;
+            }
+            awaitingSteps = false;
+            return enter(canIdle && still >= idleAfterMillis ? Mode.IDLE
+                    : still >= quietAfterMillis ? Mode.QUIET : Mode.ACTIVE);
+        }
+        if (mode != Mode.IDLE && canIdle && still >= idleAfterMillis) {
+            return enter(Mode.IDLE);
+        }
+        if (mode == Mode.ACTIVE && still >= quietAfterMillis) {
+            return enter(Mode.QUIET);
+        }
+        return false;
+    }
+
+    /**
+     * Earliest time {@link #onTick(long)} may change the mode, {@link #NO_DEADLINE} if none.
+     */
+    long deadlineMillis() {
+        switch (mode) {
+            case ACTIVE:
+                return awaitingSteps ? motionMillis + motionGraceMillis : lastStepMillis + quietAfterMillis;
+            case QUIET:
+                return canIdle ? lastStepMillis + idleAfterMillis : NO_DEADLINE;
+            default:
+                return NO_DEADLINE;
+        }
+    }
+
+    /**
+     * Report latency to register the sensor with in the current mode.
+     *
+     * @param activeLatencyUs the configured batching
+     * @param lossless        whether events dropped by an overflowing FIFO lose no steps,
+     *                        true for the hardware counter, false for accelerometer samples
+     */
+    int reportLatencyUs(int activeLatencyUs, boolean lossless) {
+        return mode == Mode.QUIET && lossless ? Math.max(activeLatencyUs, QUIET_REPORT_LATENCY_US) : activeLatencyUs;
+    }
+
+    private boolean enter(Mode next) {
+        if (mode == next) {
+            return false;
+        }
+        mode = next;
+        burstSteps = 0;
+        transitions++;
+        return true;
+    }
+}
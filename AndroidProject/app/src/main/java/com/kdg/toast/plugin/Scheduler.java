@@ -0,0 +1,8 @@
+package com.kdg.toast.plugin;
+
+/**
+ * Runs delayed work on the thread that owns it, a Handler on Android and a manual queue in tests.
+ */
+interface Scheduler {
+    void schedule(Runnable task, long delayMillis);
+}
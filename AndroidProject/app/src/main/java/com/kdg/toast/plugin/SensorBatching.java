@@ -0,0 +1,80 @@
+package com.kdg.toast.plugin;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Batching options for the step counter registration.
+ * <p>
+ * With a non-zero max report latency the sensor hub keeps step events in its hardware FIFO
+ * and delivers them in one burst, so the application processor can stay asleep while the
+ * user walks. The step counter is cumulative, so events dropped from a full FIFO never lose
+ * steps, only timing detail. {@link #shouldFlush(long)} throttles on-demand FIFO flushes for
+ * callers such as {@link Bridge#GetCurrentSteps()} that may poll every frame.
+ */
+final class SensorBatching {
+    /**
+     * Rate of SensorManager.SENSOR_DELAY_UI.
+     */
+    static final int SAMPLING_PERIOD_US = 60_000;
+    /**
+     * Fastest realistic cadence (4 steps per second), used to turn a batch size into a latency.
+     */
+    static final int MIN_STEP_INTERVAL_US = 250_000;
+    static final long DEFAULT_MIN_FLUSH_INTERVAL_MILLIS = 1_000L;
+    static final SensorBatching DISABLED = new SensorBatching(0, 0);
+
+    final int maxReportLatencyUs;
+    final int batchSize;
+    private final long minFlushIntervalMillis;
+    private final AtomicLong lastFlushMillis = new AtomicLong(Long.MIN_VALUE);
+
+    SensorBatching(int maxReportLatencyUs, int batchSize) {
+        this(maxReportLatencyUs, batchSize, DEFAULT_MIN_FLUSH_INTERVAL_MILLIS);
+    }
+
+    SensorBatching(int maxReportLatencyUs, int batchSize, long minFlushIntervalMillis) {
+        this.maxReportLatencyUs = Math.max(0, maxReportLatencyUs);
+        this.batchSize = Math.max(0, batchSize);
+        this.minFlushIntervalMillis = minFlushIntervalMillis;
+    }
+
+    boolean enabled() {
+        return maxReportLatencyUs > 0;
+    }
+
+    /**
+     * Latency to register with, so that no more than {@code batchSize} events and no more than
+     * the FIFO space reserved for the sensor pile up before delivery.
+     *
+     * @param fifoReservedEventCount Sensor.getFifoReservedEventCount(), 0 if unknown or shared
+     */
+    int reportLatencyUs(int fifoReservedEventCount) {
+        if (!enabled()) {
+            return 0;
+        }
+        long latency = maxReportLatencyUs;
+        int events = batchSize;
+        if (fifoReservedEventCount > 0 && (events == 0 || fifoReservedEventCount < events)) {
+            events = fifoReservedEventCount;
+        }
+        if (events > 0) {
+            latency = Math.min(latency, (long) events * MIN_STEP_INTERVAL_US);
+        }
+        return (int) latency;
+    }
+
+    /**
+     * Whether a FIFO flush requested at {@code nowMillis} should go through. Lock free, it is
+     * called on the Unity frame path.
+     */
+    boolean shouldFlush(long nowMillis) {
+        if (!enabled()) {
+            return false;
+        }
+        long last = lastFlushMillis.get();
+        if (last != Long.MIN_VALUE && nowMillis - last < minFlushIntervalMillis) {
+            return false;
+        }
+        return lastFlushMillis.compareAndSet(last, nowMillis);
+    }
+}
@@ -0,0 +1,106 @@
+package com.kdg.toast.plugin;
+
+/**
+ * Collector for a continuous sensor that only counts its events and keeps the latest one,
+ * used for the step detector and the accelerometer.
+ */
+final class SensorEventCollector implements Collector, SensorSource.Sink {
+    static final String STEP_DETECTOR = "step_detector";
+    static final String ACCELEROMETER = "accelerometer";
+
+    private final String id;
+    private final String label;
+    private final int sensorType;
+    private final int samplingPeriodUs;
+    private final int requestedReportLatencyUs;
+    private final SensorSource sensors;
+    private final float[] lastValues = new float[3];
+    private volatile boolean running;
+    private volatile long eventCount;
+    private volatile long lastTimestampNanos;
+
+    SensorEventCollector(String id, String label, int sensorType, int samplingPeriodUs,
+                         int requestedReportLatencyUs, SensorSource sensors) {
+        this.id = id;
+        this.label = label;
+        this.sensorType = sensorType;
+        this.samplingPeriodUs = samplingPeriodUs;
+        this.requestedReportLatencyUs = requestedReportLatencyUs;
+        this.sensors = sensors;
+    }
+
+    /**
+     * One event per step as it happens, batched up to 10 s.
+     */
+    static SensorEventCollector stepDetector(SensorSource sensors) {
+        return new SensorEventCollector(STEP_DETECTOR, "Detecting steps...", SensorSource.TYPE_STEP_DETECTOR,
+                SensorBatching.SAMPLING_PERIOD_US, 10_000_000, sensors);
+    }
+
+    /**
+     * Raw acceleration at 50 Hz, batched up to 1 s.
+     */
+    static SensorEventCollector accelerometer(SensorSource sensors) {
+        return new SensorEventCollector(ACCELEROMETER, "Recording motion...", SensorSource.TYPE_ACCELEROMETER,
+                20_000, 1_000_000, sensors);
+    }
+
+    @Override
+    public String id() {
+        return id;
+    }
+
+    @Override
+    public String label() {
+        return label;
+    }
+
+    @Override
+    public int requestedReportLatencyUs() {
+        return requestedReportLatencyUs;
+    }
+
+    @Override
+    public boolean start(int reportLatencyUs) {
+        if (running) {
+            sensors.unregister(this);
+        }
+        running = sensors.register(sensorType, samplingPeriodUs, reportLatencyUs, this);
+        return running;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        sensors.unregister(this);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public long eventCount() {
+        return eventCount;
+    }
+
+    long lastTimestampNanos() {
+        return lastTimestampNanos;
+    }
+
+    /**
+     * Copies the latest event values, up to three, into {@code target}.
+     */
+    synchronized void lastValues(float[] target) {
+        System.arraycopy(lastValues, 0, target, 0, Math.min(target.length, lastValues.length));
+    }
+
+    @Override
+    public void onSensorEvent(long timestampNanos, float[] values) {
+        synchronized (this) {
+            System.arraycopy(values, 0, lastValues, 0, Math.min(values.length, lastValues.length));
+        }
+        lastTimestampNanos = timestampNanos;
+        eventCount++;
+    }
+}
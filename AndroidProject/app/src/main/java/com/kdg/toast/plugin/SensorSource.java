@@ -0,0 +1,55 @@
+package com.kdg.toast.plugin;
+
+/**
+ * What collectors need from SensorManager, so they run on the JVM against a fake.
+ * <p>
+ * Events are delivered on the collector host thread. A {@link Sink} is registered for one
+ * sensor at a time.
+ */
+interface SensorSource {
+    /** android.hardware.Sensor.TYPE_ACCELEROMETER */
+    int TYPE_ACCELEROMETER = 1;
+    /** android.hardware.Sensor.TYPE_SIGNIFICANT_MOTION, a one-shot trigger sensor */
+    int TYPE_SIGNIFICANT_MOTION = 17;
+    /** android.hardware.Sensor.TYPE_STEP_DETECTOR */
+    int TYPE_STEP_DETECTOR = 18;
+    /** android.hardware.Sensor.TYPE_STEP_COUNTER */
+    int TYPE_STEP_COUNTER = 19;
+
+    interface Sink {
+        /**
+         * @param timestampNanos SensorEvent.timestamp, on the {@link #elapsedRealtimeNanos()} clock
+         * @param values         SensorEvent.values, only valid during the call
+         */
+        void onSensorEvent(long timestampNanos, float[] values);
+    }
+
+    boolean hasSensor(int type);
+
+    /**
+     * Sensor.getFifoReservedEventCount(), 0 if the sensor is missing or shares the FIFO.
+     */
+    int fifoReservedEventCount(int type);
+
+    /**
+     * @return false if the sensor is missing or refused the registration
+     */
+    boolean register(int type, int samplingPeriodUs, int maxReportLatencyUs, Sink sink);
+
+    /**
+     * Arms a one-shot trigger sensor; the sink gets one event and has to re-arm.
+     */
+    boolean requestTrigger(int type, Sink sink);
+
+    /**
+     * Removes the sink's registration or trigger, if any.
+     */
+    void unregister(Sink sink);
+
+    /**
+     * Asks the sensor hub to deliver what the sink's sensor has batched.
+     */
+    boolean flush(Sink sink);
+
+    long elapsedRealtimeNanos();
+}
@@ -0,0 +1,436 @@
+package com.kdg.toast.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The unsynced step count in a small memory-mapped file, so the process counting steps and
+ * the process syncing them read the same numbers. SharedPreferences cannot do that: each
+ * process keeps its own cached copy and overwrites the other's writes.
+ * <p>
+ * The file has two slots, each written by one side only, so neither side ever waits for the
+ * other:
+ * <ul>
+ * <li>the counter slot, written where the sensors are: the steps counted so far, the
+ * {@link StepAccountant} baseline they match, when they were counted and when counting last
+ * started;</li>
+ * <li>the sync slot, written where Unity syncs: how many of the counted steps were synced,
+ * and when, and a sync on its way into the {@link UploadQueue} (see {@link #prepareSync}).</li>
+ * </ul>
+ * Unsynced steps are the difference. Both counts only grow and readers take the sync slot
+ * before the counter slot, so a sync racing with a reader never shows a negative count, and a
+ * sync racing with the sensors neither loses nor double counts a step.
+ * <p>
+ * Each slot is a seqlock over two copies. A write goes to the older copy, version first and a
+ * check word over version and values last. Readers take the newer copy whose check matches and
+ * whose version did not move while they read it, else the other one, so they never block and
+ * never return a torn slot. Plain stores through a mapping are not ordered for other
+ * processes; a reader that sees them out of order fails the check and falls back to the other
+ * copy, which is also what a writer that died half way leaves behind. A slot whose copies both
+ * stay unreadable, a file damaged from outside, is given up on after a bounded number of
+ * tries: the reader gets the last values it read whole, 0 if none, and {@link #failedReads}
+ * counts it.
+ * <p>
+ * Writes land in the page cache, which outlives the writing process; {@link #saveSteps} and
+ * {@link #takeForSync} also force them to disk. Writes are serialized per slot within an
+ * instance; across processes each slot must only ever be written from one of them.
+ */
+final class SharedStepCounter implements StepStore, StepCount {
+    static final int FILE_SIZE = 320;
+    private static final int MAGIC = 0x53545331; // "STS1"
+    private static final int VERSION = 1;
+    private static final long CHECK_SALT = 0x6a09e667f3bcc908L;
+    private static final int COUNTER_SLOT = 64;
+    private static final int SYNC_SLOT = 192;
+    private static final int COPY_SIZE = 64;
+    private static final int VALUES = 4;
+    private static final int CHECK = 8 + 8 * VALUES;
+    // counter slot values
+    private static final int COUNTED = 0;
+    private static final int BASELINE = 1;
+    private static final int COUNTED_MILLIS = 2;
+    private static final int STARTED_MILLIS = 3;
+    // sync slot values
+    private static final int SYNCED = 0;
+    private static final int SYNC_MILLIS = 1;
+    private static final int PREPARED_THROUGH = 2;
+    private static final int PREPARED_KEY = 3;
+    private static final int MAX_READ_ATTEMPTS = 1000;
+
+    private final MappedByteBuffer buffer;
+    private final boolean created;
+    private final Object counterLock = new Object();
+    private final Object syncLock = new Object();
+    private final long[] counterValues = new long[VALUES];
+    private final long[] syncValues = new long[VALUES];
+    private final LastGood counterGood = new LastGood();
+    private final LastGood syncGood = new LastGood();
+    private final AtomicLong failedReads = new AtomicLong();
+
+    SharedStepCounter(File file) throws IOException {
+        this(file, 0, StepAccountant.NO_BASELINE, 0L);
+    }
+
+    /**
+     * Opens the file, creating it with the given values if it does not exist yet, e.g. the
+     * ones migrated from the preferences. Creating is done under a file lock, so when two
+     * processes open a new file at once only one of them seeds it.
+     *
+     * @param syncMillis when the steps were last synced, 0 if never
+     */
+    SharedStepCounter(File file, int steps, long baseline, long syncMillis) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileLock lock = raf.getChannel().lock();
+            try {
+                created = raf.length() < FILE_SIZE || raf.readInt() == 0;
+                if (created) {
+                    raf.setLength(FILE_SIZE);
+                }
+                else {
+                    raf.seek(0);
+                    if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                        throw new IOException("Not a shared step file: " + file);
+                    }
+                }
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+                buffer.order(ByteOrder.BIG_ENDIAN);
+                if (created) {
+                    for (int i = 8; i < FILE_SIZE; i += 8) {
+                        buffer.putLong(i, 0L);
+                    }
+                    write(COUNTER_SLOT, new long[]{steps, baseline, 0L, 0L});
+                    write(SYNC_SLOT, new long[]{0L, syncMillis, 0L, 0L});
+                    // the magic goes last: a file torn before it is created again
+                    buffer.putInt(4, VERSION);
+                    buffer.putInt(0, MAGIC);
+                    buffer.force();
+                }
+                else if (newestCopy(COUNTER_SLOT) < 0 || newestCopy(SYNC_SLOT) < 0) {
+                    throw new IOException("Corrupt shared step file: " + file);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Whether opening created the file, so the values passed in were taken.
+     */
+    boolean created() {
+        return created;
+    }
+
+    /**
+     * Steps counted but not synced yet. Lock free, cheap enough for every frame.
+     */
+    @Override
+    public int steps() {
+        long synced = read(SYNC_SLOT, SYNCED, null);
+        long counted = read(COUNTER_SLOT, COUNTED, null);
+        return (int) (counted - synced);
+    }
+
+    /**
+     * The counter slot as one consistent snapshot.
+     */
+    Counter counter() {
+        long[] values = new long[VALUES];
+        read(COUNTER_SLOT, COUNTED, values);
+        return new Counter((int) values[COUNTED], values[BASELINE], values[COUNTED_MILLIS], values[STARTED_MILLIS]);
+    }
+
+    /**
+     * When the steps were last synced, 0 if never.
+     */
+    long syncMillis() {
+        return read(SYNC_SLOT, SYNC_MILLIS, null);
+    }
+
+    /**
+     * Start of the unsynced interval: the last sync or the last start of counting, whichever
+     * came later; 0 if neither happened.
+     */
+    long intervalStartMillis() {
+        return Math.max(syncMillis(), read(COUNTER_SLOT, STARTED_MILLIS, null));
+    }
+
+    /**
+     * Counter side: {@code steps} counted so far, written together with the baseline they
+     * match and forced to disk.
+     */
+    @Override
+    public void saveSteps(int steps, long baseline, long timeMillis) {
+        publishSteps(steps, baseline, timeMillis);
+        buffer.force();
+    }
+
+    /**
+     * Counter side: makes {@code steps} visible to readers right away, without forcing it.
+     */
+    @Override
+    public void publishSteps(int steps, long baseline, long timeMillis) {
+        synchronized (counterLock) {
+            read(COUNTER_SLOT, COUNTED, counterValues);
+            counterValues[COUNTED] = steps;
+            counterValues[BASELINE] = baseline;
+            counterValues[COUNTED_MILLIS] = timeMillis;
+            write(COUNTER_SLOT, counterValues);
+        }
+    }
+
+    /**
+     * Counter side: counting started at {@code timeMillis}, the unsynced interval starts there
+     * unless a sync comes later.
+     */
+    void markStarted(long timeMillis) {
+        synchronized (counterLock) {
+            read(COUNTER_SLOT, COUNTED, counterValues);
+            counterValues[STARTED_MILLIS] = timeMillis;
+            write(COUNTER_SLOT, counterValues);
+        }
+    }
+
+    /**
+     * Sync side: marks everything counted so far as synced at {@code timeMillis} and forces
+     * it to disk.
+     *
+     * @return the steps that were unsynced
+     */
+    int takeForSync(long timeMillis) {
+        synchronized (syncLock) {
+            read(SYNC_SLOT, SYNCED, syncValues);
+            long counted = read(COUNTER_SLOT, COUNTED, null);
+            int steps = (int) (counted - syncValues[SYNCED]);
+            syncValues[SYNCED] = counted;
+            syncValues[SYNC_MILLIS] = timeMillis;
+            write(SYNC_SLOT, syncValues);
+            buffer.force();
+            return steps;
+        }
+    }
+
+    /**
+     * Sync side, first half of a sync handed to a queue: notes that everything counted so far
+     * is about to be queued under {@code key}, without marking it synced yet, and forces it to
+     * disk. {@link #commitSync} marks it synced once the queue has it, {@link #abortSync}
+     * drops the note. A process that dies in between leaves the note, and the next one
+     * settles it by whether the queue holds {@code key}.
+     *
+     * @param key identifies the queued record, not 0
+     * @return the steps that are unsynced
+     */
+    int prepareSync(long key) {
+        if (key == 0) {
+            throw new IllegalArgumentException("key 0");
+        }
+        synchronized (syncLock) {
+            read(SYNC_SLOT, SYNCED, syncValues);
+            long counted = read(COUNTER_SLOT, COUNTED, null);
+            syncValues[PREPARED_THROUGH] = counted;
+            syncValues[PREPARED_KEY] = key;
+            write(SYNC_SLOT, syncValues);
+            buffer.force();
+            return (int) (counted - syncValues[SYNCED]);
+        }
+    }
+
+    /**
+     * Key of a prepared sync not committed or aborted yet, 0 if none.
+     */
+    long preparedSync() {
+        return read(SYNC_SLOT, PREPARED_KEY, null);
+    }
+
+    /**
+     * Sync side: marks the steps of the prepared sync synced at {@code timeMillis} and forces
+     * it to disk. Does nothing without one.
+     */
+    void commitSync(long timeMillis) {
+        synchronized (syncLock) {
+            read(SYNC_SLOT, SYNCED, syncValues);
+            if (syncValues[PREPARED_KEY] == 0) {
+                return;
+            }
+            // a plain sync in between may have taken more
+            if (syncValues[PREPARED_THROUGH] - syncValues[SYNCED] > 0) {
+                syncValues[SYNCED] = syncValues[PREPARED_THROUGH];
+            }
+            syncValues[SYNC_MILLIS] = timeMillis;
+            syncValues[PREPARED_THROUGH] = 0;
+            syncValues[PREPARED_KEY] = 0;
+            write(SYNC_SLOT, syncValues);
+            buffer.force();
+        }
+    }
+
+    /**
+     * Sync side: drops the prepared sync, its steps stay unsynced.
+     */
+    void abortSync() {
+        synchronized (syncLock) {
+            read(SYNC_SLOT, SYNCED, syncValues);
+            if (syncValues[PREPARED_KEY] == 0) {
+                return;
+            }
+            syncValues[PREPARED_THROUGH] = 0;
+            syncValues[PREPARED_KEY] = 0;
+            write(SYNC_SLOT, syncValues);
+            buffer.force();
+        }
+    }
+
+    void close() {
+        buffer.force();
+    }
+
+    /**
+     * Reads that found neither copy of a slot whole and fell back to the last good values.
+     */
+    long failedReads() {
+        return failedReads.get();
+    }
+
+    /**
+     * Reads a slot, retrying until a copy reads back whole, at most {@link #MAX_READ_ATTEMPTS}
+     * times; then the slot's last good values are used.
+     *
+     * @param into receives all values of the copy read, or null
+     * @return value {@code index} of the copy read
+     */
+    private long read(int slot, int index, long[] into) {
+        LastGood good = slot == COUNTER_SLOT ? counterGood : syncGood;
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            int newer = buffer.getLong(slot + COPY_SIZE) > buffer.getLong(slot) ? slot + COPY_SIZE : slot;
+            for (int copy = newer, i = 0; i < 2; copy = other(slot, copy), i++) {
+                long version = buffer.getLong(copy);
+                long a = buffer.getLong(copy + 8);
+                long b = buffer.getLong(copy + 16);
+                long c = buffer.getLong(copy + 24);
+                long d = buffer.getLong(copy + 32);
+                if (buffer.getLong(copy + CHECK) != check(version, a, b, c, d) || buffer.getLong(copy) != version) {
+                    continue;
+                }
+                good.remember(version, a, b, c, d);
+                if (into != null) {
+                    into[0] = a;
+                    into[1] = b;
+                    into[2] = c;
+                    into[3] = d;
+                }
+                return index == 0 ? a : index == 1 ? b : index == 2 ? c : d;
+            }
+            // both copies were rewritten while we read them, or are damaged
+            Thread.yield();
+        }
+        failedReads.incrementAndGet();
+        return good.recall(index, into);
+    }
+
+    /**
+     * Writes a slot's older copy. Only the slot's writer calls this, holding its lock, so the
+     * copies do not change underneath it.
+     */
+    private void write(int slot, long[] values) {
+        int current = newestCopy(slot);
+        long version = current < 0 ? 1 : buffer.getLong(current) + 1;
+        int target = current < 0 ? slot : other(slot, current);
+        buffer.putLong(target, version);
+        for (int i = 0; i < VALUES; i++) {
+            buffer.putLong(target + 8 + 8 * i, values[i]);
+        }
+        buffer.putLong(target + CHECK, check(version, values[0], values[1], values[2], values[3]));
+    }
+
+    /**
+     * Offset of the copy with the highest version whose check matches, -1 if neither does.
+     */
+    private int newestCopy(int slot) {
+        int newest = -1;
+        for (int copy = slot; copy <= slot + COPY_SIZE; copy += COPY_SIZE) {
+            long version = buffer.getLong(copy);
+            boolean valid = buffer.getLong(copy + CHECK) == check(version,
+                    buffer.getLong(copy + 8), buffer.getLong(copy + 16), buffer.getLong(copy + 24), buffer.getLong(copy + 32));
+            if (valid && (newest < 0 || version > buffer.getLong(newest))) {
+                newest = copy;
+            }
+        }
+        return newest;
+    }
+
+    private static int other(int slot, int copy) {
+        return copy == slot ? slot + COPY_SIZE : slot;
+    }
+
+    static long check(long version, long a, long b, long c, long d) {
+        long h = mix(CHECK_SALT ^ version);
+        h = mix(h ^ a);
+        h = mix(h ^ b);
+        h = mix(h ^ c);
+        return mix(h ^ d);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    /**
+     * What the counting side last wrote.
+     */
+    static final class Counter {
+        final int steps;
+        final long baseline;
+        /** When the steps were last counted, 0 if never. */
+        final long countedMillis;
+        /** When counting last started, 0 if never. */
+        final long startedMillis;
+
+        Counter(int steps, long baseline, long countedMillis, long startedMillis) {
+            this.steps = steps;
+            this.baseline = baseline;
+            this.countedMillis = countedMillis;
+            this.startedMillis = startedMillis;
+        }
+    }
+
+    /**
+     * The values of a slot's newest copy read whole. Only copied when the version moved on, so
+     * readers of an unchanged slot neither lock nor allocate.
+     */
+    private static final class LastGood {
+        private final long[] values = new long[VALUES];
+        private volatile long version;
+
+        void remember(long version, long a, long b, long c, long d) {
+            if (version <= this.version) {
+                return;
+            }
+            synchronized (this) {
+                // a reader that was slower than another may come with an older copy
+                if (version <= this.version) {
+                    return;
+                }
+                values[0] = a;
+                values[1] = b;
+                values[2] = c;
+                values[3] = d;
+                this.version = version;
+            }
+        }
+
+        synchronized long recall(int index, long[] into) {
+            if (into != null) {
+                System.arraycopy(values, 0, into, 0, VALUES);
+            }
+            return values[index];
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.kdg.toast.plugin;
+
+/**
+ * Counts significant motion triggers. The sensor is one-shot, so it is re-armed after each
+ * trigger; between triggers it costs nothing while the device sits still.
+ */
+final class SignificantMotionCollector implements Collector, SensorSource.Sink {
+    static final String ID = "significant_motion";
+
+    private final SensorSource sensors;
+    private volatile boolean running;
+    private volatile long eventCount;
+    private volatile long lastTimestampNanos;
+
+    SignificantMotionCollector(SensorSource sensors) {
+        this.sensors = sensors;
+    }
+
+    @Override
+    public String id() {
+        return ID;
+    }
+
+    @Override
+    public String label() {
+        return "Watching for motion...";
+    }
+
+    @Override
+    public int requestedReportLatencyUs() {
+        // a wake-up sensor, it does not batch
+        return 0;
+    }
+
+    @Override
+    public boolean start(int reportLatencyUs) {
+        if (running) {
+            return true;
+        }
+        running = sensors.requestTrigger(SensorSource.TYPE_SIGNIFICANT_MOTION, this);
+        return running;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        sensors.unregister(this);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public long eventCount() {
+        return eventCount;
+    }
+
+    long lastTimestampNanos() {
+        return lastTimestampNanos;
+    }
+
+    @Override
+    public void onSensorEvent(long timestampNanos, float[] values) {
+        lastTimestampNanos = timestampNanos;
+        eventCount++;
+        if (running) {
+            sensors.requestTrigger(SensorSource.TYPE_SIGNIFICANT_MOTION, this);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.kdg.toast.plugin;
+
+/**
+ * Turns raw TYPE_STEP_COUNTER readings into step deltas across service restarts, counter
+ * resets and reboots.
+ * <p>
+ * The hardware counter counts steps since boot and restarts from zero on reboot. The last
+ * reading is kept as a baseline together with the boot it was taken in (Settings.Global
+ * BOOT_COUNT). Against that baseline a reading is one of:
+ * <ul>
+ * <li>same boot, not lower: the difference, including steps walked while the service was dead</li>
+ * <li>another boot: the reading itself, everything since that boot was walked after the baseline</li>
+ * <li>same boot but lower: the sensor was reset without a reboot, the reading itself</li>
+ * </ul>
+ * Without a baseline, the first reading only becomes one. When the boot count is unknown only
+ * the counter going down reveals a reboot, so steps walked before the old baseline value was
+ * reached again are missed.
+ * <p>
+ * Pure logic on primitives, driven from the sensor thread.
+ */
+final class StepAccountant {
+    static final long NO_BASELINE = Long.MIN_VALUE;
+    static final int UNKNOWN_BOOT = -1;
+
+    private final int bootCount;
+    private boolean hasBaseline;
+    private int lastCounter;
+    private int lastBoot;
+    private int reboots;
+    private int regressions;
+
+    /**
+     * @param bootCount     boot count of the running system, or {@link #UNKNOWN_BOOT}
+     * @param savedBaseline baseline persisted by a previous run, or {@link #NO_BASELINE}
+     */
+    StepAccountant(int bootCount, long savedBaseline) {
+        this.bootCount = bootCount;
+        if (savedBaseline != NO_BASELINE) {
+            hasBaseline = true;
+            lastBoot = boot(savedBaseline);
+            lastCounter = counter(savedBaseline);
+        }
+    }
+
+    /**
+     * @return steps walked since the previous reading, never negative
+     */
+    int onCounter(int counter) {
+        if (counter < 0) {
+            return 0;
+        }
+        if (!hasBaseline) {
+            hasBaseline = true;
+            lastCounter = counter;
+            lastBoot = bootCount;
+            return 0;
+        }
+        int delta;
+        if (bootCount != UNKNOWN_BOOT && lastBoot != UNKNOWN_BOOT && bootCount != lastBoot) {
+            reboots++;
+            delta = counter;
+        }
+        else if (counter < lastCounter) {
+            regressions++;
+            delta = counter;
+        }
+        else {
+            delta = counter - lastCounter;
+        }
+        lastCounter = counter;
+        lastBoot = bootCount;
+        return delta;
+    }
+
+    /**
+     * Forgets the baseline so steps walked until the next reading are not counted, used when
+     * tracking is stopped on purpose.
+     */
+    void clearBaseline() {
+        hasBaseline = false;
+    }
+
+    long baseline() {
+        return hasBaseline ? pack(lastBoot, lastCounter) : NO_BASELINE;
+    }
+
+    int reboots() {
+        return reboots;
+    }
+
+    int regressions() {
+        return regressions;
+    }
+
+    /**
+     * @return true if {@code next} follows {@code previous} on the same running counter
+     */
+    static boolean continues(long previous, long next) {
+        return previous != NO_BASELINE && next != NO_BASELINE
+                && boot(previous) == boot(next) && counter(next) >= counter(previous);
+    }
+
+    static long pack(int boot, int counter) {
+        return ((long) boot << 32) | (counter & 0xffffffffL);
+    }
+
+    static int boot(long baseline) {
+        return (int) (baseline >> 32);
+    }
+
+    static int counter(long baseline) {
+        return (int) baseline;
+    }
+}
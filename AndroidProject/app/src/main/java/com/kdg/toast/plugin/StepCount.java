@@ -0,0 +1,8 @@
+package com.kdg.toast.plugin;
+
+/**
+ * A step count that can be read from any thread without blocking.
+ */
+interface StepCount {
+    int steps();
+}
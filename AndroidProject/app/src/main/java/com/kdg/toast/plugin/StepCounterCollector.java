@@ -0,0 +1,369 @@
+package com.kdg.toast.plugin;
+
+import java.io.IOException;
+
+/**
+ * The pedometer: TYPE_STEP_COUNTER events through {@link StepCounterProcessor}, then out to
+ * the Unity subscribers.
+ * <p>
+ * Devices without a step counter fall back to TYPE_ACCELEROMETER samples run through an
+ * {@link AccelStepDetector}, whose running total is fed to the same processor as if it were
+ * the hardware counter. That total starts over with the process, so each start first hands
+ * in the current total as the baseline; unlike the hardware counter it cannot give back steps
+ * walked while the process was dead.
+ * <p>
+ * With a {@link PowerGovernor} the registration follows the power mode, see
+ * {@link #setGovernor(PowerGovernor, Scheduler)}: the hardware counter is batched for minutes
+ * once the user stopped walking, the accelerometer is replaced by a significant motion trigger
+ * once idle. That fallback misses the steps walked before the trigger fires.
+ * <p>
+ * {@link #onSensorEvent(long, float[])} is the sensor hot path and does not allocate. With a
+ * {@link StepPipeline} it only hands the reading over and accounting, persistence and
+ * publishing run on the pipeline's threads; without one they run right here.
+ */
+final class StepCounterCollector implements Collector, SensorSource.Sink {
+    static final String ID = "step_counter";
+
+    private final SensorSource sensors;
+    private final StepCounterProcessor processor;
+    private final StepJournal journal;
+    private final StepPublisher publisher;
+    private final PluginMetrics metrics;
+    private final TimeSource timeSource;
+    private final StepPipeline pipeline;
+    private final AccelStepDetector detector = new AccelStepDetector();
+    private final SensorSource.Sink accelerometer = new SensorSource.Sink() {
+        @Override
+        public void onSensorEvent(long timestampNanos, float[] values) {
+            if (detector.onSample(timestampNanos, values[0], values[1], values[2]) > 0) {
+                onCounter(timestampNanos, detector.steps());
+            }
+            eventCount++;
+        }
+    };
+    private final SensorSource.Sink motion = new SensorSource.Sink() {
+        @Override
+        public void onSensorEvent(long timestampNanos, float[] values) {
+            PowerGovernor governor = StepCounterCollector.this.governor;
+            if (running && governor != null && governor.onMotion(nowMillis())) {
+                scheduleApply();
+            }
+        }
+    };
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            onTick();
+        }
+    };
+    private final Runnable apply = new Runnable() {
+        @Override
+        public void run() {
+            applyScheduled = false;
+            applyMode();
+        }
+    };
+    /** Throttles flushes while QUIET when the configured batching does not. */
+    private final SensorBatching quietBatching = new SensorBatching(PowerGovernor.QUIET_REPORT_LATENCY_US, 0);
+    private volatile SensorSource.Sink registered;
+    private volatile SensorBatching batching = SensorBatching.DISABLED;
+    private volatile boolean running;
+    private volatile long eventCount;
+    private int journalFailures;
+    private volatile PowerGovernor.Mode powerMode = PowerGovernor.Mode.ACTIVE;
+    // host thread only
+    private PowerGovernor governor;
+    private Scheduler scheduler;
+    private int activeLatencyUs;
+    private float lastCounter = Float.NaN;
+    /** Earliest outstanding tick; the scheduler cannot cancel, so stale ones are counted. */
+    private long tickDueMillis = PowerGovernor.NO_DEADLINE;
+    private int ticksPending;
+    private boolean applyScheduled;
+
+    StepCounterCollector(SensorSource sensors, StepCounterProcessor processor, StepJournal journal,
+                         StepPublisher publisher, PluginMetrics metrics, TimeSource timeSource) {
+        this(sensors, processor, journal, publisher, metrics, timeSource, null);
+    }
+
+    /**
+     * @param pipeline started pipeline over the same processor and publisher, or null to
+     *                 process events on the sensor thread
+     */
+    StepCounterCollector(SensorSource sensors, StepCounterProcessor processor, StepJournal journal,
+                         StepPublisher publisher, PluginMetrics metrics, TimeSource timeSource,
+                         StepPipeline pipeline) {
+        this.sensors = sensors;
+        this.processor = processor;
+        this.journal = journal;
+        this.publisher = publisher;
+        this.metrics = metrics;
+        this.timeSource = timeSource;
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Takes effect with the next {@link #start(int)}, see {@link CollectorHost#reconfigure()}.
+     */
+    void setBatching(SensorBatching batching) {
+        this.batching = batching;
+    }
+
+    /**
+     * Lets {@code governor} pick the registration from the walking activity, null to always
+     * listen with the configured batching. Takes effect with the next fresh {@link #start(int)}.
+     *
+     * @param scheduler runs on the host thread, for the governor's timeouts
+     */
+    void setGovernor(PowerGovernor governor, Scheduler scheduler) {
+        this.governor = governor;
+        this.scheduler = scheduler;
+    }
+
+    PowerGovernor.Mode powerMode() {
+        return powerMode;
+    }
+
+    @Override
+    public String id() {
+        return ID;
+    }
+
+    @Override
+    public String label() {
+        return "Counting your steps...";
+    }
+
+    @Override
+    public int requestedReportLatencyUs() {
+        return batching.reportLatencyUs(sensors.fifoReservedEventCount(sensorType()));
+    }
+
+    @Override
+    public boolean start(int reportLatencyUs) {
+        boolean restarting = running;
+        if (restarting) {
+            sensors.unregister(registered);
+            sensors.unregister(motion);
+        }
+        activeLatencyUs = reportLatencyUs;
+        boolean hardware = sensors.hasSensor(SensorSource.TYPE_STEP_COUNTER);
+        registered = hardware ? this : accelerometer;
+        if (!restarting) {
+            lastCounter = Float.NaN;
+            if (governor != null) {
+                governor.reset(nowMillis(), !hardware && sensors.hasSensor(SensorSource.TYPE_SIGNIFICANT_MOTION));
+                onModeChanged();
+            }
+        }
+        if (!hardware && !restarting) {
+            // a saved baseline is a total of an earlier detector, this one counts from zero
+            drainPipeline();
+            processor.stopTracking();
+            detector.restart();
+        }
+        running = register();
+        if (running && !hardware && !restarting) {
+            // the software total is the counter, only what it adds from now on is walked
+            onCounter(sensors.elapsedRealtimeNanos(), detector.steps());
+        }
+        if (running) {
+            scheduleTick();
+        }
+        return running;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        sensors.unregister(registered);
+        sensors.unregister(motion);
+        // the accountant belongs to the pipeline until it ran dry
+        drainPipeline();
+        // stopped on purpose, steps walked until the next start are not ours
+        processor.stopTracking();
+        flushJournal();
+    }
+
+    @Override
+    public void flush() {
+        drainPipeline();
+        processor.flush();
+        flushJournal();
+    }
+
+    @Override
+    public long eventCount() {
+        return eventCount;
+    }
+
+    @Override
+    public void onSensorEvent(long timestampNanos, float[] values) {
+        onCounter(timestampNanos, values[0]);
+        eventCount++;
+    }
+
+    /**
+     * Asks the sensor hub to deliver the steps waiting in its FIFO, so a batching service
+     * still gives fresh numbers to a polling caller. Throttled, safe to call every frame.
+     */
+    void requestFlush() {
+        if (!running) {
+            return;
+        }
+        SensorBatching throttle = powerMode == PowerGovernor.Mode.QUIET && !batching.enabled() ? quietBatching : batching;
+        if (throttle.shouldFlush(sensors.elapsedRealtimeNanos() / 1_000_000L)) {
+            sensors.flush(registered);
+        }
+    }
+
+    /**
+     * True when counting on the accelerometer because the device has no step counter.
+     */
+    boolean usesAccelerometer() {
+        return registered == accelerometer;
+    }
+
+    StepCounterProcessor processor() {
+        return processor;
+    }
+
+    int journalFailures() {
+        return journalFailures + processor.journalFailures();
+    }
+
+    private int sensorType() {
+        return sensors.hasSensor(SensorSource.TYPE_STEP_COUNTER)
+                ? SensorSource.TYPE_STEP_COUNTER : SensorSource.TYPE_ACCELEROMETER;
+    }
+
+    private void onCounter(long timestampNanos, float counterValue) {
+        long deliveryNanos = sensors.elapsedRealtimeNanos();
+        // batched events carry their own timestamp on the elapsedRealtime clock
+        long eventTimeMillis = timeSource.currentTimeMillis() - (deliveryNanos - timestampNanos) / 1_000_000L;
+        metrics.onSensorEvent(timestampNanos, deliveryNanos);
+        PowerGovernor governor = this.governor;
+        if (governor != null) {
+            if (counterValue > lastCounter
+                    && governor.onSteps(timestampNanos / 1_000_000L, (int) (counterValue - lastCounter))) {
+                scheduleApply();
+            }
+            lastCounter = counterValue;
+        }
+        if (pipeline == null || !pipeline.onStepCounter(counterValue, eventTimeMillis)) {
+            processor.onStepCounter(counterValue, eventTimeMillis);
+            publisher.onStepsChanged();
+        }
+    }
+
+    /**
+     * Registers for the current power mode: the sensor with the mode's report latency, or the
+     * significant motion trigger alone when IDLE.
+     */
+    private boolean register() {
+        PowerGovernor governor = this.governor;
+        boolean hardware = registered == this;
+        int latencyUs = activeLatencyUs;
+        if (governor != null) {
+            if (governor.mode() == PowerGovernor.Mode.IDLE) {
+                return sensors.requestTrigger(SensorSource.TYPE_SIGNIFICANT_MOTION, motion);
+            }
+            latencyUs = governor.reportLatencyUs(activeLatencyUs, hardware);
+        }
+        return hardware
+                ? sensors.register(SensorSource.TYPE_STEP_COUNTER, SensorBatching.SAMPLING_PERIOD_US, latencyUs, this)
+                : sensors.register(SensorSource.TYPE_ACCELEROMETER, AccelStepDetector.SAMPLING_PERIOD_US, latencyUs, accelerometer);
+    }
+
+    private void scheduleApply() {
+        if (!applyScheduled) {
+            applyScheduled = true;
+            scheduler.schedule(apply, 0);
+        }
+    }
+
+    /**
+     * Re-registers for the governor's new mode. Going IDLE writes down what was counted,
+     * nothing comes in until the next motion.
+     */
+    private void applyMode() {
+        PowerGovernor governor = this.governor;
+        if (!running || governor == null) {
+            return;
+        }
+        // a batch of steps that ended long ago ramps up and right back down
+        governor.onTick(nowMillis());
+        if (governor.mode() == powerMode) {
+            scheduleTick();
+            return;
+        }
+        onModeChanged();
+        if (governor.mode() == PowerGovernor.Mode.IDLE) {
+            flush();
+        }
+        sensors.unregister(registered);
+        sensors.unregister(motion);
+        running = register();
+        scheduleTick();
+    }
+
+    private void onModeChanged() {
+        powerMode = governor.mode();
+        metrics.onPowerMode(nowMillis(), powerMode);
+    }
+
+    private void onTick() {
+        long now = nowMillis();
+        if (--ticksPending == 0 || now >= tickDueMillis) {
+            tickDueMillis = PowerGovernor.NO_DEADLINE;
+        }
+        PowerGovernor governor = this.governor;
+        if (!running || governor == null) {
+            return;
+        }
+        if (governor.onTick(now)) {
+            applyMode();
+        } else {
+            scheduleTick();
+        }
+    }
+
+    /**
+     * Makes sure a tick comes by the governor's next deadline. Ticks ride on the scheduler's
+     * uptime clock, so they never wake the device; one that comes late after a deep sleep
+     * applies the timeouts it missed at once.
+     */
+    private void scheduleTick() {
+        PowerGovernor governor = this.governor;
+        if (governor == null) {
+            return;
+        }
+        long deadline = governor.deadlineMillis();
+        if (deadline < tickDueMillis) {
+            tickDueMillis = deadline;
+            ticksPending++;
+            scheduler.schedule(tick, Math.max(0, deadline - nowMillis()));
+        }
+    }
+
+    private long nowMillis() {
+        return sensors.elapsedRealtimeNanos() / 1_000_000L;
+    }
+
+    private void drainPipeline() {
+        if (pipeline != null) {
+            pipeline.drain();
+        }
+    }
+
+    private void flushJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            journalFailures++;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.kdg.toast.plugin;
+
+import java.io.IOException;
+
+/**
+ * Per-event logic of the step counter, kept free of Android types so it runs on the JVM.
+ * <p>
+ * {@link #onStepCounter(float, long)} is called for every sensor event and must not allocate:
+ * it only touches primitive fields, the preallocated {@link TimeSource}, the
+ * {@link StepAccountant}, the shared {@link StepState}, the step writer, the memory-mapped
+ * journal and the {@link DailyAggregates}. Allocation happens only when the writer decides to
+ * flush or the steps cross into another local day.
+ * <p>
+ * Sensor events arrive on one thread. Other threads only see the {@link StepState}. A
+ * {@link StepPipeline} calls the two halves, {@link #account(float)} and
+ * {@link #persist(long, int)}, on two threads of their own.
+ */
+final class StepCounterProcessor {
+    private final StepState state;
+    private final CoalescingStepWriter writer;
+    private final StepAccountant accountant;
+    private final StepJournal journal;
+    private final TimeSource timeSource;
+    private final DailyAggregates aggregates;
+
+    private int journalFailures;
+
+    StepCounterProcessor(StepState state, CoalescingStepWriter writer, StepAccountant accountant,
+                         StepJournal journal, TimeSource timeSource) {
+        this(state, writer, accountant, journal, null, timeSource);
+    }
+
+    /**
+     * @param journal    minute history, or null
+     * @param aggregates per-day totals, or null
+     */
+    StepCounterProcessor(StepState state, CoalescingStepWriter writer, StepAccountant accountant,
+                         StepJournal journal, DailyAggregates aggregates, TimeSource timeSource) {
+        this.state = state;
+        this.writer = writer;
+        this.accountant = accountant;
+        this.journal = journal;
+        this.aggregates = aggregates;
+        this.timeSource = timeSource;
+    }
+
+    void onStepCounter(float counterValue) {
+        onStepCounter(counterValue, timeSource.currentTimeMillis());
+    }
+
+    /**
+     * Handles one TYPE_STEP_COUNTER reading taken at {@code eventTimeMillis}, which may lie in
+     * the past when events arrive in a batch.
+     */
+    void onStepCounter(float counterValue, long eventTimeMillis) {
+        persist(eventTimeMillis, account(counterValue));
+    }
+
+    /**
+     * Accounting half of {@link #onStepCounter(float, long)}: credits the reading to the
+     * {@link StepState} in memory. Must stay on one thread, the accountant is not shared.
+     *
+     * @return the steps credited
+     */
+    int account(float counterValue) {
+        int delta = accountant.onCounter((int) counterValue);
+        writer.accumulate(state, delta, accountant.baseline());
+        return delta;
+    }
+
+    /**
+     * Persistence half of {@link #onStepCounter(float, long)}: lets the writer store the
+     * accumulated count and adds {@code delta} to the history and the daily totals, both at
+     * the journal's {@link StepJournal#recordTime} so a clock set back does not split them.
+     */
+    void persist(long eventTimeMillis, int delta) {
+        writer.persist();
+        if (delta > 0) {
+            long timeMillis = journal == null ? eventTimeMillis : journal.recordTime(eventTimeMillis);
+            recordHistory(timeMillis, delta);
+            if (aggregates != null) {
+                aggregates.add(timeMillis, delta);
+            }
+        }
+    }
+
+    /**
+     * Stops counting against the current baseline, so steps walked while tracking is off are
+     * not credited when it is turned back on.
+     */
+    void stopTracking() {
+        accountant.clearBaseline();
+        writer.commitBaseline(StepAccountant.NO_BASELINE);
+    }
+
+    /**
+     * Writes the pending step count, if any.
+     */
+    void flush() {
+        writer.flush();
+    }
+
+    StepAccountant accountant() {
+        return accountant;
+    }
+
+    int journalFailures() {
+        return journalFailures;
+    }
+
+    private void recordHistory(long timeMillis, int delta) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.record(timeMillis, delta);
+        } catch (IOException e) {
+            journalFailures++;
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package com.kdg.toast.plugin;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only history of step deltas, one fixed-width record per minute with steps.
+ * <p>
+ * Records live in memory-mapped segment files of {@code capacity} records each. A record is
+ * {@code (epochMinute, delta, check)}; the check word is written last, so a record torn by a
+ * crash fails its check and is dropped when the journal is reopened. Deltas within the same
+ * minute are summed in memory and appended once the minute is over or on {@link #flush()}.
+ * <p>
+ * Methods are synchronized: the sensor thread appends while {@link Bridge} queries.
+ */
+final class StepJournal {
+    static final int DEFAULT_SEGMENT_CAPACITY = 1 << 16;
+    static final int DEFAULT_MAX_SEGMENTS = 16;
+    static final int RECORD_SIZE = 12;
+    static final int HEADER_SIZE = 16;
+    static final long MILLIS_PER_MINUTE = 60_000L;
+    private static final int MAGIC = 0x53544a31; // "STJ1"
+    private static final int VERSION = 1;
+    private static final int CHECK_SALT = 0x5bd1e995;
+    private static final String SEGMENT_SUFFIX = ".jnl";
+
+    private final File directory;
+    private final int capacity;
+    private final int maxSegments;
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment tail;
+
+    private int pendingMinute = -1;
+    private int pendingDelta;
+    private int lastMinute = -1;
+    private int ignoredFiles;
+
+    StepJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_CAPACITY, DEFAULT_MAX_SEGMENTS);
+    }
+
+    StepJournal(File directory, int capacity, int maxSegments) throws IOException {
+        if (capacity <= 0 || maxSegments <= 0) {
+            throw new IllegalArgumentException("capacity and maxSegments must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.capacity = capacity;
+        this.maxSegments = maxSegments;
+        recover();
+    }
+
+    /**
+     * Adds {@code delta} steps at {@code timeMillis}, clamped by {@link #recordTime}.
+     */
+    synchronized void record(long timeMillis, int delta) throws IOException {
+        if (delta == 0) {
+            return;
+        }
+        int minute = toMinute(recordTime(timeMillis));
+        if (minute != pendingMinute) {
+            appendPending();
+            pendingMinute = minute;
+        }
+        pendingDelta += delta;
+    }
+
+    /**
+     * The time {@link #record} files steps walked at {@code timeMillis} under: the time
+     * itself, or the start of the last minute recorded when the clock went back before it,
+     * so the journal stays sorted. Anything else that keeps steps by time, the
+     * {@link DailyAggregates}, files them under the same time to agree with the journal.
+     */
+    synchronized long recordTime(long timeMillis) {
+        int last = Math.max(lastMinute, pendingMinute);
+        return toMinute(timeMillis) < last ? last * MILLIS_PER_MINUTE : timeMillis;
+    }
+
+    /**
+     * Appends the minute currently being accumulated.
+     */
+    synchronized void flush() throws IOException {
+        appendPending();
+    }
+
+    /**
+     * Sums steps into buckets of {@code bucketMinutes}, the first bucket starting at
+     * {@code fromMillis} (rounded down to the minute) and the last one ending at or
+     * after {@code toMillis}.
+     *
+     * @throws IllegalArgumentException if that takes more buckets than {@link #retainedMinutes()},
+     *     the most minutes the journal can hold
+     */
+    synchronized int[] buckets(long fromMillis, long toMillis, int bucketMinutes) {
+        if (bucketMinutes <= 0) {
+            throw new IllegalArgumentException("bucketMinutes must be positive: " + bucketMinutes);
+        }
+        int fromMinute = toMinute(fromMillis);
+        int toMinute = toMinuteRoundingUp(toMillis);
+        if (toMinute <= fromMinute) {
+            return new int[0];
+        }
+        long count = ((long) toMinute - fromMinute + bucketMinutes - 1) / bucketMinutes;
+        if (count > retainedMinutes()) {
+            throw new IllegalArgumentException(count + " buckets of " + bucketMinutes
+                    + " minutes is more than the " + retainedMinutes() + " minutes the journal retains");
+        }
+        int[] buckets = new int[(int) count];
+        for (Segment segment : segments) {
+            if (segment.count == 0 || segment.lastMinute() < fromMinute) {
+                continue;
+            }
+            if (segment.firstMinute() >= toMinute) {
+                break;
+            }
+            for (int i = segment.lowerBound(fromMinute); i < segment.count; i++) {
+                int minute = segment.minute(i);
+                if (minute >= toMinute) {
+                    break;
+                }
+                buckets[(minute - fromMinute) / bucketMinutes] += segment.delta(i);
+            }
+        }
+        if (pendingMinute >= fromMinute && pendingMinute < toMinute) {
+            buckets[(pendingMinute - fromMinute) / bucketMinutes] += pendingDelta;
+        }
+        return buckets;
+    }
+
+    /**
+     * Starts reading the records from {@code fromMillis} (rounded down to the minute) to
+     * {@code toMillis} with {@link #read}. The minute being accumulated is appended first so
+     * it is part of the export; records appended after this call are not.
+     */
+    synchronized Cursor cursor(long fromMillis, long toMillis) throws IOException {
+        appendPending();
+        int fromMinute = toMinute(fromMillis);
+        long end = tail == null ? 0 : position(tail.sequence, tail.count);
+        long start = end;
+        for (Segment segment : segments) {
+            if (segment.count > 0 && segment.lastMinute() >= fromMinute) {
+                start = position(segment.sequence, segment.lowerBound(fromMinute));
+                break;
+            }
+        }
+        return new Cursor(start, end, toMinuteRoundingUp(toMillis));
+    }
+
+    /**
+     * Copies the cursor's next records into {@code target} as {@code (epochMinute, delta)}
+     * int pairs, as many as fit, and moves the cursor past them. Allocates nothing, so an
+     * export of any length runs in the memory of its target buffer.
+     * <p>
+     * When rotation deleted records before the cursor got to them it goes on with the oldest
+     * record left and sets {@link Cursor#skipped}.
+     *
+     * @return the number of records copied; 0 once the cursor is done or the journal closed
+     */
+    synchronized int read(Cursor cursor, ByteBuffer target) {
+        int copied = 0;
+        for (int s = 0; s < segments.size() && !cursor.done() && target.remaining() >= 8; s++) {
+            Segment segment = segments.get(s);
+            long sequence = cursor.position >>> 32;
+            if (segment.sequence < sequence) {
+                continue;
+            }
+            if (segment.sequence > sequence) {
+                cursor.skipped = true;
+                cursor.position = position(segment.sequence, 0);
+            }
+            int end = segment.sequence == cursor.end >>> 32 ? (int) cursor.end : segment.count;
+            int index = (int) cursor.position;
+            while (index < end && target.remaining() >= 8) {
+                int minute = segment.minute(index);
+                if (minute >= cursor.toMinute) {
+                    cursor.position = cursor.end;
+                    return copied;
+                }
+                target.putInt(minute);
+                target.putInt(segment.delta(index));
+                index++;
+                copied++;
+            }
+            // a finished segment moves the cursor to the start of the next one
+            cursor.position = index == segment.count ? position(segment.sequence + 1, 0) : position(segment.sequence, index);
+        }
+        return copied;
+    }
+
+    synchronized long recordCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.count;
+        }
+        return count;
+    }
+
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    synchronized void close() throws IOException {
+        appendPending();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        tail = null;
+    }
+
+    /**
+     * Files with the segment suffix that recovery skipped because their name is not a
+     * segment sequence.
+     */
+    synchronized int ignoredFiles() {
+        return ignoredFiles;
+    }
+
+    /** Most minutes the journal can hold before rotation deletes the oldest segment. */
+    long retainedMinutes() {
+        return (long) capacity * maxSegments;
+    }
+
+    /** The epoch minute of {@code timeMillis}, saturated to the int range minutes are stored in. */
+    static int toMinute(long timeMillis) {
+        return saturate(Math.floorDiv(timeMillis, MILLIS_PER_MINUTE));
+    }
+
+    /** The first epoch minute starting at or after {@code timeMillis}, saturated like {@link #toMinute}. */
+    static int toMinuteRoundingUp(long timeMillis) {
+        long minute = Math.floorDiv(timeMillis, MILLIS_PER_MINUTE);
+        return saturate(Math.floorMod(timeMillis, MILLIS_PER_MINUTE) == 0 ? minute : minute + 1);
+    }
+
+    private static int saturate(long minute) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, minute));
+    }
+
+    static int check(int minute, int delta) {
+        return (minute * 0x9e3779b1) ^ (delta * 0x85ebca6b) ^ CHECK_SALT;
+    }
+
+    private static long position(long sequence, int index) {
+        return sequence << 32 | index;
+    }
+
+    private void appendPending() throws IOException {
+        if (pendingMinute < 0 || pendingDelta == 0) {
+            pendingMinute = -1;
+            pendingDelta = 0;
+            return;
+        }
+        if (tail == null || tail.count == tail.capacity) {
+            rotate();
+        }
+        tail.append(pendingMinute, pendingDelta);
+        lastMinute = pendingMinute;
+        pendingMinute = -1;
+        pendingDelta = 0;
+    }
+
+    private void rotate() throws IOException {
+        long sequence = tail == null ? 0 : tail.sequence + 1;
+        if (tail != null) {
+            tail.buffer.force();
+        }
+        tail = Segment.open(segmentFile(sequence), sequence, capacity, true);
+        segments.add(tail);
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.remove(0);
+            oldest.close();
+            if (!oldest.file.delete()) {
+                throw new IOException("Cannot delete journal segment " + oldest.file);
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Cannot list journal directory " + directory);
+        }
+        Arrays.sort(files);
+        List<File> segmentFiles = new ArrayList<>();
+        for (File file : files) {
+            // a stray or renamed file is left alone rather than failing the journal for good
+            if (sequenceOf(file) < 0) {
+                ignoredFiles++;
+            } else {
+                segmentFiles.add(file);
+            }
+        }
+        for (int i = 0; i < segmentFiles.size(); i++) {
+            boolean last = i == segmentFiles.size() - 1;
+            File file = segmentFiles.get(i);
+            Segment segment = Segment.open(file, sequenceOf(file), capacity, last);
+            segment.recoverTail(lastMinute);
+            if (segment.count > 0) {
+                lastMinute = segment.lastMinute();
+            }
+            segments.add(segment);
+        }
+        if (!segments.isEmpty()) {
+            tail = segments.get(segments.size() - 1);
+        }
+    }
+
+    /**
+     * The sequence a segment file is named after, -1 if the name is not one.
+     */
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        try {
+            long sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            return sequence < 0 ? -1 : sequence;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(directory, String.format("%016d%s", sequence, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Where a read of the journal is, as {@code segmentSequence << 32 | index}, so it stays
+     * valid while records are appended and old segments deleted.
+     */
+    static final class Cursor {
+        private final long end;
+        private final int toMinute;
+        private long position;
+        /** Set when records were deleted by rotation before they were read. */
+        boolean skipped;
+
+        private Cursor(long position, long end, int toMinute) {
+            this.position = position;
+            this.end = end;
+            this.toMinute = toMinute;
+        }
+
+        boolean done() {
+            return position >= end;
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        final long sequence;
+        final int capacity;
+        final MappedByteBuffer buffer;
+        int count;
+
+        private Segment(File file, long sequence, int capacity, MappedByteBuffer buffer) {
+            this.file = file;
+            this.sequence = sequence;
+            this.capacity = capacity;
+            this.buffer = buffer;
+        }
+
+        static Segment open(File file, long sequence, int defaultCapacity, boolean writable) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r")) {
+                int capacity = defaultCapacity;
+                // a crash between sizing the file and writing the header leaves it zeroed
+                boolean fresh = raf.length() < HEADER_SIZE || (writable && raf.readInt() == 0);
+                if (fresh) {
+                    raf.setLength(HEADER_SIZE + (long) capacity * RECORD_SIZE);
+                }
+                else {
+                    raf.seek(0);
+                    if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                        throw new IOException("Not a step journal segment: " + file);
+                    }
+                    capacity = raf.readInt();
+                    long records = (raf.length() - HEADER_SIZE) / RECORD_SIZE;
+                    capacity = (int) Math.min(capacity, records);
+                }
+                MappedByteBuffer buffer = raf.getChannel().map(
+                        writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                        0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+                buffer.order(ByteOrder.BIG_ENDIAN);
+                if (fresh) {
+                    buffer.putInt(0, MAGIC);
+                    buffer.putInt(4, VERSION);
+                    buffer.putInt(8, capacity);
+                }
+                return new Segment(file, sequence, capacity, buffer);
+            }
+        }
+
+        /**
+         * Counts the valid prefix of the segment and wipes whatever a crash left after it.
+         */
+        void recoverTail(int previousMinute) {
+            int minute = previousMinute;
+            count = 0;
+            while (count < capacity) {
+                int offset = offset(count);
+                int recordMinute = buffer.getInt(offset);
+                int delta = buffer.getInt(offset + 4);
+                if (buffer.getInt(offset + 8) != check(recordMinute, delta) || recordMinute < minute) {
+                    break;
+                }
+                minute = recordMinute;
+                count++;
+            }
+            if (buffer.isReadOnly()) {
+                return;
+            }
+            for (int i = count; i < capacity; i++) {
+                int offset = offset(i);
+                if (buffer.getLong(offset) == 0 && buffer.getInt(offset + 8) == 0) {
+                    break;
+                }
+                buffer.putLong(offset, 0);
+                buffer.putInt(offset + 8, 0);
+            }
+        }
+
+        void append(int minute, int delta) {
+            int offset = offset(count);
+            buffer.putInt(offset, minute);
+            buffer.putInt(offset + 4, delta);
+            buffer.putInt(offset + 8, check(minute, delta));
+            count++;
+        }
+
+        int minute(int index) {
+            return buffer.getInt(offset(index));
+        }
+
+        int delta(int index) {
+            return buffer.getInt(offset(index) + 4);
+        }
+
+        int firstMinute() {
+            return minute(0);
+        }
+
+        int lastMinute() {
+            return minute(count - 1);
+        }
+
+        /**
+         * Index of the first record at or after {@code minute}.
+         */
+        int lowerBound(int minute) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (minute(mid) < minute) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        void close() {
+            if (!buffer.isReadOnly()) {
+                buffer.force();
+            }
+        }
+
+        private static int offset(int index) {
+            return HEADER_SIZE + index * RECORD_SIZE;
+        }
+    }
+}
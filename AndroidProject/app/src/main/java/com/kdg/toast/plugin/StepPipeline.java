@@ -0,0 +1,127 @@
+package com.kdg.toast.plugin;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Step counter readings moved off the sensor thread through four stages:
+ * <ol>
+ * <li>ingest, on the sensor thread: stamps the reading and submits it;</li>
+ * <li>accounting: turns the counter into a step delta in memory ({@link StepCounterProcessor#account(float)});</li>
+ * <li>persistence: prefs write and history journal ({@link StepCounterProcessor#persist(long, int)});</li>
+ * <li>publish: wakes the Unity subscribers and records the end-to-end latency.</li>
+ * </ol>
+ * A stalled disk write therefore never holds up the sensor thread; accounting only waits
+ * for it while the writer lock is held. All stages conflate when their queue is full: counter
+ * readings are cumulative, so a newer reading replaces a waiting one; deltas waiting for
+ * persistence are summed; publishing only needs to know something changed. Readings and
+ * deltas only merge within their minute, one of a later minute waits for the stage, so the
+ * history keeps steps in the minute and day they were walked.
+ * <p>
+ * Records are {@link #WIDTH} longs: {@link #TIME}, {@link #VALUE}, {@link #INGEST_NANOS}.
+ * Nothing allocates per event.
+ */
+final class StepPipeline {
+    static final int TIME = 0;
+    /** Counter reading up to accounting, the step delta after it. */
+    static final int VALUE = 1;
+    static final int INGEST_NANOS = 2;
+    static final int WIDTH = 3;
+    static final int DEFAULT_CAPACITY = 256;
+    /** How long stopping and flushing wait for the stages to drain. */
+    static final long DRAIN_TIMEOUT_MILLIS = 2_000L;
+
+    private final Pipeline pipeline;
+    // sensor thread only
+    private final long[] ingest = new long[WIDTH];
+
+    StepPipeline(StepCounterProcessor processor, StepPublisher publisher, PluginMetrics metrics) {
+        this(processor, publisher, metrics, DEFAULT_CAPACITY);
+    }
+
+    StepPipeline(final StepCounterProcessor processor, final StepPublisher publisher,
+                 final PluginMetrics metrics, int capacity) {
+        pipeline = new Pipeline("StepPipeline", WIDTH)
+                .addStage("accounting", new PipelineStage() {
+                    @Override
+                    public boolean process(long[] record) {
+                        record[VALUE] = processor.account(Float.intBitsToFloat((int) record[VALUE]));
+                        return true;
+                    }
+
+                    @Override
+                    public boolean merge(long[] pending, long[] newer) {
+                        // the delta is stamped with the reading's time, see persistence
+                        if (StepJournal.toMinute(pending[TIME]) != StepJournal.toMinute(newer[TIME])) {
+                            return false;
+                        }
+                        pending[TIME] = newer[TIME];
+                        pending[VALUE] = newer[VALUE];
+                        return true;
+                    }
+                }, capacity, Pipeline.Backpressure.CONFLATE)
+                .addStage("persistence", new PipelineStage() {
+                    @Override
+                    public boolean process(long[] record) {
+                        processor.persist(record[TIME], (int) record[VALUE]);
+                        return true;
+                    }
+
+                    @Override
+                    public boolean merge(long[] pending, long[] newer) {
+                        // the history files steps by minute and day, deltas of another minute
+                        // wait rather than move there
+                        if (StepJournal.toMinute(pending[TIME]) != StepJournal.toMinute(newer[TIME])) {
+                            return false;
+                        }
+                        pending[VALUE] += newer[VALUE];
+                        return true;
+                    }
+                }, capacity, Pipeline.Backpressure.CONFLATE)
+                .addStage("publish", new PipelineStage() {
+                    @Override
+                    public boolean process(long[] record) {
+                        publisher.onStepsChanged();
+                        metrics.pipelineLatencyMicros.record((System.nanoTime() - record[INGEST_NANOS]) / 1_000L);
+                        return false;
+                    }
+
+                    @Override
+                    public boolean merge(long[] pending, long[] newer) {
+                        // keeps the oldest ingest time, the latency is the one of the oldest reading
+                        return true;
+                    }
+                }, capacity, Pipeline.Backpressure.CONFLATE);
+    }
+
+    void start(ThreadFactory threads) {
+        pipeline.start(threads);
+    }
+
+    /**
+     * Ingest stage. Sensor thread only. Waits only when accounting is behind and still holds
+     * a reading of an earlier minute.
+     *
+     * @return false if the pipeline is not running
+     */
+    boolean onStepCounter(float counterValue, long eventTimeMillis) {
+        ingest[TIME] = eventTimeMillis;
+        ingest[VALUE] = Float.floatToRawIntBits(counterValue);
+        ingest[INGEST_NANOS] = System.nanoTime();
+        return pipeline.submit(ingest);
+    }
+
+    /**
+     * Waits until every ingested reading is accounted, persisted and published.
+     */
+    boolean drain() {
+        return pipeline.awaitIdle(DRAIN_TIMEOUT_MILLIS);
+    }
+
+    boolean stop() {
+        return pipeline.stop(DRAIN_TIMEOUT_MILLIS);
+    }
+
+    Pipeline pipeline() {
+        return pipeline;
+    }
+}
@@ -0,0 +1,126 @@
+package com.kdg.toast.plugin;
+
+/**
+ * Pushes a step count, the unsynced steps for {@link Bridge}, to subscribed listeners, at most once per
+ * {@code minIntervalMillis}.
+ * <p>
+ * Changes that arrive inside the interval are coalesced: a single trailing update carrying the
+ * latest value is scheduled for the end of the interval. {@link #onStepsChanged()} sits on the
+ * sensor hot path and does not allocate; listeners are kept in an array that is only copied
+ * when somebody subscribes or unsubscribes.
+ * <p>
+ * Updates are delivered holding a delivery lock, so listeners see them in the order they were
+ * decided: a trailing update racing a direct one cannot leave them on the older value.
+ */
+final class StepPublisher {
+    static final int DEFAULT_MIN_INTERVAL_MILLIS = 1_000;
+    private static final StepUpdateListener[] NO_LISTENERS = new StepUpdateListener[0];
+
+    private final StepCount state;
+    private final TimeSource timeSource;
+    private final Scheduler scheduler;
+    private final Object deliveryLock = new Object();
+    private final Runnable trailingPublish = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (StepPublisher.this) {
+                trailingScheduled = false;
+            }
+            publish();
+        }
+    };
+
+    private volatile StepUpdateListener[] listeners = NO_LISTENERS;
+    private long minIntervalMillis = DEFAULT_MIN_INTERVAL_MILLIS;
+    private long lastPublishMillis = Long.MIN_VALUE;
+    private int lastPublishedSteps = -1;
+    private boolean trailingScheduled;
+    private long publishCount;
+
+    StepPublisher(StepCount state, TimeSource timeSource, Scheduler scheduler) {
+        this.state = state;
+        this.timeSource = timeSource;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Adds {@code listener} and sends it the current count right away. The interval applies to
+     * all listeners, the last subscriber's value wins.
+     */
+    void subscribe(StepUpdateListener listener, long minIntervalMillis) {
+        synchronized (this) {
+            this.minIntervalMillis = Math.max(0, minIntervalMillis);
+            StepUpdateListener[] current = listeners;
+            for (StepUpdateListener existing : current) {
+                if (existing == listener) {
+                    return;
+                }
+            }
+            StepUpdateListener[] next = new StepUpdateListener[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = listener;
+            listeners = next;
+        }
+        synchronized (deliveryLock) {
+            listener.onStepsUpdated(state.steps());
+        }
+    }
+
+    synchronized void unsubscribe(StepUpdateListener listener) {
+        StepUpdateListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                StepUpdateListener[] next = current.length == 1 ? NO_LISTENERS : new StepUpdateListener[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                listeners = next;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called whenever the state may have changed, from the pipeline's publish thread, the sensor
+     * thread or after a sync. Listeners run on the calling thread; a trailing update runs on the
+     * scheduler's.
+     */
+    void onStepsChanged() {
+        if (listeners.length == 0) {
+            return;
+        }
+        publish();
+    }
+
+    synchronized long publishCount() {
+        return publishCount;
+    }
+
+    private void publish() {
+        synchronized (deliveryLock) {
+            int steps;
+            StepUpdateListener[] targets;
+            synchronized (this) {
+                steps = state.steps();
+                if (steps == lastPublishedSteps) {
+                    return;
+                }
+                long now = timeSource.currentTimeMillis();
+                long elapsed = now - lastPublishMillis;
+                if (lastPublishMillis != Long.MIN_VALUE && elapsed < minIntervalMillis) {
+                    if (!trailingScheduled) {
+                        trailingScheduled = true;
+                        scheduler.schedule(trailingPublish, minIntervalMillis - elapsed);
+                    }
+                    return;
+                }
+                lastPublishMillis = now;
+                lastPublishedSteps = steps;
+                publishCount++;
+                targets = listeners;
+            }
+            for (StepUpdateListener listener : targets) {
+                listener.onStepsUpdated(steps);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.kdg.toast.plugin;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Steps counted so far in this process, shared by the thread counting them and the threads
+ * reading them. Syncing is left to {@link SharedStepCounter}, which works across processes;
+ * this count only grows, apart from a counter that wraps after a lifetime of walking.
+ */
+final class StepState implements StepCount {
+    private final AtomicInteger steps = new AtomicInteger();
+
+    /**
+     * Adds steps walked since the last event.
+     */
+    void add(int delta) {
+        steps.addAndGet(delta);
+    }
+
+    @Override
+    public int steps() {
+        return steps.get();
+    }
+
+    /**
+     * Puts back steps loaded from storage when the process starts.
+     */
+    void restore(int steps) {
+        add(steps);
+    }
+}
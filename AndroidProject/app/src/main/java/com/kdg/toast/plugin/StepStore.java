@@ -0,0 +1,19 @@
+package com.kdg.toast.plugin;
+
+/**
+ * Durable sink for the step count.
+ */
+interface StepStore {
+    /**
+     * Makes {@code steps} durable.
+     *
+     * @param baseline packed {@link StepAccountant} counter baseline matching {@code steps}
+     */
+    void saveSteps(int steps, long baseline, long timeMillis);
+
+    /**
+     * Called on every change between saves, so a store with a cheap way to show the count to
+     * readers elsewhere can do so; others ignore it.
+     */
+    void publishSteps(int steps, long baseline, long timeMillis);
+}
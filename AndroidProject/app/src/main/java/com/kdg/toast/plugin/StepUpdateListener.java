@@ -0,0 +1,23 @@
+package com.kdg.toast.plugin;
+
+/**
+ * Receives coalesced step updates, see {@link Bridge#Subscribe(StepUpdateListener, int)}.
+ * Unity implements it with an AndroidJavaProxy. Calls come from more than one thread, none of
+ * them Unity's main thread unless Unity itself made the call:
+ * <ul>
+ * <li>the current count, on the thread calling {@code Subscribe};</li>
+ * <li>counted steps, on the step pipeline's publish thread (the service's sensor thread when
+ * the service runs without the pipeline);</li>
+ * <li>the reset after a sync, on the thread calling {@code SyncData}, {@code SyncDataBinary}
+ * or {@code QueueSync};</li>
+ * <li>an update held back by the interval, on the Android main looper.</li>
+ * </ul>
+ * Calls never overlap and arrive in the order the values were counted. Keep the value for
+ * Unity's main thread to pick up instead of touching Unity objects here.
+ */
+public interface StepUpdateListener {
+    /**
+     * @param steps steps walked since the last sync, as {@link Bridge#GetCurrentSteps()} returns
+     */
+    void onStepsUpdated(int steps);
+}
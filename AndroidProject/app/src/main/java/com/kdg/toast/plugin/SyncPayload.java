@@ -0,0 +1,109 @@
+package com.kdg.toast.plugin;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Binary form of one sync, read by Unity with a BinaryReader instead of splitting strings.
+ * <p>
+ * Little endian, version 1:
+ * <pre>
+ * byte  version
+ * byte  flags              FLAG_BUCKETS when history buckets follow
+ * short reserved
+ * long  startMillis        epoch millis the synced interval started
+ * long  endMillis          epoch millis of the sync
+ * int   steps
+ * [int  bucketMinutes, int bucketCount, int[bucketCount] buckets]
+ * </pre>
+ * Bucket i covers {@code bucketMinutes} minutes starting at startMillis rounded down to the
+ * minute plus {@code i * bucketMinutes}.
+ */
+final class SyncPayload {
+    static final byte VERSION = 1;
+    static final byte FLAG_BUCKETS = 1;
+    static final int HEADER_SIZE = 24;
+    private static final int[] NO_BUCKETS = new int[0];
+
+    final long startMillis;
+    final long endMillis;
+    final int steps;
+    final int bucketMinutes;
+    final int[] buckets;
+
+    SyncPayload(long startMillis, long endMillis, int steps) {
+        this(startMillis, endMillis, steps, 0, NO_BUCKETS);
+    }
+
+    SyncPayload(long startMillis, long endMillis, int steps, int bucketMinutes, int[] buckets) {
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.steps = steps;
+        this.bucketMinutes = buckets.length == 0 ? 0 : bucketMinutes;
+        this.buckets = buckets;
+    }
+
+    int encodedSize() {
+        return buckets.length == 0 ? HEADER_SIZE : HEADER_SIZE + 8 + buckets.length * 4;
+    }
+
+    byte[] encode() {
+        byte[] bytes = new byte[encodedSize()];
+        encodeTo(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Writes the payload at the buffer's position, so a caller can reuse one buffer.
+     */
+    void encodeTo(ByteBuffer target) {
+        target.order(ByteOrder.LITTLE_ENDIAN);
+        boolean hasBuckets = buckets.length > 0;
+        target.put(VERSION);
+        target.put(hasBuckets ? FLAG_BUCKETS : 0);
+        target.putShort((short) 0);
+        target.putLong(startMillis);
+        target.putLong(endMillis);
+        target.putInt(steps);
+        if (hasBuckets) {
+            target.putInt(bucketMinutes);
+            target.putInt(buckets.length);
+            for (int bucket : buckets) {
+                target.putInt(bucket);
+            }
+        }
+    }
+
+    static SyncPayload decode(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    static SyncPayload decode(ByteBuffer source) {
+        source.order(ByteOrder.LITTLE_ENDIAN);
+        if (source.remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException("Sync payload too short: " + source.remaining());
+        }
+        byte version = source.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported sync payload version " + version);
+        }
+        byte flags = source.get();
+        source.getShort();
+        long startMillis = source.getLong();
+        long endMillis = source.getLong();
+        int steps = source.getInt();
+        if ((flags & FLAG_BUCKETS) == 0) {
+            return new SyncPayload(startMillis, endMillis, steps);
+        }
+        int bucketMinutes = source.getInt();
+        int count = source.getInt();
+        if (count < 0 || count > source.remaining() / 4) {
+            throw new IllegalArgumentException("Corrupt bucket count " + count);
+        }
+        int[] buckets = new int[count];
+        for (int i = 0; i < count; i++) {
+            buckets[i] = source.getInt();
+        }
+        return new SyncPayload(startMillis, endMillis, steps, bucketMinutes, buckets);
+    }
+}
@@ -0,0 +1,15 @@
+package com.kdg.toast.plugin;
+
+/**
+ * Wall clock used by the step logic. Lets the JVM tests drive time by hand.
+ */
+interface TimeSource {
+    TimeSource SYSTEM = new TimeSource() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    long currentTimeMillis();
+}
@@ -0,0 +1,241 @@
+package com.kdg.toast.plugin;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A batch of queued sync intervals as sent to the backend, see {@link UploadQueue}.
+ * <p>
+ * Little endian, version 1:
+ * <pre>
+ * byte  version
+ * byte  flags              FLAG_DEFLATE when the body is raw deflate (no zlib header)
+ * short recordCount
+ * long  queueId            random per install, with the sequence it identifies a record
+ * long  firstSequence
+ * long  lastSequence       what to acknowledge once the frame is stored
+ * int   bodyLength         size of the body before compression
+ * byte[] body
+ * </pre>
+ * The body holds the records one after the other as varints, signed values zigzag encoded,
+ * each relative to the record before, so back to back intervals cost a few bytes:
+ * <pre>
+ * sequence - previous sequence    (firstSequence for the first record)
+ * startMillis - previous endMillis (0 for the first record)
+ * endMillis - startMillis
+ * steps
+ * bucketMinutes, bucketCount, buckets[bucketCount]
+ * </pre>
+ * The body is deflated when that makes it smaller; bucket histories usually shrink by half.
+ */
+final class UploadFrame {
+    static final byte VERSION = 1;
+    static final byte FLAG_DEFLATE = 1;
+    static final int HEADER_SIZE = 32;
+
+    final long queueId;
+    final long firstSequence;
+    final long lastSequence;
+    final long[] sequences;
+    final SyncPayload[] payloads;
+
+    UploadFrame(long queueId, long[] sequences, SyncPayload[] payloads) {
+        if (sequences.length == 0 || sequences.length != payloads.length || sequences.length > 0xffff) {
+            throw new IllegalArgumentException("A frame holds 1 to 65535 records: " + sequences.length);
+        }
+        this.queueId = queueId;
+        this.sequences = sequences;
+        this.payloads = payloads;
+        this.firstSequence = sequences[0];
+        this.lastSequence = sequences[sequences.length - 1];
+    }
+
+    int recordCount() {
+        return sequences.length;
+    }
+
+    /**
+     * Total steps of the records.
+     */
+    long steps() {
+        long steps = 0;
+        for (SyncPayload payload : payloads) {
+            steps += payload.steps;
+        }
+        return steps;
+    }
+
+    byte[] encode() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64 + 8 * payloads.length);
+        long previousSequence = firstSequence;
+        long previousEnd = 0;
+        for (int i = 0; i < payloads.length; i++) {
+            SyncPayload payload = payloads[i];
+            writeVarint(body, sequences[i] - previousSequence);
+            writeSigned(body, i == 0 ? payload.startMillis : payload.startMillis - previousEnd);
+            writeSigned(body, payload.endMillis - payload.startMillis);
+            writeSigned(body, payload.steps);
+            writeVarint(body, payload.bucketMinutes);
+            writeVarint(body, payload.buckets.length);
+            for (int bucket : payload.buckets) {
+                writeSigned(body, bucket);
+            }
+            previousSequence = sequences[i];
+            previousEnd = payload.endMillis;
+        }
+        byte[] raw = body.toByteArray();
+        byte[] deflated = deflate(raw);
+        boolean compressed = deflated.length < raw.length;
+        byte[] content = compressed ? deflated : raw;
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + content.length).order(ByteOrder.LITTLE_ENDIAN);
+        frame.put(VERSION);
+        frame.put(compressed ? FLAG_DEFLATE : 0);
+        frame.putShort((short) payloads.length);
+        frame.putLong(queueId);
+        frame.putLong(firstSequence);
+        frame.putLong(lastSequence);
+        frame.putInt(raw.length);
+        frame.put(content);
+        return frame.array();
+    }
+
+    static UploadFrame decode(byte[] bytes) {
+        ByteBuffer frame = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (frame.remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException("Upload frame too short: " + frame.remaining());
+        }
+        byte version = frame.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported upload frame version " + version);
+        }
+        byte flags = frame.get();
+        int count = frame.getShort() & 0xffff;
+        long queueId = frame.getLong();
+        long firstSequence = frame.getLong();
+        long lastSequence = frame.getLong();
+        int rawLength = frame.getInt();
+        byte[] content = Arrays.copyOfRange(bytes, HEADER_SIZE, bytes.length);
+        ByteBuffer body = ByteBuffer.wrap((flags & FLAG_DEFLATE) != 0 ? inflate(content, rawLength) : content);
+
+        long[] sequences = new long[count];
+        SyncPayload[] payloads = new SyncPayload[count];
+        long previousSequence = firstSequence;
+        long previousEnd = 0;
+        for (int i = 0; i < count; i++) {
+            long sequence = previousSequence + readVarint(body);
+            long start = i == 0 ? readSigned(body) : previousEnd + readSigned(body);
+            long end = start + readSigned(body);
+            int steps = (int) readSigned(body);
+            int bucketMinutes = (int) readVarint(body);
+            long bucketCount = readVarint(body);
+            if (bucketCount > body.remaining()) {
+                throw new IllegalArgumentException("Corrupt bucket count " + bucketCount);
+            }
+            int[] buckets = new int[(int) bucketCount];
+            for (int b = 0; b < buckets.length; b++) {
+                buckets[b] = (int) readSigned(body);
+            }
+            sequences[i] = sequence;
+            payloads[i] = new SyncPayload(start, end, steps, bucketMinutes, buckets);
+            previousSequence = sequence;
+            previousEnd = end;
+        }
+        if (count == 0 || sequences[count - 1] != lastSequence) {
+            throw new IllegalArgumentException("Upload frame records do not end at " + lastSequence);
+        }
+        return new UploadFrame(queueId, sequences, payloads);
+    }
+
+    /**
+     * Frame of the given records, oldest first.
+     */
+    static UploadFrame of(long queueId, List<UploadQueue.Record> records) {
+        long[] sequences = new long[records.size()];
+        SyncPayload[] payloads = new SyncPayload[records.size()];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = records.get(i).sequence;
+            payloads[i] = records.get(i).payload;
+        }
+        return new UploadFrame(queueId, sequences, payloads);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] content, int rawLength) {
+        // one spare byte: raw deflate needs a dummy byte after the stream on some inflaters
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(Arrays.copyOf(content, content.length + 1));
+            byte[] raw = new byte[rawLength];
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, length, rawLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != rawLength) {
+                throw new IllegalArgumentException("Upload frame body inflated to " + length + " of " + rawLength + " bytes");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt upload frame body", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeSigned(ByteArrayOutputStream out, long value) {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readSigned(ByteBuffer in) {
+        long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new IllegalArgumentException("Truncated upload frame body");
+            }
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long in upload frame body");
+    }
+}
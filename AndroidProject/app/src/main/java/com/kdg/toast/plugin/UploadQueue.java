@@ -0,0 +1,377 @@
+package com.kdg.toast.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Durable outbound queue of synced intervals, so steps taken out of the counters by a sync
+ * survive until the backend confirms it stored them.
+ * <p>
+ * Every {@link #append(SyncPayload)} gets the next sequence number and is written to the tail
+ * segment file and forced to disk before it returns. Segments roll over at
+ * {@code segmentBytes}. A record is {@code (length, sequence, payload, crc)}; a record torn by a
+ * crash fails its CRC and is cut off when the queue is reopened, like in {@link StepJournal}.
+ * <p>
+ * Consumers read batches with {@link #nextFrame(int)} and confirm them with {@link #ack(long)};
+ * only then are records dropped, and a segment file is deleted once all of its records are.
+ * The highest acknowledged sequence and the random queue id are kept in a small state file
+ * replaced atomically, so sequences are never reused and a receiver can drop records it
+ * already has by {@code (queueId, sequence)}. Pending records are also kept in memory; they
+ * are a few dozen bytes each and leave with their acknowledgement.
+ * <p>
+ * Methods are synchronized: Unity appends while an {@link Uploader} reads and acknowledges.
+ */
+final class UploadQueue {
+    static final int DEFAULT_SEGMENT_BYTES = 64 * 1024;
+    static final int SEGMENT_HEADER_SIZE = 16;
+    /** length, sequence and crc around each payload. */
+    static final int RECORD_OVERHEAD = 16;
+    static final int MAX_PAYLOAD_BYTES = 1 << 20;
+    private static final int MAGIC = 0x55505131; // "UPQ1"
+    private static final int VERSION = 1;
+    private static final String SEGMENT_SUFFIX = ".upq";
+    private static final String STATE_FILE = "queue.state";
+    private static final int STATE_SIZE = 20;
+
+    /**
+     * One queued interval.
+     */
+    static final class Record {
+        final long sequence;
+        final SyncPayload payload;
+
+        Record(long sequence, SyncPayload payload) {
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final ArrayDeque<Record> pending = new ArrayDeque<>();
+    /** Segment files oldest first, with the last sequence each holds. */
+    private final List<File> segmentFiles = new ArrayList<>();
+    private final List<Long> segmentLastSequences = new ArrayList<>();
+    private RandomAccessFile tail;
+    private long tailSize;
+
+    private long queueId;
+    private long acked;
+    private long nextSequence = 1;
+
+    UploadQueue(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    UploadQueue(File directory, int segmentBytes) throws IOException {
+        if (segmentBytes <= SEGMENT_HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentBytes too small: " + segmentBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create upload queue directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        recover();
+    }
+
+    /**
+     * Stores {@code payload} durably.
+     *
+     * @return its sequence number, counting up from 1 over the life of the queue
+     */
+    synchronized long append(SyncPayload payload) throws IOException {
+        int payloadSize = payload.encodedSize();
+        if (payloadSize > MAX_PAYLOAD_BYTES) {
+            throw new IllegalArgumentException("Sync payload too large to queue: " + payloadSize);
+        }
+        long sequence = nextSequence;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + payloadSize);
+        record.putInt(payloadSize);
+        record.putLong(sequence);
+        payload.encodeTo(record);
+        // the payload switched the buffer to its own little endian order
+        record.order(ByteOrder.BIG_ENDIAN);
+        record.putInt(crc(record.array(), 4, 8 + payloadSize));
+
+        if (tail == null || (tailSize > SEGMENT_HEADER_SIZE && tailSize + record.capacity() > segmentBytes)) {
+            rotate(sequence);
+        }
+        tail.seek(tailSize);
+        tail.write(record.array());
+        tail.getChannel().force(false);
+        tailSize += record.capacity();
+        segmentLastSequences.set(segmentLastSequences.size() - 1, sequence);
+        pending.addLast(new Record(sequence, payload));
+        nextSequence++;
+        return sequence;
+    }
+
+    /**
+     * Up to {@code maxRecords} of the oldest unacknowledged records, oldest first.
+     */
+    synchronized List<Record> peek(int maxRecords) {
+        List<Record> records = new ArrayList<>(Math.min(Math.max(0, maxRecords), pending.size()));
+        Iterator<Record> iterator = pending.iterator();
+        while (records.size() < maxRecords && iterator.hasNext()) {
+            records.add(iterator.next());
+        }
+        return records;
+    }
+
+    /**
+     * Frame of up to {@code maxRecords} of the oldest unacknowledged records, null when there
+     * are none. The same records come back until they are acknowledged.
+     */
+    synchronized UploadFrame nextFrame(int maxRecords) {
+        List<Record> records = peek(Math.min(maxRecords, 0xffff));
+        return records.isEmpty() ? null : UploadFrame.of(queueId, records);
+    }
+
+    /**
+     * Drops the records up to and including {@code sequence}. Acknowledging again, or an older
+     * sequence, does nothing, so a late or repeated confirmation is harmless.
+     *
+     * @return records dropped
+     */
+    synchronized int ack(long sequence) throws IOException {
+        long through = Math.min(sequence, nextSequence - 1);
+        if (through <= acked) {
+            return 0;
+        }
+        acked = through;
+        writeState();
+        int dropped = 0;
+        while (!pending.isEmpty() && pending.peekFirst().sequence <= acked) {
+            pending.removeFirst();
+            dropped++;
+        }
+        deleteAcknowledgedSegments();
+        return dropped;
+    }
+
+    /**
+     * The unacknowledged record {@code sequence}, null if it is not pending.
+     */
+    synchronized SyncPayload pending(long sequence) {
+        for (Record record : pending) {
+            if (record.sequence == sequence) {
+                return record.payload;
+            }
+        }
+        return null;
+    }
+
+    synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    synchronized long pendingSteps() {
+        long steps = 0;
+        for (Record record : pending) {
+            steps += record.payload.steps;
+        }
+        return steps;
+    }
+
+    synchronized long queueId() {
+        return queueId;
+    }
+
+    synchronized long ackedSequence() {
+        return acked;
+    }
+
+    /**
+     * Sequence of the newest record ever appended, 0 if none.
+     */
+    synchronized long lastSequence() {
+        return nextSequence - 1;
+    }
+
+    synchronized int segmentCount() {
+        return segmentFiles.size();
+    }
+
+    synchronized void close() throws IOException {
+        if (tail != null) {
+            tail.close();
+            tail = null;
+        }
+    }
+
+    static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private void rotate(long firstSequence) throws IOException {
+        if (tail != null) {
+            tail.close();
+        }
+        File file = segmentFile(firstSequence);
+        tail = new RandomAccessFile(file, "rw");
+        tail.setLength(0);
+        tail.writeInt(MAGIC);
+        tail.writeInt(VERSION);
+        tail.writeLong(firstSequence);
+        tailSize = SEGMENT_HEADER_SIZE;
+        segmentFiles.add(file);
+        segmentLastSequences.add(firstSequence - 1);
+    }
+
+    private void deleteAcknowledgedSegments() throws IOException {
+        while (!segmentFiles.isEmpty() && segmentLastSequences.get(0) <= acked) {
+            if (segmentFiles.size() == 1 && tail != null) {
+                tail.close();
+                tail = null;
+            }
+            File file = segmentFiles.remove(0);
+            segmentLastSequences.remove(0);
+            if (!file.delete() && file.exists()) {
+                throw new IOException("Cannot delete upload queue segment " + file);
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        readState();
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Cannot list upload queue directory " + directory);
+        }
+        Arrays.sort(files);
+        long last = acked;
+        for (File file : files) {
+            long segmentLast = recoverSegment(file, last);
+            if (segmentLast > last) {
+                segmentFiles.add(file);
+                segmentLastSequences.add(segmentLast);
+                last = segmentLast;
+            }
+            else if (!file.delete() && file.exists()) {
+                throw new IOException("Cannot delete upload queue segment " + file);
+            }
+        }
+        nextSequence = last + 1;
+        if (!segmentFiles.isEmpty()) {
+            File file = segmentFiles.get(segmentFiles.size() - 1);
+            tail = new RandomAccessFile(file, "rw");
+            tailSize = tail.length();
+        }
+    }
+
+    /**
+     * Reads the records after {@code after} into {@link #pending} and cuts off a torn tail.
+     *
+     * @return the last sequence in the file, {@code after} if it holds nothing newer
+     */
+    private long recoverSegment(File file, long after) throws IOException {
+        long last = after;
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return after;
+            }
+            in.readLong();
+            validLength = SEGMENT_HEADER_SIZE;
+            long previous = Long.MIN_VALUE;
+            while (true) {
+                int length = in.readInt();
+                if (length < SyncPayload.HEADER_SIZE || length > MAX_PAYLOAD_BYTES) {
+                    break;
+                }
+                byte[] record = new byte[8 + length];
+                in.readFully(record);
+                int check = in.readInt();
+                long sequence = ByteBuffer.wrap(record).getLong();
+                if (check != crc(record, 0, record.length) || sequence <= previous) {
+                    break;
+                }
+                previous = sequence;
+                validLength += RECORD_OVERHEAD + length;
+                if (sequence > last) {
+                    pending.addLast(new Record(sequence, SyncPayload.decode(ByteBuffer.wrap(record, 8, length).slice())));
+                    last = sequence;
+                }
+            }
+        } catch (EOFException e) {
+            // torn record at the end
+        }
+        if (validLength > 0 && validLength < file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+        return last;
+    }
+
+    private void readState() throws IOException {
+        File file = new File(directory, STATE_FILE);
+        if (file.length() == STATE_SIZE) {
+            byte[] state = new byte[STATE_SIZE];
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                in.readFully(state);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(state);
+            long id = buffer.getLong();
+            long ackedSequence = buffer.getLong();
+            if (buffer.getInt() == crc(state, 0, 16)) {
+                queueId = id;
+                acked = ackedSequence;
+                return;
+            }
+        }
+        if (file.exists()) {
+            throw new IOException("Corrupt upload queue state " + file);
+        }
+        queueId = new SecureRandom().nextLong();
+        acked = 0;
+        writeState();
+    }
+
+    /**
+     * Replaces the state file through a rename, so a crash leaves the old or the new one.
+     */
+    private void writeState() throws IOException {
+        ByteBuffer state = ByteBuffer.allocate(STATE_SIZE);
+        state.putLong(queueId);
+        state.putLong(acked);
+        state.putInt(crc(state.array(), 0, 16));
+        File temporary = new File(directory, STATE_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temporary)) {
+            out.write(state.array());
+            out.getFD().sync();
+        }
+        if (!temporary.renameTo(new File(directory, STATE_FILE))) {
+            throw new IOException("Cannot replace upload queue state in " + directory);
+        }
+    }
+
+    private File segmentFile(long firstSequence) {
+        return new File(directory, String.format(Locale.ROOT, "%019d%s", firstSequence, SEGMENT_SUFFIX));
+    }
+}
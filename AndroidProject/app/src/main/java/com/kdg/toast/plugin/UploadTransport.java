@@ -0,0 +1,17 @@
+package com.kdg.toast.plugin;
+
+import java.io.IOException;
+
+/**
+ * Carries {@link UploadFrame}s to the backend.
+ */
+interface UploadTransport {
+    /**
+     * Delivers one encoded frame and waits for the receiver's answer.
+     *
+     * @return the highest sequence the receiver has stored for the frame's queue; records up
+     * to it are acknowledged, so a receiver that already had them answers the same
+     * @throws IOException when the frame may not have been stored, it is sent again later
+     */
+    long send(byte[] frame) throws IOException;
+}
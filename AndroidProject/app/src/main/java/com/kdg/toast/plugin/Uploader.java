@@ -0,0 +1,146 @@
+package com.kdg.toast.plugin;
+
+import java.io.IOException;
+
+/**
+ * Drains an {@link UploadQueue} through an {@link UploadTransport}, one frame at a time on the
+ * {@link Scheduler}'s thread.
+ * <p>
+ * A frame holds up to {@code maxRecords} of the oldest records and is acknowledged in the
+ * queue only up to the sequence the receiver reports as stored. A failed send, or an answer
+ * that stores nothing new, is retried with the same records after a backoff doubling from
+ * {@link #INITIAL_BACKOFF_MILLIS} to {@link #MAX_BACKOFF_MILLIS}; {@link #kick()} during a
+ * backoff waits for it rather than hammering a backend that is down. Records already stored
+ * when an answer got lost are sent again and the receiver drops them by sequence.
+ */
+final class Uploader {
+    static final int DEFAULT_MAX_RECORDS = 256;
+    static final long INITIAL_BACKOFF_MILLIS = 5_000L;
+    static final long MAX_BACKOFF_MILLIS = 30 * 60_000L;
+
+    private final UploadQueue queue;
+    private final UploadTransport transport;
+    private final Scheduler scheduler;
+    private final PluginMetrics metrics;
+    private final int maxRecords;
+    private final Runnable attempt = new Runnable() {
+        @Override
+        public void run() {
+            attempt();
+        }
+    };
+
+    private boolean scheduled;
+    // scheduler thread only
+    private int failures;
+    private long framesSent;
+    private long bytesSent;
+
+    Uploader(UploadQueue queue, UploadTransport transport, Scheduler scheduler, PluginMetrics metrics) {
+        this(queue, transport, scheduler, metrics, DEFAULT_MAX_RECORDS);
+    }
+
+    Uploader(UploadQueue queue, UploadTransport transport, Scheduler scheduler, PluginMetrics metrics, int maxRecords) {
+        if (maxRecords <= 0) {
+            throw new IllegalArgumentException("maxRecords must be positive: " + maxRecords);
+        }
+        this.queue = queue;
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.maxRecords = maxRecords;
+    }
+
+    /**
+     * Schedules an upload of whatever is pending, unless one is already scheduled. Any thread.
+     */
+    void kick() {
+        schedule(0);
+    }
+
+    /**
+     * Sends failed in a row since the last acknowledged frame.
+     */
+    synchronized int failures() {
+        return failures;
+    }
+
+    synchronized long framesSent() {
+        return framesSent;
+    }
+
+    synchronized long bytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Wait before the next try after {@code failures} failures in a row.
+     */
+    static long backoffMillis(int failures) {
+        if (failures <= 0) {
+            return 0;
+        }
+        int doublings = Math.min(failures - 1, 30);
+        return Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << doublings);
+    }
+
+    private void schedule(long delayMillis) {
+        synchronized (this) {
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        scheduler.schedule(attempt, delayMillis);
+    }
+
+    private void attempt() {
+        synchronized (this) {
+            scheduled = false;
+        }
+        UploadFrame frame = queue.nextFrame(maxRecords);
+        if (frame == null) {
+            return;
+        }
+        byte[] bytes = frame.encode();
+        long stored;
+        try {
+            stored = transport.send(bytes);
+        } catch (IOException e) {
+            onFailure();
+            return;
+        }
+        synchronized (this) {
+            framesSent++;
+            bytesSent += bytes.length;
+        }
+        int acknowledged;
+        try {
+            acknowledged = stored >= frame.firstSequence ? queue.ack(Math.min(stored, frame.lastSequence)) : 0;
+        } catch (IOException e) {
+            onFailure();
+            return;
+        }
+        if (acknowledged == 0) {
+            // the receiver kept nothing of this frame, try it again later
+            onFailure();
+            return;
+        }
+        metrics.uploads.incrementAndGet();
+        synchronized (this) {
+            failures = 0;
+        }
+        if (queue.pendingCount() > 0) {
+            schedule(0);
+        }
+    }
+
+    private void onFailure() {
+        metrics.uploadFailures.incrementAndGet();
+        int failed;
+        synchronized (this) {
+            failed = ++failures;
+        }
+        schedule(backoffMillis(failed));
+    }
+}
@@ -0,0 +1,244 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AccelStepDetectorTest {
+    @Test
+    public void countsSteadyWalk() {
+        Motion motion = new Motion(1);
+        motion.walk(120, 1.8, 2.5f, 0.3f);
+        long detected = run(new AccelStepDetector(), motion.trace());
+
+        assertEquals(motion.steps, detected, motion.steps * 0.03);
+    }
+
+    @Test
+    public void countsRunAndSlowPocketWalk() {
+        Motion motion = new Motion(2);
+        motion.walk(60, 2.9, 9f, 0.8f);
+        motion.still(5, 0.05f);
+        motion.walk(60, 1.3, 1.6f, 0.25f);
+        long detected = run(new AccelStepDetector(), motion.trace());
+
+        assertEquals(motion.steps, detected, motion.steps * 0.05);
+    }
+
+    @Test
+    public void phoneLyingStillCountsNothing() {
+        Motion motion = new Motion(3);
+        motion.still(120, 0.05f);
+        assertEquals(0, run(new AccelStepDetector(), motion.trace()));
+    }
+
+    @Test
+    public void isolatedBumpsAreNotSteps() {
+        Motion motion = new Motion(4);
+        for (int i = 0; i < 20; i++) {
+            motion.still(3, 0.05f);
+            motion.bump(6f);
+        }
+        AccelStepDetector detector = new AccelStepDetector();
+
+        assertEquals(0, run(detector, motion.trace()));
+        assertTrue(detector.candidates() > 0);
+    }
+
+    @Test
+    public void shortStreakIsDroppedAndLongOneCreditedInFull() {
+        Motion motion = new Motion(5);
+        motion.still(2, 0.05f);
+        motion.steps(AccelStepDetector.CONFIRM_STEPS - 1, 1.8, 3f, 0.1f);
+        motion.still(4, 0.05f);
+        AccelStepDetector detector = new AccelStepDetector();
+        assertEquals(0, run(detector, motion.trace()));
+
+        Motion walk = new Motion(6);
+        walk.steps(AccelStepDetector.CONFIRM_STEPS + 6, 1.8, 3f, 0.1f);
+        walk.still(1, 0.05f);
+        Trace trace = walk.trace();
+        int credited = 0;
+        int biggest = 0;
+        for (int i = 0; i < trace.size; i++) {
+            int steps = detector.onSample(trace.nanos[i] + 60_000_000_000L, trace.x[i], trace.y[i], trace.z[i]);
+            credited += steps;
+            biggest = Math.max(biggest, steps);
+        }
+        assertEquals(AccelStepDetector.CONFIRM_STEPS + 6, credited);
+        assertEquals(AccelStepDetector.CONFIRM_STEPS, biggest);
+        assertEquals(credited, detector.steps());
+    }
+
+    @Test
+    public void thresholdFollowsTheSwing() {
+        AccelStepDetector detector = new AccelStepDetector();
+        assertEquals(AccelStepDetector.MIN_SWING, detector.threshold(), 0f);
+        Motion motion = new Motion(7);
+        motion.walk(20, 2.9, 9f, 0.3f);
+        run(detector, motion.trace());
+
+        assertTrue(detector.threshold() > 2 * AccelStepDetector.MIN_SWING);
+    }
+
+    @Test
+    public void samplesDoNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+        Motion motion = new Motion(8);
+        motion.walk(120, 1.8, 2.5f, 0.3f);
+        Trace trace = motion.trace();
+        AccelStepDetector detector = new AccelStepDetector();
+        run(detector, trace);
+
+        long calibration = threads.getThreadAllocatedBytes(threadId);
+        calibration = threads.getThreadAllocatedBytes(threadId) - calibration;
+        // one-off JIT recompilation can allocate a few bytes on this thread, per-sample
+        // allocation would show up in every round
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 3 && allocated != 0; round++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            run(detector, trace);
+            allocated = threads.getThreadAllocatedBytes(threadId) - before - calibration;
+        }
+
+        assertEquals("bytes allocated by " + trace.size + " samples", 0, allocated);
+    }
+
+    static long run(AccelStepDetector detector, Trace trace) {
+        for (int i = 0; i < trace.size; i++) {
+            detector.onSample(trace.nanos[i], trace.x[i], trace.y[i], trace.z[i]);
+        }
+        return detector.steps();
+    }
+
+    /**
+     * Accelerometer samples in primitive arrays, with the true step count.
+     */
+    static final class Trace {
+        final int size;
+        final long[] nanos;
+        final float[] x;
+        final float[] y;
+        final float[] z;
+        final int steps;
+
+        Trace(int size, long[] nanos, float[] x, float[] y, float[] z, int steps) {
+            this.size = size;
+            this.nanos = nanos;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.steps = steps;
+        }
+    }
+
+    /**
+     * Synthetic 50 Hz accelerometer: gravity along a random phone orientation, one vertical
+     * bounce per step with a heel strike harmonic, sideways sway at stride rate, jittered
+     * cadence and swing, and Gaussian sensor noise.
+     */
+    static final class Motion {
+        static final float GRAVITY = 9.81f;
+        static final long PERIOD_NANOS = AccelStepDetector.SAMPLING_PERIOD_US * 1_000L;
+
+        private final Random random;
+        private long[] nanos = new long[1024];
+        private float[] x = new float[1024];
+        private float[] y = new float[1024];
+        private float[] z = new float[1024];
+        private int size;
+        private long now = 1_000_000_000L;
+        int steps;
+
+        Motion(long seed) {
+            random = new Random(seed);
+        }
+
+        void still(double seconds, float noise) {
+            float[] up = orientation();
+            for (long end = now + (long) (seconds * 1e9); now < end; now += PERIOD_NANOS) {
+                add(up, 0f, null, 0f, noise);
+            }
+        }
+
+        void walk(double seconds, double cadenceHz, float swing, float noise) {
+            steps((int) Math.round(seconds * cadenceHz), cadenceHz, swing, noise);
+        }
+
+        void steps(int count, double cadenceHz, float swing, float noise) {
+            float[] up = orientation();
+            float[] side = perpendicular(up);
+            for (int step = 0; step < count; step++) {
+                double periodNanos = 1e9 / cadenceHz * (1 + 0.08 * random.nextGaussian());
+                float amplitude = swing / 2 * (float) (1 + 0.15 * random.nextGaussian());
+                double harmonicPhase = random.nextDouble() * 0.5;
+                long start = now;
+                for (; now - start < periodNanos; now += PERIOD_NANOS) {
+                    double phase = (now - start) / periodNanos;
+                    float vertical = amplitude * (float) (Math.sin(2 * Math.PI * phase)
+                            + 0.3 * Math.sin(4 * Math.PI * (phase + harmonicPhase)));
+                    float sway = 0.3f * amplitude * (float) Math.sin(Math.PI * (phase + (step & 1)));
+                    add(up, vertical, side, sway, noise);
+                }
+                steps++;
+            }
+        }
+
+        /**
+         * One sharp knock, like putting the phone down on a table.
+         */
+        void bump(float peak) {
+            float[] up = orientation();
+            for (int i = 0; i < 5; i++, now += PERIOD_NANOS) {
+                add(up, peak * (i == 1 ? 1f : i == 2 ? -0.6f : 0f), null, 0f, 0.05f);
+            }
+        }
+
+        Trace trace() {
+            return new Trace(size, nanos, x, y, z, steps);
+        }
+
+        private void add(float[] up, float vertical, float[] side, float sway, float noise) {
+            if (size == nanos.length) {
+                nanos = Arrays.copyOf(nanos, size * 2);
+                x = Arrays.copyOf(x, size * 2);
+                y = Arrays.copyOf(y, size * 2);
+                z = Arrays.copyOf(z, size * 2);
+            }
+            float g = GRAVITY + vertical;
+            nanos[size] = now;
+            x[size] = up[0] * g + (side == null ? 0f : side[0] * sway) + noise * (float) random.nextGaussian();
+            y[size] = up[1] * g + (side == null ? 0f : side[1] * sway) + noise * (float) random.nextGaussian();
+            z[size] = up[2] * g + (side == null ? 0f : side[2] * sway) + noise * (float) random.nextGaussian();
+            size++;
+        }
+
+        private float[] orientation() {
+            float[] v = {(float) random.nextGaussian(), (float) random.nextGaussian(), (float) random.nextGaussian()};
+            return normalize(v);
+        }
+
+        private static float[] perpendicular(float[] v) {
+            float[] other = Math.abs(v[0]) < 0.9f ? new float[]{1, 0, 0} : new float[]{0, 1, 0};
+            return normalize(new float[]{
+                    v[1] * other[2] - v[2] * other[1],
+                    v[2] * other[0] - v[0] * other[2],
+                    v[0] * other[1] - v[1] * other[0]});
+        }
+
+        private static float[] normalize(float[] v) {
+            float length = (float) Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+            return new float[]{v[0] / length, v[1] / length, v[2] / length};
+        }
+    }
+}
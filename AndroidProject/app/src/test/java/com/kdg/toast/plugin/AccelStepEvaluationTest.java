@@ -0,0 +1,190 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Offline evaluation of {@link AccelStepDetector} over accelerometer traces in CSV files:
+ * {@code timestamp_ns,x,y,z} per line, with a {@code # steps=N} comment giving the true step
+ * count. Prints detected against true steps and the detector's cost per sample.
+ * <p>
+ * The test writes synthetic traces and evaluates them through the same CSV path. Recorded
+ * traces are evaluated with {@link #main(String[])}, passing files or directories of them.
+ */
+public class AccelStepEvaluationTest {
+    private static final int TIMING_RUNS = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void syntheticTracesAreCountedAccurately() throws IOException {
+        AccelStepDetectorTest.Motion motion = new AccelStepDetectorTest.Motion(11);
+        motion.walk(300, 1.8, 2.5f, 0.3f);
+        write("walk", motion);
+        motion = new AccelStepDetectorTest.Motion(12);
+        motion.walk(120, 2.9, 9f, 0.8f);
+        write("run", motion);
+        motion = new AccelStepDetectorTest.Motion(13);
+        motion.walk(180, 1.3, 1.4f, 0.25f);
+        write("slow_pocket", motion);
+        motion = new AccelStepDetectorTest.Motion(14);
+        for (int i = 0; i < 6; i++) {
+            motion.walk(20, 1.6 + 0.1 * i, 2f + i, 0.4f);
+            motion.still(4 + i, 0.05f);
+        }
+        write("walk_and_wait", motion);
+        motion = new AccelStepDetectorTest.Motion(15);
+        for (int i = 0; i < 30; i++) {
+            motion.still(4, 0.05f);
+            motion.bump(4f + i % 5);
+        }
+        write("desk_bumps", motion);
+
+        List<Result> results = evaluate(folder.getRoot());
+        print(results);
+
+        long truth = 0;
+        long error = 0;
+        for (Result result : results) {
+            truth += result.trueSteps;
+            error += Math.abs(result.detected - result.trueSteps);
+            assertTrue(result.name + " " + result.nanosPerSample + " ns/sample", result.nanosPerSample < 2_000);
+            if (result.name.startsWith("desk_bumps")) {
+                assertEquals(0, result.detected);
+            } else {
+                assertEquals(result.name, result.trueSteps, result.detected, result.trueSteps * 0.05);
+            }
+        }
+        assertTrue("total error " + error + " of " + truth, error < truth * 0.03);
+    }
+
+    /**
+     * Evaluates CSV traces given as files or directories and prints the report.
+     */
+    public static void main(String[] args) throws IOException {
+        List<Result> results = new ArrayList<>();
+        for (String arg : args) {
+            results.addAll(evaluate(new File(arg)));
+        }
+        print(results);
+    }
+
+    static List<Result> evaluate(File path) throws IOException {
+        List<Result> results = new ArrayList<>();
+        File[] files = path.isDirectory() ? path.listFiles() : new File[]{path};
+        if (files == null) {
+            return results;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().endsWith(".csv")) {
+                results.add(evaluate(file.getName(), read(file)));
+            }
+        }
+        return results;
+    }
+
+    static Result evaluate(String name, AccelStepDetectorTest.Trace trace) {
+        long detected = AccelStepDetectorTest.run(new AccelStepDetector(), trace);
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < TIMING_RUNS; i++) {
+            AccelStepDetector detector = new AccelStepDetector();
+            long start = System.nanoTime();
+            AccelStepDetectorTest.run(detector, trace);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return new Result(name, trace.size, trace.steps, detected, (double) best / Math.max(1, trace.size));
+    }
+
+    static AccelStepDetectorTest.Trace read(File file) throws IOException {
+        int steps = -1;
+        int size = 0;
+        long[] nanos = new long[4096];
+        float[] x = new float[4096];
+        float[] y = new float[4096];
+        float[] z = new float[4096];
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("#")) {
+                    int at = line.indexOf("steps=");
+                    if (at >= 0) {
+                        steps = Integer.parseInt(line.substring(at + 6).trim());
+                    }
+                    continue;
+                }
+                if (line.isEmpty() || !Character.isDigit(line.charAt(0))) {
+                    // blank or column header
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (size == nanos.length) {
+                    nanos = Arrays.copyOf(nanos, size * 2);
+                    x = Arrays.copyOf(x, size * 2);
+                    y = Arrays.copyOf(y, size * 2);
+                    z = Arrays.copyOf(z, size * 2);
+                }
+                nanos[size] = Long.parseLong(fields[0].trim());
+                x[size] = Float.parseFloat(fields[1].trim());
+                y[size] = Float.parseFloat(fields[2].trim());
+                z[size] = Float.parseFloat(fields[3].trim());
+                size++;
+            }
+        }
+        return new AccelStepDetectorTest.Trace(size, nanos, x, y, z, steps);
+    }
+
+    private void write(String name, AccelStepDetectorTest.Motion motion) throws IOException {
+        AccelStepDetectorTest.Trace trace = motion.trace();
+        try (PrintWriter out = new PrintWriter(new FileWriter(new File(folder.getRoot(), name + ".csv")))) {
+            out.println("# steps=" + trace.steps);
+            out.println("timestamp_ns,x,y,z");
+            for (int i = 0; i < trace.size; i++) {
+                out.println(trace.nanos[i] + "," + trace.x[i] + "," + trace.y[i] + "," + trace.z[i]);
+            }
+        }
+    }
+
+    private static void print(List<Result> results) {
+        System.out.println(String.format("%-24s %9s %7s %9s %8s %10s", "trace", "samples", "steps", "detected", "error", "ns/sample"));
+        for (Result result : results) {
+            System.out.println(String.format("%-24s %9d %7s %9d %8s %10.1f",
+                    result.name, result.samples, result.trueSteps < 0 ? "?" : Integer.toString(result.trueSteps),
+                    result.detected, result.trueSteps <= 0 ? "-" : String.format("%.1f%%",
+                            100.0 * (result.detected - result.trueSteps) / result.trueSteps),
+                    result.nanosPerSample));
+        }
+    }
+
+    static final class Result {
+        final String name;
+        final int samples;
+        /** -1 when the trace does not say. */
+        final int trueSteps;
+        final long detected;
+        final double nanosPerSample;
+
+        Result(String name, int samples, int trueSteps, long detected, double nanosPerSample) {
+            this.name = name;
+            this.samples = samples;
+            this.trueSteps = trueSteps;
+            this.detected = detected;
+            this.nanosPerSample = nanosPerSample;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AutostartProbeTest {
+    @Test
+    public void probesOnceAndFindsTheFirstScreen() {
+        CountingResolver resolver = new CountingResolver(3, 5);
+        MemoryStore store = new MemoryStore();
+        AutostartProbe probe = new AutostartProbe(14, "build-1/abc", resolver, store);
+
+        assertEquals(3, probe.result());
+        assertEquals(3, probe.result());
+        assertEquals(1, probe.lookups());
+        assertEquals(4, resolver.calls.get());
+        assertEquals("build-1/abc=3", store.value);
+    }
+
+    @Test
+    public void laterProcessReadsTheSavedResult() {
+        MemoryStore store = new MemoryStore();
+        new AutostartProbe(14, "build-1/abc", new CountingResolver(), store).result();
+
+        CountingResolver resolver = new CountingResolver(7);
+        AutostartProbe probe = new AutostartProbe(14, "build-1/abc", resolver, store);
+        assertEquals(AutostartProbe.NONE, probe.result());
+        assertEquals(0, probe.lookups());
+        assertEquals(0, resolver.calls.get());
+    }
+
+    @Test
+    public void systemUpdateOrNewCandidatesProbeAgain() {
+        MemoryStore store = new MemoryStore();
+        new AutostartProbe(14, "build-1/abc", new CountingResolver(2), store).result();
+
+        AutostartProbe updated = new AutostartProbe(14, "build-2/abc", new CountingResolver(9), store);
+        assertEquals(9, updated.result());
+        assertEquals(1, updated.lookups());
+        assertEquals("build-2/abc=9", store.value);
+
+        AutostartProbe fewer = new AutostartProbe(5, "build-2/abc", new CountingResolver(4), store);
+        // a saved index outside the candidate list is not trusted
+        assertEquals(4, fewer.result());
+        assertEquals(1, fewer.lookups());
+    }
+
+    @Test
+    public void garbledValueIsProbedAgain() {
+        MemoryStore store = new MemoryStore();
+        store.value = "build-1/abc=x";
+        AutostartProbe probe = new AutostartProbe(14, "build-1/abc", new CountingResolver(1), store);
+        assertEquals(1, probe.result());
+        assertEquals(1, probe.lookups());
+    }
+
+    @Test
+    public void concurrentStartsShareOneProbe() throws InterruptedException {
+        final CountingResolver resolver = new CountingResolver(13);
+        final AutostartProbe probe = new AutostartProbe(14, "build-1/abc", resolver, new MemoryStore());
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicInteger wrong = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (probe.result() != 13) {
+                        wrong.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, wrong.get());
+        assertEquals(1, probe.lookups());
+        assertEquals(14, resolver.calls.get());
+    }
+
+    /**
+     * Resolves the given candidate indexes, each after a short pause like a binder call.
+     */
+    static final class CountingResolver implements AutostartProbe.Resolver {
+        final AtomicInteger calls = new AtomicInteger();
+        private final int[] present;
+
+        CountingResolver(int... present) {
+            this.present = present;
+        }
+
+        @Override
+        public boolean resolves(int index) {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (int candidate : present) {
+                if (candidate == index) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static final class MemoryStore implements AutostartProbe.Store {
+        volatile String value;
+
+        @Override
+        public String load() {
+            return value;
+        }
+
+        @Override
+        public void save(String value) {
+            this.value = value;
+        }
+    }
+}
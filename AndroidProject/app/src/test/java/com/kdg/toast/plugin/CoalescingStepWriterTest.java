@@ -0,0 +1,135 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CoalescingStepWriterTest {
+    private FakeTime time;
+    private RecordingStore store;
+    private CoalescingStepWriter writer;
+
+    @Before
+    public void setUp() {
+        time = new FakeTime();
+        store = new RecordingStore();
+        writer = new CoalescingStepWriter(store, time, 10, 60_000L);
+    }
+
+    @Test
+    public void holdsStepsUntilDeltaExceeded() {
+        for (int steps = 1; steps <= 10; steps++) {
+            assertFalse(writer.update(steps));
+        }
+        assertEquals(0, store.writes);
+        assertTrue(writer.update(11));
+        assertEquals(1, store.writes);
+        assertEquals(11, store.lastSteps);
+        assertEquals(0, writer.unsavedSteps());
+    }
+
+    @Test
+    public void flushesWhenIntervalElapsed() {
+        writer.update(3);
+        time.now += 59_999L;
+        assertFalse(writer.update(4));
+        time.now += 1L;
+        assertTrue(writer.update(5));
+        assertEquals(5, store.lastSteps);
+        assertEquals(time.now, store.lastTime);
+    }
+
+    @Test
+    public void neverLosesMoreThanMaxUnsavedSteps() {
+        int steps = 0;
+        for (int i = 0; i < 10_000; i++) {
+            steps += 1 + (i % 3);
+            time.now += 500L;
+            writer.update(steps);
+            assertTrue(steps - store.lastSteps <= 10);
+        }
+    }
+
+    @Test
+    public void flushWritesOnlyPendingValue() {
+        writer.flush();
+        assertEquals(0, store.writes);
+        writer.update(4);
+        writer.flush();
+        writer.flush();
+        assertEquals(1, store.writes);
+        assertEquals(4, store.lastSteps);
+    }
+
+    @Test
+    public void commitBaselineAndResetBypassPolicy() {
+        writer.commitBaseline(5L);
+        assertEquals(1, store.writes);
+        assertEquals(5L, store.lastBaseline);
+        writer.update(7);
+        writer.reset(0, StepAccountant.NO_BASELINE);
+        writer.flush();
+        assertEquals(1, store.writes);
+        assertEquals(0, store.lastSteps);
+    }
+
+    @Test
+    public void zeroToleranceWritesEveryChange() {
+        writer.setPolicy(0, 60_000L);
+        writer.update(1);
+        writer.update(1);
+        writer.update(2);
+        assertEquals(2, store.writes);
+    }
+
+    @Test
+    public void everyChangeIsPublishedBetweenWrites() {
+        StepState state = new StepState();
+        for (int i = 0; i < 5; i++) {
+            writer.accumulate(state, 2, StepAccountant.NO_BASELINE);
+            writer.persist();
+        }
+        writer.accumulate(state, 0, StepAccountant.NO_BASELINE);
+        assertEquals(5, store.publishes);
+        assertEquals(10, store.publishedSteps);
+        assertEquals(0, store.writes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeTolerance() {
+        writer.setPolicy(-1, 0L);
+    }
+
+    static final class FakeTime implements TimeSource {
+        long now = 1_600_000_000_000L;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    static final class RecordingStore implements StepStore {
+        int writes;
+        int lastSteps;
+        long lastBaseline = StepAccountant.NO_BASELINE;
+        long lastTime;
+        int publishes;
+        int publishedSteps;
+
+        @Override
+        public void saveSteps(int steps, long baseline, long timeMillis) {
+            writes++;
+            lastSteps = steps;
+            lastBaseline = baseline;
+            lastTime = timeMillis;
+        }
+
+        @Override
+        public void publishSteps(int steps, long baseline, long timeMillis) {
+            publishes++;
+            publishedSteps = steps;
+        }
+    }
+}
@@ -0,0 +1,642 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CollectorHostTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private QueueScheduler scheduler;
+    private RecordingListener listener;
+    private FakeSensorSource sensors;
+    private CollectorHost host;
+
+    @Before
+    public void setUp() {
+        scheduler = new QueueScheduler();
+        listener = new RecordingListener();
+        sensors = new FakeSensorSource();
+        host = new CollectorHost(scheduler, listener);
+    }
+
+    @Test
+    public void startsAndStopsByIdOnTheHostThread() {
+        sensors.add(SensorSource.TYPE_STEP_DETECTOR);
+        host.register(SensorEventCollector.stepDetector(sensors));
+
+        assertTrue(host.start(SensorEventCollector.STEP_DETECTOR));
+        assertFalse("nothing runs before the host thread does", host.isRunning(SensorEventCollector.STEP_DETECTOR));
+        scheduler.drain();
+        assertTrue(host.isRunning(SensorEventCollector.STEP_DETECTOR));
+        assertEquals(Collections.singletonList(SensorEventCollector.STEP_DETECTOR), listener.last());
+
+        sensors.emit(SensorSource.TYPE_STEP_DETECTOR, 1_000L, 1f);
+        sensors.emit(SensorSource.TYPE_STEP_DETECTOR, 2_000L, 1f);
+        assertEquals(2, host.collector(SensorEventCollector.STEP_DETECTOR).eventCount());
+
+        host.stop(SensorEventCollector.STEP_DETECTOR);
+        scheduler.drain();
+        assertFalse(host.isRunning(SensorEventCollector.STEP_DETECTOR));
+        assertEquals(0, sensors.registrations.size());
+        assertTrue(listener.last().isEmpty());
+    }
+
+    @Test
+    public void unknownIdIsRejected() {
+        assertFalse(host.start("barometer"));
+        host.stop("barometer");
+        assertTrue(scheduler.tasks.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateIdIsRejected() {
+        host.register(new SignificantMotionCollector(sensors));
+        host.register(new SignificantMotionCollector(sensors));
+    }
+
+    @Test
+    public void missingSensorIsReportedAndNotRun() {
+        host.register(SensorEventCollector.accelerometer(sensors));
+        host.retain(Collections.singleton(SensorEventCollector.ACCELEROMETER));
+        scheduler.drain();
+        assertEquals(Collections.singletonList(SensorEventCollector.ACCELEROMETER), listener.unavailable);
+        assertFalse(host.isRunning(SensorEventCollector.ACCELEROMETER));
+        // the service stops itself on an empty set, so it has to hear about it
+        assertTrue(listener.last().isEmpty());
+    }
+
+    @Test
+    public void batchedCollectorsShareTheShortestLatency() {
+        sensors.add(SensorSource.TYPE_STEP_DETECTOR);
+        sensors.add(SensorSource.TYPE_ACCELEROMETER);
+        sensors.add(SensorSource.TYPE_SIGNIFICANT_MOTION);
+        host.register(SensorEventCollector.stepDetector(sensors));
+        host.register(SensorEventCollector.accelerometer(sensors));
+        host.register(new SignificantMotionCollector(sensors));
+        Collector stepDetector = host.collector(SensorEventCollector.STEP_DETECTOR);
+        Collector accelerometer = host.collector(SensorEventCollector.ACCELEROMETER);
+
+        host.start(SensorEventCollector.STEP_DETECTOR);
+        scheduler.drain();
+        assertEquals(10_000_000, sensors.latencyOf((SensorSource.Sink) stepDetector));
+
+        host.start(SensorEventCollector.ACCELEROMETER);
+        host.start(SignificantMotionCollector.ID);
+        scheduler.drain();
+        assertEquals(1_000_000, host.wakeLatencyUs());
+        assertEquals(1_000_000, sensors.latencyOf((SensorSource.Sink) stepDetector));
+        assertEquals(1_000_000, sensors.latencyOf((SensorSource.Sink) accelerometer));
+        assertEquals(1, sensors.triggers.size());
+
+        host.stop(SensorEventCollector.ACCELEROMETER);
+        scheduler.drain();
+        assertEquals(10_000_000, host.wakeLatencyUs());
+        assertEquals(10_000_000, sensors.latencyOf((SensorSource.Sink) stepDetector));
+    }
+
+    @Test
+    public void realtimeCollectorDoesNotChangeTheBudget() {
+        sensors.add(SensorSource.TYPE_STEP_COUNTER);
+        sensors.add(SensorSource.TYPE_STEP_DETECTOR);
+        StepCounterCollector stepCounter = stepCounter(null);
+        host.register(stepCounter);
+        host.register(SensorEventCollector.stepDetector(sensors));
+
+        host.retain(Arrays.asList(StepCounterCollector.ID, SensorEventCollector.STEP_DETECTOR));
+        scheduler.drain();
+        assertEquals(0, sensors.latencyOf(stepCounter));
+        assertEquals(10_000_000, host.wakeLatencyUs());
+    }
+
+    @Test
+    public void reconfigureAppliesNewBatching() {
+        sensors.add(SensorSource.TYPE_STEP_COUNTER);
+        StepCounterCollector stepCounter = stepCounter(null);
+        host.register(stepCounter);
+        host.start(StepCounterCollector.ID);
+        scheduler.drain();
+        assertEquals(0, sensors.latencyOf(stepCounter));
+
+        stepCounter.setBatching(new SensorBatching(30_000_000, 0));
+        host.reconfigure();
+        scheduler.drain();
+        assertEquals(30_000_000, sensors.latencyOf(stepCounter));
+        assertEquals(1, sensors.registrations.size());
+    }
+
+    @Test
+    public void retainReconcilesTheRunningSet() {
+        sensors.add(SensorSource.TYPE_STEP_DETECTOR);
+        sensors.add(SensorSource.TYPE_ACCELEROMETER);
+        host.register(SensorEventCollector.stepDetector(sensors));
+        host.register(SensorEventCollector.accelerometer(sensors));
+
+        host.retain(Arrays.asList(SensorEventCollector.STEP_DETECTOR, "unknown"));
+        scheduler.drain();
+        assertEquals(Collections.singletonList(SensorEventCollector.STEP_DETECTOR), listener.last());
+
+        host.retain(Collections.singleton(SensorEventCollector.ACCELEROMETER));
+        scheduler.drain();
+        assertEquals(Collections.singletonList(SensorEventCollector.ACCELEROMETER), listener.last());
+        assertEquals(1, sensors.registrations.size());
+
+        host.stopAll();
+        scheduler.drain();
+        assertEquals(0, host.runningIds().length);
+    }
+
+    @Test
+    public void significantMotionRearmsAfterEachTrigger() {
+        sensors.add(SensorSource.TYPE_SIGNIFICANT_MOTION);
+        SignificantMotionCollector collector = new SignificantMotionCollector(sensors);
+        host.register(collector);
+        host.start(SignificantMotionCollector.ID);
+        scheduler.drain();
+        for (int i = 1; i <= 3; i++) {
+            sensors.emit(SensorSource.TYPE_SIGNIFICANT_MOTION, i * 1_000L, 1f);
+        }
+        assertEquals(3, collector.eventCount());
+        assertEquals(3_000L, collector.lastTimestampNanos());
+        assertEquals(1, sensors.triggers.size());
+
+        host.stop(SignificantMotionCollector.ID);
+        scheduler.drain();
+        sensors.emit(SensorSource.TYPE_SIGNIFICANT_MOTION, 9_000L, 1f);
+        assertEquals(3, collector.eventCount());
+    }
+
+    @Test
+    public void stepCounterCollectorCountsAndStopsTracking() throws IOException {
+        sensors.add(SensorSource.TYPE_STEP_COUNTER);
+        StepJournal journal = new StepJournal(folder.getRoot());
+        CoalescingStepWriterTest.RecordingStore store = new CoalescingStepWriterTest.RecordingStore();
+        StepState state = new StepState();
+        StepCounterCollector stepCounter = stepCounter(journal, state, store);
+        host.register(stepCounter);
+        host.start(StepCounterCollector.ID);
+        scheduler.drain();
+
+        for (int i = 0; i <= 20; i++) {
+            sensors.elapsedNanos += 500_000_000L;
+            sensors.emit(SensorSource.TYPE_STEP_COUNTER, sensors.elapsedNanos, 1000f + i);
+        }
+        assertEquals(20, state.steps());
+        assertEquals(21, stepCounter.eventCount());
+
+        host.stop(StepCounterCollector.ID);
+        scheduler.drain();
+        assertEquals(StepAccountant.NO_BASELINE, store.lastBaseline);
+        assertEquals(20, store.lastSteps);
+        assertEquals(0, stepCounter.journalFailures());
+        journal.close();
+    }
+
+    @Test
+    public void stepCounterFallsBackToTheAccelerometer() {
+        sensors.add(SensorSource.TYPE_ACCELEROMETER);
+        CoalescingStepWriterTest.RecordingStore store = new CoalescingStepWriterTest.RecordingStore();
+        StepState state = new StepState();
+        StepCounterCollector stepCounter = stepCounter(null, state, store);
+        host.register(stepCounter);
+        host.start(StepCounterCollector.ID);
+        scheduler.drain();
+        assertTrue(host.isRunning(StepCounterCollector.ID));
+        assertTrue(stepCounter.usesAccelerometer());
+        assertTrue(listener.unavailable.isEmpty());
+
+        AccelStepDetectorTest.Motion motion = new AccelStepDetectorTest.Motion(21);
+        motion.still(2, 0.05f);
+        motion.walk(60, 1.8, 2.5f, 0.3f);
+        AccelStepDetectorTest.Trace trace = motion.trace();
+        for (int i = 0; i < trace.size; i++) {
+            sensors.elapsedNanos = trace.nanos[i];
+            sensors.emit(SensorSource.TYPE_ACCELEROMETER, trace.nanos[i], trace.x[i], trace.y[i], trace.z[i]);
+        }
+        assertEquals(motion.steps, state.steps(), motion.steps * 0.03);
+        assertEquals(trace.size, stepCounter.eventCount());
+
+        int counted = state.steps();
+        host.stop(StepCounterCollector.ID);
+        scheduler.drain();
+        host.start(StepCounterCollector.ID);
+        scheduler.drain();
+        // the detector total carries on, the restart only sets a new baseline
+        assertEquals(counted, state.steps());
+        assertEquals(counted, store.lastSteps);
+    }
+
+    @Test
+    public void accelerometerFallbackStartsFromZeroWithoutARegression() {
+        sensors.add(SensorSource.TYPE_ACCELEROMETER);
+        CoalescingStepWriterTest.FakeTime time = new CoalescingStepWriterTest.FakeTime();
+        CoalescingStepWriterTest.RecordingStore store = new CoalescingStepWriterTest.RecordingStore();
+        StepState state = new StepState();
+        // the detector total the previous process stopped at
+        StepAccountant accountant = new StepAccountant(1, StepAccountant.pack(1, 500));
+        StepCounterProcessor processor = new StepCounterProcessor(state, new CoalescingStepWriter(store, time),
+                accountant, null, time);
+        StepCounterCollector stepCounter = new StepCounterCollector(sensors, processor, null,
+                new StepPublisher(state, time, new QueueScheduler()), new PluginMetrics(), time);
+        host.register(stepCounter);
+        host.start(StepCounterCollector.ID);
+        scheduler.drain();
+        assertTrue(stepCounter.usesAccelerometer());
+        assertEquals(0, accountant.regressions());
+        assertEquals(0, state.steps());
+
+        AccelStepDetectorTest.Motion motion = new AccelStepDetectorTest.Motion(22);
+        motion.still(2, 0.05f);
+        motion.walk(30, 1.8, 2.5f, 0.3f);
+        AccelStepDetectorTest.Trace trace = motion.trace();
+        for (int i = 0; i < trace.size; i++) {
+            sensors.elapsedNanos = trace.nanos[i];
+            sensors.emit(SensorSource.TYPE_ACCELEROMETER, trace.nanos[i], trace.x[i], trace.y[i], trace.z[i]);
+        }
+        assertEquals(0, accountant.regressions());
+        assertEquals(motion.steps, state.steps(), motion.steps * 0.03);
+    }
+
+    @Test
+    public void stepCounterFlushRequestsAreThrottled() {
+        sensors.add(SensorSource.TYPE_STEP_COUNTER);
+        StepCounterCollector stepCounter = stepCounter(null);
+        stepCounter.setBatching(new SensorBatching(30_000_000, 0));
+        host.register(stepCounter);
+        stepCounter.requestFlush();
+        assertEquals("not running yet", 0, sensors.flushes);
+        host.start(StepCounterCollector.ID);
+        scheduler.drain();
+        for (int frame = 0; frame < 120; frame++) {
+            sensors.elapsedNanos += 16_000_000L;
+            stepCounter.requestFlush();
+        }
+        assertEquals(2, sensors.flushes);
+    }
+
+    @Test
+    public void governedStepCounterIsBatchedWhileStill() {
+        sensors.add(SensorSource.TYPE_STEP_COUNTER);
+        sensors.add(SensorSource.TYPE_SIGNIFICANT_MOTION);
+        UploaderTest.VirtualScheduler ticks = new UploaderTest.VirtualScheduler();
+        PluginMetrics metrics = new PluginMetrics();
+        StepState state = new StepState();
+        StepCounterCollector stepCounter = stepCounter(null, state, new CoalescingStepWriterTest.RecordingStore(), metrics);
+        stepCounter.setGovernor(new PowerGovernor(), ticks);
+        host.register(stepCounter);
+        host.start(StepCounterCollector.ID);
+        scheduler.drain();
+        assertEquals(0, sensors.latencyOf(stepCounter));
+
+        for (int i = 0; i <= 30; i++) {
+            advance(ticks, 2_000 + i * 600L);
+            sensors.emit(SensorSource.TYPE_STEP_COUNTER, sensors.elapsedNanos, 500f + i);
+        }
+        long lastStep = 2_000 + 30 * 600L;
+        advance(ticks, lastStep + PowerGovernor.DEFAULT_QUIET_AFTER_MILLIS - 1);
+        assertEquals(PowerGovernor.Mode.ACTIVE, stepCounter.powerMode());
+        advance(ticks, lastStep + PowerGovernor.DEFAULT_QUIET_AFTER_MILLIS);
+        assertEquals(PowerGovernor.Mode.QUIET, stepCounter.powerMode());
+        assertEquals(PowerGovernor.QUIET_REPORT_LATENCY_US, sensors.latencyOf(stepCounter));
+        // the counter is never swapped for the motion trigger
+        advance(ticks, 12 * 3_600_000L);
+        assertEquals(PowerGovernor.Mode.QUIET, stepCounter.powerMode());
+        assertTrue(sensors.triggers.isEmpty());
+        assertTrue(sensors.registrations.containsKey(stepCounter));
+
+        // a batch with a walk in it ramps back up
+        long walk = 12 * 3_600_000L - 60_000L;
+        for (int i = 1; i <= 20; i++) {
+            sensors.emit(SensorSource.TYPE_STEP_COUNTER, (walk + i * 600L) * 1_000_000L, 530f + i);
+        }
+        advance(ticks, 12 * 3_600_000L);
+        assertEquals(PowerGovernor.Mode.ACTIVE, stepCounter.powerMode());
+        assertEquals(0, sensors.latencyOf(stepCounter));
+        assertEquals(50, state.steps());
+        assertEquals(3, metrics.powerTransitions.get());
+        assertTrue(metrics.powerTimeline(), metrics.powerTimeline().endsWith(":QUIET " + 12 * 3_600_000L + ":ACTIVE"));
+    }
+
+    @Test
+    public void governedAccelerometerSleepsUntilSignificantMotion() {
+        sensors.add(SensorSource.TYPE_ACCELEROMETER);
+        sensors.add(SensorSource.TYPE_SIGNIFICANT_MOTION);
+        UploaderTest.VirtualScheduler ticks = new UploaderTest.VirtualScheduler();
+        PluginMetrics metrics = new PluginMetrics();
+        StepState state = new StepState();
+        StepCounterCollector stepCounter = stepCounter(null, state, new CoalescingStepWriterTest.RecordingStore(), metrics);
+        stepCounter.setGovernor(new PowerGovernor(), ticks);
+        host.register(stepCounter);
+        host.start(StepCounterCollector.ID);
+        scheduler.drain();
+        assertTrue(stepCounter.usesAccelerometer());
+
+        AccelStepDetectorTest.Motion motion = new AccelStepDetectorTest.Motion(31);
+        motion.still(2, 0.05f);
+        motion.walk(30, 1.8, 2.5f, 0.3f);
+        AccelStepDetectorTest.Trace trace = motion.trace();
+        long offset = sensors.elapsedNanos;
+        for (int i = 0; i < trace.size; i++) {
+            advance(ticks, (offset + trace.nanos[i]) / 1_000_000L);
+            sensors.emit(SensorSource.TYPE_ACCELEROMETER, offset + trace.nanos[i], trace.x[i], trace.y[i], trace.z[i]);
+        }
+        int walked = state.steps();
+        assertEquals(motion.steps, walked, motion.steps * 0.05);
+
+        long end = (offset + trace.nanos[trace.size - 1]) / 1_000_000L;
+        advance(ticks, end + PowerGovernor.DEFAULT_IDLE_AFTER_MILLIS);
+        assertEquals(PowerGovernor.Mode.IDLE, stepCounter.powerMode());
+        assertTrue(sensors.registrations.isEmpty());
+        assertTrue(sensors.triggers.containsValue(SensorSource.TYPE_SIGNIFICANT_MOTION));
+        assertTrue(host.isRunning(StepCounterCollector.ID));
+
+        long wake = end + 3_600_000L;
+        advance(ticks, wake);
+        sensors.emit(SensorSource.TYPE_SIGNIFICANT_MOTION, sensors.elapsedNanos, 1f);
+        advance(ticks, wake);
+        assertEquals(PowerGovernor.Mode.ACTIVE, stepCounter.powerMode());
+        assertEquals(1, sensors.registrations.size());
+        // a ride, not a walk: back to sleep after the grace
+        advance(ticks, wake + PowerGovernor.DEFAULT_MOTION_GRACE_MILLIS);
+        assertEquals(PowerGovernor.Mode.IDLE, stepCounter.powerMode());
+        assertTrue(sensors.registrations.isEmpty());
+        assertEquals(walked, state.steps());
+        assertEquals("ACTIVE QUIET IDLE ACTIVE IDLE", metrics.powerTimeline().replaceAll("[0-9]+:", ""));
+        // idle from ten minutes after the last step up to the motion
+        assertEquals(3_600_000L - PowerGovernor.DEFAULT_IDLE_AFTER_MILLIS,
+                metrics.powerModeMillis(PowerGovernor.Mode.IDLE), 1_000);
+
+        host.stop(StepCounterCollector.ID);
+        scheduler.drain();
+        assertTrue(sensors.triggers.isEmpty());
+    }
+
+    /**
+     * Runs the ticks due up to {@code millis} on the elapsedRealtime clock, with the sensor
+     * clock following.
+     */
+    private void advance(UploaderTest.VirtualScheduler ticks, long millis) {
+        ticks.now = Math.max(ticks.now, sensors.elapsedNanos / 1_000_000L);
+        while (ticks.nextDue() <= millis) {
+            sensors.elapsedNanos = Math.max(ticks.now, ticks.nextDue()) * 1_000_000L;
+            ticks.runNext();
+        }
+        ticks.now = millis;
+        sensors.elapsedNanos = millis * 1_000_000L;
+    }
+
+    @Test
+    public void collectorsOnlySeeTheHostThread() throws Exception {
+        final ExecutorService hostThread = Executors.newSingleThreadExecutor();
+        final Set<Thread> seen = Collections.synchronizedSet(new HashSet<Thread>());
+        CollectorHost threadedHost = new CollectorHost(new Scheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                hostThread.execute(task);
+            }
+        }, new RecordingListener());
+        final List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ThreadRecordingCollector collector = new ThreadRecordingCollector("c" + i, i * 1_000, seen);
+            threadedHost.register(collector);
+            ids.add(collector.id());
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] callers = new Thread[4];
+        for (int t = 0; t < callers.length; t++) {
+            final CollectorHost target = threadedHost;
+            final int offset = t;
+            callers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 500; i++) {
+                        String id = ids.get((i + offset) % ids.size());
+                        if ((i & 1) == 0) {
+                            target.start(id);
+                        } else {
+                            target.stop(id);
+                        }
+                    }
+                }
+            });
+            callers[t].start();
+        }
+        start.countDown();
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        hostThread.shutdown();
+        assertTrue(hostThread.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, seen.size());
+        assertFalse(seen.contains(Thread.currentThread()));
+    }
+
+    private StepCounterCollector stepCounter(StepJournal journal) {
+        return stepCounter(journal, new StepState(), new CoalescingStepWriterTest.RecordingStore());
+    }
+
+    private StepCounterCollector stepCounter(StepJournal journal, StepState state, StepStore store) {
+        return stepCounter(journal, state, store, new PluginMetrics());
+    }
+
+    private StepCounterCollector stepCounter(StepJournal journal, StepState state, StepStore store, PluginMetrics metrics) {
+        CoalescingStepWriterTest.FakeTime time = new CoalescingStepWriterTest.FakeTime();
+        StepCounterProcessor processor = new StepCounterProcessor(state, new CoalescingStepWriter(store, time),
+                new StepAccountant(1, StepAccountant.NO_BASELINE), journal, time);
+        StepPublisher publisher = new StepPublisher(state, time, new QueueScheduler());
+        return new StepCounterCollector(sensors, processor, journal, publisher, metrics, time);
+    }
+
+    /**
+     * Stands in for SensorManager: sensors exist only once added, events are emitted by hand.
+     */
+    static final class FakeSensorSource implements SensorSource {
+        final Set<Integer> available = new HashSet<>();
+        final Map<Sink, int[]> registrations = new HashMap<>();
+        final Map<Sink, Integer> triggers = new HashMap<>();
+        long elapsedNanos = 1_000_000_000L;
+        int flushes;
+
+        void add(int type) {
+            available.add(type);
+        }
+
+        int latencyOf(Sink sink) {
+            return registrations.get(sink)[2];
+        }
+
+        /**
+         * Delivers one event to every sink registered for {@code type}; trigger sinks are
+         * disarmed first, like the real one-shot sensors.
+         */
+        void emit(int type, long timestampNanos, float... values) {
+            for (Map.Entry<Sink, int[]> entry : new ArrayList<>(registrations.entrySet())) {
+                if (entry.getValue()[0] == type) {
+                    entry.getKey().onSensorEvent(timestampNanos, values);
+                }
+            }
+            for (Map.Entry<Sink, Integer> entry : new ArrayList<>(triggers.entrySet())) {
+                if (entry.getValue() == type) {
+                    triggers.remove(entry.getKey());
+                    entry.getKey().onSensorEvent(timestampNanos, values);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasSensor(int type) {
+            return available.contains(type);
+        }
+
+        @Override
+        public int fifoReservedEventCount(int type) {
+            return 0;
+        }
+
+        @Override
+        public boolean register(int type, int samplingPeriodUs, int maxReportLatencyUs, Sink sink) {
+            if (!available.contains(type)) {
+                return false;
+            }
+            registrations.put(sink, new int[]{type, samplingPeriodUs, maxReportLatencyUs});
+            return true;
+        }
+
+        @Override
+        public boolean requestTrigger(int type, Sink sink) {
+            if (!available.contains(type)) {
+                return false;
+            }
+            triggers.put(sink, type);
+            return true;
+        }
+
+        @Override
+        public void unregister(Sink sink) {
+            registrations.remove(sink);
+            triggers.remove(sink);
+        }
+
+        @Override
+        public boolean flush(Sink sink) {
+            if (!registrations.containsKey(sink)) {
+                return false;
+            }
+            flushes++;
+            return true;
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    /**
+     * Host thread stand-in: tasks wait until the test drains them.
+     */
+    static final class QueueScheduler implements Scheduler {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            tasks.add(task);
+        }
+
+        void drain() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    private static final class RecordingListener implements CollectorHost.Listener {
+        final List<List<String>> changes = new ArrayList<>();
+        final List<String> unavailable = new ArrayList<>();
+
+        List<String> last() {
+            return changes.get(changes.size() - 1);
+        }
+
+        @Override
+        public void onCollectorsChanged(String[] runningIds) {
+            changes.add(Arrays.asList(runningIds));
+        }
+
+        @Override
+        public void onCollectorUnavailable(String id) {
+            unavailable.add(id);
+        }
+    }
+
+    private static final class ThreadRecordingCollector implements Collector {
+        private final String id;
+        private final int latencyUs;
+        private final Set<Thread> seen;
+
+        ThreadRecordingCollector(String id, int latencyUs, Set<Thread> seen) {
+            this.id = id;
+            this.latencyUs = latencyUs;
+            this.seen = seen;
+        }
+
+        @Override
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public String label() {
+            return id;
+        }
+
+        @Override
+        public int requestedReportLatencyUs() {
+            return latencyUs;
+        }
+
+        @Override
+        public boolean start(int reportLatencyUs) {
+            seen.add(Thread.currentThread());
+            return true;
+        }
+
+        @Override
+        public void stop() {
+            seen.add(Thread.currentThread());
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public long eventCount() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DailyAggregatesTest {
+    private static final long MINUTE = 60_000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final ZoneId NEW_YORK = ZoneId.of("America/New_York");
+    private static final ZoneId SANTIAGO = ZoneId.of("America/Santiago");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void daysShortenedAndStretchedByDstEndAtLocalMidnight() throws IOException {
+        DailyAggregates aggregates = open(NEW_YORK);
+        Map<Long, Integer> expected = new HashMap<>();
+        // one step every ten minutes over both 2026 changes: 23 hours on 03-08, 25 on 11-01
+        walk(aggregates, expected, NEW_YORK, LocalDate.of(2026, 3, 6), LocalDate.of(2026, 3, 10));
+        walk(aggregates, expected, NEW_YORK, LocalDate.of(2026, 10, 30), LocalDate.of(2026, 11, 3));
+
+        assertEquals(23 * 6, aggregates.day(LocalDate.of(2026, 3, 8).toEpochDay()));
+        assertEquals(25 * 6, aggregates.day(LocalDate.of(2026, 11, 1).toEpochDay()));
+        assertEquals(24 * 6, aggregates.day(LocalDate.of(2026, 11, 2).toEpochDay()));
+        assertDays(aggregates, expected);
+    }
+
+    @Test
+    public void dayStartingAfterMidnightIsOneHourShort() throws IOException {
+        DailyAggregates aggregates = open(SANTIAGO);
+        Map<Long, Integer> expected = new HashMap<>();
+        // Chile moves its clocks at midnight: 2026-09-06 starts at 01:00, 2026-04-04 ends at 24:00 twice
+        walk(aggregates, expected, SANTIAGO, LocalDate.of(2026, 4, 2), LocalDate.of(2026, 4, 6));
+        walk(aggregates, expected, SANTIAGO, LocalDate.of(2026, 9, 4), LocalDate.of(2026, 9, 8));
+
+        assertEquals(25 * 6, aggregates.day(LocalDate.of(2026, 4, 4).toEpochDay()));
+        assertEquals(23 * 6, aggregates.day(LocalDate.of(2026, 9, 6).toEpochDay()));
+        assertDays(aggregates, expected);
+    }
+
+    @Test
+    public void zoneChangeKeepsStepsOnTheDayTheyWereWalked() throws IOException {
+        DailyAggregates aggregates = open(ZoneOffset.UTC);
+        LocalDate day = LocalDate.of(2026, 6, 10);
+        long noon = day.atTime(12, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+        aggregates.add(noon, 100);
+        aggregates.add(noon + 10 * HOUR, 20);
+
+        // 22:00 UTC is already tomorrow in Tokyo
+        aggregates.setZone(ZoneId.of("Asia/Tokyo"));
+        aggregates.add(noon + 10 * HOUR + MINUTE, 7);
+
+        assertEquals(120, aggregates.day(day.toEpochDay()));
+        assertEquals(7, aggregates.day(day.toEpochDay() + 1));
+        assertEquals(ZoneId.of("Asia/Tokyo"), aggregates.zone());
+    }
+
+    @Test
+    public void weeksRunFromMondayToSunday() throws IOException {
+        DailyAggregates aggregates = open(ZoneOffset.UTC);
+        LocalDate monday = LocalDate.of(2026, 10, 12);
+        for (int i = 0; i < 14; i++) {
+            aggregates.add(millis(monday.plusDays(i), 9), 100 + i);
+        }
+
+        int first = 0;
+        for (int i = 0; i < 7; i++) {
+            first += 100 + i;
+        }
+        assertEquals(first, aggregates.week(monday.toEpochDay()));
+        assertEquals(first, aggregates.week(monday.plusDays(6).toEpochDay()));
+        assertEquals(first + 7 * 7, aggregates.week(monday.plusDays(7).toEpochDay()));
+        assertEquals(0, aggregates.week(monday.minusDays(1).toEpochDay()));
+        assertEquals(2 * first + 7 * 7, aggregates.range(monday.toEpochDay(), monday.plusDays(13).toEpochDay()));
+        assertEquals(103 + 104, aggregates.range(monday.plusDays(3).toEpochDay(), monday.plusDays(4).toEpochDay()));
+    }
+
+    @Test
+    public void oldDaysMakeRoomAndLeaveTheirWeek() throws IOException {
+        DailyAggregates aggregates = new DailyAggregates(new File(folder.getRoot(), "daily.agg"), 14, ZoneOffset.UTC);
+        LocalDate monday = LocalDate.of(2026, 1, 5);
+        for (int i = 0; i < 17; i++) {
+            aggregates.add(millis(monday.plusDays(i), 12), 10);
+        }
+
+        assertEquals(0, aggregates.day(monday.plusDays(2).toEpochDay()));
+        assertEquals(10, aggregates.day(monday.plusDays(3).toEpochDay()));
+        assertEquals(40, aggregates.week(monday.toEpochDay()));
+        assertEquals(140, aggregates.range(monday.toEpochDay(), monday.plusDays(16).toEpochDay()));
+
+        // steps from before the oldest day kept are dropped instead of overwriting a newer day
+        aggregates.add(millis(monday, 12), 5);
+        assertEquals(0, aggregates.day(monday.toEpochDay()));
+        assertEquals(10, aggregates.day(monday.plusDays(14).toEpochDay()));
+    }
+
+    @Test
+    public void reopenKeepsDaysAndIgnoresATornSlot() throws IOException {
+        File file = new File(folder.getRoot(), "daily.agg");
+        DailyAggregates aggregates = new DailyAggregates(file, 30, NEW_YORK);
+        LocalDate monday = LocalDate.of(2026, 2, 2);
+        for (int i = 0; i < 10; i++) {
+            aggregates.add(millis(monday.plusDays(i), 15), 1000 + i);
+        }
+        aggregates.close();
+
+        DailyAggregates reopened = new DailyAggregates(file, ZoneOffset.UTC);
+        assertEquals(30, reopened.capacity());
+        assertEquals(1004, reopened.day(monday.plusDays(4).toEpochDay()));
+        assertEquals(7 * 1000 + 21, reopened.week(monday.toEpochDay()));
+        reopened.close();
+
+        long slot = Math.floorMod(monday.plusDays(4).toEpochDay(), 30L);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(DailyAggregates.HEADER_SIZE + slot * DailyAggregates.RECORD_SIZE + 4);
+            raf.writeInt(1);
+        }
+        DailyAggregates torn = new DailyAggregates(file, ZoneOffset.UTC);
+        assertEquals(0, torn.day(monday.plusDays(4).toEpochDay()));
+        assertEquals(7 * 1000 + 21 - 1004, torn.week(monday.toEpochDay()));
+        assertEquals(1005, torn.day(monday.plusDays(5).toEpochDay()));
+    }
+
+    @Test
+    public void threeYearsOfStepsAcrossZonesAddUp() throws IOException {
+        ZoneId[] zones = {NEW_YORK, SANTIAGO, ZoneId.of("Europe/London"), ZoneId.of("Australia/Lord_Howe"),
+                ZoneId.of("Asia/Kolkata"), ZoneId.of("Pacific/Apia")};
+        Random random = new Random(42);
+        DailyAggregates aggregates = open(zones[0]);
+        ZoneId zone = zones[0];
+        Map<Long, Integer> expected = new HashMap<>();
+        long now = LocalDate.of(2024, 1, 1).atStartOfDay(zone).toInstant().toEpochMilli();
+        long end = LocalDate.of(2027, 1, 1).atStartOfDay(zone).toInstant().toEpochMilli();
+        long total = 0;
+        long adds = 0;
+        int zoneChanges = 0;
+        long nanos = 0;
+        while (now < end) {
+            // walks of a few seconds to a few minutes, with pauses up to a few hours
+            now += random.nextInt(10) == 0 ? random.nextInt((int) (4 * HOUR)) : 1_000L + random.nextInt((int) (3 * MINUTE));
+            if (random.nextInt(20_000) == 0) {
+                zone = zones[random.nextInt(zones.length)];
+                aggregates.setZone(zone);
+                zoneChanges++;
+            }
+            int delta = 1 + random.nextInt(40);
+            long start = System.nanoTime();
+            aggregates.add(now, delta);
+            nanos += System.nanoTime() - start;
+            adds++;
+            total += delta;
+            long day = Instant.ofEpochMilli(now).atZone(zone).toLocalDate().toEpochDay();
+            Integer steps = expected.get(day);
+            expected.put(day, steps == null ? delta : steps + delta);
+        }
+
+        long newest = Long.MIN_VALUE;
+        long oldest = Long.MAX_VALUE;
+        for (long day : expected.keySet()) {
+            newest = Math.max(newest, day);
+            oldest = Math.min(oldest, day);
+        }
+        long firstKept = newest - aggregates.capacity() + 1;
+        long kept = 0;
+        Map<Integer, Long> weeks = new HashMap<>();
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            long day = entry.getKey();
+            int steps = day >= firstKept ? entry.getValue() : 0;
+            assertEquals("day " + LocalDate.ofEpochDay(day), steps, aggregates.day(day));
+            if (steps > 0) {
+                kept += steps;
+                Long week = weeks.get(DailyAggregates.weekOf(day));
+                weeks.put(DailyAggregates.weekOf(day), week == null ? steps : week + steps);
+            }
+        }
+        for (Map.Entry<Integer, Long> entry : weeks.entrySet()) {
+            long monday = entry.getKey() * 7L - 3;
+            assertEquals("week of " + LocalDate.ofEpochDay(monday), (long) entry.getValue(), aggregates.week(monday));
+        }
+        assertEquals(kept, aggregates.range(oldest, newest));
+        assertTrue(kept < total);
+        assertTrue(aggregates.rollovers() + " rollovers for " + expected.size() + " days",
+                aggregates.rollovers() <= expected.size() + zoneChanges);
+        System.out.println(String.format("%d adds over %d days, %d zone changes, %d rollovers, %.0f ns/add",
+                adds, expected.size(), zoneChanges, aggregates.rollovers(), (double) nanos / adds));
+    }
+
+    @Test
+    public void addingWithinTheDayDoesNotAllocate() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+        DailyAggregates aggregates = open(NEW_YORK);
+        long morning = millis(LocalDate.of(2026, 5, 20), 6);
+        addEverySecond(aggregates, morning);
+
+        long calibration = threads.getThreadAllocatedBytes(threadId);
+        calibration = threads.getThreadAllocatedBytes(threadId) - calibration;
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 3 && allocated != 0; round++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            addEverySecond(aggregates, morning);
+            allocated = threads.getThreadAllocatedBytes(threadId) - before - calibration;
+        }
+
+        assertEquals("bytes allocated by adds within one day", 0, allocated);
+    }
+
+    private DailyAggregates open(ZoneId zone) throws IOException {
+        return new DailyAggregates(new File(folder.getRoot(), "daily.agg"), zone);
+    }
+
+    private static void addEverySecond(DailyAggregates aggregates, long from) {
+        for (int i = 0; i < 10_000; i++) {
+            aggregates.add(from + i * 1_000L, 1);
+        }
+    }
+
+    /**
+     * One step every ten minutes from the start of {@code from} to the start of {@code to},
+     * counted in {@code expected} by the brute force local date.
+     */
+    private static void walk(DailyAggregates aggregates, Map<Long, Integer> expected, ZoneId zone,
+                             LocalDate from, LocalDate to) {
+        long end = to.atStartOfDay(zone).toInstant().toEpochMilli();
+        for (long t = from.atStartOfDay(zone).toInstant().toEpochMilli(); t < end; t += 10 * MINUTE) {
+            aggregates.add(t, 1);
+            long day = Instant.ofEpochMilli(t).atZone(zone).toLocalDate().toEpochDay();
+            Integer steps = expected.get(day);
+            expected.put(day, steps == null ? 1 : steps + 1);
+        }
+    }
+
+    private static void assertDays(DailyAggregates aggregates, Map<Long, Integer> expected) {
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals(LocalDate.ofEpochDay(entry.getKey()).toString(),
+                    (int) entry.getValue(), aggregates.day(entry.getKey()));
+        }
+    }
+
+    private static long millis(LocalDate day, int hour) {
+        return day.atTime(hour, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+}
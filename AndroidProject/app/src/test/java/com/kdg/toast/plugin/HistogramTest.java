@@ -0,0 +1,120 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void bucketsTileTheWholeRange() {
+        assertEquals(0, Histogram.lowerBound(0));
+        for (int i = 0; i < Histogram.BUCKET_COUNT; i++) {
+            assertEquals(i, Histogram.bucketIndex(Histogram.lowerBound(i)));
+            assertEquals(i, Histogram.bucketIndex(Histogram.upperBound(i)));
+            if (i > 0) {
+                assertEquals(Histogram.upperBound(i - 1) + 1, Histogram.lowerBound(i));
+            }
+        }
+        assertEquals(Histogram.BUCKET_COUNT - 1, Histogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 16; i++) {
+            histogram.record(i);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(16, snapshot.count);
+        assertEquals(0, snapshot.percentile(0));
+        assertEquals(7, snapshot.percentile(50));
+        assertEquals(15, snapshot.percentile(100));
+        assertEquals(15, snapshot.max);
+        assertEquals(120 / 16, snapshot.mean());
+    }
+
+    @Test
+    public void percentilesStayWithinBucketPrecision() {
+        Random random = new Random(42);
+        Histogram histogram = new Histogram();
+        long[] values = new long[100_000];
+        for (int i = 0; i < values.length; i++) {
+            // log-normal-ish latencies between 1 us and a few seconds
+            values[i] = (long) Math.exp(random.nextGaussian() * 2.5 + 7);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        for (double p : new double[]{1, 10, 50, 90, 99, 99.9, 100}) {
+            long exact = values[(int) Math.ceil(p / 100 * values.length) - 1];
+            long reported = snapshot.percentile(p);
+            assertTrue("p" + p + " " + reported + " < " + exact, reported >= exact);
+            assertTrue("p" + p + " " + reported + " vs " + exact, reported <= exact + exact / Histogram.SUB_BUCKETS + 1);
+        }
+        assertEquals(values[values.length - 1], snapshot.max);
+    }
+
+    @Test
+    public void emptyAndNegative() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.snapshot().percentile(99));
+        histogram.record(-5);
+        assertEquals(1, histogram.snapshot().count);
+        assertEquals(0, histogram.snapshot().max);
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        Histogram histogram = new Histogram();
+        histogram.record(1_000);
+        histogram.reset();
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(0, snapshot.count);
+        assertEquals(0, snapshot.sum);
+        assertEquals(0, snapshot.max);
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws Exception {
+        final Histogram histogram = new Histogram();
+        final int perThread = 500_000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        histogram.record(i % 1000 + offset);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        long expectedSum = 0;
+        for (int t = 0; t < threads.length; t++) {
+            for (int i = 0; i < perThread; i++) {
+                expectedSum += i % 1000 + t;
+            }
+        }
+        assertEquals(threads.length * (long) perThread, snapshot.count);
+        assertEquals(expectedSum, snapshot.sum);
+        assertEquals(999 + threads.length - 1, snapshot.max);
+    }
+}
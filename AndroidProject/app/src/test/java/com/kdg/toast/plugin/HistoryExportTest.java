@@ -0,0 +1,227 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HistoryExportTest {
+    // on a minute boundary
+    private static final long START = 1_760_000_040_000L;
+    private static final long MINUTE = StepJournal.MILLIS_PER_MINUTE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void exportsTheRangeInChunksOfTheSameArray() throws IOException {
+        StepJournal journal = new StepJournal(folder.getRoot(), 4, 8);
+        for (int i = 0; i < 20; i++) {
+            journal.record(START + i * MINUTE, i + 1);
+        }
+
+        HistoryExport export = new HistoryExport(journal, START + 3 * MINUTE + 1, START + 17 * MINUTE, 5);
+        Decoded all = new Decoded();
+        byte[] first = export.next();
+        all.add(first);
+        while (!export.finished()) {
+            assertSame(first, export.next());
+            all.add(first);
+        }
+
+        // the from minute is rounded down, the to minute is not included
+        assertEquals(14, all.minutes.size());
+        assertEquals(3, all.chunks);
+        for (int i = 0; i < 14; i++) {
+            assertEquals(StepJournal.toMinute(START) + 3 + i, (int) all.minutes.get(i));
+            assertEquals(4 + i, (int) all.steps.get(i));
+        }
+        assertTrue(all.last);
+        assertFalse(all.skipped);
+        assertEquals(14, export.records());
+        // reading past the end keeps answering with an empty last chunk
+        assertEquals(0, header(export.next()).getInt(4));
+        assertEquals(HistoryExport.FLAG_LAST, header(first).get(1));
+    }
+
+    @Test
+    public void theMinuteBeingCountedIsIncludedAndLaterStepsAreNot() throws IOException {
+        StepJournal journal = new StepJournal(folder.getRoot());
+        journal.record(START, 5);
+        journal.record(START + MINUTE, 7);
+        HistoryExport export = new HistoryExport(journal, START, START + 10 * MINUTE, 16);
+        journal.record(START + 2 * MINUTE, 11);
+        journal.flush();
+
+        Decoded all = Decoded.drain(export);
+        assertEquals(2, all.minutes.size());
+        assertEquals(12, all.total());
+        assertEquals(23, Decoded.drain(new HistoryExport(journal, START, START + 10 * MINUTE, 16)).total());
+        assertTrue(Decoded.drain(new HistoryExport(journal, START + 5 * MINUTE, START + 10 * MINUTE, 16)).minutes.isEmpty());
+        assertTrue(Decoded.drain(new HistoryExport(new StepJournal(folder.newFolder()), 0, START, 16)).minutes.isEmpty());
+    }
+
+    @Test
+    public void recordsDeletedBeforeTheyWereReadAreFlagged() throws IOException {
+        StepJournal journal = new StepJournal(folder.getRoot(), 4, 3);
+        for (int i = 0; i < 12; i++) {
+            journal.record(START + i * MINUTE, 1);
+        }
+        HistoryExport export = new HistoryExport(journal, 0, START + 100 * MINUTE, 2);
+        Decoded all = new Decoded();
+        all.add(export.next());
+        // the sensor keeps appending and two old segments are rotated out
+        for (int i = 12; i < 20; i++) {
+            journal.record(START + i * MINUTE, 1);
+        }
+        journal.flush();
+        byte[] chunk = export.next();
+        assertEquals(HistoryExport.FLAG_SKIPPED, header(chunk).get(1) & HistoryExport.FLAG_SKIPPED);
+        all.add(chunk);
+        while (!export.finished()) {
+            all.add(export.next());
+        }
+
+        // minutes 0 and 1, then what the export was opened with that is still there
+        assertEquals(2 + 4, all.minutes.size());
+        assertEquals(StepJournal.toMinute(START) + 8, (int) all.minutes.get(2));
+        assertEquals(StepJournal.toMinute(START) + 11, (int) all.minutes.get(5));
+    }
+
+    /**
+     * Exports more than four million minutes, about eight years of walking every minute,
+     * through one 32 KB chunk, and checks that neither the thread nor the heap grows with the
+     * history: returning it as one array would take 32 MB.
+     */
+    @Test
+    public void multiMillionRecordExportsRunInTheMemoryOfOneChunk() throws IOException {
+        int records = 4_000_000;
+        StepJournal journal = new StepJournal(folder.getRoot(), 1 << 18, 16);
+        long walked = 0;
+        for (int i = 0; i < records; i++) {
+            int steps = 1 + i % 7;
+            journal.record(START + i * MINUTE, steps);
+            walked += steps;
+        }
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+        List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                heap.add(pool);
+            }
+        }
+
+        HistoryExport export = new HistoryExport(journal, START, START + (long) records * MINUTE, HistoryExport.DEFAULT_CHUNK_RECORDS);
+        System.gc();
+        long heapBefore = 0;
+        for (MemoryPoolMXBean pool : heap) {
+            pool.resetPeakUsage();
+            heapBefore += pool.getUsage().getUsed();
+        }
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long started = System.nanoTime();
+        long exported = 0;
+        long steps = 0;
+        int lastMinute = Integer.MIN_VALUE;
+        int chunks = 0;
+        ByteBuffer reader = null;
+        while (!export.finished()) {
+            byte[] chunk = export.next();
+            if (reader == null) {
+                reader = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            int count = reader.getInt(4);
+            for (int i = 0; i < count; i++) {
+                int minute = reader.getInt(HistoryExport.HEADER_SIZE + i * HistoryExport.RECORD_SIZE);
+                assertTrue(minute > lastMinute);
+                lastMinute = minute;
+                steps += reader.getInt(HistoryExport.HEADER_SIZE + i * HistoryExport.RECORD_SIZE + 4);
+            }
+            exported += count;
+            chunks++;
+        }
+        long nanos = System.nanoTime() - started;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        long heapPeak = 0;
+        for (MemoryPoolMXBean pool : heap) {
+            heapPeak += pool.getPeakUsage().getUsed();
+        }
+        long heapGrowth = heapPeak - heapBefore;
+
+        assertEquals(records, exported);
+        assertEquals(walked, steps);
+        long oneArray = (long) records * HistoryExport.RECORD_SIZE;
+        int chunkBytes = HistoryExport.HEADER_SIZE + HistoryExport.DEFAULT_CHUNK_RECORDS * HistoryExport.RECORD_SIZE;
+        System.out.println(String.format(
+                "history export: %d records in %d chunks of %d bytes, %.1f M records/s, "
+                        + "%d bytes allocated, heap peak %+d KB (one array would be %d KB)",
+                exported, chunks, chunkBytes, exported * 1e3 / nanos, allocated, heapGrowth / 1024, oneArray / 1024));
+        assertTrue("allocated " + allocated, allocated < chunkBytes);
+        assertTrue("heap grew by " + heapGrowth, heapGrowth < oneArray / 8);
+    }
+
+    private static ByteBuffer header(byte[] chunk) {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(HistoryExport.VERSION, buffer.get(0));
+        return buffer;
+    }
+
+    /**
+     * What Unity's BinaryReader would make of the chunks.
+     */
+    static final class Decoded {
+        final List<Integer> minutes = new ArrayList<>();
+        final List<Integer> steps = new ArrayList<>();
+        int chunks;
+        boolean last;
+        boolean skipped;
+
+        static Decoded drain(HistoryExport export) {
+            Decoded decoded = new Decoded();
+            while (!export.finished()) {
+                decoded.add(export.next());
+            }
+            return decoded;
+        }
+
+        void add(byte[] chunk) {
+            ByteBuffer buffer = header(chunk);
+            assertFalse("chunk after the last one", last);
+            byte flags = buffer.get(1);
+            last = (flags & HistoryExport.FLAG_LAST) != 0;
+            skipped |= (flags & HistoryExport.FLAG_SKIPPED) != 0;
+            int count = buffer.getInt(4);
+            buffer.position(HistoryExport.HEADER_SIZE);
+            for (int i = 0; i < count; i++) {
+                minutes.add(buffer.getInt());
+                steps.add(buffer.getInt());
+            }
+            chunks++;
+        }
+
+        long total() {
+            long total = 0;
+            for (int step : steps) {
+                total += step;
+            }
+            return total;
+        }
+    }
+}
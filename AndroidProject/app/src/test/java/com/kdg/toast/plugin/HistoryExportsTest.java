@@ -0,0 +1,82 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class HistoryExportsTest {
+    private static final long START = 1_760_000_040_000L;
+    private static final long MINUTE = StepJournal.MILLIS_PER_MINUTE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StepJournal journal;
+    private HistoryExports exports;
+
+    @Before
+    public void setUp() throws IOException {
+        journal = new StepJournal(folder.getRoot());
+        for (int i = 0; i < 10; i++) {
+            journal.record(START + i * MINUTE, i + 1);
+        }
+        exports = new HistoryExports(2);
+    }
+
+    @Test
+    public void readsCopiesUntilTheLastChunkAndThenCloses() throws IOException {
+        long id = exports.open(journal, START, START + 10 * MINUTE, 4);
+        HistoryExportTest.Decoded all = new HistoryExportTest.Decoded();
+        byte[] previous = null;
+        while (!all.last) {
+            byte[] chunk = exports.read(id);
+            assertNotSame("every read is the caller's own copy", previous, chunk);
+            assertEquals(HistoryExport.HEADER_SIZE + 4 * HistoryExport.RECORD_SIZE, chunk.length);
+            all.add(chunk);
+            previous = chunk;
+        }
+
+        assertEquals(10, all.minutes.size());
+        assertEquals(55, all.total());
+        assertEquals(0, exports.openCount());
+        assertEquals(0, exports.read(id).length);
+    }
+
+    @Test
+    public void aCopyIsNotChangedByTheNextRead() throws IOException {
+        long id = exports.open(journal, START, START + 10 * MINUTE, 4);
+        byte[] first = exports.read(id);
+        byte[] kept = first.clone();
+        exports.read(id);
+        assertArrayEquals(kept, first);
+    }
+
+    @Test
+    public void unknownAndClosedIdsReadEmpty() throws IOException {
+        assertEquals(0, exports.read(42).length);
+        long id = exports.open(journal, START, START + 10 * MINUTE, 4);
+        exports.read(id);
+        exports.close(id);
+        assertEquals(0, exports.read(id).length);
+        exports.close(id);
+        assertEquals(0, exports.openCount());
+    }
+
+    @Test
+    public void finishedExportsFreeTheirSlot() throws IOException {
+        long first = exports.open(journal, START, START + 10 * MINUTE, 0);
+        long second = exports.open(journal, START, START + 10 * MINUTE, 0);
+        assertEquals(-1, exports.open(journal, START, START + 10 * MINUTE, 0));
+
+        // the default chunk holds all ten minutes, so one read finishes the export
+        exports.read(first);
+        long third = exports.open(journal, START, START + 10 * MINUTE, 0);
+        assertTrue(third > second);
+        assertEquals(2, exports.openCount());
+    }
+}
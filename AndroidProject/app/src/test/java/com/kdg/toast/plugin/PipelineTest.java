@@ -0,0 +1,338 @@
+package com.kdg.toast.plugin;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PipelineTest {
+    private final List<Pipeline> started = new ArrayList<>();
+
+    @After
+    public void stopPipelines() {
+        for (Pipeline pipeline : started) {
+            pipeline.stop(1_000L);
+        }
+    }
+
+    @Test
+    public void ringWrapsAroundAndRefusesWhenFull() {
+        EventRing ring = new EventRing(3, 2);
+        assertEquals(4, ring.capacity());
+        long[] record = new long[2];
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++) {
+                record[0] = round * 10 + i;
+                assertTrue(ring.offer(record));
+            }
+            assertTrue(ring.isFull());
+            assertFalse(ring.offer(record));
+            for (int i = 0; i < 4; i++) {
+                assertTrue(ring.poll(record));
+                assertEquals(round * 10 + i, record[0]);
+            }
+            assertFalse(ring.poll(record));
+        }
+        assertEquals(4, ring.highWater());
+    }
+
+    @Test
+    public void recordsPassEveryStageInOrder() throws Exception {
+        final long count = 200_000;
+        final long[] lastSeen = {-1};
+        final int[] outOfOrder = {0};
+        Pipeline pipeline = new Pipeline("test", 2)
+                .addStage("double", new Stage() {
+                    @Override
+                    public boolean process(long[] record) {
+                        record[1] = record[0] * 2;
+                        return true;
+                    }
+                }, 8, Pipeline.Backpressure.BLOCK)
+                .addStage("check", new Stage() {
+                    @Override
+                    public boolean process(long[] record) {
+                        if (record[0] != lastSeen[0] + 1 || record[1] != record[0] * 2) {
+                            outOfOrder[0]++;
+                        }
+                        lastSeen[0] = record[0];
+                        return false;
+                    }
+                }, 8, Pipeline.Backpressure.BLOCK);
+        start(pipeline);
+
+        long[] record = new long[2];
+        for (long i = 0; i < count; i++) {
+            record[0] = i;
+            assertTrue(pipeline.submit(record));
+        }
+        assertTrue(pipeline.awaitIdle(10_000L));
+
+        assertEquals(count - 1, lastSeen[0]);
+        assertEquals(0, outOfOrder[0]);
+        assertEquals(count, pipeline.processed(0));
+        assertEquals(count, pipeline.processed(1));
+    }
+
+    @Test
+    public void blockParksTheProducerUntilTheStageCatchesUp() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        Pipeline pipeline = new Pipeline("test", 1)
+                .addStage("stalled", new Stage() {
+                    @Override
+                    public boolean process(long[] record) {
+                        await(release);
+                        return false;
+                    }
+                }, 2, Pipeline.Backpressure.BLOCK);
+        start(pipeline);
+
+        final Pipeline target = pipeline;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long[] record = new long[1];
+                for (int i = 0; i < 10; i++) {
+                    target.submit(record);
+                }
+            }
+        });
+        producer.start();
+        // one record in the stage, two in the ring, the fourth submit waits
+        waitForState(producer, Thread.State.WAITING);
+        assertEquals(2, pipeline.highWater(0));
+
+        release.countDown();
+        producer.join(5_000L);
+        assertFalse(producer.isAlive());
+        assertTrue(pipeline.awaitIdle(5_000L));
+        assertEquals(10, pipeline.processed(0));
+        assertTrue(pipeline.blocked(0) > 0);
+        assertEquals(0, pipeline.conflated(0));
+    }
+
+    @Test
+    public void conflateFoldsWhatDoesNotFitAndKeepsOrder() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final long[] sum = {0};
+        final long[] lastTime = {-1};
+        final int[] outOfOrder = {0};
+        Pipeline pipeline = new Pipeline("test", 2)
+                .addStage("stalled", new PipelineStage() {
+                    @Override
+                    public boolean process(long[] record) {
+                        await(release);
+                        if (record[0] <= lastTime[0]) {
+                            outOfOrder[0]++;
+                        }
+                        lastTime[0] = record[0];
+                        sum[0] += record[1];
+                        return false;
+                    }
+
+                    @Override
+                    public boolean merge(long[] pending, long[] newer) {
+                        pending[0] = newer[0];
+                        pending[1] += newer[1];
+                        return true;
+                    }
+                }, 4, Pipeline.Backpressure.CONFLATE);
+        start(pipeline);
+
+        long[] record = new long[2];
+        for (int i = 1; i <= 1_000; i++) {
+            record[0] = i;
+            record[1] = 1;
+            // never waits, the stage is stuck
+            assertTrue(pipeline.submit(record));
+        }
+        assertTrue(pipeline.conflated(0) > 0);
+        release.countDown();
+        assertTrue(pipeline.awaitIdle(5_000L));
+
+        assertEquals(1_000, sum[0]);
+        assertEquals(1_000, lastTime[0]);
+        assertEquals(0, outOfOrder[0]);
+        assertEquals(0, pipeline.blocked(0));
+        assertEquals(1_000, pipeline.processed(0) + pipeline.conflated(0));
+    }
+
+    /**
+     * The stage finds its ring empty, and before it looks at the pending record the feeding
+     * thread fills the ring and parks a newer record. The ring goes first.
+     */
+    @Test
+    public void aRecordParkedAfterAnEmptyPollWaitsForTheRing() throws Exception {
+        final List<Long> processed = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch allProcessed = new CountDownLatch(3);
+        final Pipeline[] pipeline = new Pipeline[1];
+        EventRing ring = new EventRing(2, 1) {
+            private boolean refilled;
+
+            @Override
+            boolean poll(long[] record) {
+                if (super.poll(record)) {
+                    return true;
+                }
+                if (!refilled) {
+                    refilled = true;
+                    // fills the ring with 1 and 2, 3 is left pending
+                    for (long i = 1; i <= 3; i++) {
+                        pipeline[0].submit(new long[]{i});
+                    }
+                }
+                return false;
+            }
+        };
+        pipeline[0] = new Pipeline("test", 1)
+                .addStage("ordered", new PipelineStage() {
+                    @Override
+                    public boolean process(long[] record) {
+                        processed.add(record[0]);
+                        allProcessed.countDown();
+                        return false;
+                    }
+
+                    @Override
+                    public boolean merge(long[] pending, long[] newer) {
+                        pending[0] = newer[0];
+                        return true;
+                    }
+                }, ring, Pipeline.Backpressure.CONFLATE);
+        start(pipeline[0]);
+
+        // idle until the stage thread first polls, so wait for the records themselves
+        assertTrue(allProcessed.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1L, 2L, 3L), processed);
+    }
+
+    @Test
+    public void aRefusedMergeWaitsForThePendingRecord() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Long> processed = Collections.synchronizedList(new ArrayList<Long>());
+        Pipeline pipeline = new Pipeline("test", 1)
+                .addStage("stalled", new PipelineStage() {
+                    @Override
+                    public boolean process(long[] record) {
+                        await(release);
+                        processed.add(record[0]);
+                        return false;
+                    }
+
+                    @Override
+                    public boolean merge(long[] pending, long[] newer) {
+                        // merges within a group of ten only
+                        if (pending[0] / 10 != newer[0] / 10) {
+                            return false;
+                        }
+                        pending[0] = newer[0];
+                        return true;
+                    }
+                }, 2, Pipeline.Backpressure.CONFLATE);
+        start(pipeline);
+
+        final Pipeline target = pipeline;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long[] record = new long[1];
+                for (long i = 0; i < 40; i++) {
+                    record[0] = i;
+                    target.submit(record);
+                }
+            }
+        });
+        producer.start();
+        waitForState(producer, Thread.State.WAITING);
+        release.countDown();
+        producer.join(5_000L);
+        assertFalse(producer.isAlive());
+        assertTrue(pipeline.awaitIdle(5_000L));
+
+        assertEquals(39L, (long) processed.get(processed.size() - 1));
+        for (int i = 1; i < processed.size(); i++) {
+            assertTrue(processed.get(i) > processed.get(i - 1));
+        }
+        // every group of ten left at least its last record
+        for (long group = 0; group < 4; group++) {
+            assertTrue(processed.contains(group * 10 + 9));
+        }
+        assertTrue(pipeline.blocked(0) > 0);
+        assertEquals(40, pipeline.processed(0) + pipeline.conflated(0));
+    }
+
+    @Test
+    public void stopDrainsAndThenRefuses() {
+        final long[] seen = {0};
+        Pipeline pipeline = new Pipeline("test", 1)
+                .addStage("count", new Stage() {
+                    @Override
+                    public boolean process(long[] record) {
+                        seen[0]++;
+                        return false;
+                    }
+                }, 4, Pipeline.Backpressure.BLOCK);
+        start(pipeline);
+        long[] record = new long[1];
+        for (int i = 0; i < 100; i++) {
+            pipeline.submit(record);
+        }
+
+        assertTrue(pipeline.stop(5_000L));
+        assertEquals(100, seen[0]);
+        assertFalse(pipeline.submit(record));
+        assertTrue(pipeline.isIdle());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void stagesAreAddedBeforeStart() {
+        Pipeline pipeline = new Pipeline("test", 1)
+                .addStage("first", new Stage(), 4, Pipeline.Backpressure.BLOCK);
+        start(pipeline);
+        pipeline.addStage("late", new Stage(), 4, Pipeline.Backpressure.BLOCK);
+    }
+
+    private void start(Pipeline pipeline) {
+        pipeline.start(Executors.defaultThreadFactory());
+        started.add(pipeline);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitForState(Thread thread, Thread.State state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000L;
+        while (thread.getState() != state) {
+            assertTrue("thread never reached " + state, System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Stage that passes records on unchanged and cannot conflate.
+     */
+    static class Stage implements PipelineStage {
+        @Override
+        public boolean process(long[] record) {
+            return true;
+        }
+
+        @Override
+        public boolean merge(long[] pending, long[] newer) {
+            throw new AssertionError("merge on a blocking stage");
+        }
+    }
+}
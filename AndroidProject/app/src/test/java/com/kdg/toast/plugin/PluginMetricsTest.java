@@ -0,0 +1,176 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class PluginMetricsTest {
+    private static final long MILLIS = 1_000_000L;
+
+    @Test
+    public void groupsDeliveryBurstsIntoBatches() {
+        PluginMetrics metrics = new PluginMetrics();
+        long delivery = 1_000 * MILLIS;
+        long event = 0;
+        for (int batch = 0; batch < 4; batch++) {
+            // ten events sampled 500 ms apart, delivered back to back when the FIFO drains
+            for (int i = 0; i < 10; i++) {
+                event += 500 * MILLIS;
+                metrics.onSensorEvent(event, delivery + i * 100_000L);
+            }
+            delivery += 5_000 * MILLIS;
+        }
+        Histogram.Snapshot batches = metrics.batchSize.snapshot();
+        // the last burst is still open
+        assertEquals(3, batches.count);
+        assertEquals(10, batches.max);
+        assertEquals(10, batches.percentile(50));
+        assertEquals(40, metrics.sensorEvents.get());
+        assertEquals(39, metrics.eventIntervalMillis.snapshot().count);
+        assertEquals(500, metrics.eventIntervalMillis.snapshot().max);
+    }
+
+    @Test
+    public void unbatchedEventsAreBatchesOfOne() {
+        PluginMetrics metrics = new PluginMetrics();
+        for (int i = 1; i <= 20; i++) {
+            metrics.onSensorEvent(i * 600 * MILLIS, i * 600 * MILLIS + 2 * MILLIS);
+        }
+        Histogram.Snapshot batches = metrics.batchSize.snapshot();
+        assertEquals(19, batches.count);
+        assertEquals(1, batches.max);
+        assertEquals(2, metrics.deliveryDelayMillis.snapshot().max);
+    }
+
+    @Test
+    public void snapshotListsEveryMetric() {
+        PluginMetrics metrics = new PluginMetrics();
+        metrics.serviceStarts.incrementAndGet();
+        metrics.onFlush(250_000L);
+        metrics.onSync(2_000_000L);
+        String snapshot = metrics.snapshot();
+        assertTrue(snapshot, snapshot.contains("service_starts 1\n"));
+        assertTrue(snapshot, snapshot.contains("flushes 1\n"));
+        assertTrue(snapshot, snapshot.contains("flush_us count=1 mean=250 p50=250 p90=250 p99=250 max=250\n"));
+        assertTrue(snapshot, snapshot.contains("sync_us count=1 mean=2000"));
+        assertEquals(19, snapshot.split("\n").length);
+
+        metrics.reset();
+        assertTrue(metrics.snapshot().contains("flushes 0\n"));
+    }
+
+    @Test
+    public void keepsThePowerTimeline() {
+        PluginMetrics metrics = new PluginMetrics();
+        assertEquals("", metrics.powerTimeline());
+        metrics.onPowerMode(1_000, PowerGovernor.Mode.ACTIVE);
+        metrics.onPowerMode(121_000, PowerGovernor.Mode.QUIET);
+        metrics.onPowerMode(601_000, PowerGovernor.Mode.IDLE);
+        metrics.onPowerMode(3_601_000, PowerGovernor.Mode.ACTIVE);
+        assertEquals("1000:ACTIVE 121000:QUIET 601000:IDLE 3601000:ACTIVE", metrics.powerTimeline());
+        assertEquals(120_000, metrics.powerModeMillis(PowerGovernor.Mode.ACTIVE));
+        assertEquals(480_000, metrics.powerModeMillis(PowerGovernor.Mode.QUIET));
+        assertEquals(3_000_000, metrics.powerModeMillis(PowerGovernor.Mode.IDLE));
+        assertTrue(metrics.snapshot(), metrics.snapshot().contains("power_transitions 4\npower_ms active=120000 quiet=480000 idle=3000000\n"));
+
+        // only the latest changes are kept
+        for (int i = 0; i < PluginMetrics.POWER_TIMELINE_SIZE; i++) {
+            metrics.onPowerMode(4_000_000 + i, i % 2 == 0 ? PowerGovernor.Mode.QUIET : PowerGovernor.Mode.ACTIVE);
+        }
+        String timeline = metrics.powerTimeline();
+        assertEquals(PluginMetrics.POWER_TIMELINE_SIZE, timeline.split(" ").length);
+        assertTrue(timeline, timeline.startsWith("4000000:QUIET "));
+
+        metrics.reset();
+        assertEquals("", metrics.powerTimeline());
+        assertEquals(0, metrics.powerModeMillis(PowerGovernor.Mode.IDLE));
+    }
+
+    @Test
+    public void measuresColdStartOncePerServiceInstance() {
+        PluginMetrics metrics = new PluginMetrics();
+        assertEquals(-1, metrics.timeToFirstEventMillis());
+        metrics.onServiceCreated(10_000 * MILLIS);
+        metrics.onForeground(10_040 * MILLIS);
+        metrics.onForeground(12_000 * MILLIS);
+        assertEquals(-1, metrics.timeToFirstEventMillis());
+        metrics.onSensorEvent(9_000 * MILLIS, 10_350 * MILLIS);
+        metrics.onSensorEvent(10_500 * MILLIS, 10_501 * MILLIS);
+
+        assertEquals(350, metrics.timeToFirstEventMillis());
+        assertEquals(1, metrics.foregroundMillis.snapshot().count);
+        assertEquals(40, metrics.foregroundMillis.snapshot().max);
+        assertEquals(1, metrics.firstEventMillis.snapshot().count);
+
+        metrics.onServiceCreated(20_000 * MILLIS);
+        assertEquals(-1, metrics.timeToFirstEventMillis());
+        metrics.onSensorEvent(20_100 * MILLIS, 20_120 * MILLIS);
+        assertEquals(120, metrics.timeToFirstEventMillis());
+        assertEquals(2, metrics.firstEventMillis.snapshot().count);
+        assertTrue(metrics.snapshot().contains("first_event_ms count=2"));
+    }
+
+    @Test
+    public void meteredStoreTimesSaves() {
+        PluginMetrics metrics = new PluginMetrics();
+        CoalescingStepWriterTest.RecordingStore store = new CoalescingStepWriterTest.RecordingStore();
+        new MeteredStepStore(store, metrics).saveSteps(12, StepAccountant.NO_BASELINE, 0L);
+        assertEquals(1, store.writes);
+        assertEquals(12, store.lastSteps);
+        assertEquals(1, metrics.flushes.get());
+        assertEquals(1, metrics.flushMicros.snapshot().count);
+    }
+
+    @Test
+    public void recordingDoesNotAllocateWhileSnapshotsAreTaken() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        final PluginMetrics metrics = new PluginMetrics();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread unity = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    assertNotNull(metrics.snapshot());
+                }
+            }
+        });
+        unity.start();
+        long[] clock = new long[1];
+        record(metrics, clock, 200_000);
+
+        long calibration = threads.getThreadAllocatedBytes(threadId);
+        calibration = threads.getThreadAllocatedBytes(threadId) - calibration;
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 3 && allocated != 0; round++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            record(metrics, clock, 100_000);
+            allocated = threads.getThreadAllocatedBytes(threadId) - before - calibration;
+        }
+        done.set(true);
+        unity.join();
+
+        assertEquals("bytes allocated recording 100k events", 0, allocated);
+        assertTrue(metrics.sensorEvents.get() >= 300_000);
+    }
+
+    private static void record(PluginMetrics metrics, long[] clock, int events) {
+        for (int i = 0; i < events; i++) {
+            clock[0] += 550 * MILLIS;
+            metrics.onSensorEvent(clock[0], clock[0] + (i & 7) * MILLIS);
+            if ((i & 63) == 0) {
+                metrics.onFlush(180_000L + i);
+                metrics.serviceStarts.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Test;
+
+import static com.kdg.toast.plugin.PowerGovernor.Mode.ACTIVE;
+import static com.kdg.toast.plugin.PowerGovernor.Mode.IDLE;
+import static com.kdg.toast.plugin.PowerGovernor.Mode.QUIET;
+import static org.junit.Assert.*;
+
+public class PowerGovernorTest {
+    private static final long SECOND = 1_000L;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long START = 5 * MINUTE;
+
+    @Test
+    public void stillnessGoesQuietThenIdle() {
+        PowerGovernor governor = new PowerGovernor();
+        governor.reset(START, true);
+        assertEquals(ACTIVE, governor.mode());
+        assertEquals(START + 2 * MINUTE, governor.deadlineMillis());
+
+        assertFalse(governor.onTick(START + 2 * MINUTE - 1));
+        assertTrue(governor.onTick(START + 2 * MINUTE));
+        assertEquals(QUIET, governor.mode());
+        assertEquals(START + 10 * MINUTE, governor.deadlineMillis());
+
+        assertTrue(governor.onTick(START + 10 * MINUTE));
+        assertEquals(IDLE, governor.mode());
+        assertEquals(PowerGovernor.NO_DEADLINE, governor.deadlineMillis());
+        assertFalse(governor.onTick(START + 600 * MINUTE));
+        assertEquals(2, governor.transitions());
+    }
+
+    @Test
+    public void aLateTickSkipsStraightToWhereTheTimeoutsPutIt() {
+        PowerGovernor governor = new PowerGovernor();
+        governor.reset(START, true);
+        // the device slept through the quiet deadline
+        assertTrue(governor.onTick(START + 45 * MINUTE));
+        assertEquals(IDLE, governor.mode());
+    }
+
+    @Test
+    public void walkingKeepsItActive() {
+        PowerGovernor governor = new PowerGovernor();
+        governor.reset(START, true);
+        for (long t = START; t < START + 30 * MINUTE; t += 600) {
+            assertFalse(governor.onSteps(t, 1));
+            assertFalse(governor.onTick(t));
+        }
+        assertEquals(ACTIVE, governor.mode());
+        assertEquals(0, governor.transitions());
+    }
+
+    @Test
+    public void batchedStepsRampUpOnlyWhenWalking() {
+        PowerGovernor governor = new PowerGovernor();
+        governor.reset(START, true);
+        governor.onTick(START + 2 * MINUTE);
+        assertEquals(QUIET, governor.mode());
+
+        // a few steps around the desk keep it from going idle but stay quiet
+        assertFalse(governor.onSteps(START + 8 * MINUTE, 3));
+        assertFalse(governor.onSteps(START + 8 * MINUTE + 40 * SECOND, 4));
+        assertEquals(QUIET, governor.mode());
+        assertFalse(governor.onTick(START + 10 * MINUTE));
+        assertEquals(START + 18 * MINUTE + 40 * SECOND, governor.deadlineMillis());
+
+        // a batch delivered late still tells walking from shuffling by the event times
+        long walk = START + 12 * MINUTE;
+        for (int i = 0; i < PowerGovernor.RAMP_UP_STEPS - 1; i++) {
+            assertFalse(governor.onSteps(walk + i * 500, 1));
+        }
+        assertTrue(governor.onSteps(walk + 5 * SECOND, 1));
+        assertEquals(ACTIVE, governor.mode());
+        assertEquals(walk + 5 * SECOND + 2 * MINUTE, governor.deadlineMillis());
+    }
+
+    @Test
+    public void motionWithoutStepsFallsBack() {
+        PowerGovernor governor = new PowerGovernor();
+        governor.reset(START, true);
+        governor.onTick(START + 10 * MINUTE);
+        assertEquals(IDLE, governor.mode());
+
+        long motion = START + 60 * MINUTE;
+        assertTrue(governor.onMotion(motion));
+        assertEquals(ACTIVE, governor.mode());
+        assertEquals(motion + PowerGovernor.DEFAULT_MOTION_GRACE_MILLIS, governor.deadlineMillis());
+        // the step timeouts wait for the grace to end
+        assertFalse(governor.onTick(motion + 59 * SECOND));
+        assertTrue(governor.onTick(motion + 60 * SECOND));
+        assertEquals(IDLE, governor.mode());
+
+        // only an idle governor listens for motion, a quiet one waits for its batches
+        governor.reset(START, true);
+        governor.onTick(START + 2 * MINUTE);
+        assertFalse(governor.onMotion(START + 3 * MINUTE));
+        assertEquals(QUIET, governor.mode());
+    }
+
+    @Test
+    public void motionFollowedByStepsStaysActive() {
+        PowerGovernor governor = new PowerGovernor();
+        governor.reset(START, true);
+        governor.onTick(START + 10 * MINUTE);
+        long motion = START + 60 * MINUTE;
+        governor.onMotion(motion);
+        // the first reading after registering hands in the steps walked meanwhile
+        assertFalse(governor.onSteps(motion + 2 * SECOND, 12));
+        assertFalse(governor.onTick(motion + 60 * SECOND));
+        assertEquals(ACTIVE, governor.mode());
+        assertEquals(motion + 2 * SECOND + 2 * MINUTE, governor.deadlineMillis());
+        assertFalse(governor.onMotion(motion + 3 * SECOND));
+    }
+
+    @Test
+    public void theHardwareCounterNeverIdles() {
+        PowerGovernor governor = new PowerGovernor();
+        governor.reset(START, false);
+        assertTrue(governor.onTick(START + 2 * MINUTE));
+        assertEquals(QUIET, governor.mode());
+        assertEquals(PowerGovernor.NO_DEADLINE, governor.deadlineMillis());
+        assertFalse(governor.onTick(START + 24 * 60 * MINUTE));
+        assertEquals(QUIET, governor.mode());
+        // batched steps from the first minutes of a walk bring it back
+        for (int i = 0; i < PowerGovernor.RAMP_UP_STEPS; i++) {
+            governor.onSteps(START + 600 * MINUTE + i * 600, 1);
+        }
+        assertEquals(ACTIVE, governor.mode());
+    }
+
+    @Test
+    public void onlyTheHardwareCounterIsBatchedWhileQuiet() {
+        PowerGovernor governor = new PowerGovernor();
+        governor.reset(START, true);
+        assertEquals(0, governor.reportLatencyUs(0, true));
+        assertEquals(10_000_000, governor.reportLatencyUs(10_000_000, true));
+        governor.onTick(START + 2 * MINUTE);
+        assertEquals(PowerGovernor.QUIET_REPORT_LATENCY_US, governor.reportLatencyUs(0, true));
+        assertEquals(400_000_000, governor.reportLatencyUs(400_000_000, true));
+        // accelerometer samples dropped from a full FIFO would be steps lost
+        assertEquals(0, governor.reportLatencyUs(0, false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void idleMustNotComeBeforeQuiet() {
+        new PowerGovernor(10 * MINUTE, 2 * MINUTE, MINUTE);
+    }
+}
@@ -0,0 +1,526 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays step traces through {@link PowerGovernor} and estimates the wake-ups it saves over
+ * listening all the time. Traces are CSV files, {@code timestamp_ms,steps[,motion]} per line:
+ * a step counter event adding {@code steps}, or with {@code motion} 1 and no steps a
+ * significant motion without walking, such as a car ride. A {@code # duration_ms=N} comment
+ * sets the trace length, the last event otherwise.
+ * <p>
+ * The sensor model: each delivery of the step counter is a wake-up, one per event without
+ * batching, one per batch with it. Re-registering happens while awake anyway, on a tick or a
+ * callback, and delivers the current count right away; those are counted apart as
+ * registrations, not wake-ups. The accelerometer fallback is replayed as samples at its rate
+ * while registered, each a wake-up without batching. Its significant motion trigger is a
+ * wake-up of its own and fires once {@link #WALK_STEPS} steps were walked within
+ * {@link #WALK_WINDOW_MILLIS}; what was walked before is missed.
+ * <p>
+ * The test writes synthetic days and replays them through the same CSV path. Recorded traces
+ * are replayed with {@link #main(String[])}, passing files or directories of them.
+ */
+public class PowerReplayTest {
+    static final int WALK_STEPS = 8;
+    static final long WALK_WINDOW_MILLIS = 30_000L;
+    private static final long MINUTE = 60_000L;
+    private static final long HOUR = 60 * MINUTE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void syntheticDaysSaveWakeUpsWithoutLosingSteps() throws IOException {
+        write(new File(folder.getRoot(), "office_day.csv"), Day.office(new Random(1)));
+        write(new File(folder.getRoot(), "active_day.csv"), Day.active(new Random(2)));
+        write(new File(folder.getRoot(), "phone_on_desk.csv"), Day.onDesk(new Random(3)));
+
+        List<Result> results = replay(folder.getRoot(), 0);
+        print(results);
+
+        for (Result result : results) {
+            Outcome counter = result.counter;
+            assertEquals(result.name, result.steps, counter.reported + counter.undelivered);
+            assertEquals(result.name, 0, counter.missed);
+            assertEquals(result.name, 0, counter.motionWakes);
+            assertTrue(result.name, counter.wakeUps() < result.alwaysOn.wakeUps());
+            assertTrue(result.name, counter.meanDelayMillis() < PowerGovernor.QUIET_REPORT_LATENCY_US / 1000);
+
+            Outcome accel = result.accelerometer;
+            assertEquals(result.name, result.steps, accel.reported + accel.undelivered + accel.missed);
+            assertTrue(result.name + " missed " + accel.missed, accel.missed <= result.steps * 0.05);
+            assertTrue(result.name, accel.registeredMillis * 2 < result.accelerometerAlwaysOn.registeredMillis);
+        }
+        // shuffling at the desk is batched once quiet
+        Result office = results.get(1);
+        assertEquals("office_day.csv", office.name);
+        assertTrue(office.counter.wakeUps() * 10 < office.alwaysOn.wakeUps() * 9);
+    }
+
+    @Test
+    public void batchedConfigurationStillSaves() throws IOException {
+        write(new File(folder.getRoot(), "office_day.csv"), Day.office(new Random(4)));
+        // ten second batches configured through StartService
+        Result result = replay(folder.getRoot(), 10_000_000).get(0);
+        print(Arrays.asList(result));
+        assertEquals(result.steps, result.counter.reported + result.counter.undelivered);
+        assertTrue(result.counter.wakeUps() < result.alwaysOn.wakeUps());
+    }
+
+    /**
+     * Replays CSV traces given as files or directories and prints the report. A first
+     * argument of {@code --latency-us=N} replays with that configured batching.
+     */
+    public static void main(String[] args) throws IOException {
+        int latencyUs = 0;
+        List<Result> results = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--latency-us=")) {
+                latencyUs = Integer.parseInt(arg.substring("--latency-us=".length()));
+            } else {
+                results.addAll(replay(new File(arg), latencyUs));
+            }
+        }
+        print(results);
+    }
+
+    static List<Result> replay(File path, int activeLatencyUs) throws IOException {
+        List<Result> results = new ArrayList<>();
+        File[] files = path.isDirectory() ? path.listFiles() : new File[]{path};
+        if (files == null) {
+            return results;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().endsWith(".csv")) {
+                Trace trace = read(file);
+                results.add(new Result(file.getName(), trace,
+                        new Replay(trace, null, activeLatencyUs, true).run(),
+                        new Replay(trace, new PowerGovernor(), activeLatencyUs, true).run(),
+                        new Replay(trace, null, activeLatencyUs, false).run(),
+                        new Replay(trace, new PowerGovernor(), activeLatencyUs, false).run()));
+            }
+        }
+        return results;
+    }
+
+    static Trace read(File file) throws IOException {
+        long duration = -1;
+        int size = 0;
+        long[] millis = new long[4096];
+        int[] steps = new int[4096];
+        boolean[] motion = new boolean[4096];
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("#")) {
+                    int at = line.indexOf("duration_ms=");
+                    if (at >= 0) {
+                        duration = Long.parseLong(line.substring(at + 12).trim());
+                    }
+                    continue;
+                }
+                if (line.isEmpty() || !Character.isDigit(line.charAt(0))) {
+                    // blank or column header
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (size == millis.length) {
+                    millis = Arrays.copyOf(millis, size * 2);
+                    steps = Arrays.copyOf(steps, size * 2);
+                    motion = Arrays.copyOf(motion, size * 2);
+                }
+                millis[size] = Long.parseLong(fields[0].trim());
+                steps[size] = Integer.parseInt(fields[1].trim());
+                motion[size] = fields.length > 2 && Integer.parseInt(fields[2].trim()) != 0;
+                size++;
+            }
+        }
+        return new Trace(size, millis, steps, motion, duration < 0 && size > 0 ? millis[size - 1] : Math.max(0, duration));
+    }
+
+    static void write(File file, Trace trace) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            out.println("# duration_ms=" + trace.durationMillis);
+            out.println("timestamp_ms,steps,motion");
+            for (int i = 0; i < trace.size; i++) {
+                out.println(trace.millis[i] + "," + trace.steps[i] + "," + (trace.motion[i] ? 1 : 0));
+            }
+        }
+    }
+
+    private static void print(List<Result> results) {
+        System.out.println(String.format("%-18s %6s %7s | %-36s %8s | %-30s %7s | %s",
+                "trace", "hours", "steps", "step counter wake-ups", "delay", "accelerometer on (hours)", "missed",
+                "active/quiet/idle hours"));
+        for (Result result : results) {
+            Outcome counter = result.counter;
+            Outcome accel = result.accelerometer;
+            System.out.println(String.format("%-18s %6.1f %7d | %7d -> %6d (%5.1f%% saved, %3d motion) %7.1fs | %6.1f -> %5.1f (%5.1f%% saved) %7d | %.1f/%.1f/%.1f",
+                    result.name, result.durationMillis / (double) HOUR, result.steps,
+                    result.alwaysOn.wakeUps(), counter.wakeUps(),
+                    saved(result.alwaysOn.wakeUps(), counter.wakeUps()), counter.motionWakes,
+                    counter.meanDelayMillis() / 1000.0,
+                    result.accelerometerAlwaysOn.registeredMillis / (double) HOUR, accel.registeredMillis / (double) HOUR,
+                    saved(result.accelerometerAlwaysOn.samples(), accel.samples()), accel.missed,
+                    counter.modeMillis[0] / (double) HOUR, counter.modeMillis[1] / (double) HOUR,
+                    counter.modeMillis[2] / (double) HOUR));
+        }
+    }
+
+    private static double saved(long before, long after) {
+        return before == 0 ? 0 : 100.0 * (before - after) / before;
+    }
+
+    static final class Trace {
+        final int size;
+        final long[] millis;
+        final int[] steps;
+        final boolean[] motion;
+        final long durationMillis;
+
+        Trace(int size, long[] millis, int[] steps, boolean[] motion, long durationMillis) {
+            this.size = size;
+            this.millis = millis;
+            this.steps = steps;
+            this.motion = motion;
+            this.durationMillis = durationMillis;
+        }
+
+        long totalSteps() {
+            long total = 0;
+            for (int i = 0; i < size; i++) {
+                total += steps[i];
+            }
+            return total;
+        }
+    }
+
+    static final class Outcome {
+        long deliveries;
+        long registrations;
+        long motionWakes;
+        long registeredMillis;
+        long reported;
+        /** Steps still in the FIFO or the unregistered counter when the trace ended. */
+        long undelivered;
+        /** Steps the accelerometer fallback never saw. */
+        long missed;
+        long delayMillisTotal;
+        final long[] modeMillis = new long[PowerGovernor.Mode.values().length];
+
+        long wakeUps() {
+            return deliveries + motionWakes;
+        }
+
+        /**
+         * Accelerometer samples delivered, one wake-up each without batching.
+         */
+        long samples() {
+            return registeredMillis * 1000L / AccelStepDetector.SAMPLING_PERIOD_US;
+        }
+
+        double meanDelayMillis() {
+            return reported == 0 ? 0 : (double) delayMillisTotal / reported;
+        }
+    }
+
+    static final class Result {
+        final String name;
+        final long durationMillis;
+        final long steps;
+        final Outcome alwaysOn;
+        final Outcome counter;
+        final Outcome accelerometerAlwaysOn;
+        final Outcome accelerometer;
+
+        Result(String name, Trace trace, Outcome alwaysOn, Outcome counter, Outcome accelerometerAlwaysOn, Outcome accelerometer) {
+            this.name = name;
+            this.durationMillis = trace.durationMillis;
+            this.steps = trace.totalSteps();
+            this.alwaysOn = alwaysOn;
+            this.counter = counter;
+            this.accelerometerAlwaysOn = accelerometerAlwaysOn;
+            this.accelerometer = accelerometer;
+        }
+    }
+
+    /**
+     * One pass over a trace, with a governor or always registered when it is null.
+     */
+    static final class Replay {
+        private final Trace trace;
+        private final PowerGovernor governor;
+        private final int activeLatencyUs;
+        private final boolean lossless;
+        private final Outcome out = new Outcome();
+
+        private PowerGovernor.Mode mode = PowerGovernor.Mode.ACTIVE;
+        private long modeSince;
+        private long registeredSince;
+        /** Events counted but not delivered yet, {@code [from, to)}. */
+        private int from;
+        private int to;
+        private long due = Long.MAX_VALUE;
+        private int windowFrom;
+        private long windowSteps;
+
+        Replay(Trace trace, PowerGovernor governor, int activeLatencyUs, boolean lossless) {
+            this.trace = trace;
+            this.governor = governor;
+            this.activeLatencyUs = activeLatencyUs;
+            this.lossless = lossless;
+        }
+
+        Outcome run() {
+            if (governor != null) {
+                governor.reset(0, !lossless);
+            }
+            out.registrations++;
+            for (int i = 0; i < trace.size; i++) {
+                long t = trace.millis[i];
+                advance(t);
+                boolean walking = walking(i);
+                if (governor != null && mode == PowerGovernor.Mode.IDLE && walking) {
+                    out.motionWakes++;
+                    if (governor.onMotion(t)) {
+                        apply(t);
+                    }
+                }
+                if (trace.steps[i] == 0) {
+                    continue;
+                }
+                long latencyMillis = latencyMillis();
+                if (mode == PowerGovernor.Mode.IDLE || latencyMillis > 0) {
+                    if (from == to) {
+                        from = i;
+                        due = mode == PowerGovernor.Mode.IDLE ? Long.MAX_VALUE : t + latencyMillis;
+                    }
+                    to = i + 1;
+                } else {
+                    out.deliveries++;
+                    if (from == to) {
+                        from = i;
+                    }
+                    to = i + 1;
+                    deliver(t);
+                }
+            }
+            advance(trace.durationMillis);
+            for (int i = from; i < to; i++) {
+                out.undelivered += trace.steps[i];
+            }
+            out.modeMillis[mode.ordinal()] += trace.durationMillis - modeSince;
+            if (mode != PowerGovernor.Mode.IDLE) {
+                out.registeredMillis += trace.durationMillis - registeredSince;
+            }
+            return out;
+        }
+
+        /**
+         * Runs the batch deliveries and governor timeouts due up to {@code t}.
+         */
+        private void advance(long t) {
+            while (true) {
+                long tick = governor == null ? Long.MAX_VALUE : governor.deadlineMillis();
+                if (Math.min(tick, due) > t) {
+                    return;
+                }
+                if (due <= tick) {
+                    long now = due;
+                    out.deliveries++;
+                    deliver(now);
+                    if (governor != null) {
+                        // a batch of steps that ended long ago does not ramp up
+                        governor.onTick(now);
+                        apply(now);
+                    }
+                } else if (governor.onTick(tick)) {
+                    apply(tick);
+                } else if (governor.deadlineMillis() == tick) {
+                    throw new AssertionError("governor stuck at " + tick);
+                }
+            }
+        }
+
+        /**
+         * Hands the undelivered steps to the governor as the sensor would at {@code now}.
+         */
+        private void deliver(long now) {
+            for (int i = from; i < to; i++) {
+                out.reported += trace.steps[i];
+                out.delayMillisTotal += trace.steps[i] * (now - trace.millis[i]);
+                if (governor != null) {
+                    governor.onSteps(trace.millis[i], trace.steps[i]);
+                }
+            }
+            from = to;
+            due = Long.MAX_VALUE;
+        }
+
+        /**
+         * Re-registers for the governor's mode, until delivering on registration settles it.
+         */
+        private void apply(long now) {
+            while (governor.mode() != mode) {
+                PowerGovernor.Mode next = governor.mode();
+                out.modeMillis[mode.ordinal()] += now - modeSince;
+                modeSince = now;
+                if (mode != PowerGovernor.Mode.IDLE) {
+                    out.registeredMillis += now - registeredSince;
+                }
+                boolean fromIdle = mode == PowerGovernor.Mode.IDLE;
+                mode = next;
+                if (next == PowerGovernor.Mode.IDLE) {
+                    // the counter keeps counting what was in the FIFO, nothing is delivered
+                    due = Long.MAX_VALUE;
+                    continue;
+                }
+                out.registrations++;
+                registeredSince = now;
+                if (fromIdle && !lossless) {
+                    for (int i = from; i < to; i++) {
+                        out.missed += trace.steps[i];
+                    }
+                    from = to;
+                    due = Long.MAX_VALUE;
+                } else {
+                    deliver(now);
+                }
+            }
+        }
+
+        private long latencyMillis() {
+            int latencyUs = governor == null ? activeLatencyUs : governor.reportLatencyUs(activeLatencyUs, lossless);
+            return latencyUs / 1000L;
+        }
+
+        /**
+         * Whether the significant motion sensor would fire at event {@code i}.
+         */
+        private boolean walking(int i) {
+            long t = trace.millis[i];
+            while (windowFrom < i && trace.millis[windowFrom] <= t - WALK_WINDOW_MILLIS) {
+                windowSteps -= trace.steps[windowFrom++];
+            }
+            windowSteps += trace.steps[i];
+            return trace.motion[i] || windowSteps >= WALK_STEPS;
+        }
+    }
+
+    /**
+     * Synthetic days from 7:00, one step counter event per step.
+     */
+    static final class Day {
+        private final Random random;
+        private final List<long[]> events = new ArrayList<>();
+        private long t;
+
+        private Day(Random random) {
+            this.random = random;
+        }
+
+        static Trace office(Random random) {
+            Day day = new Day(random);
+            day.walk(12).ride(25).walk(6);
+            day.desk(3 * HOUR, 35 * MINUTE, 20);
+            day.walk(15).still(20 * MINUTE).walk(15);
+            day.desk(4 * HOUR, 30 * MINUTE, 25);
+            day.walk(6).ride(25).walk(10);
+            day.desk(4 * HOUR, 15 * MINUTE, 40);
+            return day.until(24 * HOUR);
+        }
+
+        static Trace active(Random random) {
+            Day day = new Day(random);
+            day.walk(40).desk(2 * HOUR, 20 * MINUTE, 30);
+            day.walk(25).desk(3 * HOUR, 25 * MINUTE, 30);
+            day.walk(60).desk(2 * HOUR, 15 * MINUTE, 50);
+            day.walk(30).desk(3 * HOUR, 20 * MINUTE, 40);
+            return day.until(24 * HOUR);
+        }
+
+        static Trace onDesk(Random random) {
+            Day day = new Day(random);
+            day.desk(16 * HOUR, 90 * MINUTE, 6);
+            return day.until(24 * HOUR);
+        }
+
+        private Day walk(int minutes) {
+            long end = t + minutes * MINUTE;
+            while (t < end) {
+                step();
+                t += 500 + random.nextInt(200);
+            }
+            return this;
+        }
+
+        private Day ride(int minutes) {
+            long end = t + minutes * MINUTE;
+            while (t < end) {
+                events.add(new long[]{t, 0, 1});
+                t += MINUTE;
+            }
+            return this;
+        }
+
+        private Day still(long millis) {
+            t += millis;
+            return this;
+        }
+
+        /**
+         * Sitting for {@code millis} and getting up about every {@code everyMillis} for a
+         * handful of steps, up to {@code maxSteps}.
+         */
+        private Day desk(long millis, long everyMillis, int maxSteps) {
+            long end = t + millis;
+            while (true) {
+                t += everyMillis / 2 + (long) (random.nextDouble() * everyMillis);
+                if (t >= end) {
+                    break;
+                }
+                int steps = 2 + random.nextInt(maxSteps - 1);
+                for (int i = 0; i < steps; i++) {
+                    step();
+                    t += 600 + random.nextInt(900);
+                }
+            }
+            t = end;
+            return this;
+        }
+
+        private void step() {
+            events.add(new long[]{t, 1, 0});
+        }
+
+        private Trace until(long durationMillis) {
+            int size = events.size();
+            long[] millis = new long[size];
+            int[] steps = new int[size];
+            boolean[] motion = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                millis[i] = events.get(i)[0];
+                steps[i] = (int) events.get(i)[1];
+                motion[i] = events.get(i)[2] != 0;
+            }
+            return new Trace(size, millis, steps, motion, Math.max(durationMillis, t));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SensorBatchingTest {
+
+    @Test
+    public void disabledRegistersWithoutLatency() {
+        assertFalse(SensorBatching.DISABLED.enabled());
+        assertEquals(0, SensorBatching.DISABLED.reportLatencyUs(300));
+        assertFalse(SensorBatching.DISABLED.shouldFlush(0L));
+    }
+
+    @Test
+    public void latencyIsCappedByBatchSizeAndFifo() {
+        SensorBatching batching = new SensorBatching(60_000_000, 0);
+        assertEquals(60_000_000, batching.reportLatencyUs(0));
+        assertEquals(100 * SensorBatching.MIN_STEP_INTERVAL_US, batching.reportLatencyUs(100));
+
+        SensorBatching small = new SensorBatching(60_000_000, 20);
+        assertEquals(20 * SensorBatching.MIN_STEP_INTERVAL_US, small.reportLatencyUs(0));
+        assertEquals(20 * SensorBatching.MIN_STEP_INTERVAL_US, small.reportLatencyUs(1000));
+        assertEquals(8 * SensorBatching.MIN_STEP_INTERVAL_US, small.reportLatencyUs(8));
+
+        SensorBatching shortLatency = new SensorBatching(1_000_000, 20);
+        assertEquals(1_000_000, shortLatency.reportLatencyUs(1000));
+    }
+
+    @Test
+    public void flushesAreThrottled() {
+        SensorBatching batching = new SensorBatching(10_000_000, 0, 1_000L);
+        assertTrue(batching.shouldFlush(5_000L));
+        assertFalse(batching.shouldFlush(5_016L));
+        assertFalse(batching.shouldFlush(5_999L));
+        assertTrue(batching.shouldFlush(6_000L));
+    }
+
+    @Test
+    public void countsStayExactAcrossBatchedDeliveries() {
+        CoalescingStepWriterTest.FakeTime time = new CoalescingStepWriterTest.FakeTime();
+        StepState state = new StepState();
+        StepCounterProcessor processor = new StepCounterProcessor(
+                state, new CoalescingStepWriter(new CoalescingStepWriterTest.RecordingStore(), time),
+                new StepAccountant(StepAccountant.UNKNOWN_BOOT, StepAccountant.NO_BASELINE), null, time);
+        SensorBatching batching = new SensorBatching(30_000_000, 64);
+        // FIFO shared with other sensors (no reserved space), smaller than the batch
+        SimulatedStepCounterDriver driver = new SimulatedStepCounterDriver(
+                processor, 10_000, 8, batching.reportLatencyUs(0) / 1000);
+
+        Random random = new Random(42);
+        int walked = 0;
+        for (int i = 0; i < 20_000; i++) {
+            time.now += 200 + random.nextInt(800);
+            int steps = random.nextInt(4);
+            walked += steps;
+            driver.step(time.now, steps);
+            if (i % 997 == 0) {
+                driver.flush();
+                assertEquals(walked, state.steps());
+            }
+        }
+        driver.flush();
+
+        assertEquals(walked, state.steps());
+        assertTrue("expected the FIFO to overflow at least once", driver.droppedEvents > 0);
+        assertTrue(driver.deliveries < driver.events / 10);
+    }
+
+    /**
+     * Mimics a sensor hub FIFO: counter events queue up and are delivered together once the
+     * oldest one is older than the report latency or when flushed. A full FIFO drops its
+     * oldest event, like the hardware does.
+     */
+    static final class SimulatedStepCounterDriver {
+        private final StepCounterProcessor processor;
+        private final float[] fifoValues;
+        private final long[] fifoTimes;
+        private final long latencyMillis;
+        private int head;
+        private int size;
+        private float counter;
+        int events;
+        int deliveries;
+        int droppedEvents;
+
+        SimulatedStepCounterDriver(StepCounterProcessor processor, int initialCounter, int fifoSize, long latencyMillis) {
+            this.processor = processor;
+            this.fifoValues = new float[fifoSize];
+            this.fifoTimes = new long[fifoSize];
+            this.latencyMillis = latencyMillis;
+            this.counter = initialCounter;
+            processor.onStepCounter(counter, 0L);
+        }
+
+        void step(long nowMillis, int steps) {
+            if (size > 0 && nowMillis - fifoTimes[head] >= latencyMillis) {
+                flush();
+            }
+            if (steps == 0) {
+                return;
+            }
+            counter += steps;
+            events++;
+            if (size == fifoValues.length) {
+                head = (head + 1) % fifoValues.length;
+                size--;
+                droppedEvents++;
+            }
+            int tail = (head + size) % fifoValues.length;
+            fifoValues[tail] = counter;
+            fifoTimes[tail] = nowMillis;
+            size++;
+        }
+
+        void flush() {
+            if (size == 0) {
+                return;
+            }
+            deliveries++;
+            while (size > 0) {
+                processor.onStepCounter(fifoValues[head], fifoTimes[head]);
+                head = (head + 1) % fifoValues.length;
+                size--;
+            }
+        }
+    }
+}
@@ -0,0 +1,828 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays walking traces through {@link PedometerCore} on a virtual phone, along with what
+ * the phone does to the service: restarts, task removals followed by the process being
+ * killed, plain kills, reboots and syncs from Unity. A day replays in a fraction of a second
+ * and a run is the same every time for the same seed.
+ * <p>
+ * The phone model: a hardware step counter counting since boot, which keeps readings in its
+ * FIFO for the registered report latency and delivers the current count when registered.
+ * Sensor deliveries and the work the service posts share one virtual sensor thread. A killed
+ * process loses that thread, its registrations and whatever it held only in memory; the
+ * files it mapped stay. Steps are walked on the hardware counter only, the accelerometer
+ * fallback is left to {@link PowerReplayTest}.
+ * <p>
+ * After every event the replay checks:
+ * <ul>
+ * <li>conservation: steps walked = counted + not read yet + dropped, where dropped are steps
+ * no reading showed before a reboot reset the counter or a deliberate stop unregistered it;
+ * counted = synced + unsynced, and the daily totals hold every counted step, the journal all
+ * but the minutes kills caught in memory;</li>
+ * <li>time only goes forward: the counted total never drops, syncs cover back to back
+ * intervals ending now, journal minutes are sorted and none lies in the future.</li>
+ * </ul>
+ * Recorded traces in the {@link PowerReplayTest} CSV format are replayed with
+ * {@link #main(String[])}.
+ */
+public class ServiceReplayTest {
+    private static final long MINUTE = 60_000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    // 7:00 UTC, when the synthetic days start
+    private static final long START_MILLIS = 1_760_079_600_000L;
+    private static final int STEPS_BEFORE_INSTALL = 12_345;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void aSoakMonthConservesEveryStepAcrossRestartsKillsAndReboots() throws IOException {
+        Random random = new Random(1);
+        PowerReplayTest.Trace trace = days(30, random);
+        Replay replay = new Replay(folder.newFolder(), "soak_month", randomLifecycle(trace, random, 2 * HOUR));
+
+        Report report = replay.run(trace);
+        print(Arrays.asList(report));
+
+        assertEquals(trace.totalSteps(), report.walked);
+        for (Op op : Op.values()) {
+            assertTrue(op + " never happened", report.ops[op.ordinal()] > 0);
+        }
+        assertTrue(report.counted > report.walked * 0.9);
+        assertTrue("a month should replay in seconds: " + report.nanos / 1_000_000 + " ms",
+                report.nanos < 30_000_000_000L);
+    }
+
+    @Test
+    public void theSameSeedReplaysTheSameRun() throws IOException {
+        Report first = soak(folder.newFolder(), 3, 5);
+        Report second = soak(folder.newFolder(), 3, 5);
+        assertEquals(first.fingerprint, second.fingerprint);
+        assertEquals(first.deliveries, second.deliveries);
+        assertEquals(first.counted, second.counted);
+        assertFalse(first.fingerprint.equals(soak(folder.newFolder(), 3, 6).fingerprint));
+    }
+
+    /**
+     * The restart paths that once lost or broke counting: a counter that reads 0 right after
+     * boot is a reading like any other, and a service restarted without an intent still
+     * counts.
+     */
+    @Test
+    public void stepsSurviveARebootAndARestartWithoutOptions() throws IOException {
+        Replay replay = new Replay(folder.newFolder(), "scripted", new ArrayList<Event>());
+        replay.start(0, true);
+        replay.walk(10_000, 50);
+        replay.reboot(20_000);
+        // started at boot while the counter still reads 0
+        replay.start(20_000, true);
+        replay.walk(30_000, 30);
+        replay.kill(40_000);
+        replay.walk(50_000, 20);
+        replay.start(60_000, false);
+        replay.walk(70_000, 7);
+        SyncPayload sync = replay.sync(80_000);
+
+        assertEquals(107, sync.steps);
+        // the unsynced interval starts with the latest start
+        assertEquals(START_MILLIS + 60_000, sync.startMillis);
+        Report report = replay.finish(90_000);
+        assertEquals(0, report.dropped());
+        assertEquals(107, report.synced);
+    }
+
+    @Test
+    public void deliberateStopsDropOnlyWhatTheFifoHeld() throws IOException {
+        Replay replay = new Replay(folder.newFolder(), "batched", new ArrayList<Event>());
+        replay.batching = new SensorBatching(60_000_000, 0);
+        replay.start(0, true);
+        replay.walk(1_000, 10);
+        // the batch is due a minute after the first step
+        replay.restart(30_000);
+        replay.walk(40_000, 5);
+        replay.walk(120_000, 5);
+        Report report = replay.finish(200_000);
+
+        assertEquals(10, report.droppedAtStop);
+        assertEquals(10, report.counted);
+    }
+
+    @Test
+    public void replaysCsvTraces() throws IOException {
+        File traces = folder.newFolder();
+        PowerReplayTest.write(new File(traces, "office_day.csv"), PowerReplayTest.Day.office(new Random(9)));
+        List<Report> reports = replay(traces, folder.newFolder(), 9);
+        print(reports);
+        assertEquals(1, reports.size());
+        assertTrue(reports.get(0).walked > 0);
+    }
+
+    /**
+     * Replays CSV traces given as files or directories with a random lifecycle and prints the
+     * report. A first argument of {@code --seed=N} picks the lifecycle.
+     */
+    public static void main(String[] args) throws IOException {
+        long seed = 1;
+        List<Report> reports = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(arg.substring("--seed=".length()));
+            } else {
+                File work = File.createTempFile("service_replay", "");
+                if (!work.delete() || !work.mkdirs()) {
+                    throw new IOException("Cannot create " + work);
+                }
+                reports.addAll(replay(new File(arg), work, seed));
+            }
+        }
+        print(reports);
+    }
+
+    static List<Report> replay(File path, File work, long seed) throws IOException {
+        List<Report> reports = new ArrayList<>();
+        File[] files = path.isDirectory() ? path.listFiles() : new File[]{path};
+        if (files == null) {
+            return reports;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().endsWith(".csv")) {
+                PowerReplayTest.Trace trace = PowerReplayTest.read(file);
+                Random random = new Random(seed);
+                File dir = new File(work, file.getName() + ".d");
+                if (!dir.mkdirs()) {
+                    throw new IOException("Cannot create " + dir);
+                }
+                reports.add(new Replay(dir, file.getName(),
+                        randomLifecycle(trace, random, 2 * HOUR)).run(trace));
+            }
+        }
+        return reports;
+    }
+
+    private static Report soak(File dir, int days, long seed) throws IOException {
+        Random random = new Random(seed);
+        PowerReplayTest.Trace trace = days(days, random);
+        return new Replay(dir, "soak", randomLifecycle(trace, random, HOUR)).run(trace);
+    }
+
+    /**
+     * {@code count} synthetic days back to back, office, active and desk days mixed.
+     */
+    static PowerReplayTest.Trace days(int count, Random random) {
+        List<PowerReplayTest.Trace> days = new ArrayList<>();
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            int kind = random.nextInt(5);
+            PowerReplayTest.Trace day = kind < 3 ? PowerReplayTest.Day.office(random)
+                    : kind == 3 ? PowerReplayTest.Day.active(random) : PowerReplayTest.Day.onDesk(random);
+            days.add(day);
+            size += day.size;
+        }
+        long[] millis = new long[size];
+        int[] steps = new int[size];
+        boolean[] motion = new boolean[size];
+        int at = 0;
+        long offset = 0;
+        for (PowerReplayTest.Trace day : days) {
+            for (int i = 0; i < day.size; i++) {
+                millis[at] = offset + day.millis[i];
+                steps[at] = day.steps[i];
+                motion[at] = day.motion[i];
+                at++;
+            }
+            offset += day.durationMillis;
+        }
+        return new PowerReplayTest.Trace(size, millis, steps, motion, offset);
+    }
+
+    /**
+     * Lifecycle events about every {@code meanGapMillis}: syncs mostly, then restarts, kills
+     * and task removals with the app launched again up to two hours later, and reboots with
+     * the service back half a minute after.
+     */
+    static List<Event> randomLifecycle(PowerReplayTest.Trace trace, Random random, long meanGapMillis) {
+        List<Event> events = new ArrayList<>();
+        events.add(new Event(0, Op.START, true));
+        long t = 0;
+        while (true) {
+            t += (long) (-Math.log(1 - random.nextDouble()) * meanGapMillis);
+            if (t >= trace.durationMillis) {
+                break;
+            }
+            int roll = random.nextInt(20);
+            Op op = roll < 9 ? Op.SYNC : roll < 12 ? Op.RESTART : roll < 15 ? Op.KILL : roll < 18 ? Op.TASK_REMOVED : Op.REBOOT;
+            events.add(new Event(t, op, true));
+            long restartAt = -1;
+            boolean withOptions = true;
+            if (op == Op.KILL || op == Op.TASK_REMOVED) {
+                // the app launched again, or the system bringing the service back without options
+                restartAt = t + MINUTE + random.nextInt((int) (2 * HOUR));
+                withOptions = random.nextBoolean();
+            } else if (op == Op.REBOOT) {
+                restartAt = t + 30_000;
+            }
+            if (restartAt >= 0 && restartAt < trace.durationMillis) {
+                events.add(new Event(restartAt, Op.START, withOptions));
+            }
+        }
+        events.add(new Event(trace.durationMillis, Op.SYNC, true));
+        return events;
+    }
+
+    private static void print(List<Report> reports) {
+        System.out.println(String.format("%-16s %6s %7s %7s %7s | %-40s | %8s %7s %9s %11s",
+                "trace", "days", "walked", "counted", "dropped", "syncs/restarts/kills/removals/reboots",
+                "replay", "speedup", "events/s", "deliveries"));
+        for (Report report : reports) {
+            System.out.println(String.format("%-16s %6.1f %7d %7d %7d | %6d %6d %6d %6d %6d         | %6.0fms %6.0fx %9.0f %11d",
+                    report.name, report.virtualMillis / (double) DAY, report.walked, report.counted, report.dropped(),
+                    report.ops[Op.SYNC.ordinal()], report.ops[Op.RESTART.ordinal()], report.ops[Op.KILL.ordinal()],
+                    report.ops[Op.TASK_REMOVED.ordinal()], report.ops[Op.REBOOT.ordinal()],
+                    report.nanos / 1e6, report.virtualMillis * 1e6 / report.nanos,
+                    (report.stepEvents + report.deliveries) * 1e9 / report.nanos, report.deliveries));
+        }
+    }
+
+    enum Op {
+        START, SYNC, RESTART, KILL, TASK_REMOVED, REBOOT
+    }
+
+    static final class Event {
+        final long millis;
+        final Op op;
+        /** For START, whether the start came with the options of a StartService call. */
+        final boolean withOptions;
+
+        Event(long millis, Op op, boolean withOptions) {
+            this.millis = millis;
+            this.op = op;
+            this.withOptions = withOptions;
+        }
+    }
+
+    static final class Report {
+        final String name;
+        long virtualMillis;
+        long walked;
+        long counted;
+        long synced;
+        /** Steps a reboot reset before any reading showed them. */
+        long droppedAtReboot;
+        /** Steps in the FIFO when a deliberate stop unregistered the counter. */
+        long droppedAtStop;
+        /** Steps of the minute a kill caught in the journal's memory. */
+        long journalLost;
+        long stepEvents;
+        long deliveries;
+        long nanos;
+        final long[] ops = new long[Op.values().length];
+        /** Every sync and the final totals, to compare runs. */
+        String fingerprint;
+
+        Report(String name) {
+            this.name = name;
+        }
+
+        long dropped() {
+            return droppedAtReboot + droppedAtStop;
+        }
+    }
+
+    /**
+     * One run: the phone, the app process when there is one and the service in it.
+     */
+    static final class Replay implements CollectorHost.Listener {
+        private final File dir;
+        private final List<Event> lifecycle;
+        private final Report report;
+        private final Phone phone = new Phone();
+        private final StringBuilder fingerprint = new StringBuilder();
+        SensorBatching batching = SensorBatching.DISABLED;
+        private AppProcess process;
+        private long lastCounted;
+        private long lastSyncEnd;
+        /** Journal total when a kill hit, checked against what the next process reads back. */
+        private long journalAtKill = -1;
+
+        Replay(File dir, String name, List<Event> lifecycle) {
+            this.dir = dir;
+            this.lifecycle = new ArrayList<>(lifecycle);
+            // stable, so events at the same time keep their order
+            Collections.sort(this.lifecycle, new Comparator<Event>() {
+                @Override
+                public int compare(Event a, Event b) {
+                    return Long.compare(a.millis, b.millis);
+                }
+            });
+            this.report = new Report(name);
+        }
+
+        Report run(PowerReplayTest.Trace trace) throws IOException {
+            long started = System.nanoTime();
+            int next = 0;
+            for (int i = 0; i < trace.size; i++) {
+                while (next < lifecycle.size() && lifecycle.get(next).millis <= trace.millis[i]) {
+                    apply(lifecycle.get(next++));
+                }
+                if (trace.steps[i] > 0) {
+                    // generated days can step back a little where a desk stretch ends
+                    walk(Math.max(trace.millis[i], phone.now), trace.steps[i]);
+                }
+            }
+            while (next < lifecycle.size()) {
+                apply(lifecycle.get(next++));
+            }
+            finish(trace.durationMillis);
+            report.nanos = System.nanoTime() - started;
+            return report;
+        }
+
+        void apply(Event event) throws IOException {
+            switch (event.op) {
+                case START:
+                    start(event.millis, event.withOptions);
+                    break;
+                case SYNC:
+                    sync(event.millis);
+                    break;
+                case RESTART:
+                    restart(event.millis);
+                    break;
+                case KILL:
+                    kill(event.millis);
+                    break;
+                case TASK_REMOVED:
+                    taskRemoved(event.millis);
+                    break;
+                case REBOOT:
+                    reboot(event.millis);
+                    break;
+            }
+        }
+
+        /**
+         * StartService, or the service started at boot or by the system; null options are a
+         * start without an intent.
+         */
+        void start(long millis, boolean withOptions) throws IOException {
+            advanceTo(millis);
+            count(Op.START);
+            final AppProcess process = process();
+            final PedometerCore.StartRequest request = withOptions ? new PedometerCore.StartRequest(
+                    CoalescingStepWriter.DEFAULT_MAX_UNSAVED_STEPS, CoalescingStepWriter.DEFAULT_FLUSH_INTERVAL_MILLIS,
+                    batching, true) : null;
+            if (process.service == null) {
+                final PedometerCore service = new PedometerCore(phone, phone, process.metrics, this);
+                process.service = service;
+                phone.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        service.initialize(phone, process.state, process.writer, process.sharedSteps, process.journal,
+                                process.aggregates, process.publisher, phone.bootCount, null);
+                    }
+                }, 0);
+            }
+            final PedometerCore service = process.service;
+            phone.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    service.start(request, Collections.singleton(StepCounterCollector.ID));
+                }
+            }, 0);
+            settle();
+        }
+
+        SyncPayload sync(long millis) throws IOException {
+            advanceTo(millis);
+            count(Op.SYNC);
+            AppProcess process = process();
+            SyncPayload payload = PedometerCore.takeSync(process.sharedSteps, process.journal, phone.currentTimeMillis(), 60);
+            assertTrue("sync starts before the last one ended", payload.startMillis >= lastSyncEnd);
+            assertTrue(payload.endMillis >= payload.startMillis);
+            assertEquals(phone.currentTimeMillis(), payload.endMillis);
+            lastSyncEnd = payload.endMillis;
+            report.synced += payload.steps;
+            fingerprint.append(payload.startMillis).append('-').append(payload.endMillis).append(':')
+                    .append(payload.steps).append(' ');
+            settle();
+            return payload;
+        }
+
+        /**
+         * StopService and StartService right after, in the same process.
+         */
+        void restart(long millis) throws IOException {
+            advanceTo(millis);
+            count(Op.RESTART);
+            if (process != null && process.service != null) {
+                process.service.destroy();
+                phone.quit();
+                process.service = null;
+                // stopped on purpose: what the counter still held is not ours
+                report.droppedAtStop += phone.unread();
+                phone.lastRead = phone.counter;
+            }
+            start(millis, true);
+            report.ops[Op.START.ordinal()]--;
+        }
+
+        /**
+         * The process dies without a callback.
+         */
+        void kill(long millis) throws IOException {
+            advanceTo(millis);
+            count(Op.KILL);
+            killProcess();
+        }
+
+        void taskRemoved(long millis) throws IOException {
+            advanceTo(millis);
+            count(Op.TASK_REMOVED);
+            if (process != null && process.service != null) {
+                process.service.onTaskRemoved();
+                // the sensor thread gets to the posted flush before the process dies
+                phone.runUntil(phone.now);
+            }
+            killProcess();
+        }
+
+        void reboot(long millis) throws IOException {
+            advanceTo(millis);
+            count(Op.REBOOT);
+            if (process != null && process.service != null) {
+                process.service.onShutdown(null);
+                phone.runUntil(phone.now);
+            }
+            killProcess();
+            report.droppedAtReboot += phone.unread();
+            phone.reboot();
+            check();
+        }
+
+        void walk(long millis, int steps) throws IOException {
+            advanceTo(millis);
+            report.walked += steps;
+            report.stepEvents++;
+            phone.walk(steps);
+            settle();
+        }
+
+        Report finish(long millis) throws IOException {
+            advanceTo(millis);
+            AppProcess process = process();
+            report.virtualMillis = millis;
+            report.counted = process.sharedSteps.counter().steps;
+            report.deliveries = phone.deliveries;
+            checkHistory(process);
+            fingerprint.append(report.counted).append('/').append(report.dropped()).append('/').append(report.journalLost);
+            report.fingerprint = fingerprint.toString();
+            return report;
+        }
+
+        @Override
+        public void onCollectorsChanged(String[] runningIds) {
+        }
+
+        @Override
+        public void onCollectorUnavailable(String id) {
+            throw new AssertionError("collector unavailable: " + id);
+        }
+
+        private void count(Op op) {
+            report.ops[op.ordinal()]++;
+        }
+
+        private void advanceTo(long millis) throws IOException {
+            assertTrue("events out of order", millis >= phone.now);
+            phone.runUntil(millis);
+            check();
+        }
+
+        /**
+         * Runs what the last event posted.
+         */
+        private void settle() throws IOException {
+            phone.runUntil(phone.now);
+            check();
+        }
+
+        private AppProcess process() throws IOException {
+            if (process == null) {
+                process = new AppProcess(dir, phone);
+                if (journalAtKill >= 0) {
+                    long reopened = journalTotal(process);
+                    assertTrue("journal grew across a kill", reopened <= journalAtKill);
+                    report.journalLost += journalAtKill - reopened;
+                    journalAtKill = -1;
+                }
+            }
+            return process;
+        }
+
+        private void killProcess() {
+            if (process == null) {
+                return;
+            }
+            journalAtKill = journalTotal(process);
+            process = null;
+            phone.kill();
+        }
+
+        /**
+         * The cheap invariants, after every event.
+         */
+        private void check() throws IOException {
+            if (process == null) {
+                return;
+            }
+            long counted = process.sharedSteps.counter().steps;
+            assertTrue("counted steps dropped from " + lastCounted + " to " + counted, counted >= lastCounted);
+            lastCounted = counted;
+            assertEquals("walked = counted + unread + dropped", report.walked, counted + phone.unread() + report.dropped());
+            assertEquals("counted = synced + unsynced", counted, report.synced + process.sharedSteps.steps());
+            assertEquals("daily totals", counted, process.aggregates.range(
+                    epochDay(START_MILLIS) - 1, epochDay(phone.currentTimeMillis()) + 1));
+        }
+
+        /**
+         * The journal, read back through a history export.
+         */
+        private void checkHistory(AppProcess process) throws IOException {
+            long counted = process.sharedSteps.counter().steps;
+            HistoryExport export = new HistoryExport(process.journal, 0, phone.currentTimeMillis() + DAY, 1024);
+            long total = 0;
+            int lastMinute = Integer.MIN_VALUE;
+            int nowMinute = StepJournal.toMinute(phone.currentTimeMillis());
+            ByteBuffer chunk = null;
+            while (!export.finished()) {
+                byte[] bytes = export.next();
+                if (chunk == null) {
+                    chunk = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                assertEquals(0, chunk.get(1) & HistoryExport.FLAG_SKIPPED);
+                for (int i = 0; i < chunk.getInt(4); i++) {
+                    int minute = chunk.getInt(HistoryExport.HEADER_SIZE + i * HistoryExport.RECORD_SIZE);
+                    assertTrue("journal minutes out of order", minute >= lastMinute);
+                    assertTrue("journal minute in the future", minute <= nowMinute);
+                    lastMinute = minute;
+                    total += chunk.getInt(HistoryExport.HEADER_SIZE + i * HistoryExport.RECORD_SIZE + 4);
+                }
+            }
+            assertEquals("journal + lost to kills = counted", counted, total + report.journalLost);
+        }
+
+        private long journalTotal(AppProcess process) {
+            int[] all = process.journal.buckets(0, phone.currentTimeMillis() + DAY, 1 << 30);
+            long total = 0;
+            for (int steps : all) {
+                total += steps;
+            }
+            return total;
+        }
+
+        private static long epochDay(long millis) {
+            return Math.floorDiv(millis, DAY);
+        }
+    }
+
+    /**
+     * What Bridge opens once per process.
+     */
+    static final class AppProcess {
+        final StepState state = new StepState();
+        final SharedStepCounter sharedSteps;
+        final StepJournal journal;
+        final DailyAggregates aggregates;
+        final CoalescingStepWriter writer;
+        final StepPublisher publisher;
+        final PluginMetrics metrics = new PluginMetrics();
+        PedometerCore service;
+
+        AppProcess(File dir, Phone phone) throws IOException {
+            sharedSteps = new SharedStepCounter(new File(dir, Bridge.SHARED_STEPS_FILE));
+            journal = new StepJournal(new File(dir, Bridge.JOURNAL_DIR));
+            aggregates = new DailyAggregates(new File(dir, Bridge.AGGREGATES_FILE), ZoneOffset.UTC);
+            writer = new CoalescingStepWriter(sharedSteps, phone);
+            publisher = new StepPublisher(sharedSteps, phone, phone);
+            PedometerCore.restore(sharedSteps, state, writer);
+        }
+    }
+
+    /**
+     * The virtual phone: clocks, the sensor thread's queue and a hardware step counter.
+     */
+    static final class Phone implements SensorSource, Scheduler, TimeSource {
+        private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+        private final List<long[]> fifo = new ArrayList<>();
+        private final Map<Sink, Integer> registrations = new HashMap<>();
+        private final Set<Sink> triggers = new HashSet<>();
+        private final float[] values = new float[1];
+        /** Virtual millis since the replay started. */
+        long now;
+        private long bootMillis = -DAY;
+        int bootCount = 1;
+        int counter = STEPS_BEFORE_INSTALL;
+        /** The last count delivered to the service. */
+        int lastRead = STEPS_BEFORE_INSTALL;
+        long deliveries;
+        private long order;
+        private Sink counterSink;
+        private long latencyMillis;
+        private int registration;
+        private boolean deliveryDue;
+
+        void walk(int steps) {
+            counter += steps;
+            if (counterSink == null) {
+                return;
+            }
+            fifo.add(new long[]{elapsedRealtimeNanos(), counter});
+            if (latencyMillis == 0) {
+                deliver(0);
+            } else if (!deliveryDue) {
+                deliver(latencyMillis);
+            }
+        }
+
+        /**
+         * Steps the counter has that no reading showed yet.
+         */
+        int unread() {
+            return counter - lastRead;
+        }
+
+        void reboot() {
+            counter = 0;
+            lastRead = 0;
+            bootCount++;
+            bootMillis = now;
+        }
+
+        /**
+         * The process died: its thread, queue and registrations go with it.
+         */
+        void kill() {
+            tasks.clear();
+            registrations.clear();
+            triggers.clear();
+            unregisterCounter();
+        }
+
+        /**
+         * HandlerThread.quitSafely(): runs what is due, drops the rest.
+         */
+        void quit() {
+            runUntil(now);
+            tasks.clear();
+        }
+
+        void runUntil(long millis) {
+            while (!tasks.isEmpty() && tasks.peek().due <= millis) {
+                Task task = tasks.poll();
+                now = Math.max(now, task.due);
+                task.runnable.run();
+            }
+            now = Math.max(now, millis);
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            tasks.add(new Task(now + Math.max(0, delayMillis), order++, task));
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return START_MILLIS + now;
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return (now - bootMillis) * 1_000_000L;
+        }
+
+        @Override
+        public boolean hasSensor(int type) {
+            return true;
+        }
+
+        @Override
+        public int fifoReservedEventCount(int type) {
+            return 0;
+        }
+
+        @Override
+        public boolean register(int type, int samplingPeriodUs, int maxReportLatencyUs, Sink sink) {
+            registrations.put(sink, type);
+            if (type == TYPE_STEP_COUNTER) {
+                unregisterCounter();
+                counterSink = sink;
+                latencyMillis = maxReportLatencyUs / 1000;
+                // an on-change sensor reports its current value when registered
+                fifo.add(new long[]{elapsedRealtimeNanos(), counter});
+                deliver(0);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean requestTrigger(int type, Sink sink) {
+            triggers.add(sink);
+            return true;
+        }
+
+        @Override
+        public void unregister(Sink sink) {
+            registrations.remove(sink);
+            triggers.remove(sink);
+            if (sink == counterSink) {
+                unregisterCounter();
+            }
+        }
+
+        @Override
+        public boolean flush(Sink sink) {
+            if (sink != counterSink) {
+                return registrations.containsKey(sink);
+            }
+            if (!fifo.isEmpty()) {
+                deliver(0);
+            }
+            return true;
+        }
+
+        /**
+         * Registering again or unregistering drops the FIFO; the counter keeps the steps.
+         */
+        private void unregisterCounter() {
+            counterSink = null;
+            registration++;
+            fifo.clear();
+            deliveryDue = false;
+        }
+
+        private void deliver(long delayMillis) {
+            final int registered = registration;
+            deliveryDue = true;
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (registered != registration || counterSink == null) {
+                        return;
+                    }
+                    deliveryDue = false;
+                    Sink sink = counterSink;
+                    List<long[]> batch = new ArrayList<>(fifo);
+                    fifo.clear();
+                    for (long[] event : batch) {
+                        lastRead = (int) event[1];
+                        values[0] = event[1];
+                        deliveries++;
+                        sink.onSensorEvent(event[0], values);
+                    }
+                }
+            }, delayMillis);
+        }
+
+        private static final class Task implements Comparable<Task> {
+            final long due;
+            final long order;
+            final Runnable runnable;
+
+            Task(long due, long order, Runnable runnable) {
+                this.due = due;
+                this.order = order;
+                this.runnable = runnable;
+            }
+
+            @Override
+            public int compareTo(Task other) {
+                return due != other.due ? Long.compare(due, other.due) : Long.compare(order, other.order);
+            }
+        }
+    }
+}
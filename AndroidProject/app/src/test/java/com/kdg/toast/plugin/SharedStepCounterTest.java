@@ -0,0 +1,296 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SharedStepCounterTest {
+    private static final long START = 1_760_000_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void unsyncedStepsAreWhatWasCountedButNotSynced() throws IOException {
+        File file = folder.newFile();
+        SharedStepCounter service = new SharedStepCounter(file);
+        SharedStepCounter unity = new SharedStepCounter(file);
+        assertEquals(0, unity.steps());
+
+        service.publishSteps(10, 77L, START);
+        assertEquals(10, unity.steps());
+        assertEquals(10, unity.takeForSync(START + 1));
+        service.publishSteps(25, 78L, START + 2);
+        assertEquals(15, unity.steps());
+
+        SharedStepCounter reopened = new SharedStepCounter(file);
+        assertFalse(reopened.created());
+        SharedStepCounter.Counter counter = reopened.counter();
+        assertEquals(25, counter.steps);
+        assertEquals(78L, counter.baseline);
+        assertEquals(START + 2, counter.countedMillis);
+        assertEquals(START + 1, reopened.syncMillis());
+        assertEquals(15, reopened.takeForSync(START + 3));
+
+        // the count is an int that wraps after a lifetime of walking
+        service.publishSteps(Integer.MAX_VALUE - 5, 78L, START + 4);
+        unity.takeForSync(START + 5);
+        service.publishSteps(Integer.MIN_VALUE + 4, 78L, START + 6);
+        assertEquals(10, unity.steps());
+    }
+
+    @Test
+    public void aPreparedSyncIsCommittedOrAbortedAndSurvivesAReopen() throws IOException {
+        File file = folder.newFile();
+        SharedStepCounter service = new SharedStepCounter(file);
+        SharedStepCounter unity = new SharedStepCounter(file);
+        service.publishSteps(10, 1L, START);
+
+        assertEquals(10, unity.prepareSync(7));
+        assertEquals(7, unity.preparedSync());
+        // not synced until committed
+        assertEquals(10, service.steps());
+        unity.abortSync();
+        assertEquals(0, unity.preparedSync());
+        assertEquals(10, service.steps());
+        assertEquals(0, unity.syncMillis());
+
+        assertEquals(10, unity.prepareSync(8));
+        // counted after the prepare, left for the next sync
+        service.publishSteps(14, 1L, START + 1);
+        assertEquals(8, new SharedStepCounter(file).preparedSync());
+        unity.commitSync(START + 2);
+        assertEquals(0, unity.preparedSync());
+        assertEquals(4, service.steps());
+        assertEquals(START + 2, unity.syncMillis());
+        // committing again does nothing
+        unity.commitSync(START + 3);
+        assertEquals(4, service.steps());
+        assertEquals(START + 2, unity.syncMillis());
+    }
+
+    @Test
+    public void onlyANewFileTakesTheValuesPassedIn() throws IOException {
+        File file = new File(folder.getRoot(), "shared");
+        SharedStepCounter migrated = new SharedStepCounter(file, 40, 99L, START);
+        assertTrue(migrated.created());
+        assertEquals(40, migrated.steps());
+        assertEquals(99L, migrated.counter().baseline);
+        assertEquals(START, migrated.intervalStartMillis());
+
+        SharedStepCounter again = new SharedStepCounter(file, 1, 2L, 3L);
+        assertFalse(again.created());
+        assertEquals(40, again.steps());
+        assertEquals(START, again.syncMillis());
+    }
+
+    @Test
+    public void theIntervalStartsAtTheLaterOfSyncAndStart() throws IOException {
+        SharedStepCounter counter = new SharedStepCounter(folder.newFile());
+        assertEquals(0, counter.intervalStartMillis());
+        counter.markStarted(START);
+        assertEquals(START, counter.intervalStartMillis());
+        counter.takeForSync(START + 10);
+        assertEquals(START + 10, counter.intervalStartMillis());
+        counter.markStarted(START + 20);
+        assertEquals(START + 20, counter.intervalStartMillis());
+        // starting keeps what was counted
+        counter.publishSteps(5, 1L, START + 30);
+        counter.markStarted(START + 40);
+        assertEquals(5, counter.steps());
+    }
+
+    @Test
+    public void aWriteTornByACrashReadsBackThePreviousValues() throws IOException {
+        File file = folder.newFile();
+        SharedStepCounter counter = new SharedStepCounter(file);
+        counter.saveSteps(10, 1L, START);
+        counter.saveSteps(20, 2L, START + 1);
+        counter.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // the writer died after storing the count, before the check word
+            long copy = copyHolding(raf, 20);
+            raf.seek(copy + 8);
+            raf.writeLong(21);
+        }
+
+        SharedStepCounter reopened = new SharedStepCounter(file);
+        assertEquals(10, reopened.counter().steps);
+        assertEquals(1L, reopened.counter().baseline);
+        reopened.publishSteps(30, 3L, START + 2);
+        assertEquals(30, reopened.steps());
+        assertEquals(30, new SharedStepCounter(file).counter().steps);
+    }
+
+    @Test(expected = IOException.class)
+    public void aSlotWithNoWholeCopyIsRejected() throws IOException {
+        File file = folder.newFile();
+        SharedStepCounter counter = new SharedStepCounter(file);
+        counter.saveSteps(10, 1L, START);
+        counter.saveSteps(20, 2L, START + 1);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            for (long copy = 64; copy < 192; copy += 64) {
+                raf.seek(copy + 8);
+                raf.writeLong(-1);
+            }
+        }
+        new SharedStepCounter(file);
+    }
+
+    @Test(timeout = 10_000L)
+    public void aSlotDamagedWhileOpenFallsBackToTheLastGoodValues() throws IOException {
+        File file = folder.newFile();
+        SharedStepCounter counter = new SharedStepCounter(file);
+        counter.saveSteps(10, 1L, START);
+        counter.saveSteps(20, 2L, START + 1);
+        assertEquals(20, counter.steps());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            for (long copy = 64; copy < 192; copy += 64) {
+                raf.seek(copy + 8);
+                raf.writeLong(-1);
+            }
+        }
+
+        assertEquals(20, counter.steps());
+        assertEquals(2L, counter.counter().baseline);
+        assertTrue(counter.failedReads() > 0);
+    }
+
+    /**
+     * Two processes, played by two instances on the same file: one writes the counter slot
+     * from its sensor thread while the other syncs, and readers on both and on a third
+     * instance check every value they see.
+     */
+    @Test
+    public void writersNeverBlockReadersAndNoStepIsLostOrCountedTwice() throws Exception {
+        File file = folder.newFile();
+        final SharedStepCounter service = new SharedStepCounter(file);
+        final SharedStepCounter unity = new SharedStepCounter(file);
+        final SharedStepCounter widget = new SharedStepCounter(file);
+        final int events = 1_000_000;
+        final AtomicLong synced = new AtomicLong();
+        final AtomicLong syncs = new AtomicLong();
+        final AtomicLong reads = new AtomicLong();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread sensor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                awaitQuietly(start);
+                int counted = 0;
+                for (int i = 0; i < events; i++) {
+                    counted += 1 + (i & 3);
+                    // baseline and time derive from the count, so a reader can tell a torn pair
+                    service.publishSteps(counted, baseline(counted), START + counted);
+                    if ((i & 0xffff) == 0) {
+                        service.saveSteps(counted, baseline(counted), START + counted);
+                    }
+                }
+            }
+        });
+        Thread sync = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                awaitQuietly(start);
+                while (!done.get()) {
+                    synced.addAndGet(unity.takeForSync(START));
+                    syncs.incrementAndGet();
+                    Thread.yield();
+                }
+            }
+        });
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            final SharedStepCounter view = t % 2 == 0 ? unity : widget;
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    try {
+                        int lastCounted = 0;
+                        long count = 0;
+                        while (!done.get()) {
+                            assertTrue(view.steps() >= 0);
+                            SharedStepCounter.Counter counter = view.counter();
+                            if (counter.steps != 0) {
+                                assertEquals(baseline(counter.steps), counter.baseline);
+                                assertEquals(START + counter.steps, counter.countedMillis);
+                            }
+                            assertTrue(counter.steps >= lastCounted);
+                            lastCounted = counter.steps;
+                            count += 2;
+                        }
+                        reads.addAndGet(count);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+
+        sensor.start();
+        sync.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        sensor.join();
+        long nanos = System.nanoTime() - began;
+        done.set(true);
+        sync.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        long walked = 0;
+        for (int i = 0; i < events; i++) {
+            walked += 1 + (i & 3);
+        }
+        assertTrue("syncs should have raced with the sensor", syncs.get() > 10);
+        assertEquals(walked, synced.get() + widget.steps());
+        System.out.println(String.format(
+                "shared step file: %d publishes and %d syncs in %.0f ms, %.1f M reads/s across %d readers",
+                events, syncs.get(), nanos / 1e6, reads.get() * 1e3 / nanos, readers.length));
+    }
+
+    private static long baseline(int counted) {
+        return counted * 31L + 7;
+    }
+
+    /**
+     * Offset of the counter slot copy holding {@code steps}.
+     */
+    private static long copyHolding(RandomAccessFile raf, long steps) throws IOException {
+        for (long copy = 64; copy < 192; copy += 64) {
+            raf.seek(copy + 8);
+            if (raf.readLong() == steps) {
+                return copy;
+            }
+        }
+        throw new AssertionError("no copy holds " + steps);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StepAccountantTest {
+
+    @Test
+    public void firstReadingOnlySetsBaseline() {
+        StepAccountant accountant = new StepAccountant(3, StepAccountant.NO_BASELINE);
+        assertEquals(0, accountant.onCounter(5000));
+        assertEquals(StepAccountant.pack(3, 5000), accountant.baseline());
+        assertEquals(7, accountant.onCounter(5007));
+    }
+
+    @Test
+    public void repeatedAndZeroReadingsAddNothing() {
+        StepAccountant accountant = new StepAccountant(1, StepAccountant.NO_BASELINE);
+        assertEquals(0, accountant.onCounter(0));
+        assertEquals(0, accountant.onCounter(0));
+        assertEquals(4, accountant.onCounter(4));
+        assertEquals(0, accountant.onCounter(4));
+        assertEquals(0, accountant.onCounter(-1));
+        assertEquals(0, accountant.regressions());
+    }
+
+    @Test
+    public void restartInSameBootCreditsStepsWalkedWhileDead() {
+        StepAccountant accountant = new StepAccountant(7, StepAccountant.pack(7, 1000));
+        assertEquals(250, accountant.onCounter(1250));
+        assertEquals(0, accountant.reboots());
+    }
+
+    @Test
+    public void rebootCreditsWholeNewCounter() {
+        StepAccountant accountant = new StepAccountant(8, StepAccountant.pack(7, 1000));
+        assertEquals(1500, accountant.onCounter(1500));
+        assertEquals(1, accountant.reboots());
+        assertEquals(3, accountant.onCounter(1503));
+    }
+
+    @Test
+    public void counterResetWithoutRebootIsDetected() {
+        StepAccountant accountant = new StepAccountant(2, StepAccountant.NO_BASELINE);
+        accountant.onCounter(900);
+        assertEquals(910 - 900, accountant.onCounter(910));
+        assertEquals(12, accountant.onCounter(12));
+        assertEquals(1, accountant.regressions());
+        assertEquals(0, accountant.reboots());
+    }
+
+    @Test
+    public void unknownBootCountFallsBackToRegression() {
+        StepAccountant accountant = new StepAccountant(
+                StepAccountant.UNKNOWN_BOOT, StepAccountant.pack(StepAccountant.UNKNOWN_BOOT, 1000));
+        assertEquals(40, accountant.onCounter(40));
+        assertEquals(1, accountant.regressions());
+        assertEquals(0, accountant.reboots());
+    }
+
+    @Test
+    public void bootCountAppearingLaterIsNotARebootByItself() {
+        StepAccountant accountant = new StepAccountant(5, StepAccountant.pack(StepAccountant.UNKNOWN_BOOT, 100));
+        assertEquals(20, accountant.onCounter(120));
+        assertEquals(StepAccountant.pack(5, 120), accountant.baseline());
+    }
+
+    @Test
+    public void clearedBaselineSkipsStepsWalkedWhileStopped() {
+        StepAccountant accountant = new StepAccountant(1, StepAccountant.NO_BASELINE);
+        accountant.onCounter(10);
+        accountant.onCounter(15);
+        accountant.clearBaseline();
+        assertEquals(StepAccountant.NO_BASELINE, accountant.baseline());
+        assertEquals(0, accountant.onCounter(400));
+        assertEquals(1, accountant.onCounter(401));
+    }
+
+    @Test
+    public void packRoundTrips() {
+        int[] values = {0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 123456};
+        for (int boot : values) {
+            for (int counter : values) {
+                long packed = StepAccountant.pack(boot, counter);
+                assertEquals(boot, StepAccountant.boot(packed));
+                assertEquals(counter, StepAccountant.counter(packed));
+            }
+        }
+    }
+
+    /**
+     * Random traces of walking, flushes, process deaths, reboots and counter resets. Every step the
+     * hardware counted must end up in the restored state.
+     */
+    @Test
+    public void syntheticTracesConserveSteps() {
+        for (long seed = 0; seed < 500; seed++) {
+            Device device = new Device(new Random(seed), 1 + (int) seed % 40);
+            device.run(2_000);
+            assertEquals("seed " + seed, device.walked, device.state.steps());
+        }
+    }
+
+    @Test
+    public void syntheticTracesWithUnknownBootCountNeverOvercount() {
+        for (long seed = 0; seed < 200; seed++) {
+            Device device = new Device(new Random(seed), StepAccountant.UNKNOWN_BOOT);
+            device.run(2_000);
+            assertTrue("seed " + seed, device.state.steps() <= device.walked);
+        }
+    }
+
+    /**
+     * Simulates the phone, the hardware counter and the service process, restoring from the
+     * store after every process death the way Bridge.loadStepState and PedometerService do.
+     */
+    private static final class Device {
+        private final Random random;
+        private final boolean bootKnown;
+        private final CoalescingStepWriterTest.FakeTime time = new CoalescingStepWriterTest.FakeTime();
+        private final CoalescingStepWriterTest.RecordingStore store = new CoalescingStepWriterTest.RecordingStore();
+
+        int boot;
+        int counter;
+        long walked;
+        StepState state;
+        CoalescingStepWriter writer;
+        StepCounterProcessor processor;
+
+        Device(Random random, int boot) {
+            this.random = random;
+            this.boot = boot;
+            this.bootKnown = boot != StepAccountant.UNKNOWN_BOOT;
+            this.counter = random.nextInt(10_000);
+            // the first reading after install is the baseline, nothing was walked before it
+            startProcess();
+        }
+
+        void run(int actions) {
+            for (int i = 0; i < actions; i++) {
+                time.now += 1 + random.nextInt(30_000);
+                int action = random.nextInt(100);
+                if (action < 80) {
+                    walk(random.nextInt(20));
+                    processor.onStepCounter(counter);
+                } else if (action < 88) {
+                    // onTaskRemoved
+                    writer.flush();
+                } else if (action < 94) {
+                    // killed without onDestroy, walking goes on while dead
+                    walk(random.nextInt(200));
+                    startProcess();
+                } else if (action < 98) {
+                    reboot();
+                    walk(random.nextInt(200));
+                    startProcess();
+                } else {
+                    resetCounter();
+                }
+            }
+        }
+
+        private void walk(int steps) {
+            counter += steps;
+            walked += steps;
+        }
+
+        private void reboot() {
+            // the service flushes on ACTION_SHUTDOWN
+            writer.flush();
+            counter = 0;
+            if (bootKnown) {
+                boot++;
+            }
+        }
+
+        /**
+         * Some sensors reset without a reboot. The next reading must come before the counter
+         * climbs past the old value again, which holds because a reading follows right after.
+         * Steps the sensor drops at the reset itself are lost to any accounting.
+         */
+        private void resetCounter() {
+            if (counter < 10) {
+                return;
+            }
+            // steps counted before the reset reached the service
+            processor.onStepCounter(counter);
+            counter = 0;
+            walk(1 + random.nextInt(5));
+            processor.onStepCounter(counter);
+        }
+
+        private void startProcess() {
+            state = new StepState();
+            state.restore(store.lastSteps);
+            writer = new CoalescingStepWriter(store, time, 1 + random.nextInt(60), 60_000L);
+            writer.reset(store.lastSteps, store.lastBaseline);
+            processor = new StepCounterProcessor(
+                    state, writer, new StepAccountant(boot, writer.latestBaseline()), null, time);
+            // the step counter reports its value as soon as the listener is registered,
+            // crediting everything walked while the process was dead
+            processor.onStepCounter(counter);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+import static org.junit.Assert.*;
+
+public class StepCounterProcessorTest {
+    private static final long MINUTE = StepJournal.MILLIS_PER_MINUTE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CoalescingStepWriterTest.FakeTime time;
+    private CoalescingStepWriterTest.RecordingStore store;
+    private StepJournal journal;
+    private StepState state;
+    private StepCounterProcessor processor;
+
+    @Before
+    public void setUp() throws IOException {
+        time = new CoalescingStepWriterTest.FakeTime();
+        store = new CoalescingStepWriterTest.RecordingStore();
+        journal = new StepJournal(folder.getRoot());
+        state = new StepState();
+        processor = new StepCounterProcessor(state, new CoalescingStepWriter(store, time, 10, 60_000L), freshAccountant(), journal, time);
+    }
+
+    @Test
+    public void firstReadingIsTheBaseline() {
+        processor.onStepCounter(5000f);
+        assertEquals(0, state.steps());
+        processor.onStepCounter(5007f);
+        assertEquals(7, state.steps());
+    }
+
+    @Test
+    public void recordsDeltasInJournal() throws IOException {
+        FakeStepCounter sensor = new FakeStepCounter(1200);
+        processor.onStepCounter(sensor.next(0));
+        for (int i = 0; i < 120; i++) {
+            time.now += 1_000L;
+            processor.onStepCounter(sensor.next(2));
+        }
+        journal.flush();
+        assertEquals(240, state.steps());
+        int[] history = journal.buckets(time.now - 3 * MINUTE, time.now + MINUTE, 60);
+        assertEquals(240, history[0]);
+    }
+
+    @Test
+    public void addsDeltasToTheDayTheyWereWalkedOn() throws IOException {
+        DailyAggregates aggregates = new DailyAggregates(new File(folder.getRoot(), "daily.agg"), ZoneOffset.UTC);
+        processor = new StepCounterProcessor(state, new CoalescingStepWriter(store, time, 10, 60_000L),
+                freshAccountant(), journal, aggregates, time);
+        LocalDate day = LocalDate.of(2026, 3, 7);
+        time.now = day.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() - 2 * MINUTE;
+        processor.onStepCounter(1000f);
+        processor.onStepCounter(1030f);
+        time.now += 4 * MINUTE;
+        processor.onStepCounter(1045f);
+
+        assertEquals(30, aggregates.day(day.toEpochDay()));
+        assertEquals(15, aggregates.day(day.toEpochDay() + 1));
+        assertEquals(45, aggregates.range(day.toEpochDay(), day.toEpochDay() + 1));
+    }
+
+    @Test
+    public void aClockSetBackFilesStepsOnTheSameDayInJournalAndTotals() throws IOException {
+        DailyAggregates aggregates = new DailyAggregates(new File(folder.getRoot(), "daily.agg"), ZoneOffset.UTC);
+        processor = new StepCounterProcessor(state, new CoalescingStepWriter(store, time, 10, 60_000L),
+                freshAccountant(), journal, aggregates, time);
+        LocalDate day = LocalDate.of(2026, 3, 7);
+        long midnight = day.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        time.now = midnight + 2 * MINUTE;
+        processor.onStepCounter(1000f);
+        processor.onStepCounter(1030f);
+        // set back across midnight, then forward again
+        time.now = midnight - 10 * MINUTE;
+        processor.onStepCounter(1045f);
+        time.now = midnight + 5 * MINUTE;
+        processor.onStepCounter(1050f);
+        journal.flush();
+
+        long from = day.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        int[] journalDays = journal.buckets(from, from + 2 * 24 * 60 * MINUTE, 24 * 60);
+        assertEquals(journalDays[0], aggregates.day(day.toEpochDay()));
+        assertEquals(journalDays[1], aggregates.day(day.toEpochDay() + 1));
+        assertEquals(50, journalDays[1]);
+    }
+
+    @Test
+    public void stopTrackingKeepsUnsyncedSteps() {
+        processor.onStepCounter(100f);
+        processor.onStepCounter(110f);
+        processor.stopTracking();
+        assertEquals(StepAccountant.NO_BASELINE, store.lastBaseline);
+        processor.onStepCounter(500f);
+        assertEquals(10, state.steps());
+        assertEquals(10, store.lastSteps);
+        assertEquals(StepAccountant.pack(StepAccountant.UNKNOWN_BOOT, 500), store.lastBaseline);
+        processor.onStepCounter(503f);
+        assertEquals(13, state.steps());
+    }
+
+    @Test
+    public void storeKeepsStepsAndBaselineTogether() {
+        processor.onStepCounter(100f);
+        for (int i = 1; i <= 25; i++) {
+            processor.onStepCounter(100f + i);
+            if (store.writes > 0) {
+                assertEquals(store.lastSteps, StepAccountant.counter(store.lastBaseline) - 100);
+            }
+        }
+        assertTrue(store.writes >= 2);
+    }
+
+    @Test
+    public void hotPathDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        processor = new StepCounterProcessor(
+                state, new CoalescingStepWriter(new NoopStore(), time, Integer.MAX_VALUE, Long.MAX_VALUE), freshAccountant(), journal, time);
+        FakeStepCounter sensor = new FakeStepCounter(0);
+        drive(sensor, 200_000);
+
+        long calibration = threads.getThreadAllocatedBytes(threadId);
+        calibration = threads.getThreadAllocatedBytes(threadId) - calibration;
+        // one-off JIT recompilation can allocate a few bytes on this thread, per-event
+        // allocation would show up in every round
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 3 && allocated != 0; round++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            drive(sensor, 100_000);
+            allocated = threads.getThreadAllocatedBytes(threadId) - before - calibration;
+        }
+
+        assertEquals("bytes allocated by 100k sensor events", 0, allocated);
+    }
+
+    private static StepAccountant freshAccountant() {
+        return new StepAccountant(StepAccountant.UNKNOWN_BOOT, StepAccountant.NO_BASELINE);
+    }
+
+    private void drive(FakeStepCounter sensor, int events) {
+        for (int i = 0; i < events; i++) {
+            time.now += 500L;
+            processor.onStepCounter(sensor.next(1 + (i & 1)));
+        }
+    }
+
+    /**
+     * Stands in for the SensorEvent stream of TYPE_STEP_COUNTER: a cumulative float counter.
+     */
+    static final class FakeStepCounter {
+        private final float[] values = new float[1];
+
+        FakeStepCounter(int initialCount) {
+            values[0] = initialCount;
+        }
+
+        float next(int steps) {
+            values[0] += steps;
+            return values[0];
+        }
+    }
+
+    private static final class NoopStore implements StepStore {
+        @Override
+        public void saveSteps(int steps, long baseline, long timeMillis) {
+        }
+
+        @Override
+        public void publishSteps(int steps, long baseline, long timeMillis) {
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class StepJournalTest {
+    private static final long MINUTE = StepJournal.MILLIS_PER_MINUTE;
+    private static final long START = 1_600_000_020_000L / MINUTE * MINUTE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sumsDeltasPerMinuteAndBucketsThem() throws IOException {
+        StepJournal journal = new StepJournal(folder.getRoot());
+        journal.record(START + 1_000L, 3);
+        journal.record(START + 59_000L, 4);
+        journal.record(START + MINUTE, 5);
+        journal.record(START + 10 * MINUTE, 6);
+
+        assertEquals(2, journal.recordCount());
+        assertArrayEquals(new int[]{7, 5}, journal.buckets(START, START + 2 * MINUTE, 1));
+        assertArrayEquals(new int[]{12, 6}, journal.buckets(START, START + 20 * MINUTE, 10));
+        assertArrayEquals(new int[]{5}, journal.buckets(START + MINUTE, START + 2 * MINUTE, 1));
+        assertEquals(0, journal.buckets(START, START, 1).length);
+    }
+
+    @Test
+    public void moreBucketsThanRetainedMinutesAreRejected() throws IOException {
+        StepJournal journal = new StepJournal(folder.getRoot(), 4, 2);
+        journal.record(START, 3);
+
+        assertEquals(8, journal.retainedMinutes());
+        assertEquals(8, journal.buckets(START, START + 8 * MINUTE, 1).length);
+        assertArrayEquals(new int[]{3, 0}, journal.buckets(START, START + 80 * MINUTE, 40));
+        for (long[] range : new long[][]{
+                {START, START + 8 * MINUTE + 1},
+                {0, START},
+                {Long.MIN_VALUE, Long.MAX_VALUE},
+                {START, Long.MAX_VALUE}}) {
+            try {
+                journal.buckets(range[0], range[1], 1);
+                fail("range " + range[0] + ".." + range[1] + " should be rejected");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        assertEquals(0, journal.buckets(Long.MAX_VALUE, Long.MAX_VALUE, 1).length);
+        assertEquals(0, journal.buckets(Long.MAX_VALUE - 1, Long.MAX_VALUE, 1).length);
+    }
+
+    @Test
+    public void minutesSaturateInsteadOfWrapping() {
+        assertEquals(Integer.MAX_VALUE, StepJournal.toMinute(Long.MAX_VALUE));
+        assertEquals(Integer.MIN_VALUE, StepJournal.toMinute(Long.MIN_VALUE));
+        assertEquals(Integer.MAX_VALUE, StepJournal.toMinuteRoundingUp(Long.MAX_VALUE));
+        assertEquals(StepJournal.toMinute(START), StepJournal.toMinuteRoundingUp(START));
+        assertEquals(StepJournal.toMinute(START) + 1, StepJournal.toMinuteRoundingUp(START + 1));
+        assertEquals(-1, StepJournal.toMinuteRoundingUp(-1 - MINUTE + 1));
+    }
+
+    @Test
+    public void filesThatAreNotSegmentsAreSkipped() throws IOException {
+        StepJournal journal = new StepJournal(folder.getRoot(), 4, 4);
+        journal.record(START, 10);
+        journal.close();
+        for (String name : new String[]{"backup.jnl", "-5.jnl", "zzz.jnl", "99999999999999999999.jnl"}) {
+            try (RandomAccessFile stray = new RandomAccessFile(new File(folder.getRoot(), name), "rw")) {
+                stray.writeInt(42);
+            }
+        }
+
+        StepJournal reopened = new StepJournal(folder.getRoot(), 4, 4);
+        assertEquals(4, reopened.ignoredFiles());
+        reopened.record(START + MINUTE, 5);
+        reopened.close();
+        // the real tail, not the stray file sorted after it, took the new record
+        StepJournal again = new StepJournal(folder.getRoot(), 4, 4);
+        assertArrayEquals(new int[]{10, 5}, again.buckets(START, START + 2 * MINUTE, 1));
+    }
+
+    @Test
+    public void reopenKeepsFlushedHistory() throws IOException {
+        StepJournal journal = new StepJournal(folder.getRoot());
+        journal.record(START, 10);
+        journal.record(START + MINUTE, 20);
+        journal.close();
+
+        StepJournal reopened = new StepJournal(folder.getRoot());
+        assertEquals(2, reopened.recordCount());
+        assertArrayEquals(new int[]{30}, reopened.buckets(START, START + 5 * MINUTE, 60));
+    }
+
+    @Test
+    public void clockGoingBackwardsStaysSorted() throws IOException {
+        StepJournal journal = new StepJournal(folder.getRoot());
+        journal.record(START + 5 * MINUTE, 1);
+        journal.record(START, 2);
+        journal.flush();
+        assertArrayEquals(new int[]{0, 3}, journal.buckets(START, START + 10 * MINUTE, 5));
+    }
+
+    @Test
+    public void tornTailRecordIsDroppedOnRecovery() throws IOException {
+        StepJournal journal = new StepJournal(folder.getRoot());
+        for (int i = 0; i < 5; i++) {
+            journal.record(START + i * MINUTE, 1);
+        }
+        journal.close();
+
+        File segment = folder.getRoot().listFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            // a sixth record whose check word never made it to disk
+            raf.seek(StepJournal.HEADER_SIZE + 5 * StepJournal.RECORD_SIZE);
+            raf.writeInt(StepJournal.toMinute(START) + 5);
+            raf.writeInt(1000);
+            // and a fifth record with a half-written delta
+            raf.seek(StepJournal.HEADER_SIZE + 4 * StepJournal.RECORD_SIZE + 4);
+            raf.writeShort(0x7fff);
+        }
+
+        StepJournal recovered = new StepJournal(folder.getRoot());
+        assertEquals(4, recovered.recordCount());
+        recovered.record(START + 6 * MINUTE, 2);
+        recovered.close();
+
+        StepJournal again = new StepJournal(folder.getRoot());
+        assertEquals(5, again.recordCount());
+        assertArrayEquals(new int[]{1, 1, 1, 1, 0, 0, 2}, again.buckets(START, START + 7 * MINUTE, 1));
+    }
+
+    @Test
+    public void zeroedHeaderIsReinitialized() throws IOException {
+        File segment = new File(folder.getRoot(), "0000000000000000.jnl");
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(4096);
+        }
+        StepJournal journal = new StepJournal(folder.getRoot());
+        assertEquals(0, journal.recordCount());
+        journal.record(START, 1);
+        journal.close();
+        assertEquals(1, new StepJournal(folder.getRoot()).recordCount());
+    }
+
+    @Test
+    public void rotatesAndDropsOldestSegments() throws IOException {
+        StepJournal journal = new StepJournal(folder.getRoot(), 10, 3);
+        for (int i = 0; i < 45; i++) {
+            journal.record(START + i * MINUTE, 1);
+        }
+        journal.flush();
+        assertEquals(3, journal.segmentCount());
+        assertEquals(25, journal.recordCount());
+        assertArrayEquals(new int[]{0, 0, 10, 10}, journal.buckets(START, START + 40 * MINUTE, 10));
+        assertArrayEquals(new int[]{0, 0, 10, 10, 1}, journal.buckets(START, START + 40 * MINUTE + 1, 10));
+    }
+
+    @Test
+    public void scansAYearOfMinutes() throws IOException {
+        int minutes = 365 * 24 * 60;
+        StepJournal journal = new StepJournal(folder.getRoot(), StepJournal.DEFAULT_SEGMENT_CAPACITY, 16);
+        long expected = 0;
+        for (int i = 0; i < minutes; i++) {
+            int delta = 1 + i % 7;
+            expected += delta;
+            journal.record(START + i * MINUTE, delta);
+        }
+        journal.close();
+
+        StepJournal reopened = new StepJournal(folder.getRoot());
+        assertEquals(minutes, reopened.recordCount());
+        long begin = System.nanoTime();
+        int[] days = reopened.buckets(START, START + minutes * MINUTE, 24 * 60);
+        long scanNanos = System.nanoTime() - begin;
+        assertEquals(365, days.length);
+        long total = 0;
+        for (int day : days) {
+            total += day;
+        }
+        assertEquals(expected, total);
+
+        int[] hours = reopened.buckets(START + 100 * 24 * 60 * MINUTE, START + 101 * 24 * 60 * MINUTE, 60);
+        assertEquals(24, hours.length);
+        int firstMinute = 100 * 24 * 60;
+        int hour = 0;
+        for (int i = firstMinute; i < firstMinute + 60; i++) {
+            hour += 1 + i % 7;
+        }
+        assertEquals(hour, hours[0]);
+        System.out.println("year scan of " + minutes + " records: " + scanNanos / 1_000_000 + " ms");
+    }
+}
@@ -0,0 +1,74 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays a simulated walk through the old write-per-event path and through
+ * {@link CoalescingStepWriter} and compares how many prefs file rewrites and bytes each costs.
+ * Run it on its own to print the report.
+ */
+public class StepPersistenceBenchmarkTest {
+    private static final int WALK_MINUTES = 60;
+    private static final int STEPS_PER_MINUTE = 110;
+
+    @Test
+    public void coalescingWriterSavesWritesAndBytes() {
+        PrefsFileStore perEvent = new PrefsFileStore();
+        walk(new CoalescingStepWriter(perEvent, perEvent.time, 0, 0L), perEvent.time);
+
+        PrefsFileStore coalesced = new PrefsFileStore();
+        CoalescingStepWriter writer = new CoalescingStepWriter(coalesced, coalesced.time);
+        walk(writer, coalesced.time);
+        writer.flush();
+
+        System.out.println(String.format(
+                "%d min walk: per-event %d writes / %d bytes, coalesced %d writes / %d bytes (%.1fx fewer writes)",
+                WALK_MINUTES, perEvent.writes, perEvent.bytes, coalesced.writes, coalesced.bytes,
+                (double) perEvent.writes / coalesced.writes));
+
+        assertEquals(perEvent.lastSteps, coalesced.lastSteps);
+        assertEquals(WALK_MINUTES * STEPS_PER_MINUTE, perEvent.writes);
+        assertTrue(coalesced.writes * 20 < perEvent.writes);
+        assertTrue(coalesced.bytes * 20 < perEvent.bytes);
+    }
+
+    private static void walk(CoalescingStepWriter writer, CoalescingStepWriterTest.FakeTime time) {
+        long stepIntervalMillis = 60_000L / STEPS_PER_MINUTE;
+        for (int steps = 1; steps <= WALK_MINUTES * STEPS_PER_MINUTE; steps++) {
+            time.now += stepIntervalMillis;
+            writer.update(steps);
+        }
+    }
+
+    /**
+     * Counts the bytes SharedPreferences would serialize for the default prefs file on each apply().
+     */
+    private static final class PrefsFileStore implements StepStore {
+        final CoalescingStepWriterTest.FakeTime time = new CoalescingStepWriterTest.FakeTime();
+        int writes;
+        long bytes;
+        int lastSteps;
+
+        @Override
+        public void saveSteps(int steps, long baseline, long timeMillis) {
+            String date = new Date(timeMillis).toString();
+            String xml = "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<map>\n"
+                    + "    <string name=\"" + Bridge.INIT_DATE + "\">" + date + "</string>\n"
+                    + "    <string name=\"" + Bridge.DATE + "\">" + date + "</string>\n"
+                    + "    <int name=\"" + Bridge.STEPS + "\" value=\"" + steps + "\" />\n"
+                    + "    <int name=\"" + Bridge.SUMMARY_STEPS + "\" value=\"0\" />\n"
+                    + "</map>\n";
+            writes++;
+            bytes += xml.length();
+            lastSteps = steps;
+        }
+
+        @Override
+        public void publishSteps(int steps, long baseline, long timeMillis) {
+        }
+    }
+}
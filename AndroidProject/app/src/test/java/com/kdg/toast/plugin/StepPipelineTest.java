@@ -0,0 +1,210 @@
+package com.kdg.toast.plugin;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives {@link StepPipeline} with synthetic step counter streams, checks that every step
+ * ends up counted, stored and journaled, and prints the end-to-end latency. Run it on its
+ * own to see the report.
+ */
+public class StepPipelineTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final StepState state = new StepState();
+    private final CoalescingStepWriterTest.FakeTime time = new CoalescingStepWriterTest.FakeTime();
+    private final SlowStore store = new SlowStore();
+    private final PluginMetrics metrics = new PluginMetrics();
+    private StepJournal journal;
+    private StepCounterProcessor processor;
+    private StepPipeline pipeline;
+
+    @After
+    public void stop() throws Exception {
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void floodConservesStepsUnderBackpressure() throws Exception {
+        // every change is written and each write is slow, persistence cannot keep up
+        start(0, 64);
+        store.writeNanos = 20_000L;
+        int events = 500_000;
+
+        long began = System.nanoTime();
+        int counter = stream(events, 0);
+        long ingestNanos = System.nanoTime() - began;
+        assertTrue(pipeline.drain());
+        long totalNanos = System.nanoTime() - began;
+
+        int walked = counter - 1_000;
+        assertEquals(walked, state.steps());
+        assertEquals(walked, store.lastSteps);
+        assertEquals(walked, journaled());
+        Pipeline stages = pipeline.pipeline();
+        assertTrue("persistence never pushed back", stages.conflated(0) + stages.conflated(1) > 0);
+        // ingest only waits for a reading of an earlier minute, at most once per minute
+        assertTrue("blocked " + stages.blocked(0), stages.blocked(0) <= 60);
+        report("flood", events, ingestNanos, totalNanos);
+    }
+
+    @Test
+    public void conflationKeepsStepsInTheMinuteTheyWereWalked() throws Exception {
+        start(0, 4);
+        store.writeNanos = 50_000L;
+        int minutes = 10;
+        int perMinute = 2_000;
+        long from = time.now / StepJournal.MILLIS_PER_MINUTE * StepJournal.MILLIS_PER_MINUTE;
+        int counter = 1_000;
+        assertTrue(pipeline.onStepCounter(counter, from));
+        for (int minute = 0; minute < minutes; minute++) {
+            for (int i = 1; i <= perMinute; i++) {
+                counter++;
+                long eventTimeMillis = from + minute * StepJournal.MILLIS_PER_MINUTE
+                        + i * (StepJournal.MILLIS_PER_MINUTE - 1) / perMinute;
+                assertTrue(pipeline.onStepCounter(counter, eventTimeMillis));
+            }
+        }
+        assertTrue(pipeline.drain());
+        journal.flush();
+
+        Pipeline stages = pipeline.pipeline();
+        assertTrue("persistence never pushed back", stages.conflated(0) + stages.conflated(1) > 0);
+        int[] perMinuteJournaled = journal.buckets(from, from + minutes * StepJournal.MILLIS_PER_MINUTE, 1);
+        for (int minute = 0; minute < minutes; minute++) {
+            assertEquals("minute " + minute, perMinute, perMinuteJournaled[minute]);
+        }
+    }
+
+    @Test
+    public void pacedStreamKeepsEveryReading() throws Exception {
+        start(CoalescingStepWriter.DEFAULT_MAX_UNSAVED_STEPS, StepPipeline.DEFAULT_CAPACITY);
+        int events = 20_000;
+
+        long began = System.nanoTime();
+        int counter = stream(events, 20_000L);
+        long ingestNanos = System.nanoTime() - began;
+        assertTrue(pipeline.drain());
+        long totalNanos = System.nanoTime() - began;
+        processor.flush();
+
+        assertEquals(counter - 1_000, state.steps());
+        assertEquals(counter - 1_000, store.lastSteps);
+        Pipeline stages = pipeline.pipeline();
+        Histogram.Snapshot latency = metrics.pipelineLatencyMicros.snapshot();
+        assertEquals(stages.processed(2), latency.count);
+        assertTrue("p50 " + latency.percentile(50) + "us", latency.percentile(50) < 100_000L);
+        report("paced", events, ingestNanos, totalNanos);
+    }
+
+    @Test
+    public void collectorDrainsBeforeStoppingTheCount() throws Exception {
+        start(CoalescingStepWriter.DEFAULT_MAX_UNSAVED_STEPS, StepPipeline.DEFAULT_CAPACITY);
+        CollectorHostTest.FakeSensorSource sensors = new CollectorHostTest.FakeSensorSource();
+        sensors.add(SensorSource.TYPE_STEP_COUNTER);
+        StepPublisher publisher = new StepPublisher(state, time, new CollectorHostTest.QueueScheduler());
+        StepCounterCollector collector = new StepCounterCollector(
+                sensors, processor, journal, publisher, metrics, time, pipeline);
+        assertTrue(collector.start(0));
+        for (int counter = 500; counter <= 10_500; counter++) {
+            sensors.emit(SensorSource.TYPE_STEP_COUNTER, sensors.elapsedNanos, counter);
+        }
+
+        collector.stop();
+
+        assertEquals(10_000, state.steps());
+        assertEquals(10_000, store.lastSteps);
+        assertEquals(StepAccountant.NO_BASELINE, store.lastBaseline);
+        assertEquals(10_001, collector.eventCount());
+    }
+
+    private void start(int maxUnsavedSteps, int capacity) throws Exception {
+        journal = new StepJournal(folder.getRoot());
+        CoalescingStepWriter writer = new CoalescingStepWriter(store, time, maxUnsavedSteps, Long.MAX_VALUE);
+        processor = new StepCounterProcessor(state, writer, new StepAccountant(1, StepAccountant.NO_BASELINE), journal, time);
+        StepPublisher publisher = new StepPublisher(state, time, new CollectorHostTest.QueueScheduler());
+        pipeline = new StepPipeline(processor, publisher, metrics, capacity);
+        pipeline.start(Executors.defaultThreadFactory());
+    }
+
+    /**
+     * Feeds {@code events} readings 0-3 steps apart starting at counter 1000, one every
+     * {@code intervalNanos} (0 for as fast as possible), with event times spread over an hour.
+     *
+     * @return the last counter value
+     */
+    private int stream(int events, long intervalNanos) {
+        int counter = 1_000;
+        long seed = 42;
+        long next = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            if (i > 0) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                counter += (int) ((seed >>> 33) & 3);
+            }
+            long eventTimeMillis = time.now + i * 3_600_000L / events;
+            assertTrue(pipeline.onStepCounter(counter, eventTimeMillis));
+            if (intervalNanos > 0) {
+                next += intervalNanos;
+                while (System.nanoTime() < next) {
+                    LockSupport.parkNanos(1_000L);
+                }
+            }
+        }
+        return counter;
+    }
+
+    private int journaled() throws Exception {
+        journal.flush();
+        int total = 0;
+        for (int steps : journal.buckets(time.now - 60_000L, time.now + 7_200_000L, 60)) {
+            total += steps;
+        }
+        return total;
+    }
+
+    private void report(String name, int events, long ingestNanos, long totalNanos) {
+        Histogram.Snapshot latency = metrics.pipelineLatencyMicros.snapshot();
+        System.out.println(String.format(
+                "%s: %d events, ingest %.0f ns/event, %.0f events/s end to end, latency us p50=%d p90=%d p99=%d max=%d",
+                name, events, (double) ingestNanos / events, events * 1e9 / totalNanos,
+                latency.percentile(50), latency.percentile(90), latency.percentile(99), latency.max));
+        System.out.print(pipeline.pipeline().describe());
+    }
+
+    /**
+     * Store whose writes take {@code writeNanos}, like a slow flash write.
+     */
+    static final class SlowStore implements StepStore {
+        volatile long writeNanos;
+        volatile int lastSteps;
+        volatile long lastBaseline = StepAccountant.NO_BASELINE;
+
+        @Override
+        public void saveSteps(int steps, long baseline, long timeMillis) {
+            long until = System.nanoTime() + writeNanos;
+            while (System.nanoTime() < until) {
+                // busy, like the fsync it stands for
+            }
+            lastSteps = steps;
+            lastBaseline = baseline;
+        }
+
+        @Override
+        public void publishSteps(int steps, long baseline, long timeMillis) {
+        }
+    }
+}
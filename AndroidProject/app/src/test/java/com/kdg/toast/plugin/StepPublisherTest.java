@@ -0,0 +1,200 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StepPublisherTest {
+    private CoalescingStepWriterTest.FakeTime time;
+    private ManualScheduler scheduler;
+    private StepState state;
+    private StepPublisher publisher;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() {
+        time = new CoalescingStepWriterTest.FakeTime();
+        scheduler = new ManualScheduler();
+        state = new StepState();
+        publisher = new StepPublisher(state, time, scheduler);
+        listener = new RecordingListener();
+    }
+
+    @Test
+    public void subscriberGetsCurrentValueImmediately() {
+        state.add(42);
+        publisher.subscribe(listener, 1_000L);
+        assertEquals(1, listener.updates.size());
+        assertEquals(42, (int) listener.updates.get(0));
+    }
+
+    @Test
+    public void coalescesBurstIntoOneTrailingUpdate() {
+        publisher.subscribe(listener, 1_000L);
+        listener.updates.clear();
+
+        change(1);
+        for (int i = 0; i < 50; i++) {
+            time.now += 10L;
+            change(1);
+        }
+        assertEquals(1, listener.updates.size());
+        assertEquals(1, scheduler.pending.size());
+        assertEquals(1_000L - 10L, scheduler.delays.get(0).longValue());
+
+        time.now += 500L;
+        scheduler.runAll();
+        assertEquals(2, listener.updates.size());
+        assertEquals(51, (int) listener.updates.get(1));
+    }
+
+    @Test
+    public void neverExceedsConfiguredRate() {
+        publisher.subscribe(listener, 250L);
+        listener.updates.clear();
+        long lastUpdate = Long.MIN_VALUE;
+        int lastCount = 0;
+        for (int i = 0; i < 10_000; i++) {
+            time.now += 7L;
+            change(1);
+            if (i % 5 == 0 && !scheduler.pending.isEmpty() && time.now >= scheduler.dueAt) {
+                scheduler.runAll();
+            }
+            if (listener.updates.size() != lastCount) {
+                assertTrue(lastUpdate == Long.MIN_VALUE || time.now - lastUpdate >= 250L);
+                lastUpdate = time.now;
+                lastCount = listener.updates.size();
+            }
+        }
+        assertTrue(listener.updates.size() <= 10_000 * 7 / 250 + 1);
+        assertTrue(listener.updates.size() >= 10_000 * 7 / 250 / 2);
+    }
+
+    @Test
+    public void unchangedValueIsNotRepublished() {
+        publisher.subscribe(listener, 0L);
+        listener.updates.clear();
+        change(3);
+        publisher.onStepsChanged();
+        time.now += 5_000L;
+        publisher.onStepsChanged();
+        assertEquals(1, listener.updates.size());
+        assertEquals(1, publisher.publishCount());
+    }
+
+    @Test
+    public void syncResetIsPublished() {
+        publisher.subscribe(listener, 0L);
+        change(10);
+        // a sync takes the unsynced steps
+        state.add(-10);
+        time.now += 1L;
+        publisher.onStepsChanged();
+        assertEquals(0, (int) listener.updates.get(listener.updates.size() - 1));
+    }
+
+    @Test
+    public void unsubscribedListenerStopsReceiving() {
+        RecordingListener other = new RecordingListener();
+        publisher.subscribe(listener, 0L);
+        publisher.subscribe(other, 0L);
+        publisher.unsubscribe(listener);
+        change(5);
+        assertEquals(1, listener.updates.size());
+        assertEquals(2, other.updates.size());
+
+        publisher.unsubscribe(other);
+        change(5);
+        assertEquals(2, other.updates.size());
+        assertTrue(scheduler.pending.isEmpty());
+    }
+
+    @Test
+    public void racingPublishesArriveInOrder() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> updates = Collections.synchronizedList(new ArrayList<Integer>());
+        publisher.subscribe(new StepUpdateListener() {
+            @Override
+            public void onStepsUpdated(int steps) {
+                if (steps == 1) {
+                    entered.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                updates.add(steps);
+            }
+        }, 0L);
+        Runnable publish = new Runnable() {
+            @Override
+            public void run() {
+                publisher.onStepsChanged();
+            }
+        };
+
+        state.add(1);
+        Thread first = new Thread(publish);
+        first.start();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        // a newer count is published while the listener still handles the older one
+        state.add(1);
+        Thread second = new Thread(publish);
+        second.start();
+        long deadline = System.currentTimeMillis() + 5_000L;
+        while (second.isAlive() && second.getState() != Thread.State.BLOCKED) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        release.countDown();
+        first.join(5_000L);
+        second.join(5_000L);
+
+        assertEquals(Arrays.asList(0, 1, 2), updates);
+    }
+
+    private void change(int delta) {
+        state.add(delta);
+        publisher.onStepsChanged();
+    }
+
+    static final class RecordingListener implements StepUpdateListener {
+        final List<Integer> updates = new ArrayList<>();
+
+        @Override
+        public void onStepsUpdated(int steps) {
+            updates.add(steps);
+        }
+    }
+
+    final class ManualScheduler implements Scheduler {
+        final List<Runnable> pending = new ArrayList<>();
+        final List<Long> delays = new ArrayList<>();
+        long dueAt;
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            pending.add(task);
+            delays.add(delayMillis);
+            dueAt = time.now + delayMillis;
+        }
+
+        void runAll() {
+            List<Runnable> tasks = new ArrayList<>(pending);
+            pending.clear();
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+}
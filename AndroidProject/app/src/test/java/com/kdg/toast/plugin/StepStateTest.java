@@ -0,0 +1,102 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class StepStateTest {
+
+    @Test
+    public void addsAndRestores() {
+        StepState state = new StepState();
+        state.restore(40);
+        state.add(5);
+        state.add(7);
+        assertEquals(52, state.steps());
+    }
+
+    @Test
+    public void largeCountsWrapLikeTheStoredInt() {
+        StepState state = new StepState();
+        state.add(Integer.MAX_VALUE);
+        assertEquals(Integer.MAX_VALUE, state.steps());
+        state.add(2);
+        assertEquals(Integer.MIN_VALUE + 1, state.steps());
+    }
+
+    @Test
+    public void concurrentReadersSeeTheCountOnlyGrow() throws Exception {
+        final StepState state = new StepState();
+        final CoalescingStepWriterTest.FakeTime time = new CoalescingStepWriterTest.FakeTime();
+        final CoalescingStepWriter writer = new CoalescingStepWriter(new CoalescingStepWriterTest.RecordingStore(), time);
+        final StepCounterProcessor processor = new StepCounterProcessor(
+                state, writer, new StepAccountant(StepAccountant.UNKNOWN_BOOT, StepAccountant.NO_BASELINE), null, time);
+        final int events = 2_000_000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean sensorDone = new AtomicBoolean();
+        final AtomicBoolean wentBack = new AtomicBoolean();
+
+        Thread sensor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                awaitQuietly(start);
+                float counter = 0;
+                processor.onStepCounter(counter, 0L);
+                for (int i = 0; i < events; i++) {
+                    counter += 1 + (i & 3);
+                    processor.onStepCounter(counter, i);
+                }
+            }
+        });
+        Thread[] unity = new Thread[3];
+        for (int t = 0; t < unity.length; t++) {
+            unity[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    int last = 0;
+                    while (true) {
+                        boolean finished = sensorDone.get();
+                        int read = state.steps();
+                        if (read < last) {
+                            wentBack.set(true);
+                        }
+                        last = read;
+                        if (finished) {
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+
+        sensor.start();
+        for (Thread thread : unity) {
+            thread.start();
+        }
+        start.countDown();
+        sensor.join();
+        sensorDone.set(true);
+        for (Thread thread : unity) {
+            thread.join();
+        }
+
+        long walked = 0;
+        for (int i = 0; i < events; i++) {
+            walked += 1 + (i & 3);
+        }
+        assertFalse(wentBack.get());
+        assertEquals(walked, state.steps());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
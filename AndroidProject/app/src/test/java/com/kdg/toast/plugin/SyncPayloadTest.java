@@ -0,0 +1,81 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class SyncPayloadTest {
+
+    @Test
+    public void roundTripsWithoutBuckets() {
+        SyncPayload payload = new SyncPayload(1_600_000_000_000L, 1_600_003_600_000L, 4321);
+        byte[] bytes = payload.encode();
+        assertEquals(SyncPayload.HEADER_SIZE, bytes.length);
+
+        SyncPayload decoded = SyncPayload.decode(bytes);
+        assertEquals(payload.startMillis, decoded.startMillis);
+        assertEquals(payload.endMillis, decoded.endMillis);
+        assertEquals(4321, decoded.steps);
+        assertEquals(0, decoded.bucketMinutes);
+        assertEquals(0, decoded.buckets.length);
+    }
+
+    @Test
+    public void roundTripsWithBuckets() {
+        int[] buckets = {0, 12, Integer.MAX_VALUE, 7};
+        SyncPayload decoded = SyncPayload.decode(new SyncPayload(1L, 2L, 3, 60, buckets).encode());
+        assertEquals(60, decoded.bucketMinutes);
+        assertArrayEquals(buckets, decoded.buckets);
+    }
+
+    @Test
+    public void layoutIsLittleEndianForUnity() {
+        ByteBuffer buffer = ByteBuffer.wrap(new SyncPayload(0x0102030405060708L, 0L, 0x0a0b0c0d).encode());
+        assertEquals(SyncPayload.VERSION, buffer.get(0));
+        assertEquals(0, buffer.get(1));
+        assertEquals(0x08, buffer.get(4));
+        assertEquals(0x0d, buffer.get(20));
+        assertEquals(0x0102030405060708L, buffer.order(ByteOrder.LITTLE_ENDIAN).getLong(4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownVersion() {
+        byte[] bytes = new SyncPayload(1L, 2L, 3).encode();
+        bytes[0] = 99;
+        SyncPayload.decode(bytes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedBuckets() {
+        byte[] bytes = new SyncPayload(1L, 2L, 3, 1, new int[]{1, 2, 3}).encode();
+        byte[] truncated = new byte[bytes.length - 4];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        SyncPayload.decode(truncated);
+    }
+
+    @Test
+    public void encodesAndDecodesQuickly() {
+        int[] buckets = new int[24];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = i * 100;
+        }
+        SyncPayload payload = new SyncPayload(1_600_000_000_000L, 1_600_086_400_000L, 55_000, 60, buckets);
+        ByteBuffer buffer = ByteBuffer.allocate(payload.encodedSize());
+        int iterations = 1_000_000;
+        long checksum = 0;
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            buffer.clear();
+            payload.encodeTo(buffer);
+            buffer.flip();
+            checksum += SyncPayload.decode(buffer).steps;
+        }
+        long nanos = System.nanoTime() - begin;
+        assertEquals(55_000L * iterations, checksum);
+        System.out.println(String.format("sync payload round trip: %.0f ns, %.1f M payloads/s",
+                (double) nanos / iterations, iterations * 1000.0 / nanos));
+    }
+}
@@ -0,0 +1,277 @@
+package com.kdg.toast.plugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class UploadQueueTest {
+    private static final long HOUR = 3_600_000L;
+    private static final long START = 1_760_000_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void acknowledgesInOrderAndIgnoresStaleAcks() throws IOException {
+        UploadQueue queue = new UploadQueue(folder.getRoot());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i + 1, queue.append(interval(i, 100 + i)));
+        }
+        UploadFrame frame = queue.nextFrame(3);
+        assertEquals(1, frame.firstSequence);
+        assertEquals(3, frame.lastSequence);
+        assertEquals(303, frame.steps());
+        assertEquals(1, queue.nextFrame(3).firstSequence);
+
+        assertEquals(3, queue.ack(3));
+        assertEquals(0, queue.ack(2));
+        assertEquals(0, queue.ack(3));
+        assertEquals(2, queue.pendingCount());
+        assertEquals(207, queue.pendingSteps());
+        // acknowledging past the newest record only covers what exists
+        assertEquals(2, queue.ack(100));
+        assertEquals(5, queue.ackedSequence());
+        assertNull(queue.nextFrame(3));
+        assertEquals(6, queue.append(interval(5, 1)));
+    }
+
+    @Test
+    public void reopenKeepsUnacknowledgedRecordsAndTheQueueId() throws IOException {
+        UploadQueue queue = new UploadQueue(folder.getRoot());
+        for (int i = 0; i < 10; i++) {
+            queue.append(interval(i, i + 1));
+        }
+        queue.ack(4);
+        long queueId = queue.queueId();
+        queue.close();
+
+        UploadQueue reopened = new UploadQueue(folder.getRoot());
+        assertEquals(queueId, reopened.queueId());
+        assertEquals(6, reopened.pendingCount());
+        assertEquals(5 + 6 + 7 + 8 + 9 + 10, reopened.pendingSteps());
+        assertEquals(5, reopened.peek(1).get(0).sequence);
+        assertEquals(START + 4 * HOUR, reopened.peek(1).get(0).payload.startMillis);
+        assertEquals(11, reopened.append(interval(10, 11)));
+    }
+
+    @Test
+    public void sequencesAreNotReusedOnceEverythingIsAcknowledged() throws IOException {
+        UploadQueue queue = new UploadQueue(folder.getRoot());
+        queue.append(interval(0, 10));
+        queue.append(interval(1, 20));
+        queue.ack(2);
+        assertEquals(0, queue.segmentCount());
+        queue.close();
+
+        UploadQueue reopened = new UploadQueue(folder.getRoot());
+        assertEquals(0, reopened.pendingCount());
+        assertEquals(3, reopened.append(interval(2, 30)));
+    }
+
+    @Test
+    public void acknowledgedSegmentsAreDeleted() throws IOException {
+        // room for two bucket-less records per segment
+        int segmentBytes = UploadQueue.SEGMENT_HEADER_SIZE + 2 * (UploadQueue.RECORD_OVERHEAD + SyncPayload.HEADER_SIZE);
+        UploadQueue queue = new UploadQueue(folder.getRoot(), segmentBytes);
+        for (int i = 0; i < 10; i++) {
+            queue.append(interval(i, 1));
+        }
+        assertEquals(5, queue.segmentCount());
+        assertEquals(5, segmentFiles().length);
+
+        queue.ack(5);
+        assertEquals(3, queue.segmentCount());
+        assertEquals(3, segmentFiles().length);
+        queue.close();
+
+        UploadQueue reopened = new UploadQueue(folder.getRoot(), segmentBytes);
+        assertEquals(5, reopened.pendingCount());
+        assertEquals(6, reopened.peek(1).get(0).sequence);
+        reopened.ack(10);
+        assertEquals(0, segmentFiles().length);
+    }
+
+    @Test
+    public void tornRecordIsCutOffOnReopen() throws IOException {
+        UploadQueue queue = new UploadQueue(folder.getRoot());
+        for (int i = 0; i < 3; i++) {
+            queue.append(interval(i, 10));
+        }
+        queue.close();
+        File segment = segmentFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            // a crash in the middle of writing the third record, before append returned
+            raf.setLength(raf.length() - 5);
+        }
+
+        UploadQueue reopened = new UploadQueue(folder.getRoot());
+        assertEquals(2, reopened.pendingCount());
+        assertEquals(3, reopened.append(interval(2, 10)));
+        reopened.close();
+        assertEquals(3, new UploadQueue(folder.getRoot()).pendingCount());
+    }
+
+    @Test
+    public void framesRoundTripAndCompressBucketHistories() throws IOException {
+        UploadQueue queue = new UploadQueue(folder.getRoot());
+        Random random = new Random(3);
+        int rawSize = 0;
+        for (int i = 0; i < 48; i++) {
+            // hourly syncs with 15 minute buckets, mostly idle with some walking
+            int[] buckets = new int[4];
+            int steps = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                buckets[b] = random.nextInt(3) == 0 ? random.nextInt(1500) : 0;
+                steps += buckets[b];
+            }
+            SyncPayload payload = new SyncPayload(START + i * HOUR, START + (i + 1) * HOUR, steps, 15, buckets);
+            rawSize += payload.encodedSize();
+            queue.append(payload);
+        }
+        UploadFrame frame = queue.nextFrame(100);
+        byte[] bytes = frame.encode();
+        UploadFrame decoded = UploadFrame.decode(bytes);
+
+        assertEquals(queue.queueId(), decoded.queueId);
+        assertEquals(48, decoded.recordCount());
+        assertEquals(48, decoded.lastSequence);
+        List<UploadQueue.Record> records = queue.peek(100);
+        for (int i = 0; i < records.size(); i++) {
+            SyncPayload expected = records.get(i).payload;
+            assertEquals(records.get(i).sequence, decoded.sequences[i]);
+            assertArrayEquals(expected.encode(), decoded.payloads[i].encode());
+        }
+        assertTrue(bytes.length + " bytes for " + rawSize + " bytes of payloads", bytes.length * 3 < rawSize);
+        System.out.println(String.format("frame: %d records, %d bytes of sync payloads, %d bytes framed (%.1f bytes/record)",
+                records.size(), rawSize, bytes.length, (double) bytes.length / records.size()));
+    }
+
+    @Test
+    public void clockGoingBackwardsAndNegativeValuesSurviveTheFrame() {
+        SyncPayload[] payloads = {
+                new SyncPayload(START, START + HOUR, 10),
+                new SyncPayload(START - 2 * HOUR, START - HOUR, 0),
+                new SyncPayload(START, START - 1, -3, 5, new int[]{-1, 0, Integer.MAX_VALUE, Integer.MIN_VALUE}),
+        };
+        UploadFrame frame = new UploadFrame(-7L, new long[]{1, 2, 9}, payloads);
+        UploadFrame decoded = UploadFrame.decode(frame.encode());
+        assertEquals(-7L, decoded.queueId);
+        assertArrayEquals(new long[]{1, 2, 9}, decoded.sequences);
+        for (int i = 0; i < payloads.length; i++) {
+            assertArrayEquals(payloads[i].encode(), decoded.payloads[i].encode());
+        }
+    }
+
+    @Test
+    public void corruptFramesAreRejected() throws IOException {
+        UploadQueue queue = new UploadQueue(folder.getRoot());
+        for (int i = 0; i < 20; i++) {
+            queue.append(new SyncPayload(START + i * HOUR, START + (i + 1) * HOUR, i, 60, new int[]{i}));
+        }
+        byte[] bytes = queue.nextFrame(20).encode();
+        assertRejected(Arrays.copyOf(bytes, 10));
+        assertRejected(Arrays.copyOf(bytes, bytes.length - 4));
+        byte[] wrongVersion = bytes.clone();
+        wrongVersion[0] = 9;
+        assertRejected(wrongVersion);
+    }
+
+    @Test
+    public void queuedSyncsAreTakenOnceAndInOrder() throws IOException {
+        SharedStepCounter counter = new SharedStepCounter(folder.newFile());
+        UploadQueue queue = new UploadQueue(folder.newFolder());
+        counter.publishSteps(30, 1L, START);
+        assertEquals(1, PedometerCore.queueSync(counter, null, queue, START + HOUR, 0));
+        counter.publishSteps(50, 1L, START + HOUR);
+        assertEquals(2, PedometerCore.queueSync(counter, null, queue, START + 2 * HOUR, 0));
+
+        List<UploadQueue.Record> records = queue.peek(10);
+        assertEquals(30, records.get(0).payload.steps);
+        assertEquals(20, records.get(1).payload.steps);
+        assertEquals(START + HOUR, records.get(1).payload.startMillis);
+        assertEquals(0, counter.steps());
+        assertEquals(0, counter.preparedSync());
+    }
+
+    /**
+     * The process dies after the steps were noted for the queue and before the queue record
+     * is written: they stay unsynced.
+     */
+    @Test
+    public void aSyncKilledBeforeTheAppendKeepsItsStepsUnsynced() throws IOException {
+        File file = folder.newFile();
+        File directory = folder.newFolder();
+        SharedStepCounter counter = new SharedStepCounter(file);
+        counter.publishSteps(40, 1L, START);
+        counter.prepareSync(new UploadQueue(directory).lastSequence() + 1);
+
+        SharedStepCounter reopened = new SharedStepCounter(file);
+        UploadQueue queue = new UploadQueue(directory);
+        PedometerCore.recoverQueuedSync(reopened, queue, START + HOUR);
+        assertEquals(0, reopened.preparedSync());
+        assertEquals(40, reopened.steps());
+        assertEquals(0, queue.pendingCount());
+        assertEquals(1, PedometerCore.queueSync(reopened, null, queue, START + 2 * HOUR, 0));
+        assertEquals(40, queue.pendingSteps());
+    }
+
+    /**
+     * The process dies after the queue record was forced and before the steps were marked
+     * synced: the record's sequence in the sync slot tells the next process they were queued.
+     */
+    @Test
+    public void aSyncKilledAfterTheAppendIsNotQueuedTwice() throws IOException {
+        File file = folder.newFile();
+        File directory = folder.newFolder();
+        SharedStepCounter counter = new SharedStepCounter(file);
+        UploadQueue queue = new UploadQueue(directory);
+        counter.publishSteps(40, 1L, START);
+        long sequence = queue.lastSequence() + 1;
+        int steps = counter.prepareSync(sequence);
+        assertEquals(sequence, queue.append(new SyncPayload(START, START + HOUR, steps)));
+        queue.close();
+
+        SharedStepCounter reopened = new SharedStepCounter(file);
+        UploadQueue reopenedQueue = new UploadQueue(directory);
+        PedometerCore.recoverQueuedSync(reopened, reopenedQueue, START + 2 * HOUR);
+        assertEquals(0, reopened.preparedSync());
+        assertEquals(0, reopened.steps());
+        assertEquals(START + HOUR, reopened.syncMillis());
+        reopened.publishSteps(45, 1L, START + 2 * HOUR);
+        assertEquals(2, PedometerCore.queueSync(reopened, null, reopenedQueue, START + 3 * HOUR, 0));
+        assertEquals(45, reopenedQueue.pendingSteps());
+    }
+
+    private static void assertRejected(byte[] bytes) {
+        try {
+            UploadFrame.decode(bytes);
+            fail("decoded a corrupt frame");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+
+    private File[] segmentFiles() {
+        File[] files = folder.getRoot().listFiles();
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(".upq")) {
+                files[count++] = file;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    static SyncPayload interval(int hour, int steps) {
+        return new SyncPayload(START + hour * HOUR, START + (hour + 1) * HOUR, steps);
+    }
+}
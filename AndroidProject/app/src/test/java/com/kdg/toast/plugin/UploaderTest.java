@@ -0,0 +1,325 @@
+package com.kdg.toast.plugin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class UploaderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final PluginMetrics metrics = new PluginMetrics();
+    private final VirtualScheduler scheduler = new VirtualScheduler();
+
+    @Test
+    public void drainsTheQueueInFrames() throws IOException {
+        UploadQueue queue = new UploadQueue(folder.getRoot());
+        long steps = fill(queue, 1000, new Random(1));
+        Backend backend = new Backend();
+        Uploader uploader = new Uploader(queue, backend, scheduler, metrics, 256);
+
+        uploader.kick();
+        uploader.kick();
+        scheduler.runAll();
+
+        assertEquals(4, backend.frames);
+        assertEquals(4, uploader.framesSent());
+        assertEquals(4, metrics.uploads.get());
+        assertEquals(0, queue.pendingCount());
+        assertEquals(0, queue.segmentCount());
+        assertEquals(steps, backend.steps);
+        assertEquals(0, backend.duplicates);
+    }
+
+    @Test
+    public void retriesWithBackoffWhileTheBackendIsDown() throws IOException {
+        UploadQueue queue = new UploadQueue(folder.getRoot());
+        long steps = fill(queue, 10, new Random(2));
+        Backend backend = new Backend();
+        backend.failNext = 4;
+        Uploader uploader = new Uploader(queue, backend, scheduler, metrics);
+
+        uploader.kick();
+        scheduler.runNext();
+        assertEquals(1, uploader.failures());
+        // a new sync during the backoff waits for it
+        queue.append(UploadQueueTest.interval(100, 5));
+        uploader.kick();
+        assertEquals(1, scheduler.pending());
+        scheduler.runAll();
+
+        assertEquals(0, queue.pendingCount());
+        assertEquals(steps + 5, backend.steps);
+        assertEquals(0, uploader.failures());
+        assertEquals(4, metrics.uploadFailures.get());
+        assertEquals(Uploader.INITIAL_BACKOFF_MILLIS * (1 + 2 + 4 + 8), scheduler.now);
+        assertEquals(Uploader.MAX_BACKOFF_MILLIS, Uploader.backoffMillis(40));
+    }
+
+    @Test
+    public void lostAnswersResendRecordsTheReceiverDropsAsDuplicates() throws IOException {
+        UploadQueue queue = new UploadQueue(folder.getRoot());
+        long steps = fill(queue, 600, new Random(3));
+        Backend backend = new Backend();
+        backend.loseNextAnswers = 2;
+        Uploader uploader = new Uploader(queue, backend, scheduler, metrics, 200);
+
+        uploader.kick();
+        scheduler.runAll();
+
+        assertEquals(0, queue.pendingCount());
+        assertEquals(steps, backend.steps);
+        assertEquals(400, backend.duplicates);
+        assertEquals(2, metrics.uploadFailures.get());
+    }
+
+    @Test
+    public void storedButUnacknowledgedRecordsAreSentAgainAfterARestart() throws IOException {
+        UploadQueue queue = new UploadQueue(folder.getRoot());
+        long steps = fill(queue, 50, new Random(4));
+        Backend backend = new Backend();
+        // the backend stored the frame, then the process died before acknowledging it
+        backend.send(queue.nextFrame(30).encode());
+        queue.close();
+
+        UploadQueue reopened = new UploadQueue(folder.getRoot());
+        assertEquals(50, reopened.pendingCount());
+        Uploader uploader = new Uploader(reopened, backend, scheduler, metrics, 30);
+        uploader.kick();
+        scheduler.runAll();
+
+        assertEquals(0, reopened.pendingCount());
+        assertEquals(steps, backend.steps);
+        assertEquals(30, backend.duplicates);
+    }
+
+    @Test
+    public void onlyWhatTheReceiverStoredIsAcknowledged() throws IOException {
+        UploadQueue queue = new UploadQueue(folder.getRoot());
+        long steps = fill(queue, 100, new Random(5));
+        Backend backend = new Backend();
+        backend.maxRecordsPerFrame = 7;
+        Uploader uploader = new Uploader(queue, backend, scheduler, metrics, 50);
+
+        uploader.kick();
+        scheduler.runAll();
+
+        assertEquals(0, queue.pendingCount());
+        assertEquals(steps, backend.steps);
+        assertEquals(15, backend.frames);
+        assertEquals(0, metrics.uploadFailures.get());
+    }
+
+    @Test
+    public void uploadsOverHttp() throws IOException {
+        final Backend backend = new Backend();
+        final int[] unavailable = {1};
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/steps", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] frame = readAll(exchange.getRequestBody());
+                if (unavailable[0]-- > 0) {
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                    return;
+                }
+                byte[] answer = Long.toString(backend.send(frame)).getBytes(StandardCharsets.US_ASCII);
+                exchange.sendResponseHeaders(200, answer.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(answer);
+                }
+            }
+        });
+        server.start();
+        try {
+            UploadQueue queue = new UploadQueue(folder.getRoot());
+            long steps = fill(queue, 300, new Random(6));
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/steps");
+            Uploader uploader = new Uploader(queue, new HttpUploadTransport(url), scheduler, metrics, 128);
+
+            uploader.kick();
+            scheduler.runAll();
+
+            assertEquals(0, queue.pendingCount());
+            assertEquals(steps, backend.steps);
+            assertEquals(3, backend.frames);
+            assertEquals(1, metrics.uploadFailures.get());
+            assertEquals(Uploader.INITIAL_BACKOFF_MILLIS, scheduler.now);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void throughput() throws IOException {
+        int records = 20_000;
+        UploadQueue queue = new UploadQueue(folder.getRoot());
+        Random random = new Random(7);
+        long start = System.nanoTime();
+        long steps = fill(queue, records, random);
+        long appendNanos = System.nanoTime() - start;
+        Backend backend = new Backend();
+        Uploader uploader = new Uploader(queue, backend, scheduler, metrics);
+
+        start = System.nanoTime();
+        uploader.kick();
+        scheduler.runAll();
+        long drainNanos = System.nanoTime() - start;
+
+        assertEquals(steps, backend.steps);
+        assertEquals(0, queue.pendingCount());
+        long payloadBytes = (long) records * (SyncPayload.HEADER_SIZE + 8 + 4 * 4);
+        System.out.println(String.format(
+                "upload queue: %d records, append %.0f records/s (forced to disk), drain %.0f records/s, "
+                        + "%d wire bytes for %d payload bytes (%.1f bytes/record)",
+                records, records * 1e9 / appendNanos, records * 1e9 / drainNanos,
+                uploader.bytesSent(), payloadBytes, (double) uploader.bytesSent() / records));
+        assertTrue(uploader.bytesSent() * 3 < payloadBytes);
+    }
+
+    /**
+     * Appends {@code count} back to back 15 minute syncs with hourly buckets.
+     *
+     * @return their steps
+     */
+    private static long fill(UploadQueue queue, int count, Random random) throws IOException {
+        long steps = 0;
+        long start = 1_760_000_000_000L;
+        for (int i = 0; i < count; i++) {
+            int[] buckets = new int[4];
+            int total = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                buckets[b] = random.nextInt(4) == 0 ? random.nextInt(400) : 0;
+                total += buckets[b];
+            }
+            long end = start + 15 * 60_000L;
+            queue.append(new SyncPayload(start, end, total, 15, buckets));
+            start = end;
+            steps += total;
+        }
+        return steps;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int read;
+        while ((read = in.read(chunk)) > 0) {
+            out.write(chunk, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Backend stand-in keeping records by {@code (queueId, sequence)}, so a record sent twice
+     * is counted once, and answering the highest sequence stored without a gap.
+     */
+    static final class Backend implements UploadTransport {
+        final Map<Long, Long> stored = new HashMap<>();
+        long steps;
+        long duplicates;
+        int frames;
+        int failNext;
+        int loseNextAnswers;
+        int maxRecordsPerFrame = Integer.MAX_VALUE;
+
+        @Override
+        public synchronized long send(byte[] bytes) throws IOException {
+            if (failNext > 0) {
+                failNext--;
+                throw new IOException("backend down");
+            }
+            UploadFrame frame = UploadFrame.decode(bytes);
+            frames++;
+            long highest = stored.containsKey(frame.queueId) ? stored.get(frame.queueId) : 0;
+            for (int i = 0; i < frame.recordCount() && i < maxRecordsPerFrame; i++) {
+                long sequence = frame.sequences[i];
+                if (sequence <= highest) {
+                    duplicates++;
+                } else if (sequence == highest + 1) {
+                    steps += frame.payloads[i].steps;
+                    highest = sequence;
+                }
+            }
+            stored.put(frame.queueId, highest);
+            if (loseNextAnswers > 0) {
+                loseNextAnswers--;
+                throw new IOException("answer lost");
+            }
+            return highest;
+        }
+    }
+
+    /**
+     * Runs scheduled tasks in due order on virtual time.
+     */
+    static final class VirtualScheduler implements Scheduler {
+        private final List<long[]> due = new ArrayList<>();
+        private final List<Runnable> tasks = new ArrayList<>();
+        long now;
+        private long order;
+
+        @Override
+        public synchronized void schedule(Runnable task, long delayMillis) {
+            due.add(new long[]{now + delayMillis, order++});
+            tasks.add(task);
+        }
+
+        synchronized int pending() {
+            return tasks.size();
+        }
+
+        /**
+         * When the next task is due, Long.MAX_VALUE if none is.
+         */
+        synchronized long nextDue() {
+            long next = Long.MAX_VALUE;
+            for (long[] task : due) {
+                next = Math.min(next, task[0]);
+            }
+            return next;
+        }
+
+        void runNext() {
+            Runnable task;
+            synchronized (this) {
+                int next = 0;
+                for (int i = 1; i < due.size(); i++) {
+                    if (due.get(i)[0] < due.get(next)[0]) {
+                        next = i;
+                    }
+                }
+                now = Math.max(now, due.remove(next)[0]);
+                task = tasks.remove(next);
+            }
+            task.run();
+        }
+
+        void runAll() {
+            while (pending() > 0) {
+                runNext();
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.kdg.toast.plugin;
+
+/**
+ * Clock the benchmarks advance by hand, so the writer policy sees a realistic walking pace
+ * regardless of how fast the benchmark loop runs.
+ */
+final class ManualTime implements TimeSource {
+    long now = 1_600_000_000_000L;
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+}
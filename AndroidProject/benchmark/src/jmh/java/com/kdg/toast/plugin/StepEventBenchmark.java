@@ -0,0 +1,72 @@
+package com.kdg.toast.plugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Cost of one TYPE_STEP_COUNTER event: what PedometerService.onSensorChanged does after the
+ * timestamp conversion. {@code perEvent} writes the prefs on every event the way saveData
+ * used to, {@code coalesced} uses the default {@link CoalescingStepWriter} policy.
+ */
+@State(Scope.Thread)
+public class StepEventBenchmark {
+    /** Time between step counter events at a brisk walk. */
+    private static final long EVENT_INTERVAL_MILLIS = 550L;
+
+    @Param({"coalesced", "perEvent"})
+    public String persistence;
+
+    private final ManualTime time = new ManualTime();
+    private File journalDir;
+    private StepJournal journal;
+    private StepState state;
+    private StepCounterProcessor processor;
+    private float counter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        journalDir = Files.createTempDirectory("step_journal").toFile();
+        journal = new StepJournal(journalDir);
+        state = new StepState();
+        CoalescingStepWriter writer = "perEvent".equals(persistence)
+                ? new CoalescingStepWriter(new XmlPrefsStore(), time, 0, 0L)
+                : new CoalescingStepWriter(new XmlPrefsStore(), time);
+        processor = new StepCounterProcessor(state, writer,
+                new StepAccountant(1, StepAccountant.NO_BASELINE), journal, time);
+        counter = 10_000f;
+        processor.onStepCounter(counter, time.now);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        journal.close();
+        File[] segments = journalDir.listFiles();
+        if (segments != null) {
+            for (File segment : segments) {
+                segment.delete();
+            }
+        }
+        journalDir.delete();
+    }
+
+    @Benchmark
+    public int onStepCounter() {
+        time.now += EVENT_INTERVAL_MILLIS;
+        counter += 1f;
+        // float keeps integers exact up to 2^24, start over before that
+        if (counter > 16_000_000f) {
+            counter = 0f;
+        }
+        processor.onStepCounter(counter, time.now);
+        return state.steps();
+    }
+}
@@ -0,0 +1,129 @@
+package com.kdg.toast.plugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Date;
+
+/**
+ * Per-call cost of what Unity calls: GetCurrentSteps, SyncData and SyncDataBinary, on the
+ * shipped path: the unsynced steps read from and taken out of a {@link SharedStepCounter}
+ * through {@link PedometerCore#takeSync}, which forces the sync slot to disk. The journal
+ * holds a day of minute records, and each sync covers that day.
+ */
+@State(Scope.Thread)
+public class SyncBenchmark {
+    private static final long DAY_MILLIS = 24 * 60 * StepJournal.MILLIS_PER_MINUTE;
+    private static final int STEPS_PER_SYNC = 120;
+
+    private final ManualTime time = new ManualTime();
+    private File journalDir;
+    private File counterFile;
+    private StepJournal journal;
+    private SharedStepCounter counter;
+    private int counted;
+    private SensorBatching batching;
+    private long startMillis;
+    private SyncPayload dayPayload;
+    private ByteBuffer reusableBuffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        journalDir = Files.createTempDirectory("step_journal").toFile();
+        journal = new StepJournal(journalDir);
+        startMillis = time.now;
+        for (long t = startMillis; t < startMillis + DAY_MILLIS; t += StepJournal.MILLIS_PER_MINUTE) {
+            journal.record(t, 1 + (int) (t / StepJournal.MILLIS_PER_MINUTE % 90));
+        }
+        journal.flush();
+        time.now = startMillis + DAY_MILLIS;
+        counterFile = File.createTempFile("shared_steps", ".bin");
+        counterFile.delete();
+        counter = new SharedStepCounter(counterFile);
+        batching = new SensorBatching(10_000_000, 100);
+        dayPayload = new SyncPayload(startMillis, time.now, STEPS_PER_SYNC, 60,
+                journal.buckets(startMillis, time.now, 60));
+        reusableBuffer = ByteBuffer.allocate(dayPayload.encodedSize());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        journal.close();
+        File[] segments = journalDir.listFiles();
+        if (segments != null) {
+            for (File segment : segments) {
+                segment.delete();
+            }
+        }
+        journalDir.delete();
+        counter.close();
+        counterFile.delete();
+    }
+
+    /**
+     * GetCurrentSteps: the throttled flush check plus the shared counter read.
+     */
+    @Benchmark
+    public int currentSteps() {
+        time.now += 16L;
+        batching.shouldFlush(time.now);
+        return counter.steps();
+    }
+
+    /**
+     * SyncData: reset point plus the '#' separated string.
+     */
+    @Benchmark
+    public String syncString() {
+        walk();
+        SyncPayload payload = PedometerCore.takeSync(counter, journal, time.now, 0);
+        return new Date(payload.startMillis).toString() + '#' + new Date(payload.endMillis).toString() + '#' + payload.steps;
+    }
+
+    /**
+     * SyncDataBinary(0): reset point plus the header only payload.
+     */
+    @Benchmark
+    public byte[] syncBinary() {
+        walk();
+        return PedometerCore.takeSync(counter, journal, time.now, 0).encode();
+    }
+
+    /**
+     * SyncDataBinary(60) over a day: reset point, journal scan and 24 buckets.
+     */
+    @Benchmark
+    public byte[] syncBinaryWithHistory() {
+        walk();
+        SyncPayload taken = PedometerCore.takeSync(counter, null, time.now, 0);
+        // the day of history a sync a day after the last one gets
+        int[] buckets = journal.buckets(startMillis, time.now, 60);
+        return new SyncPayload(startMillis, taken.endMillis, taken.steps, 60, buckets).encode();
+    }
+
+    /**
+     * Encoding alone into a reused buffer, the floor for the binary path.
+     */
+    @Benchmark
+    public ByteBuffer encodeIntoReusedBuffer() {
+        reusableBuffer.clear();
+        dayPayload.encodeTo(reusableBuffer);
+        return reusableBuffer;
+    }
+
+    /**
+     * What the service publishes between two syncs.
+     */
+    private void walk() {
+        counted += STEPS_PER_SYNC;
+        counter.publishSteps(counted, StepAccountant.NO_BASELINE, time.now);
+    }
+}
@@ -0,0 +1,41 @@
+package com.kdg.toast.plugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Stands in for the SharedPreferences store steps were saved to before SharedStepCounter:
+ * each save serializes the whole prefs map to XML the way SharedPreferences does on apply(),
+ * minus the file system.
+ */
+final class XmlPrefsStore implements StepStore {
+    private final ByteArrayOutputStream file = new ByteArrayOutputStream(512);
+    long bytes;
+
+    @Override
+    public void saveSteps(int steps, long baseline, long timeMillis) {
+        file.reset();
+        try {
+            Writer writer = new OutputStreamWriter(file, StandardCharsets.UTF_8);
+            writer.write("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<map>\n");
+            writer.write("    <string name=\"initialDate\">" + new Date(timeMillis) + "</string>\n");
+            writer.write("    <string name=\"currentDate\">" + new Date(timeMillis) + "</string>\n");
+            writer.write("    <long name=\"initialDateMillis\" value=\"" + timeMillis + "\" />\n");
+            writer.write("    <long name=\"counterBaseline\" value=\"" + baseline + "\" />\n");
+            writer.write("    <int name=\"steps\" value=\"" + steps + "\" />\n");
+            writer.write("</map>\n");
+            writer.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        bytes += file.size();
+    }
+
+    @Override
+    public void publishSteps(int steps, long baseline, long timeMillis) {
+    }
+}
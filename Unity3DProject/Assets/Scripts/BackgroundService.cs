@@ -1,4 +1,6 @@
-﻿using TMPro;
+﻿using System;
+using System.IO;
+using TMPro;
 using UnityEngine;
 
 public class BackgroundService : MonoBehaviour
@@ -17,7 +19,13 @@ public class BackgroundService : MonoBehaviour
     private const string CustomClassStartServiceMethod = "StartService";
     private const string CustomClassStopServiceMethod = "StopService";
     private const string CustomClassGetCurrentStepsMethod = "GetCurrentSteps";
-    private const string CustomClassSyncDataMethod = "SyncData";
+    private const string CustomClassSyncDataBinaryMethod = "SyncDataBinary";
+    private const byte SyncPayloadVersion = 1;
+    private const string CustomClassOpenHistoryExportMethod = "OpenHistoryExport";
+    private const string CustomClassReadHistoryExportMethod = "ReadHistoryExport";
+    private const string CustomClassCloseHistoryExportMethod = "CloseHistoryExport";
+    private const byte HistoryExportVersion = 1;
+    private const byte HistoryExportLast = 1;
 
 
     private void Awake()
@@ -54,12 +62,23 @@ public class BackgroundService : MonoBehaviour
 
     public void SyncData()
     {
-        var data = customClass.CallStatic<string>(CustomClassSyncDataMethod);
+        var payload = (byte[]) (Array) customClass.CallStatic<sbyte[]>(CustomClassSyncDataBinaryMethod, 0);
 
-        var parsedData = data.Split('#');
-        var dateOfSync = parsedData[0] + " - " + parsedData[1];
-        syncedDateText.text = dateOfSync;
-        var receivedSteps = int.Parse(parsedData[2]);
+        int receivedSteps;
+        using (var reader = new BinaryReader(new MemoryStream(payload)))
+        {
+            if (reader.ReadByte() != SyncPayloadVersion)
+            {
+                Debug.LogError("Unsupported sync payload version");
+                return;
+            }
+            reader.ReadByte(); // flags
+            reader.ReadInt16(); // reserved
+            var startDate = DateTimeOffset.FromUnixTimeMilliseconds(reader.ReadInt64()).LocalDateTime;
+            var endDate = DateTimeOffset.FromUnixTimeMilliseconds(reader.ReadInt64()).LocalDateTime;
+            receivedSteps = reader.ReadInt32();
+            syncedDateText.text = startDate + " - " + endDate;
+        }
         var prefsSteps = PlayerPrefs.GetInt(PlayerPrefsTotalSteps, 0);
         var prefsStepsToSave = prefsSteps + receivedSteps;
         PlayerPrefs.SetInt(PlayerPrefsTotalSteps, prefsStepsToSave);
@@ -67,4 +86,41 @@ public class BackgroundService : MonoBehaviour
 
         GetCurrentSteps();
     }
-}
\ No newline at end of file
+
+    /// <summary>
+    /// Streams the per-minute step history between two dates to onMinute (epoch minute, steps),
+    /// one fixed-size chunk at a time, so weeks of history never sit in one array.
+    /// </summary>
+    public void ExportHistory(DateTimeOffset from, DateTimeOffset to, Action<int, int> onMinute)
+    {
+        var export = customClass.CallStatic<long>(CustomClassOpenHistoryExportMethod,
+            from.ToUnixTimeMilliseconds(), to.ToUnixTimeMilliseconds(), 0);
+        if (export < 0)
+        {
+            return;
+        }
+        try
+        {
+            byte flags;
+            do
+            {
+                var chunk = (byte[]) (Array) customClass.CallStatic<sbyte[]>(CustomClassReadHistoryExportMethod, export);
+                if (chunk.Length == 0 || chunk[0] != HistoryExportVersion)
+                {
+                    Debug.LogError("Unsupported history export version");
+                    return;
+                }
+                flags = chunk[1];
+                var count = BitConverter.ToInt32(chunk, 4);
+                for (var i = 0; i < count; i++)
+                {
+                    onMinute(BitConverter.ToInt32(chunk, 8 + i * 8), BitConverter.ToInt32(chunk, 12 + i * 8));
+                }
+            } while ((flags & HistoryExportLast) == 0);
+        }
+        finally
+        {
+            customClass.CallStatic(CustomClassCloseHistoryExportMethod, export);
+        }
+    }
+}